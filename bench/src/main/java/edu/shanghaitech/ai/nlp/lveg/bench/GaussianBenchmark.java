@@ -0,0 +1,118 @@
+package edu.shanghaitech.ai.nlp.lveg.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig.Options;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig.Params;
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture.Component;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
+import edu.shanghaitech.ai.nlp.util.FunUtil;
+
+/**
+ * Kernels of a single diagonal gaussian. The gaussian is integrated against an inside/outside score, i.e.,
+ * a mixture of <code>ncomponent</code> gaussians, as in the gradient evaluation, see {@link GaussianMixture#derivative}.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GaussianBenchmark {
+
+	@Param({"2", "5", "10"})
+	public short dim; // -dim
+
+	@Param({"2", "4", "8"})
+	public short ncomponent; // -ncomponent
+
+	private GaussianDistribution gd0, gd1;
+	private GaussianMixture score; // inside/outside score
+	private List<DoubleArrayList> cache;
+	private DoubleArrayList grads, gradst, gradss;
+
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random rnd = new Random(0); // the same numbers for every run
+		Params.config(new Options()); // default clipping threshold of the gradients
+		GaussianMixture.config((short) -1, 1e-6, 1, ncomponent, 0.5, 2.0, 0.2, true, rnd, null);
+		GaussianDistribution.config(1, 1, dim, 0.5, 0.5, rnd, null);
+		gd0 = new DiagonalGaussianDistribution(dim);
+		gd1 = new DiagonalGaussianDistribution(dim);
+		score = GrammarRule.rndRuleWeight(RuleType.LHSPACE, ncomponent, dim);
+		cache = new ArrayList<>(dim * 3 + 1); // nn * d, xnn * d, xxnn * d, w
+		for (int i = 0; i < dim * 3 + 1; i++) {
+			cache.add(new DoubleArrayList(ncomponent + 1));
+		}
+		integral(); // caches needed by the derivative w.r.t. mu & sigma
+		grads = new DoubleArrayList(dim * 2 + 1);
+		gradst = DoubleArrayList.fill(dim * 2 + 1, 0.3);
+		gradss = DoubleArrayList.fill(dim * 2 + 1, 0.7);
+	}
+
+
+	@Benchmark
+	public double mulAndMarginalize() {
+		return gd0.mulAndMarginalize(gd1);
+	}
+
+
+	/**
+	 * Integrals of NN, xNN, xxNN against all the components of the score, see GaussianMixture.integral(...).
+	 */
+	@Benchmark
+	public double integral() {
+		for (DoubleArrayList values : cache) {
+			values.clear();
+		}
+		double value = Double.NEGATIVE_INFINITY, vtmp;
+		DoubleArrayList weights = cache.get(cache.size() - 1);
+		for (Component comp : score.components()) {
+			weights.addDouble(comp.getWeight());
+			vtmp = gd0.integral(comp.squeeze(null), cache) + comp.getWeight();
+			value = FunUtil.logAdd(value, vtmp);
+		}
+		cache.get(0).addDouble(value);
+		return value;
+	}
+
+
+	@Benchmark
+	public DoubleArrayList derivativeFromCaches() {
+		gd0.derivative(false, 0.5, grads, cache);
+		return grads;
+	}
+
+
+	@Benchmark
+	public DoubleArrayList derivative() {
+		gd0.derivative(false, grads, gradst, gradss, 1.5, 2.5);
+		return grads;
+	}
+
+}
@@ -0,0 +1,94 @@
+package edu.shanghaitech.ai.nlp.lveg.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+
+/**
+ * Kernels of the mixtures of gaussians: the product of a binary rule weight and an inside score
+ * marginalized over the left child, as in the inside pass, and the pruning & merging of the mixtures.
+ * The pruning works in place so it is timed on a fresh copy, whose cost is given by {@link #copy()}.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MixtureBenchmark {
+
+	@Param({"2", "5", "10"})
+	public short dim; // -dim
+
+	@Param({"2", "4", "8"})
+	public short ncomponent; // -ncomponent
+
+	@Param({"4", "16"})
+	public short maxnbig; // -maxnbig
+
+	private GaussianMixture rule;   // w(A->BC)
+	private GaussianMixture score;  // inside score of B
+	private GaussianMixture wide;   // ncomponent * ncomponent components
+	private GaussianMixture twice;  // every component appears twice
+
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random rnd = new Random(0); // the same numbers for every run
+		GaussianMixture.config(maxnbig, 1e-6, 1, ncomponent, 0.5, 2.0, 0.2, true, rnd, null);
+		GaussianDistribution.config(1, 1, dim, 0.5, 0.5, rnd, null);
+		rule = GrammarRule.rndRuleWeight(RuleType.LRBRULE, ncomponent, dim);
+		score = GrammarRule.rndRuleWeight(RuleType.LHSPACE, ncomponent, dim);
+		wide = GrammarRule.rndRuleWeight(RuleType.LHSPACE, (short) (ncomponent * ncomponent), dim);
+		twice = score.copy(true);
+		twice.add(score.copy(true), false);
+	}
+
+
+	@Benchmark
+	public GaussianMixture mulAndMarginalize() {
+		return rule.mulAndMarginalize(score, null, RuleUnit.LC, true);
+	}
+
+
+	@Benchmark
+	public GaussianMixture copy() {
+		return wide.copy(true);
+	}
+
+
+	@Benchmark
+	public GaussianMixture delTrivia() {
+		GaussianMixture trivia = wide.copy(true); // delTrivia() works in place
+		trivia.delTrivia();
+		return trivia;
+	}
+
+
+	@Benchmark
+	public GaussianMixture merge() {
+		return GaussianMixture.merge(twice);
+	}
+
+}
@@ -0,0 +1,323 @@
+package edu.shanghaitech.ai.nlp.data;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.PackedGrammar;
+import edu.shanghaitech.ai.nlp.optimization.Optimizer;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+/**
+ * Writes grammar checkpoints on a background thread so that training does not wait for the disk. The caller
+ * only packs the rule weights with {@link PackedGrammar}, a copy of the parameter arrays that is independent of
+ * the live grammar; the background thread converts it to the object file if asked for, writes it to a temporary
+ * file and then renames it to the target, so a crash never leaves a truncated checkpoint behind. At most one
+ * snapshot waits behind the one being written, further checkpoints block until it is picked up. As the binary
+ * format, the object files written here do not keep the optimizers.
+ * <p>
+ * {@link #saveDelta(GrammarFile, String, int)} keeps a file up to date incrementally: only the rules updated
+ * since the previous checkpoint are appended to the delta file of {@link PackedGrammar}, and the whole grammar
+ * is rewritten, which drops the delta file, once every few checkpoints or after a failed write. The background
+ * thread keeps the packed copy of the whole grammar of each such file, into which the segments are merged, so
+ * it can write a new base whenever it has to.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class CheckpointWriter extends Recorder {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2650347934802279463L;
+	private static final String SUFFIX = ".tmp";
+	private static final int NSLOT = 2; // the one being written and the pending one
+
+	protected boolean binary;
+	protected Semaphore slots;
+	protected ExecutorService writer;
+	protected AtomicInteger nfailed;
+	protected Set<String> tracked; // files of which the whole grammar has been queued, used by the caller only
+	protected Map<String, Rolling> rollings; // used by the background thread only
+
+
+	/**
+	 * @param binary save in the binary format of {@link PackedGrammar} (true) or as the object file (false)
+	 */
+	public CheckpointWriter(boolean binary) {
+		this.binary = binary;
+		this.slots = new Semaphore(NSLOT);
+		this.nfailed = new AtomicInteger(0);
+		this.tracked = new HashSet<>();
+		this.rollings = new HashMap<>();
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "checkpoint-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * State of a file checkpointed by {@link CheckpointWriter#saveDelta(GrammarFile, String, int)}.
+	 */
+	protected static class Rolling {
+		protected PackedGrammar grammar; // the whole grammar as of the last queued checkpoint
+		protected int ndelta; // # of the segments appended since the base
+		protected boolean broken; // the file does not hold the grammar, so the next checkpoint must be a new base
+
+		protected Rolling(PackedGrammar grammar) {
+			this.grammar = grammar;
+			this.broken = true;
+		}
+	}
+
+
+	/**
+	 * Snapshot the grammar file on the calling thread and write it to each of the files in the background.
+	 *
+	 * @param gfile     the grammar file
+	 * @param filenames the output files
+	 * @return          whether the snapshot is queued
+	 */
+	public boolean save(GrammarFile gfile, List<String> filenames) {
+		if (filenames.isEmpty()) { return true; }
+		slots.acquireUninterruptibly();
+		final PackedGrammar packed;
+		try {
+			packed = PackedGrammar.pack(gfile.getGrammar(), gfile.getLexicon());
+		} catch (IllegalArgumentException e) {
+			slots.release();
+			e.printStackTrace();
+			return false;
+		}
+		final List<String> targets = new ArrayList<String>(filenames);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(packed, targets);
+				} finally {
+					slots.release();
+				}
+			}
+		});
+		return true;
+	}
+
+
+	public boolean save(GrammarFile gfile, String filename) {
+		List<String> filenames = new ArrayList<String>(1);
+		filenames.add(filename);
+		return save(gfile, filenames);
+	}
+
+
+	/**
+	 * Checkpoint the grammar to the file in the binary format of {@link PackedGrammar}, as a delta segment 
+	 * holding the rules updated since the previous checkpoint of the grammar, or as a new base. The caller packs
+	 * the whole grammar the first time and the updated rules afterwards; the background thread decides what to
+	 * write: the first checkpoint, the one after ncompact segments and every one after a failed write are new
+	 * bases. It must be called from a single thread, as the optimizers hand over their updated rules once.
+	 * 
+	 * @param gfile    the grammar file, of which the optimizers track the updated rules
+	 * @param filename the output file
+	 * @param ncompact max # of the delta segments of the file
+	 * @return         whether the snapshot is queued
+	 */
+	public boolean saveDelta(GrammarFile gfile, final String filename, final int ncompact) {
+		Set<GrammarRule> grules = drainUpdated(gfile.getGrammar().getOptimizer());
+		Set<GrammarRule> lrules = drainUpdated(gfile.getLexicon().getOptimizer());
+		final boolean whole = grules == null || lrules == null || !tracked.contains(filename);
+		slots.acquireUninterruptibly();
+		final PackedGrammar packed;
+		try {
+			packed = whole ? PackedGrammar.pack(gfile.getGrammar(), gfile.getLexicon()) : 
+				PackedGrammar.pack(gfile.getGrammar(), gfile.getLexicon(), grules, lrules);
+		} catch (IllegalArgumentException e) {
+			tracked.remove(filename); // the drained updates are lost, so the next snapshot has to be whole
+			slots.release();
+			e.printStackTrace();
+			return false;
+		}
+		tracked.add(filename);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					roll(packed, whole, filename, ncompact);
+				} finally {
+					slots.release();
+				}
+			}
+		});
+		return true;
+	}
+
+
+	/**
+	 * Write the checkpoint of the rolling file, runs on the background thread.
+	 * 
+	 * @param packed   the whole grammar or the rules updated since the previous checkpoint
+	 * @param whole    whether packed is the whole grammar
+	 * @param filename the output file
+	 * @param ncompact max # of the delta segments of the file
+	 */
+	protected void roll(PackedGrammar packed, boolean whole, String filename, int ncompact) {
+		Rolling rolling = rollings.get(filename);
+		if (whole || rolling == null) {
+			rolling = new Rolling(packed);
+			rollings.put(filename, rolling);
+		} else {
+			rolling.grammar.merge(packed);
+		}
+		boolean base = rolling.broken || rolling.ndelta >= ncompact;
+		try {
+			if (base) {
+				replaceBase(rolling.grammar, filename, false);
+				rolling.ndelta = 0;
+				rolling.broken = false;
+			} else {
+				packed.appendDelta(filename);
+				rolling.ndelta++;
+			}
+			logger.info("\n-------checkpoint " + (base ? "base" : "delta of " + packed.nrule() + " rules") + 
+					" saved to \'" + filename + "\' successfully.\n");
+		} catch (IOException | RuntimeException e) {
+			rolling.broken = true; // the updates of the failed write are only recovered by a new base
+			nfailed.incrementAndGet();
+			logger.error("\n-------checkpoint to \'" + filename + "\' failed: " + e + "\n");
+		}
+	}
+
+
+	private static Set<GrammarRule> drainUpdated(Optimizer optimizer) {
+		return optimizer == null ? null : optimizer.drainUpdated();
+	}
+
+
+	/**
+	 * Fold the delta file of the file into it.
+	 * 
+	 * @param filename the packed grammar file
+	 */
+	public static void compact(String filename) throws IOException {
+		replaceBase(PackedGrammar.loadWithDeltas(filename), filename, true);
+	}
+
+
+	/**
+	 * Replace the file by the new base and drop its delta file. The segments folded into the new base can be 
+	 * applied to it again without any change, so the delta file is dropped after the rename; otherwise it is 
+	 * dropped before, so that an interruption never leaves the new base with the stale segments.
+	 * 
+	 * @param packed   the new base
+	 * @param filename the packed grammar file
+	 * @param folded   whether the segments of the delta file have been folded into the new base
+	 */
+	private static void replaceBase(PackedGrammar packed, String filename, boolean folded) throws IOException {
+		Path tmp = Paths.get(filename + SUFFIX);
+		Path delta = Paths.get(filename + PackedGrammar.DELTA_SUFFIX);
+		try {
+			packed.save(tmp.toString());
+			if (!folded) { Files.deleteIfExists(delta); }
+			rename(tmp, Paths.get(filename));
+			if (folded) { Files.deleteIfExists(delta); }
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+
+	/**
+	 * Write the snapshot once and copy it to the other targets, each target is replaced by a rename.
+	 */
+	protected void write(PackedGrammar packed, List<String> filenames) {
+		Path first = Paths.get(filenames.get(0) + SUFFIX);
+		try {
+			write(packed, first.toString());
+			for (int i = 1; i < filenames.size(); i++) {
+				Path tmp = Paths.get(filenames.get(i) + SUFFIX);
+				Files.copy(first, tmp, StandardCopyOption.REPLACE_EXISTING);
+				rename(tmp, Paths.get(filenames.get(i)));
+				logger.info("\n-------checkpoint saved to \'" + filenames.get(i) + "\' successfully.\n");
+			}
+			rename(first, Paths.get(filenames.get(0)));
+			logger.info("\n-------checkpoint saved to \'" + filenames.get(0) + "\' successfully.\n");
+		} catch (IOException | RuntimeException e) {
+			nfailed.incrementAndGet();
+			logger.error("\n-------checkpoint to " + filenames + " failed: " + e + "\n");
+			try {
+				Files.deleteIfExists(first);
+			} catch (IOException ignored) {}
+		}
+	}
+
+
+	/**
+	 * Write the packed grammar as is, or as the object file of the grammar and the lexicon built from it. The
+	 * latter is identical to what {@link ObjectFileManager.ObjectFile#save(String)} writes.
+	 */
+	private void write(PackedGrammar packed, String filename) throws IOException {
+		if (binary) {
+			packed.save(filename);
+			return;
+		}
+		GrammarFile gfile = packed.unpack();
+		try (ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
+			oos.writeObject(gfile);
+		}
+	}
+
+
+	private static void rename(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	/**
+	 * Block until all the queued checkpoints are written.
+	 */
+	public void flush() {
+		slots.acquireUninterruptibly(NSLOT);
+		slots.release(NSLOT);
+	}
+
+
+	public int nfailed() {
+		return nfailed.get();
+	}
+
+
+	public void shutdown() {
+		flush();
+		writer.shutdown();
+	}
+
+}
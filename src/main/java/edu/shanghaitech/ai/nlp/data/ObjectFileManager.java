@@ -15,6 +15,7 @@ import java.util.zip.GZIPOutputStream;
 
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.model.PackedGrammar;
 import edu.shanghaitech.ai.nlp.util.Numberer;
 
 public class ObjectFileManager {
@@ -98,6 +99,40 @@ public class ObjectFileManager {
 		public Numberer getNumberer() {
 			return numberer;
 		}
+		
+		/**
+		 * Save the trees in the binary format of {@link PackedCorpus}.
+		 * 
+		 * @param filename the output file
+		 * @return         whether the corpus is saved
+		 */
+		public boolean saveBinary(String filename) {
+			try {
+				PackedCorpus.pack(train, test, dev, numberer).save(filename);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Load the corpus file in either the binary format of {@link PackedCorpus} or the legacy serialized one.
+		 * 
+		 * @param filename the input file
+		 * @return         the corpus file, or null if it cannot be loaded
+		 */
+		public static CorpusFile read(String filename) {
+			if (!PackedCorpus.isPacked(filename)) {
+				return (CorpusFile) load(filename);
+			}
+			try {
+				return PackedCorpus.load(filename).unpack();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
 	}
 	
 	
@@ -121,6 +156,43 @@ public class ObjectFileManager {
 		public LVeGLexicon getLexicon() {
 			return lexicon;
 		}
+		
+		/**
+		 * Save the rule weights in the binary format of {@link PackedGrammar}, the optimizers are not saved.
+		 * 
+		 * @param filename the output file
+		 * @return         whether the grammar is saved
+		 */
+		public boolean saveBinary(String filename) {
+			try {
+				PackedGrammar.pack(grammar, lexicon).save(filename);
+			} catch (IOException | IllegalArgumentException e) {
+				e.printStackTrace();
+				return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Load the grammar file in either the binary format of {@link PackedGrammar}, together with the segments
+		 * of its delta file, or the legacy serialized one. The serialized form of the gaussians and the gradients
+		 * predating the primitive arrays is still accepted, so the grammars trained before keep loading, together
+		 * with their optimizers.
+		 * 
+		 * @param filename the input file
+		 * @return         the grammar file, or null if it cannot be loaded
+		 */
+		public static GrammarFile read(String filename) {
+			if (!PackedGrammar.isPacked(filename)) {
+				return (GrammarFile) load(filename);
+			}
+			try {
+				return PackedGrammar.loadWithDeltas(filename).unpack();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
 	}
 	
 	
@@ -0,0 +1,291 @@
+package edu.shanghaitech.ai.nlp.data;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.CorpusFile;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.BinaryFile;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+
+/**
+ * Columnar copy of the training, test and development trees, which is written to and read from a versioned
+ * binary file. The file is little-endian and laid out as
+ * <pre>
+ * magic "LVGC", version, tag strings, word strings, train trees, test trees, dev trees
+ * </pre>
+ * where the tag strings are in the order of the tag ids, and the nodes of the trees of each part are stored in
+ * preorder as flat arrays: the tag ids (-1 for the words), the # of children, the starting and the ending points
+ * of the spans, and the indexes of the words in the word strings (-1 for the tags), preceded by the # of trees,
+ * the # of nodes, and the index of the first node of each tree. Every array is aligned to 8 bytes.
+ * <p>
+ * Reading maps the file and only copies the string tables; a tree is built from the mapped arrays the first
+ * time it is accessed and kept afterwards, so the states can be labeled and scored as usual.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class PackedCorpus {
+	public static final int MAGIC = 0x4347564c; // "LVGC" in little-endian
+	public static final int VERSION = 1;
+	private final static short ID_WORD = -1;
+
+	protected String[] tags;
+	protected String[] words;
+	protected Trees train;
+	protected Trees test;
+	protected Trees dev;
+
+
+	protected PackedCorpus() {}
+
+
+	public static PackedCorpus pack(StateTreeList train, StateTreeList test, StateTreeList dev, Numberer numberer) {
+		PackedCorpus packed = new PackedCorpus();
+		packed.tags = new String[numberer.size()];
+		for (int i = 0; i < packed.tags.length; i++) {
+			packed.tags[i] = String.valueOf(numberer.object(i));
+		}
+		List<String> words = new ArrayList<>();
+		Map<String, Integer> windices = new HashMap<>();
+		packed.train = Trees.pack(train, words, windices);
+		packed.test = Trees.pack(test, words, windices);
+		packed.dev = Trees.pack(dev, words, windices);
+		packed.words = words.toArray(new String[0]);
+		packed.train.words = packed.test.words = packed.dev.words = packed.words;
+		return packed;
+	}
+
+
+	/**
+	 * @return the corpus of which the trees are materialized on demand
+	 */
+	public CorpusFile unpack() {
+		Numberer numberer = new Numberer(true);
+		for (String tag : tags) {
+			numberer.number(tag);
+		}
+		return new CorpusFile(new StateTreeList(train), new StateTreeList(test), new StateTreeList(dev), numberer);
+	}
+
+
+	public static boolean isPacked(String filename) {
+		return BinaryFile.startsWith(filename, MAGIC);
+	}
+
+
+	public void save(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			BinaryFile.write(channel, header);
+			BinaryFile.writeStrings(channel, tags);
+			BinaryFile.writeStrings(channel, words);
+			train.write(channel);
+			test.write(channel);
+			dev.write(channel);
+		}
+	}
+
+
+	public static PackedCorpus load(String filename) throws IOException {
+		MappedByteBuffer buffer = BinaryFile.map(filename);
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Not a packed corpus file: " + filename);
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version " + version + " of the packed corpus file: " + filename);
+		}
+		PackedCorpus packed = new PackedCorpus();
+		packed.tags = BinaryFile.readStrings(buffer);
+		packed.words = BinaryFile.readStrings(buffer);
+		for (int i = 0; i < packed.words.length; i++) {
+			packed.words[i] = packed.words[i].intern(); // as the words of the trees read from the treebank
+		}
+		packed.train = Trees.read(buffer, packed.words);
+		packed.test = Trees.read(buffer, packed.words);
+		packed.dev = Trees.read(buffer, packed.words);
+		return packed;
+	}
+
+
+	/**
+	 * Trees of a part of the corpus, each of which is materialized from the columns when it is first accessed.
+	 * The list is serialized as the list of the materialized trees.
+	 */
+	protected static class Trees extends AbstractList<Tree<State>> implements RandomAccess, Serializable {
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 4720317143081620351L;
+		protected transient int[] offsets; // index of the first node of each tree, and the # of nodes at the end
+		protected transient ShortBuffer ids;
+		protected transient ShortBuffer nchilds;
+		protected transient ShortBuffer froms;
+		protected transient ShortBuffer tos;
+		protected transient IntBuffer widxs;
+		protected transient String[] words;
+		protected transient Tree<State>[] cache;
+
+		@SuppressWarnings("unchecked")
+		protected Trees(int[] offsets, String[] words) {
+			this.offsets = offsets;
+			this.words = words;
+			this.cache = new Tree[offsets.length - 1];
+		}
+
+		protected static Trees pack(StateTreeList trees, List<String> words, Map<String, Integer> windices) {
+			int ntree = trees.size(), nnode = 0, itree = 0;
+			int[] offsets = new int[ntree + 1];
+			for (Tree<State> tree : trees) {
+				offsets[itree++] = nnode;
+				nnode += count(tree);
+			}
+			offsets[ntree] = nnode;
+			Trees packed = new Trees(offsets, null);
+			packed.ids = ShortBuffer.allocate(nnode);
+			packed.nchilds = ShortBuffer.allocate(nnode);
+			packed.froms = ShortBuffer.allocate(nnode);
+			packed.tos = ShortBuffer.allocate(nnode);
+			packed.widxs = IntBuffer.allocate(nnode);
+			for (Tree<State> tree : trees) {
+				packed.add(tree, words, windices);
+			}
+			return packed;
+		}
+
+		private static int count(Tree<State> tree) {
+			int nnode = 1;
+			for (Tree<State> child : tree.getChildren()) {
+				nnode += count(child);
+			}
+			return nnode;
+		}
+
+		private void add(Tree<State> tree, List<String> words, Map<String, Integer> windices) {
+			State state = tree.getLabel();
+			froms.put(state.from);
+			tos.put(state.to);
+			nchilds.put((short) tree.getChildren().size());
+			if (tree.isLeaf()) {
+				Integer iword = windices.get(state.getName());
+				if (iword == null) {
+					iword = words.size();
+					words.add(state.getName());
+					windices.put(state.getName(), iword);
+				}
+				ids.put(ID_WORD);
+				widxs.put(iword);
+				return;
+			}
+			ids.put(state.getId());
+			widxs.put(-1);
+			for (Tree<State> child : tree.getChildren()) {
+				add(child, words, windices);
+			}
+		}
+
+		protected void write(FileChannel channel) throws IOException {
+			int ntree = offsets.length - 1, nnode = offsets[ntree];
+			int nbyte = 8 + BinaryFile.align((ntree + 1) * 4) + BinaryFile.align(nnode * 2) * 4 + BinaryFile.align(nnode * 4);
+			ByteBuffer buffer = ByteBuffer.allocate(nbyte).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(ntree).putInt(nnode);
+			for (int offset : offsets) { buffer.putInt(offset); }
+			BinaryFile.skipPadding(buffer);
+			for (ShortBuffer column : new ShortBuffer[] {ids, nchilds, froms, tos}) {
+				for (int i = 0; i < nnode; i++) { buffer.putShort(column.get(i)); }
+				BinaryFile.skipPadding(buffer);
+			}
+			for (int i = 0; i < nnode; i++) { buffer.putInt(widxs.get(i)); }
+			buffer.position(0);
+			BinaryFile.write(channel, buffer);
+		}
+
+		protected static Trees read(ByteBuffer buffer, String[] words) throws IOException {
+			int ntree = buffer.getInt(), nnode = buffer.getInt();
+			int[] offsets = new int[ntree + 1];
+			BinaryFile.slice(buffer, (ntree + 1) * 4).asIntBuffer().get(offsets);
+			if (offsets[ntree] != nnode) {
+				throw new IOException("Inconsistent trees of the packed corpus file.");
+			}
+			Trees trees = new Trees(offsets, words);
+			trees.ids = BinaryFile.slice(buffer, nnode * 2).asShortBuffer();
+			trees.nchilds = BinaryFile.slice(buffer, nnode * 2).asShortBuffer();
+			trees.froms = BinaryFile.slice(buffer, nnode * 2).asShortBuffer();
+			trees.tos = BinaryFile.slice(buffer, nnode * 2).asShortBuffer();
+			trees.widxs = BinaryFile.slice(buffer, nnode * 4).asIntBuffer();
+			return trees;
+		}
+
+		/**
+		 * @param inode index of the root of the subtree
+		 * @param tree  the subtree rooted at the node, whose children are to be filled
+		 * @return      index of the node next to the subtree
+		 */
+		private int materialize(int inode, Tree<State> tree) {
+			int nchild = nchilds.get(inode++);
+			if (nchild == 0) { return inode; }
+			List<Tree<State>> children = new ArrayList<>(nchild);
+			for (int i = 0; i < nchild; i++) {
+				Tree<State> child = new Tree<State>(state(inode));
+				inode = materialize(inode, child);
+				children.add(child);
+			}
+			tree.setChildren(children);
+			return inode;
+		}
+
+		private State state(int inode) {
+			short id = ids.get(inode);
+			String name = id == ID_WORD ? words[widxs.get(inode)] : null;
+			return new State(name, id, froms.get(inode), tos.get(inode));
+		}
+
+		@Override
+		public synchronized Tree<State> get(int index) {
+			Tree<State> tree = cache[index];
+			if (tree == null) {
+				tree = new Tree<State>(state(offsets[index]));
+				materialize(offsets[index], tree);
+				cache[index] = tree;
+			}
+			return tree;
+		}
+
+		@Override
+		public synchronized Tree<State> set(int index, Tree<State> tree) {
+			Tree<State> old = get(index);
+			cache[index] = tree;
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return cache.length;
+		}
+
+		private Object writeReplace() throws ObjectStreamException {
+			return new ArrayList<>(this);
+		}
+	}
+
+}
@@ -91,6 +91,14 @@ public class StateTreeList extends AbstractCollection<Tree<State>> implements Se
 	}
 	
 	
+	/**
+	 * @param trees the list that backs the new one, e.g., the lazily materialized trees of {@link PackedCorpus}
+	 */
+	StateTreeList(List<Tree<State>> trees) {
+		this.trees = trees;
+	}
+	
+	
 	public StateTreeList(StateTreeList stateTreeList) {
 		this.trees = new ArrayList<>();
 		for (Tree<State> tree: stateTreeList.trees) {
@@ -24,7 +24,7 @@ import edu.shanghaitech.ai.nlp.syntax.State;
 import edu.shanghaitech.ai.nlp.util.FunUtil;
 import edu.shanghaitech.ai.nlp.util.Numberer;
 import edu.shanghaitech.ai.nlp.util.OptionParser;
-import edu.shanghaitech.ai.nlp.util.ThreadPool;
+import edu.shanghaitech.ai.nlp.util.WorkerPool;
 
 public class LVeGPCFG extends LearnerConfig {
 	/**
@@ -41,7 +41,7 @@ public class LVeGPCFG extends LearnerConfig {
 	protected static LVeGLexicon lexicon;
 	
 	protected static PCFGParser<?, ?> pcfgParser;
-	protected static ThreadPool mparser;
+	protected static WorkerPool mparser;
 	
 	protected static String treeFile;
 	protected static Options opts;
@@ -87,7 +87,7 @@ public class LVeGPCFG extends LearnerConfig {
 		
 		// load grammar
 		logger.trace("--->Loading grammars from \'" + subdatadir + opts.inGrammar + "\'...\n");
-		GrammarFile gfile = (GrammarFile) GrammarFile.load(subdatadir + opts.inGrammar);
+		GrammarFile gfile = GrammarFile.read(subdatadir + opts.inGrammar);
 		grammar = gfile.getGrammar();
 		lexicon = gfile.getLexicon();
 		
@@ -106,7 +106,7 @@ public class LVeGPCFG extends LearnerConfig {
 				new HashSet<String>(Arrays.asList(new String[] { "''", "``", ".", ":", "," })));
 		pcfgParser = new PCFGParser<Tree<State>, Tree<String>>(grammar, lexicon, opts.maxslen, 
 				opts.ntcyker, opts.pcyker, opts.ef1prune, false);
-		mparser = new ThreadPool(pcfgParser, opts.nttest);
+		mparser = new WorkerPool(pcfgParser, opts.nttest);
 		
 		logger.info("\n---F1 CONFIG---\n[parallel: batch-" + opts.pbatch + ", grad-" + 
 				opts.pgrad + ", eval-" + opts.peval + ", test-" + opts.pf1 + "]\n\n");
@@ -140,7 +140,7 @@ public class LVeGPCFG extends LearnerConfig {
 	}
 	
 
-	public static String parallelFscore(Options opts, ThreadPool mparser, StateTreeList stateTreeList, Numberer numberer, boolean istrain) {
+	public static String parallelFscore(Options opts, WorkerPool mparser, StateTreeList stateTreeList, Numberer numberer, boolean istrain) {
 		Tree<State> goldTree = null;
 		Tree<String> parsedTree = null;
 		int nUnparsable = 0, cnt = 0, idx = 0;
@@ -159,14 +159,12 @@ public class LVeGPCFG extends LearnerConfig {
 			}
 		}
 		while (!mparser.isDone()) {
-			while (mparser.hasNext()) {
-				goldTree = trees.get(idx);
-				parsedTree = (Tree<String>) mparser.getNext();
-				if (!saveTree(goldTree, parsedTree, numberer, idx)) {
-					nUnparsable++;
-				}
-				idx++;
+			goldTree = trees.get(idx);
+			parsedTree = (Tree<String>) mparser.take();
+			if (!saveTree(goldTree, parsedTree, numberer, idx)) {
+				nUnparsable++;
 			}
+			idx++;
 		}
 		mparser.reset();
 		String summary = scorer.display();
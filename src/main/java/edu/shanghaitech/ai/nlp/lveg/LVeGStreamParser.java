@@ -0,0 +1,87 @@
+package edu.shanghaitech.ai.nlp.lveg;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.lveg.impl.MaxRuleParser;
+import edu.shanghaitech.ai.nlp.lveg.impl.ParsePipeline;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.OptionParser;
+
+/**
+ * Parses the sentences of -inSentence into -outParse through {@link ParsePipeline}, neither of which is held
+ * in memory.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class LVeGStreamParser extends LearnerConfig {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -1683712906580342875L;
+	protected static Options opts;
+
+
+	public static void main(String[] args) throws Exception {
+		String fparams = args[0];
+		try {
+			args = readFile(fparams, StandardCharsets.UTF_8).split(",");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		OptionParser optionParser = new OptionParser(Options.class);
+		opts = (Options) optionParser.parse(args, true);
+		// configurations
+		initialize(opts, true); // logger can only be used after the initialization
+		logger.info("Calling with " + optionParser.getParsedOptions() + "\n");
+		if (opts.inSentence == null || opts.outParse == null) {
+			throw new IllegalArgumentException("Both the input and the output files are required.");
+		}
+		// parsing
+		long startTime = System.currentTimeMillis();
+		parse();
+		long endTime = System.currentTimeMillis();
+		logger.trace("[total time consumed by LVeG stream parser] " + (endTime - startTime) / 1000.0 + "\n");
+	}
+
+
+	private static void parse() throws Exception {
+		GaussianMixture.config(opts.maxnbig, opts.expzero, opts.maxmw, opts.ncomponent,
+				opts.nwratio, opts.riserate, opts.rtratio, opts.hardcut, random, mogPool);
+		GaussianDistribution.config(opts.maxmu, opts.maxvar, opts.dim, opts.nmratio, opts.nvratio, random, gaussPool);
+
+		logger.trace("--->Loading grammars from \'" + subdatadir + opts.inGrammar + "\'...\n");
+		GrammarFile gfile = GrammarFile.read(subdatadir + opts.inGrammar);
+		LVeGGrammar grammar = gfile.getGrammar();
+		LVeGLexicon lexicon = gfile.getLexicon();
+
+		MaxRuleParser<Tree<State>, Tree<String>> mrParser = new MaxRuleParser<Tree<State>, Tree<String>>(grammar, lexicon,
+				opts.maxslen, opts.ntcyker, opts.pcyker, opts.ef1prune, false, false, null);
+		ParsePipeline pipeline = new ParsePipeline(mrParser, lexicon, opts.maxslen, opts.nttest, opts.nqueue, opts.treeInput, 
+				opts.lowercase);
+
+		String input = opts.datadir + opts.inSentence, output = opts.datadir + opts.outParse;
+		logger.trace("--->Parsing \'" + input + "\' into \'" + output + "\'...\n");
+		int nsentence;
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8);
+				BufferedWriter out = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+			nsentence = pipeline.parse(in, out);
+		}
+		logger.trace("--->" + nsentence + " sentences parsed.\n");
+
+		grammar.shutdown();
+		lexicon.shutdown();
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +30,8 @@ import edu.shanghaitech.ai.nlp.util.Debugger;
 import edu.shanghaitech.ai.nlp.util.FunUtil;
 import edu.shanghaitech.ai.nlp.util.Numberer;
 import edu.shanghaitech.ai.nlp.util.OptionParser;
-import edu.shanghaitech.ai.nlp.util.ThreadPool;
+import edu.shanghaitech.ai.nlp.util.WorkerPool;
+import edu.shanghaitech.ai.nlp.util.Executor.Meta;
 
 public class LVeGTesterImp extends LearnerConfig {
 	/**
@@ -46,7 +48,7 @@ public class LVeGTesterImp extends LearnerConfig {
 	protected static LVeGLexicon lexicon;
 	
 	protected static MaxRuleParser<?, ?> mrParser;
-	protected static ThreadPool mparser;
+	protected static WorkerPool mparser;
 
 	protected static String treeFile;
 	protected static Options opts;
@@ -93,7 +95,7 @@ public class LVeGTesterImp extends LearnerConfig {
 		
 		// load grammar
 		logger.trace("--->Loading grammars from \'" + subdatadir + opts.inGrammar + "\'...\n");
-		GrammarFile gfile = (GrammarFile) GrammarFile.load(subdatadir + opts.inGrammar);
+		GrammarFile gfile = GrammarFile.read(subdatadir + opts.inGrammar);
 		grammar = gfile.getGrammar();
 		lexicon = gfile.getLexicon();
 		
@@ -141,7 +143,7 @@ public class LVeGTesterImp extends LearnerConfig {
 				new HashSet<String>(Arrays.asList(new String[] { "''", "``", ".", ":", "," })));
 		mrParser = new MaxRuleParser<Tree<State>, Tree<String>>(grammar, lexicon, opts.maxslen, 
 				opts.ntcyker, opts.pcyker, opts.ef1prune, opts.usemasks, opts.eusestag, masks);
-		mparser = new ThreadPool(mrParser, opts.nttest);
+		mparser = new WorkerPool(mrParser, opts.nttest, opts.nttest * 4, false);
 		
 		logger.info("\n---F1 CONFIG---\n[parallel: batch-" + opts.pbatch + ", grad-" + 
 				opts.pgrad + ", eval-" + opts.peval + ", test-" + opts.pf1 + "]\n\n");
@@ -171,7 +173,7 @@ public class LVeGTesterImp extends LearnerConfig {
 		for (int i = 0; i < 7; i++) {
 			String data = subdatadir + "lveg_" + i + ".gr";
 			logger.trace("--->Loading grammars from \'" + data  + "\'\n\n");
-			GrammarFile gfile = (GrammarFile) GrammarFile.load(data);
+			GrammarFile gfile = GrammarFile.read(data);
 			grammar = gfile.getGrammar();
 			lexicon = gfile.getLexicon();
 			
@@ -202,42 +204,34 @@ public class LVeGTesterImp extends LearnerConfig {
 	}
 	
 
-	public static String parallelFscore(Options opts, ThreadPool mparser, List<Tree<State>> trees, Numberer numberer, boolean istrain) {
-		Tree<State> goldTree = null;
-		Tree<String> parsedTree = null;
-		int nUnparsable = 0, cnt = 0, idx = 0;
+	public static String parallelFscore(Options opts, WorkerPool mparser, List<Tree<State>> trees, Numberer numberer, boolean istrain) {
+		Meta<?> meta = null;
+		int nUnparsable = 0, ntree = trees.size();
 //		List<Tree<State>> trees = new ArrayList<>(stateTreeList.size());
 //		filterTrees(opts, stateTreeList, trees, numberer, istrain);
 		
-		for (Tree<State> tree : trees) {
-			mparser.execute(tree);
+		// submit the longest sentences first, and put the parses back in the original order
+		int[] order = longestFirst(trees);
+		List<Tree<String>> parsedTrees = new ArrayList<>(Collections.<Tree<String>>nCopies(ntree, null));
+		for (int i = 0; i < ntree; i++) {
+			mparser.execute(trees.get(order[i]));
 			while (mparser.hasNext()) {
-				goldTree = trees.get(idx);
-				parsedTree = (Tree<String>) mparser.getNext();
-				if (!saveTree(goldTree, parsedTree, numberer, idx)) {
-					nUnparsable++;
-				}
-				/*
-				logger.trace(idx + " --- " + strTree2stateTree(goldTree, numberer) + "\n");
-				logger.trace(idx + " --- " + parsedTree + "\n");
-				*/
-				idx++;
+				meta = mparser.takeMeta();
+				parsedTrees.set(order[meta.id], (Tree<String>) meta.value());
 			}
-			// logger.trace("submit -------- " + (cnt++) + "\n");
 		}
 		while (!mparser.isDone()) {
-			while (mparser.hasNext()) {
-				goldTree = trees.get(idx);
-				parsedTree = (Tree<String>) mparser.getNext();
-				if (!saveTree(goldTree, parsedTree, numberer, idx)) {
-					nUnparsable++;
-				}
-				/*
-				logger.trace(idx + " --- " + strTree2stateTree(goldTree, numberer) + "\n");
-				logger.trace(idx + " --- " + parsedTree + "\n");
-				*/
-				idx++;
+			meta = mparser.takeMeta();
+			parsedTrees.set(order[meta.id], (Tree<String>) meta.value());
+		}
+		for (int idx = 0; idx < ntree; idx++) {
+			if (!saveTree(trees.get(idx), parsedTrees.get(idx), numberer, idx)) {
+				nUnparsable++;
 			}
+			/*
+			logger.trace(idx + " --- " + strTree2stateTree(trees.get(idx), numberer) + "\n");
+			logger.trace(idx + " --- " + parsedTrees.get(idx) + "\n");
+			*/
 		}
 		mparser.reset();
 		String summary = scorer.display();
@@ -113,7 +113,7 @@ public class LVeGTesterSim extends LearnerConfig {
 		
 		// load grammar
 		logger.trace("--->Loading grammars from \'" + subdatadir + opts.inGrammar + "\'...\n");
-		GrammarFile gfile = (GrammarFile) GrammarFile.load(subdatadir + opts.inGrammar);
+		GrammarFile gfile = GrammarFile.read(subdatadir + opts.inGrammar);
 		grammar = gfile.getGrammar();
 		lexicon = gfile.getLexicon();
 		
@@ -271,7 +271,7 @@ public class LVeGTesterSim extends LearnerConfig {
 		for (int i = 0; i < 7; i++) {
 			String data = subdatadir + "lveg_" + i + ".gr";
 			logger.trace("--->Loading grammars from \'" + data  + "\'\n\n");
-			GrammarFile gfile = (GrammarFile) GrammarFile.load(data);
+			GrammarFile gfile = GrammarFile.read(data);
 			grammar = gfile.getGrammar();
 			lexicon = gfile.getLexicon();
 			
@@ -18,6 +18,8 @@ import edu.shanghaitech.ai.nlp.util.FunUtil;
 import edu.shanghaitech.ai.nlp.util.Numberer;
 import edu.shanghaitech.ai.nlp.util.OptionParser;
 import edu.shanghaitech.ai.nlp.util.ThreadPool;
+import edu.shanghaitech.ai.nlp.util.WorkerPool;
+import edu.shanghaitech.ai.nlp.data.CheckpointWriter;
 import edu.shanghaitech.ai.nlp.data.ObjectFileManager;
 import edu.shanghaitech.ai.nlp.data.StateTreeList;
 import edu.shanghaitech.ai.nlp.data.ObjectFileManager.Constraint;
@@ -31,6 +33,7 @@ import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.optimization.Gradient;
 import edu.shanghaitech.ai.nlp.optimization.Optimizer;
 import edu.shanghaitech.ai.nlp.optimization.ParallelOptimizer;
 import edu.shanghaitech.ai.nlp.syntax.State;
@@ -63,8 +66,9 @@ public class LVeGTrainerImp extends LearnerConfig {
 	protected static LVeGParser<?, ?> lvegParser;
 	protected static MaxRuleParser<?, ?> mrParser;
 	
-	protected static ThreadPool mvaluator;
-	protected static ThreadPool trainer;
+	protected static WorkerPool mvaluator;
+	protected static WorkerPool trainer;
+	protected static CheckpointWriter checkpointer;
 	
 	protected static Tree<State> globalTree;
 	protected static String treeFile;
@@ -121,14 +125,23 @@ public class LVeGTrainerImp extends LearnerConfig {
 				opts.nwratio, opts.riserate, opts.rtratio, opts.hardcut, random, mogPool);
 		GaussianDistribution.config(opts.maxmu, opts.maxvar, opts.dim, opts.nmratio, opts.nvratio, random, gaussPool);
 		Optimizer.config(opts.choice, random, opts.maxsample, opts.bsize, opts.minmw, opts.sampling); // FIXME no errors, just alert you...
+		Gradient.config(opts.gbsize);
 				
 		if (opts.loadGrammar && opts.inGrammar != null) {
 			logger.trace("--->Loading grammars from \'" + subdatadir + opts.inGrammar + "\'...\n");
-			GrammarFile gfile = (GrammarFile) GrammarFile.load(subdatadir + opts.inGrammar);
+			GrammarFile gfile = GrammarFile.read(subdatadir + opts.inGrammar);
 			grammar = gfile.getGrammar();
 			lexicon = gfile.getLexicon();
 			goptimizer = grammar.getOptimizer();
 			loptimizer = grammar.getOptimizer();
+			if (goptimizer == null) { // the binary grammar file and the background checkpoints keep only the rule weights
+				goptimizer = new ParallelOptimizer(opts.ntgrad, opts.pgrad, opts.pmode, opts.pverbose);
+				loptimizer = new ParallelOptimizer(opts.ntgrad, opts.pgrad, opts.pmode, opts.pverbose);
+				grammar.setOptimizer(goptimizer);
+				lexicon.setOptimizer(loptimizer);
+				grammar.initializeOptimizer();
+				lexicon.initializeOptimizer();
+			}
 			
 			String regx = ".*?(\\d+)";
 			Pattern pat = Pattern.compile(regx);
@@ -200,7 +213,8 @@ public class LVeGTrainerImp extends LearnerConfig {
 				opts.ntcyker, opts.pcyker, opts.ef1prune, false, false, null);
 		valuator = new Valuator<Tree<State>, Double>(grammar, lexicon, opts.maxslen, 
 				opts.ntcyker, opts.pcyker, opts.ellprune, false);
-		mvaluator = new ThreadPool(valuator, opts.nteval);
+		mvaluator = new WorkerPool(valuator, opts.nteval, opts.nteval * 4, false);
+		checkpointer = (opts.asyncSave || opts.nbatchDelta > 0) ? new CheckpointWriter(opts.binGrammar) : null;
 		
 		double ll = Double.NEGATIVE_INFINITY;
 		
@@ -293,7 +307,7 @@ public class LVeGTrainerImp extends LearnerConfig {
 		
 		lvegParser = new LVeGParser<Tree<State>, List<Double>>(grammar, lexicon, opts.maxslen, 
 				opts.ntcyker, opts.pcyker, opts.iosprune, opts.usemasks, masks);
-		trainer = new ThreadPool(lvegParser, opts.ntbatch);
+		trainer = new WorkerPool(lvegParser, opts.ntbatch);
 		
 		
 		
@@ -309,6 +323,7 @@ public class LVeGTrainerImp extends LearnerConfig {
 		lexicon.shutdown();
 		trainer.shutdown();
 		mvaluator.shutdown();
+		if (checkpointer != null) { checkpointer.shutdown(); }
 	}
 	
 	
@@ -317,13 +332,54 @@ public class LVeGTrainerImp extends LearnerConfig {
 	}
 	
 	
+	protected static boolean save(GrammarFile gfile, String filename) {
+		return opts.binGrammar ? gfile.saveBinary(filename) : gfile.save(filename);
+	}
+	
+	
+	/**
+	 * Save the grammar to the files, in the background if -asyncSave is set. Only the synchronous save keeps the 
+	 * optimizer in the object file, the delta checkpoints alone do not change what is saved here.
+	 */
+	protected static void checkpoint(GrammarFile gfile, List<String> filenames) {
+		if (filenames.isEmpty()) { return; }
+		if (opts.asyncSave) {
+			if (!checkpointer.save(gfile, filenames)) {
+				logger.error("\n-------failed to snapshot the grammar for " + filenames + "\n");
+			}
+			return;
+		}
+		for (String filename : filenames) {
+			logger.info("\n-------saving grammar file...");
+			if (save(gfile, filename)) {
+				logger.info("to \'" + filename + "\' successfully.\n");
+			} else {
+				logger.info("to \'" + filename + "\' unsuccessfully.\n");
+			}
+		}
+	}
+	
+	
+	/**
+	 * Append the rules updated since the last checkpoint to the rolling checkpoint every -nbatchDelta batches.
+	 */
+	protected static void deltaCheckpoint(int ibatch) {
+		if (opts.nbatchDelta <= 0 || (ibatch % opts.nbatchDelta) != 0 || opts.outGrammar == null) { return; }
+		String filename = subdatadir + opts.outGrammar + "_ckpt.gr";
+		if (!checkpointer.saveDelta(new GrammarFile(grammar, lexicon), filename, opts.ncompact)) {
+			logger.error("\n-------failed to snapshot the grammar for \'" + filename + "\'\n");
+		}
+		if (!opts.asyncSave) { checkpointer.flush(); }
+	}
+	
+	
 	protected static void printGrammars() {
 		logger.trace(grammar);
 		logger.trace(lexicon);
 		logger.info("\n-------saving the incorrect grammar file...");
 		GrammarFile gfile = new GrammarFile(grammar, lexicon);
 		String filename = subdatadir + opts.outGrammar + "_error.gr";
-		if (gfile.save(filename)) {
+		if (save(gfile, filename)) {
 			logger.info("to \'" + filename + "\' successfully.\n");
 		} else {
 			logger.info("to \'" + filename + "\' unsuccessfully.\n");
@@ -335,14 +391,12 @@ public class LVeGTrainerImp extends LearnerConfig {
 	
 	protected static void jointrainer(short nfailed) {
 		while (!trainer.isDone()) {
-			while (trainer.hasNext()) {
-				List<Double> score = (List<Double>) trainer.getNext();
-				if (Double.isFinite(score.get(0)) || Double.isFinite(score.get(1))) {
-					logger.trace("\n~~~score: " + FunUtil.double2str(score, precision, -1, false, true) + "\n");
-				} else {
-					nfailed++;
-					printGrammars();
-				}
+			List<Double> score = (List<Double>) trainer.take();
+			if (Double.isFinite(score.get(0)) || Double.isFinite(score.get(1))) {
+				logger.trace("\n~~~score: " + FunUtil.double2str(score, precision, -1, false, true) + "\n");
+			} else {
+				nfailed++;
+				printGrammars();
 			}
 		}
 	}
@@ -352,14 +406,21 @@ public class LVeGTrainerImp extends LearnerConfig {
 		if (batch != null) { batch.clear(); } 
 		if (shuffle) { 
 			logger.trace("\n===shuffle training samples...\n");
-			Collections.shuffle(ftrainTrees, rnd4shuffle); 
+			if (opts.lenbucket > 0) {
+				bucketShuffle(ftrainTrees, opts.bsize, opts.lenbucket, rnd4shuffle);
+				ibegin = 0; // the bucket batches are cut from the head of the list
+			} else {
+				Collections.shuffle(ftrainTrees, rnd4shuffle); 
+			}
 		}
 		int iend = ibegin + opts.bsize, nsample = ftrainTrees.size(), diff;
 		iend = (diff = (iend - nsample)) >= 0 ? nsample : iend;
 		for (int i = ibegin; i < iend; i++) {
 			batch.add(ftrainTrees.get(i));
 		}
-		if (diff >= 0) {
+		if (diff >= 0 && opts.lenbucket > 0) { // the last batch is the incomplete one, not topped up by another bucket
+			iend = 0;
+		} else if (diff >= 0) {
 			for (int i = 0; i < diff; i++) {
 				batch.add(ftrainTrees.get(i));
 			}
@@ -428,11 +489,12 @@ public class LVeGTrainerImp extends LearnerConfig {
 				grammar.applyGradientDescent(scoresOfST);
 				lexicon.applyGradientDescent(scoresOfST);
 				if (opts.dgradnbatch > 0 && ((ibatch % opts.dgradnbatch) == 0)) { debugrad(false); }
+				deltaCheckpoint(ibatch);
 				
 				eTime = System.currentTimeMillis();
 				logger.trace((eTime - bTime) / 1000.0 + "... batch time: " + (batchETime - batchBTime) / 1000.0 + "\n");
 				
-				if (ibegin < iprebeg) {
+				if (ibegin <= iprebeg) { // wrapped, or the whole set fits in one batch
 					shuffle = true;
 					break; // epoch ends
 				} else {
@@ -510,10 +572,11 @@ public class LVeGTrainerImp extends LearnerConfig {
 				grammar.applyGradientDescent(scoresOfST);
 				lexicon.applyGradientDescent(scoresOfST);
 				if (opts.dgradnbatch > 0 && ((ibatch % opts.dgradnbatch) == 0)) { debugrad(false); }
+				deltaCheckpoint(ibatch);
 				
 				eTime = System.currentTimeMillis();
 				logger.trace((eTime - bTime) / 1000.0 + "... batch time: " + (batchETime - batchBTime) / 1000.0 + "\n");
-				if (ibegin < iprebeg) {
+				if (ibegin <= iprebeg) { // wrapped, or the whole set fits in one batch
 					shuffle = true;
 					break; // epoch ends
 				} else {
@@ -560,13 +623,9 @@ public class LVeGTrainerImp extends LearnerConfig {
 		
 		if (opts.saveGrammar) {
 			logger.info("\n-------saving the final grammar file...");
-			GrammarFile gfile = new GrammarFile(grammar, lexicon);
-			String filename = subdatadir + opts.outGrammar + "_final.gr";
-			if (gfile.save(filename)) {
-				logger.info("to \'" + filename + "\' successfully.\n");
-			} else {
-				logger.info("to \'" + filename + "\' unsuccessfully.\n");
-			}
+			List<String> filenames = new ArrayList<>(1);
+			filenames.add(subdatadir + opts.outGrammar + "_final.gr");
+			checkpoint(new GrammarFile(grammar, lexicon), filenames);
 		}
 	}
 	
@@ -623,34 +682,25 @@ public class LVeGTrainerImp extends LearnerConfig {
 			FunUtil.saveTree2image(null, treename + "_ua", parseTree, numberer);
 		}
 		
-		// save the intermediate grammars
-		GrammarFile gfile = new GrammarFile(grammar, lexicon);
+		// save the intermediate grammars, the same snapshot is shared by all the files
+		List<String> filenames = new ArrayList<>(3);
 		if (opts.saveGrammar && save) { // always save the best grammar to the same file
-			String filename = subdatadir + opts.outGrammar + "_best.gr";
-			if (gfile.save(filename)) { 
-				logger.info("\n------->the best [dev] grammar [iepoch = " + iepoch + ", ibatch = " + ibatch + "]\n");
-			}
+			filenames.add(subdatadir + opts.outGrammar + "_best.gr");
+			logger.info("\n------->the best [dev] grammar [iepoch = " + iepoch + ", ibatch = " + ibatch + "]\n");
 		}
 		// save the grammar at the end of each epoch or after every # of batches
 		save = (((ibatch % opts.nbatchSave) == 0) && opts.outGrammar != null);
 		if (opts.saveGrammar && (ends || save)) {
-			logger.info("\n-------saving grammar file...");
-			String filename = (ends ? subdatadir + opts.outGrammar + "_" + iepoch + ".gr" 
+			filenames.add(ends ? subdatadir + opts.outGrammar + "_" + iepoch + ".gr" 
 					: subdatadir + opts.outGrammar + "_" + iepoch + "_" + ibatch + ".gr");
-			if (gfile.save(filename)) {
-				logger.info("to \'" + filename + "\' successfully.\n");
-			} else {
-				logger.info("to \'" + filename + "\' unsuccessfully.\n");
-			}
 		}
 		// save the best grammar according to the log likelihood on training set
 		if (trll < 0 && trll > besttrain) {
 			besttrain = trll;
-			String filename = subdatadir + opts.outGrammar + "_best_train.gr";
-			if (gfile.save(filename)) { 
-				logger.info("\n------->the best [train] grammar [iepoch = " + iepoch + ", ibatch = " + ibatch + "]\n");
-			}
+			filenames.add(subdatadir + opts.outGrammar + "_best_train.gr");
+			logger.info("\n------->the best [train] grammar [iepoch = " + iepoch + ", ibatch = " + ibatch + "]\n");
 		}
+		checkpoint(new GrammarFile(grammar, lexicon), filenames);
 		return exit;
 	}
 	
@@ -659,13 +709,14 @@ public class LVeGTrainerImp extends LearnerConfig {
 	 * We have to evaluate the grammar on only a fraction of training data because the evaluation is quite time-consumed. But it is the 
 	 * evaluation on the whole validation dataset or the whole test dataset that can tells whether your trained model is good or bad.
 	 */
-	public static double parallelLL(Options opts, ThreadPool valuator, StateTreeList stateTreeList, Numberer numberer, boolean istrain) {
+	public static double parallelLL(Options opts, WorkerPool valuator, StateTreeList stateTreeList, Numberer numberer, boolean istrain) {
 		double ll = 0, sumll = 0;
 		int nUnparsable = 0, cnt = 0;
 		List<Tree<State>> trees = new ArrayList<>(stateTreeList.size());
 		filterTrees(opts, stateTreeList, trees, numberer, istrain);
-		for (Tree<State> tree : trees) {
-			valuator.execute(tree);
+		int[] order = longestFirst(trees); // the sum does not depend on the order in which the results arrive
+		for (int i = 0; i < order.length; i++) {
+			valuator.execute(trees.get(order[i]));
 			while (valuator.hasNext()) {
 				ll = (double) valuator.getNext();
 				if (Double.isInfinite(ll) || Double.isNaN(ll)) {
@@ -677,13 +728,11 @@ public class LVeGTrainerImp extends LearnerConfig {
 			cnt++;
 		}
 		while (!valuator.isDone()) {
-			while (valuator.hasNext()) {
-				ll = (double) valuator.getNext();
-				if (Double.isInfinite(ll) || Double.isNaN(ll) || ll > 0) {
-					nUnparsable++;
-				} else {
-					sumll += ll;
-				}
+			ll = (double) valuator.take();
+			if (Double.isInfinite(ll) || Double.isNaN(ll) || ll > 0) {
+				nUnparsable++;
+			} else {
+				sumll += ll;
 			}
 		}
 		valuator.reset();
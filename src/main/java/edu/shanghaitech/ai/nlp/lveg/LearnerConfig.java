@@ -5,6 +5,8 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -15,7 +17,6 @@ import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
 
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 import edu.berkeley.nlp.PCFGLA.Binarization;
 import edu.berkeley.nlp.PCFGLA.Corpus;
@@ -28,12 +29,14 @@ import edu.shanghaitech.ai.nlp.data.ObjectFileManager.CorpusFile;
 import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
 import edu.shanghaitech.ai.nlp.lveg.impl.GaussFactory;
 import edu.shanghaitech.ai.nlp.lveg.impl.MoGFactory;
+import edu.shanghaitech.ai.nlp.lveg.impl.PackedPCFGInferencer;
 import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGLexicon;
 import edu.shanghaitech.ai.nlp.lveg.impl.UnaryGrammarRule;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture.Component;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.Inferencer;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
@@ -43,9 +46,9 @@ import edu.shanghaitech.ai.nlp.optimization.ParallelOptimizer.ParallelMode;
 import edu.shanghaitech.ai.nlp.syntax.State;
 import edu.shanghaitech.ai.nlp.util.FunUtil;
 import edu.shanghaitech.ai.nlp.util.Numberer;
-import edu.shanghaitech.ai.nlp.util.ObjectPool;
 import edu.shanghaitech.ai.nlp.util.Option;
 import edu.shanghaitech.ai.nlp.util.Recorder;
+import edu.shanghaitech.ai.nlp.util.SlabPool;
 
 public class LearnerConfig extends Recorder {
 	/**
@@ -82,8 +85,8 @@ public class LearnerConfig extends Recorder {
 	public static Random rnd4shuffle = new Random(11);
 	protected static PriorityQueue<Tree<State>> sorter;
 	
-	public static ObjectPool<Short, GaussianMixture> mogPool;
-	public static ObjectPool<Short, GaussianDistribution> gaussPool;
+	public static SlabPool<GaussianMixture> mogPool;
+	public static SlabPool<GaussianDistribution> gaussPool;
 	
 	public static Map<Short, Short> refSubTypes = null;
 	public static String reference = "ROOT=1 S^g=22 @S^g=29 PP^g=40 IN=34 NP^g=57 @NP^g=61 DT=21 NNP=53 CD=27 NN=59 ``=1 "
@@ -144,6 +147,16 @@ public class LearnerConfig extends Recorder {
 		public boolean saveCorpus = false;
 		@Option(name = "-loadCorpus", usage = "load corpus from the object file(true) or not (false) (default: false)")
 		public boolean loadCorpus = false;
+		@Option(name = "-binCorpus", usage = "save corpus in the binary format, which is mapped and materialized lazily when loaded, (true) or as the object file (false) (default: false)")
+		public boolean binCorpus = false;
+		@Option(name = "-inSentence", usage = "input: sentences to be parsed by the streaming parser, one tokenized sentence per line (default: null)")
+		public String inSentence = null;
+		@Option(name = "-outParse", usage = "output: parses given by the streaming parser, one per line (default: null)")
+		public String outParse = null;
+		@Option(name = "-treeInput", usage = "the input of the streaming parser consists of Penn trees (true) or tokenized sentences (false) (default: false)")
+		public boolean treeInput = false;
+		@Option(name = "-nqueue", usage = "# of sentences held by each queue of the streaming parser (default: 256)")
+		public short nqueue = 256;
 		@Option(name = "-consfile", usage = "constraints for parsing (default: null)")
 		public String consfile = null;
 		/* corpus section ends */
@@ -184,8 +197,16 @@ public class LearnerConfig extends Recorder {
 		public boolean saveGrammar = true;
 		@Option(name = "-loadGrammar", usage = "load grammar from the object file (true) or not (false) (default: false)")
 		public boolean loadGrammar = false;
+		@Option(name = "-binGrammar", usage = "save grammar in the binary format, which does not keep the optimizer, (true) or as the object file (false) (default: false)")
+		public boolean binGrammar = false;
+		@Option(name = "-asyncSave", usage = "snapshot the rule weights and save them on a background thread, which does not keep the optimizer either, (true) or save the whole grammar on the main thread (false) (default: false)")
+		public boolean asyncSave = false;
 		@Option(name = "-nbatchSave", usage = "# of batches after which the grammar is saved (default: 20")
 		public short nbatchSave = 20;
+		@Option(name = "-nbatchDelta", usage = "# of batches after which the updated rules are appended to the checkpoint \"<outGrammar>_ckpt.gr\", 0 to disable (default: 0)")
+		public short nbatchDelta = 0;
+		@Option(name = "-ncompact", usage = "# of delta segments after which the checkpoint is rewritten as a whole (default: 10)")
+		public short ncompact = 10;
 		/* grammar-data section ends */
 		
 		/* parallel configurations section begins */
@@ -232,6 +253,10 @@ public class LearnerConfig extends Recorder {
 		public double expzero = 1e-6;
 		@Option(name = "-bsize", usage = "# of the samples in a batch (default: 128)")
 		public short bsize = 128;
+		@Option(name = "-lenbucket", usage = "width of the sentence-length buckets the batches are drawn from, 0 to draw them from the whole shuffled training set (default: 0)")
+		public short lenbucket = 0;
+		@Option(name = "-gbsize", usage = "# of the samples of which the gradients are evaluated together by a thread (default: 1)")
+		public short gbsize = 1;
 		@Option(name = "-nepoch", usage = "# of epoches for training (default: 10)")
 		public int nepoch = 10;
 		@Option(name = "-maxsample", usage = "maximum sampling time when approximating gradients (default: 3)")
@@ -274,6 +299,18 @@ public class LearnerConfig extends Recorder {
 		public double tgprob = 1e-10;
 		@Option(name = "-iomask", usage = "which type of mask we would like to use, false: IO mask, true: posterior mask (default: false)")
 		public boolean iomask = false;
+		@Option(name = "-cascade", usage = "coarse-to-fine levels of the posterior masks, a comma-separated subset of xbar, pcfg, and lveg in this order (default: pcfg)")
+		public String cascade = "pcfg";
+		@Option(name = "-xbprob", usage = "the tag is pruned by the x-bar grammar if its posterior probability is below this bound (default: 1e-12)")
+		public double xbprob = 1e-12;
+		@Option(name = "-lvprob", usage = "the tag is pruned by the 1-component projection of the lveg if its posterior probability is below this bound (default: 1e-8)")
+		public double lvprob = 1e-8;
+		@Option(name = "-lexbeam", usage = "maximum # of the tags kept in a lexical cell, ranked by their approximate posteriors, -1 means unlimited (default: -1)")
+		public int lexbeam = -1;
+		@Option(name = "-phrbeam", usage = "maximum # of the tags kept in a phrasal cell, ranked by their approximate posteriors, -1 means unlimited (default: -1)")
+		public int phrbeam = -1;
+		@Option(name = "-beamgap", usage = "the tag is dropped from the cell if its approximate posterior is below this ratio of the best one, -1 means unlimited (default: -1)")
+		public double beamgap = -1;
 		@Option(name = "-sexp", usage = "squeeze ratio in pruning components of inside/outside scores (default: 0.35)")
 		public double sexp = 0.35;
 		@Option(name = "-pivota", usage = "initialize # of components of the rule weight by its frequency (default: 200)")
@@ -453,23 +490,15 @@ public class LearnerConfig extends Recorder {
 		tgRatio = opts.tgratio;
 		tgProb = Math.log(opts.tgprob); // in logarithmic form
 		iomask = opts.iomask;
+		PackedPCFGInferencer.config(opts.cascade, Math.log(opts.xbprob), Math.log(opts.lvprob));
+		Inferencer.config(opts.lexbeam, opts.phrbeam, opts.beamgap > 0 ? -Math.log(opts.beamgap) : Double.POSITIVE_INFINITY);
 		squeezeexp = opts.sexp;
 		Params.config(opts);
 		
-		GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
-		config.setMaxTotalPerKey(Integer.MAX_VALUE);
-		config.setMaxTotal(Integer.MAX_VALUE);
-		
-		config.setBlockWhenExhausted(true); // by default
-		config.setMaxWaitMillis(250);
-//		config.setTestOnBorrow(true); // by default
-//		config.setTestOnCreate(true);
-//		config.setTestOnReturn(true);
-		
 		MoGFactory mfactory = new MoGFactory(opts.ncomponent, opts.maxmw, opts.nwratio, random);
 		GaussFactory gfactory = new GaussFactory(opts.dim, opts.maxmu, opts.maxvar, opts.nmratio, opts.nvratio, random);
-		mogPool = new ObjectPool<>(mfactory, config);
-		gaussPool = new ObjectPool<>(gfactory, config);
+		mogPool = new SlabPool<>(mfactory);
+		gaussPool = new SlabPool<>(gfactory);
 	}
 	
 	public static  Map<String, StateTreeList> loadData(Numberer wrapper, Options opts) {
@@ -478,7 +507,7 @@ public class LearnerConfig extends Recorder {
 		Map<String, StateTreeList> trees = new HashMap<>(3, 1);
 		if (opts.loadCorpus && opts.inCorpus != null) {
 			logger.trace("--->Loading corpus from \'" + opts.datadir + opts.inCorpus + "\'...\n");
-			CorpusFile corpus = (CorpusFile) CorpusFile.load(opts.datadir + opts.inCorpus);
+			CorpusFile corpus = CorpusFile.read(opts.datadir + opts.inCorpus);
 			numberer = corpus.getNumberer();
 			trainTrees = corpus.getTrain();
 			testTrees = corpus.getTest();
@@ -514,7 +543,7 @@ public class LearnerConfig extends Recorder {
 			logger.info("\n-------saving corpus file...");
 			CorpusFile corpus = new CorpusFile(trainTrees, testTrees, devTrees, numberer);
 			String filename = opts.datadir + opts.outCorpus;
-			if (corpus.save(filename)) {
+			if (opts.binCorpus ? corpus.saveBinary(filename) : corpus.save(filename)) {
 				logger.info("to \'" + filename + "\' successfully.");
 			} else {
 				logger.info("to \'" + filename + "\' unsuccessfully.");
@@ -633,6 +662,74 @@ public class LearnerConfig extends Recorder {
 			return o2.getYield().size() - o1.getYield().size();
 		}
 	};
+
+
+	/**
+	 * Longest-processing-time-first schedule. Parsing costs roughly cubic time in the sentence length,
+	 * submitting the longest sentences first keeps the long ones from trailing behind on a few threads.
+	 *
+	 * @param trees the trees in their original order
+	 * @return      indexes of the trees by descending sentence length, ties kept in the original order
+	 */
+	public static int[] longestFirst(List<Tree<State>> trees) {
+		int ntree = trees.size();
+		long[] keys = new long[ntree];
+		for (int i = 0; i < ntree; i++) {
+			keys[i] = ((long) (Integer.MAX_VALUE - trees.get(i).getYield().size()) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[ntree];
+		for (int i = 0; i < ntree; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	
+	/**
+	 * Shuffles the trees so that every run of bsize consecutive trees, i.e., a batch, is drawn from the same 
+	 * or the adjacent sentence-length buckets, which balances the work of the threads within a batch. Trees 
+	 * are shuffled within the buckets and the batches are shuffled; the incomplete batch, if any, is the last.
+	 * 
+	 * @param trees the training trees
+	 * @param bsize # of the trees in a batch
+	 * @param width width of the length buckets
+	 * @param rnd   random number generator
+	 */
+	public static void bucketShuffle(List<Tree<State>> trees, int bsize, int width, Random rnd) {
+		int maxlen = 0, ntree = trees.size();
+		int[] lengths = new int[ntree];
+		for (int i = 0; i < ntree; i++) {
+			lengths[i] = trees.get(i).getYield().size();
+			maxlen = Math.max(maxlen, lengths[i]);
+		}
+		List<List<Tree<State>>> buckets = new ArrayList<>(maxlen / width + 1);
+		for (int i = 0; i <= maxlen / width; i++) {
+			buckets.add(new ArrayList<Tree<State>>());
+		}
+		for (int i = 0; i < ntree; i++) {
+			buckets.get(lengths[i] / width).add(trees.get(i));
+		}
+		// cut batches from the buckets in ascending length, the remainder of a bucket is topped up by the next bucket
+		List<List<Tree<State>>> batches = new ArrayList<>(ntree / bsize + 1);
+		List<Tree<State>> batch = new ArrayList<>(bsize);
+		for (List<Tree<State>> bucket : buckets) {
+			Collections.shuffle(bucket, rnd);
+			for (Tree<State> tree : bucket) {
+				batch.add(tree);
+				if (batch.size() == bsize) {
+					batches.add(batch);
+					batch = new ArrayList<>(bsize);
+				}
+			}
+		}
+		Collections.shuffle(batches, rnd);
+		trees.clear();
+		for (List<Tree<State>> full : batches) {
+			trees.addAll(full);
+		}
+		trees.addAll(batch);
+	}
 	
 	
 	protected static ArrayList<Tree<State>> sampleTrees(List<Tree<State>> trees, Options opts) {
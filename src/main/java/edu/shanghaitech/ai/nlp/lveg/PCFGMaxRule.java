@@ -87,7 +87,7 @@ public class PCFGMaxRule extends LearnerConfig {
 		
 		// load grammar
 		logger.trace("--->Loading grammars from \'" + subdatadir + opts.inGrammar + "\'...\n");
-		GrammarFile gfile = (GrammarFile) GrammarFile.load(subdatadir + opts.inGrammar);
+		GrammarFile gfile = GrammarFile.read(subdatadir + opts.inGrammar);
 		grammar = gfile.getGrammar();
 		lexicon = gfile.getLexicon();
 		
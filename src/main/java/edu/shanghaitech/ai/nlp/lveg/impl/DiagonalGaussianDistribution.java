@@ -2,9 +2,9 @@ package edu.shanghaitech.ai.nlp.lveg.impl;
 
 import java.util.List;
 
-import edu.shanghaitech.ai.nlp.lveg.LVeGTrainer;
 import edu.shanghaitech.ai.nlp.lveg.LearnerConfig.Params;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
 import edu.shanghaitech.ai.nlp.util.FunUtil;
 
 /**
@@ -38,21 +38,16 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 		return new DiagonalGaussianDistribution(ndimension, init);
 	}
 	
+	/**
+	 * @param ndimension dimension of the gaussian, -1 for the default
+	 * @return an empty gaussian from the slab of the calling thread, which is valid until the thread calls 
+	 *         {@link GaussianDistribution#releaseObjects()}, or a new one if the pool is not configured
+	 */
 	public static DiagonalGaussianDistribution borrowObject(short ndimension) {
-		GaussianDistribution obj = null;
-		try {
-			obj = defObjectPool.borrowObject(ndimension);
-		} catch (Exception e) {
-			logger.error("---------Borrow GD " + e + "\n");
-			try {
-				LVeGTrainer.gaussPool.invalidateObject(ndimension, obj);
-			} catch (Exception e1) {
-				logger.error("---------Borrow GD(invalidate) " + e + "\n");
-			}
-			ndimension = ndimension == -1 ? defNdimension : ndimension;
-			obj = new DiagonalGaussianDistribution(ndimension);
+		if (defObjectPool == null) {
+			return new DiagonalGaussianDistribution((short) 0, false);
 		}
-		return (DiagonalGaussianDistribution) obj;
+		return (DiagonalGaussianDistribution) defObjectPool.borrowObject(ndimension);
 	}
 	
 	@Override
@@ -60,12 +55,12 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 		for (int i = 0; i < dim; i++) {
 			double rndn = (defRnd.nextDouble() - defNegMRatio) * defMaxMu;
 //			 rndn = /*0.5*/ 0;
-			mus.add(rndn);
+			mus.addDouble(rndn);
 		} // better initialize mu and var in the different loops
 //		for (int i = 0; i < dim; i++) {
 		double rndn = (defRnd.nextDouble() - defNegVRatio) * defMaxVar;
 		rndn = /*0.5*/ 0 /*Math.log(1e-12)*/;
-		vars.add(rndn);
+		vars.addDouble(rndn);
 //		}	
 	}
 	
@@ -81,11 +76,12 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 	protected double eval(List<Double> sample, boolean normal) { 
 		if (sample != null && sample.size() == dim) {
 			// sample = normalize(sample);
-			double astd, norm, exps = 0.0, sinv = 0.0, var = vars.get(0);
+			double norm, exps = 0.0, sinv = 0.0, var = vars.getDouble(0);
+			double astd = Math.exp(var);
+			double[] amus = mus.elements();
 			for (int i = 0; i < dim; i++) {
-				astd = Math.exp(var);
-				norm = normal ? sample.get(i) : (sample.get(i) - mus.get(i)) / astd;
-				exps -= Math.pow(norm, 2) / 2;
+				norm = normal ? sample.get(i) : (sample.get(i) - amus[i]) / astd;
+				exps -= norm * norm / 2;
 				sinv -= var;
 			}
 			double value = -(dim / 2.0) * Math.log(2 * Math.PI) + sinv + exps; // (dim / 2) - (dim / 2.0)
@@ -107,17 +103,18 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 	}
 	
 	@Override
-	public void derivative(boolean cumulative, List<Double> grads, List<Double> gradst, List<Double> gradss, double scoreT, double scoreS) {
+	public void derivative(boolean cumulative, DoubleArrayList grads, DoubleArrayList gradst, DoubleArrayList gradss, double scoreT, double scoreS) {
+		int n = dim * 2 + 1;
 		if (!cumulative) {
-			grads.clear();
-			for (int i = 0; i < dim * 2 + 1; i++) {
-				grads.add(0.0);
-			}
+			grads.zeros(n);
 		}
 		double tmps, tmpt, grad, ss, st;
-		for (int i = 0; i < dim * 2 + 1; i++) {
-			tmpt = gradst == null ? 0 : gradst.get(i);
-			tmps = gradss == null ? 0 : gradss.get(i);
+		double[] agrads = grads.elements();
+		double[] agradst = gradst == null ? null : gradst.elements();
+		double[] agradss = gradss == null ? null : gradss.elements();
+		for (int i = 0; i < n; i++) {
+			tmpt = agradst == null ? 0 : agradst[i];
+			tmps = agradss == null ? 0 : agradss[i];
 //			grad = tmps / scoreS - tmpt / scoreT;
 			
 			ss = tmps == 0 ? 0 : Math.log(Math.abs(tmps)) - scoreS;
@@ -129,39 +126,43 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 //			grad = ss - st;
 //			grad = Math.sqrt(Math.abs(grad)) > Params.absmax ? Params.absmax * Math.signum(grad);
 			grad = Math.abs(grad) > Params.absmax ? Params.absmax * Math.signum(grad) : grad;
-			grads.set(i, grads.get(i) + grad);
+			agrads[i] += grad;
 		}
 	}
 	
 	
 	@Override
-	public void derivative(boolean cumulative, double factor, List<Double> grads, List<List<Double>> caches) {
+	public void derivative(boolean cumulative, double factor, DoubleArrayList grads, List<DoubleArrayList> caches) {
 		if (!cumulative) {
-			grads.clear();
-			for (int i = 0; i < dim * 2 + 1; i++) {
-				grads.add(0.0);
-			}
+			grads.zeros(dim * 2 + 1);
 		}
 		int ncomp = caches.get(0).size() - 1;
 		double mgrad, vgrad, vtmp0, vtmp1, mu;
-		double var = Math.exp(vars.get(0) * 2), sum = 0;
+		double var = Math.exp(vars.getDouble(0) * 2), sum = 0;
 		double mall = 0, vall = 0, munit = 0, vunit = 0;
 		double aconst = Math.log(2 * Math.PI) * (-dim / 2.0);
-		List<Double> weights = caches.get(caches.size() - 1);
+		double[] agrads = grads.elements(), amus = mus.elements();
+		double[] weights = caches.get(caches.size() - 1).elements();
+		double[][] nns = new double[dim][]; // int NN dx of each dimension, in logarithmic form
+		for (int j = 0; j < dim; j++) {
+			nns[j] = caches.get(j).elements();
+		}
 		for (int i = 0; i < dim; i++) {
 			mall = 0;
 			vall = 0;
-			mu = mus.get(i);
+			mu = amus[i];
+			double[] xnn = caches.get(dim + i).elements();
+			double[] xxnn = caches.get(dim * 2 + i).elements();
 			for (int icomp = 0; icomp < ncomp; icomp++) {
-				vtmp0 = weights.get(icomp);
-				vtmp1 = weights.get(icomp);
-				munit = caches.get(dim + i).get(icomp); 
-				vunit = caches.get(dim * 2 + i).get(icomp); 
+				vtmp0 = weights[icomp];
+				vtmp1 = weights[icomp];
+				munit = xnn[icomp]; 
+				vunit = xxnn[icomp]; 
 				for (int j = 0; j < dim; j++) {
 					if (j != i) { // in logarithmic form
-						vtmp0 += caches.get(j).get(icomp);
+						vtmp0 += nns[j][icomp];
 					}
-					vtmp1 += caches.get(j).get(icomp);
+					vtmp1 += nns[j][icomp];
 				}
 				vtmp0 += aconst; // integrals from NN but x in the current dimension
 				vtmp1 += aconst; // integrals from NN (explicit normalizer in normal distribution)
@@ -180,40 +181,41 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 			sum  += vall;
 			mgrad = factor * mall;
 			vgrad = factor * vall;
-			grads.set(i * 2, grads.get(i * 2) + mgrad);
-			grads.set(i * 2 + 1, grads.get(i * 2 + 1) + vgrad);
+			agrads[i * 2] += mgrad;
+			agrads[i * 2 + 1] += vgrad;
 		}
 		sum *= factor; // gradients of var of the spherical Gaussian
-		grads.set(dim * 2, grads.get(dim * 2) + sum);
+		agrads[dim * 2] += sum;
 	}
 
 	
 	@Override
-	public double integral(GaussianDistribution gd, List<List<Double>> cache) {
+	public double integral(GaussianDistribution gd, List<DoubleArrayList> cache) {
 		if (gd != null && gd.getDim() == dim) {
 			double value = 0, vtmp = 0, epsilon = 0;
-			double var = vars.get(0), var1 = gd.getVars().get(0);
-			List<Double> order0, order1, order2;
-			List<Double> mus1 = gd.getMus();
+			double var = vars.getDouble(0), var1 = gd.getVar();
+			double vr0 = Math.exp(var * 2), vr1 = Math.exp(var1 * 2);
+			double[] amus = mus.elements(), mus1 = gd.getMuArray();
+			DoubleArrayList order0, order1, order2;
+			vtmp = vr0 + vr1 + epsilon;
+			double logvtmp = Math.log(vtmp);
+			double part21 = 2 * (var + var1) - logvtmp;
 			for (int i = 0; i < dim; i++) {
-				double mu0 = mus.get(i), mu1 = mus1.get(i);
-				double vr0 = Math.exp(var * 2), vr1 = Math.exp(var1 * 2);
-				vtmp = vr0 + vr1 + epsilon;
+				double mu0 = amus[i], mu1 = mus1[i];
 				// int NN dx
 				order0 = cache.get(i);
-				double shared0 = -0.5 * Math.log(vtmp) - Math.pow(mu0 - mu1, 2) / (2 * vtmp);
-				order0.add(shared0); // in logarithmic form
+				double shared0 = -0.5 * logvtmp - (mu0 - mu1) * (mu0 - mu1) / (2 * vtmp);
+				order0.addDouble(shared0); // in logarithmic form
 				// int xNN dx
 				order1 = cache.get(dim + i);
 				double shared1 = (mu0 * vr1 + mu1 * vr0) / vtmp;
 				double realval = shared1 * Math.exp(shared0);
-				order1.add(realval); // not in logarithmic form since shared1 may be negative
+				order1.addDouble(realval); // not in logarithmic form since shared1 may be negative
 				// int xxNN dx
 				order2 = cache.get(dim * 2 + i);
 				double part20 = 2 * Math.log(Math.abs(shared1));
-				double part21 = 2 * (var + var1) - Math.log(vtmp);
 				realval = FunUtil.logAdd(part20, part21) + shared0;
-				order2.add(realval); // in logarithmic form
+				order2.addDouble(realval); // in logarithmic form
 				// complete integral
 				value += shared0;
 			}
@@ -228,13 +230,15 @@ public class DiagonalGaussianDistribution extends GaussianDistribution {
 	@Override
 	public double mulAndMarginalize(GaussianDistribution gd) { 
 		if (gd != null && gd.getDim() == dim) {
-			double value = 0, vtmp = 0, epsilon = /*1e-8*/0;
-			double var = vars.get(0), var1 = gd.getVars().get(0);
-			List<Double> mus1 = gd.getMus();
+			double value = 0, vtmp = 0, diff, epsilon = /*1e-8*/0;
+			double var = vars.getDouble(0), var1 = gd.getVar();
+			double[] amus = mus.elements(), mus1 = gd.getMuArray();
+			vtmp = 2 * (Math.exp(var * 2) + Math.exp(var1 * 2)) + epsilon; // spherical, shared by all dimensions
 			for (int i = 0; i < dim; i++) {
-				vtmp = 2 * (Math.exp(var * 2) + Math.exp(var1 * 2)) + epsilon;
-				value += -0.5 * Math.log(vtmp * Math.PI) - Math.pow(mus.get(i) - mus1.get(i), 2) / vtmp;
+				diff = amus[i] - mus1[i];
+				value -= diff * diff;
 			}
+			value = value / vtmp - 0.5 * dim * Math.log(vtmp * Math.PI);
 			return value;
 		}
 		logger.error("Invalid multipliers. input: " + gd + ", this: " + this + "\n");
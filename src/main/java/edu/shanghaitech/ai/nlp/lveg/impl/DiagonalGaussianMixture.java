@@ -5,7 +5,6 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import edu.shanghaitech.ai.nlp.lveg.LVeGTrainer;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
@@ -52,21 +51,16 @@ public class DiagonalGaussianMixture extends GaussianMixture {
 	}
 	
 	
+	/**
+	 * @param ncomponent # of components expected, -1 for the default
+	 * @return an empty MoG from the slab of the calling thread, which is valid until the thread calls 
+	 *         {@link GaussianMixture#releaseObjects()}, or a new one if the pool is not configured
+	 */
 	public static DiagonalGaussianMixture borrowObject(short ncomponent) {
-		GaussianMixture obj = null;
-		try {
-			obj = defObjectPool.borrowObject(ncomponent);
-		} catch (Exception e) {
-			logger.error("---------Borrow GM " + e + "\n");
-			try {
-				LVeGTrainer.mogPool.invalidateObject(ncomponent, obj);
-			} catch (Exception e1) {
-				logger.error("---------Borrow GM(invalidate) " + e + "\n");
-			}
-			ncomponent = ncomponent == -1 ? defNcomponent : ncomponent;
-			obj = new DiagonalGaussianMixture(ncomponent);
+		if (defObjectPool == null) {
+			return new DiagonalGaussianMixture((short) 0, false);
 		}
-		return (DiagonalGaussianMixture) obj;
+		return (DiagonalGaussianMixture) defObjectPool.borrowObject(ncomponent);
 	}
 	
 	@Override
@@ -8,8 +8,9 @@ import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.util.SlabPool;
 
-public class GaussFactory implements KeyedPooledObjectFactory<Short, GaussianDistribution> {
+public class GaussFactory implements KeyedPooledObjectFactory<Short, GaussianDistribution>, SlabPool.Factory<GaussianDistribution> {
 	
 	protected short ndimension;
 	protected double nmratio;
@@ -67,5 +68,20 @@ public class GaussFactory implements KeyedPooledObjectFactory<Short, GaussianDis
 		GaussianDistribution obj = po.getObject();
 		return obj != null && obj.isValid(key);
 	}
+	
+	/**
+	 * Objects of the slab pool are handed out without any parameters.
+	 */
+	@Override
+	public GaussianDistribution make(short key) {
+		GaussianDistribution gauss = new DiagonalGaussianDistribution((short) 0, false);
+		gauss.setKey(key);
+		return gauss;
+	}
+	
+	@Override
+	public void clear(GaussianDistribution obj) {
+		obj.clear();
+	}
 
 }
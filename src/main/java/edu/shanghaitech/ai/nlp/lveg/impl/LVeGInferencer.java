@@ -15,6 +15,7 @@ import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
 import edu.shanghaitech.ai.nlp.lveg.model.Inferencer;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
 import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.model.RuleIndex;
 import edu.shanghaitech.ai.nlp.syntax.State;
 
 public class LVeGInferencer extends Inferencer {
@@ -62,10 +63,10 @@ public class LVeGInferencer extends Inferencer {
 				short idChild = child.getId();
 				
 				if (idParent != 0) {
-					ruleScore = grammar.getURuleWeight(idParent, idChild, RuleType.LRURULE, false);
+					ruleScore = grammar.getURuleWeight(RuleIndex.key(idParent, idChild, RuleType.LRURULE), false);
 					pinScore = ruleScore.mulAndMarginalize(cinScore, pinScore, RuleUnit.UC, true);
 				} else { // root, inside score of the root node is a constant in double
-					ruleScore = grammar.getURuleWeight(idParent, idChild, RuleType.RHSPACE, false);
+					ruleScore = grammar.getURuleWeight(RuleIndex.key(idParent, idChild, RuleType.RHSPACE), false);
 					pinScore = ruleScore.mulAndMarginalize(cinScore, pinScore, RuleUnit.C, true);
 				}
 				parent.setInsideScore(pinScore);
@@ -81,7 +82,7 @@ public class LVeGInferencer extends Inferencer {
 				linScore = lchild.getInsideScore();
 				rinScore = rchild.getInsideScore();
 				pinScore = parent.getInsideScore();
-				ruleScore = grammar.getBRuleWeight(idParent, idlChild, idrChild, false);
+				ruleScore = grammar.getBRuleWeight(RuleIndex.key(idParent, idlChild, idrChild), false);
 				
 				pinScore = ruleScore.mulAndMarginalize(linScore, pinScore, RuleUnit.LC, true);
 				pinScore = pinScore.mulAndMarginalize(rinScore, pinScore, RuleUnit.RC, false);
@@ -121,10 +122,10 @@ public class LVeGInferencer extends Inferencer {
 				short idChild = child.getId();
 				
 				if (idParent != 0) {
-					ruleScore = grammar.getURuleWeight(idParent, idChild, RuleType.LRURULE, false);
+					ruleScore = grammar.getURuleWeight(RuleIndex.key(idParent, idChild, RuleType.LRURULE), false);
 					coutScore = ruleScore.mulAndMarginalize(poutScore, coutScore, RuleUnit.P, true);
 				} else { // root
-					ruleScore = grammar.getURuleWeight(idParent, idChild, RuleType.RHSPACE, false);
+					ruleScore = grammar.getURuleWeight(RuleIndex.key(idParent, idChild, RuleType.RHSPACE), false);
 					coutScore = ruleScore.copy(true); // since OS(ROOT) = 1
 				}
 				child.setOutsideScore(coutScore);
@@ -142,7 +143,7 @@ public class LVeGInferencer extends Inferencer {
 				rinScore = rchild.getInsideScore();
 				loutScore = lchild.getOutsideScore();
 				routScore = rchild.getOutsideScore();
-				ruleScore = grammar.getBRuleWeight(idParent, idlChild, idrChild, false);
+				ruleScore = grammar.getBRuleWeight(RuleIndex.key(idParent, idlChild, idrChild), false);
 				
 				loutScore = ruleScore.mulAndMarginalize(poutScore, loutScore, RuleUnit.P, true);
 				loutScore = loutScore.mulAndMarginalize(rinScore, loutScore, RuleUnit.RC, false);
@@ -204,7 +205,7 @@ public class LVeGInferencer extends Inferencer {
 							scores.put(RuleUnit.P, outScore);
 							scores.put(RuleUnit.LC, linScore);
 							scores.put(RuleUnit.RC, rinScore);
-							grammar.addCount(rule.lhs, rule.lchild, rule.rchild, scores, isample, false);
+							grammar.addCount(rule, scores, isample, false); // no need to look the rule up again
 						}
 					}
 				}
@@ -293,7 +294,7 @@ public class LVeGInferencer extends Inferencer {
 						EnumMap<RuleUnit, GaussianMixture> scores = new EnumMap<>(RuleUnit.class);
 						scores.put(RuleUnit.P, outScore);
 						scores.put(RuleUnit.C, cinScore);
-						grammar.addCount(rule.lhs, rule.rhs, scores, RuleType.RHSPACE, isample, false);
+						grammar.addCount(rule, scores, isample, false);
 					}
 				}
 			}
@@ -332,7 +333,7 @@ public class LVeGInferencer extends Inferencer {
 			GaussianMixture outScore = chart.getOutsideScore((short) rule.lhs, idx, olevel);
 			scores.put(RuleUnit.P, outScore);
 			scores.put(RuleUnit.UC, cinScore);
-			grammar.addCount(rule.lhs, rule.rhs, scores, RuleType.LRURULE, isample, false);
+			grammar.addCount(rule, scores, isample, false);
 		}
 	}
 	
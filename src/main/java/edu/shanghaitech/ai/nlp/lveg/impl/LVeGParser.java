@@ -60,11 +60,10 @@ public class LVeGParser<I, O> extends Parser<I, O> {
 		
 		if (Double.isFinite(scoreT) && Double.isFinite(scoreS)) {
 			try { // do NOT expect it to crash
-				synchronized (inferencer) {
-					inferencer.evalRuleCountWithTree(sample, (short) 0);
-					inferencer.evalRuleCount(sample, chart, (short) 0, false);
-					inferencer.evalGradients(scores);
-				}
+				// the counts and the gradients are accumulated in the shards of this thread
+				inferencer.evalRuleCountWithTree(sample, (short) 0);
+				inferencer.evalRuleCount(sample, chart, (short) 0, false);
+				inferencer.evalGradients(scores);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -103,17 +102,15 @@ public class LVeGParser<I, O> extends Parser<I, O> {
 		
 		if (Double.isFinite(scoreT) && Double.isFinite(scoreS)) {
 			try { // do NOT expect it to crash
-				synchronized (inferencer) {
-					inferencer.evalRuleCountWithTree(tree, itree);
-//					logger.trace("\nCheck rule count with the tree...\n"); // DEBUG
-//					FunUtil.debugCount(Inferencer.grammar, Inferencer.lexicon, tree); // DEBUG
-//					logger.trace("\nEval count with the tree over.\n"); // DEBUG
-					
-					inferencer.evalRuleCount(tree, chart, itree, false);
-//					logger.trace("\nCheck rule count with the sentence...\n"); // DEBUG
-//					FunUtil.debugCount(Inferencer.grammar, Inferencer.lexicon, tree, chart); // DEBUG
+				inferencer.evalRuleCountWithTree(tree, itree);
+//				logger.trace("\nCheck rule count with the tree...\n"); // DEBUG
+//				FunUtil.debugCount(Inferencer.grammar, Inferencer.lexicon, tree); // DEBUG
+//				logger.trace("\nEval count with the tree over.\n"); // DEBUG
+				
+				inferencer.evalRuleCount(tree, chart, itree, false);
+//				logger.trace("\nCheck rule count with the sentence...\n"); // DEBUG
+//				FunUtil.debugCount(Inferencer.grammar, Inferencer.lexicon, tree, chart); // DEBUG
 //					logger.trace("\nEval count with the sentence over.\n"); // DEBUG
-				}
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -133,7 +130,7 @@ public class LVeGParser<I, O> extends Parser<I, O> {
 			List<State> sentence = tree.getYield();
 			int nword = sentence.size();
 			if (chart != null) {
-				chart.clear(nword);
+				chart.clear(nword, !inferencer.isPending()); // the held counts refer to the scores
 			} else {
 				chart = new Chart(maxslen, true, false, usemask);
 			}
@@ -147,11 +144,9 @@ public class LVeGParser<I, O> extends Parser<I, O> {
 				}
 			}
 			if (parallel) {
-				cpool.reset();
-				Inferencer.insideScore(chart, sentence, nword, iosprune, cpool);
+				scheduler.insideScore(chart, sentence, null, nword, iosprune, usemask, LVeGTrainer.iomask);
 				Inferencer.setRootOutsideScore(chart);
-				cpool.reset();
-				Inferencer.outsideScore(chart, sentence, nword, iosprune, cpool);
+				scheduler.outsideScore(chart, sentence, nword, iosprune, usemask, LVeGTrainer.iomask);
 			} else {
 //				logger.trace("\nInside score...\n"); // DEBUG
 				Inferencer.insideScore(chart, sentence, null, nword, iosprune, usemask, LVeGTrainer.iomask);
@@ -194,6 +189,12 @@ public class LVeGParser<I, O> extends Parser<I, O> {
 	
 	
 	private static void createPCFGMask(int nword, Chart chart, List<State> sentence) {
+		if (!LVeGTrainer.iomask) { // not use inside/outside score masks
+			PackedPCFGInferencer.createPosteriorMask(nword, chart, sentence, LVeGTrainer.tgProb);
+//			logger.trace("\nPosterior masks...\n"); // DEBUG
+//			FunUtil.debugChart(chart.getChartTmask(), (short) -1, tree.getYield().size(), Inferencer.grammar.numberer); // DEBUG
+			return;
+		}
 //		logger.trace("\nInside score masks...\n"); // DEBUG
 		PCFGInferencer.insideScore(chart, sentence, nword, LVeGTrainer.iomask, LVeGTrainer.tgBase, LVeGTrainer.tgRatio);
 //		FunUtil.debugChart(chart.getChartMask(true), (short) -1, tree.getYield().size(), Inferencer.grammar.numberer); // DEBUG
@@ -202,14 +203,6 @@ public class LVeGParser<I, O> extends Parser<I, O> {
 		PCFGInferencer.setRootOutsideScore(chart);
 		PCFGInferencer.outsideScore(chart, sentence, nword, LVeGTrainer.iomask,  LVeGTrainer.tgBase, LVeGTrainer.tgRatio);
 //		FunUtil.debugChart(chart.getChartMask(false), (short) -1, tree.getYield().size(), Inferencer.grammar.numberer); // DEBUG
-		
-		if (!LVeGTrainer.iomask) { // not use inside/outside score masks
-			double score = chart.getInsideScoreMask((short) 0, Chart.idx(0, 1));
-			PCFGInferencer.createPosteriorMask(nword, chart, score, LVeGTrainer.tgProb);
-//			logger.trace("\nSENTENCE SCORE: " + scoreS + "\n"); // DEBUG
-//			logger.trace("\nPosterior masks...\n"); // DEBUG
-//			FunUtil.debugChart(chart.getChartTmask(), (short) -1, tree.getYield().size(), Inferencer.grammar.numberer); // DEBUG
-		}
 	}
 	
 	
@@ -134,11 +134,9 @@ public class MaxRuleParser<I, O> extends Parser<I, O> {
 			}
 		}
 		if (parallel) {
-			cpool.reset();
-			Inferencer.insideScore(chart, sentence, nword, iosprune, cpool);
+			scheduler.insideScore(chart, sentence, goldentag, nword, iosprune, usemask, LVeGTrainer.iomask);
 			Inferencer.setRootOutsideScore(chart);
-			cpool.reset();
-			Inferencer.outsideScore(chart, sentence, nword, iosprune, cpool);
+			scheduler.outsideScore(chart, sentence, nword, iosprune, usemask, LVeGTrainer.iomask);
 		} else {
 //			logger.trace("\nInside score...\n"); // DEBUG
 			Inferencer.insideScore(chart, sentence, goldentag, nword, iosprune, usemask, LVeGTrainer.iomask);
@@ -159,11 +157,9 @@ public class MaxRuleParser<I, O> extends Parser<I, O> {
 			createPCFGMask(nword, chart, sentence);
 		
 			if (parallel) {
-				cpool.reset();
-				Inferencer.insideScore(chart, sentence, nword, iosprune, cpool);
+				scheduler.insideScore(chart, sentence, goldentag, nword, iosprune, usemask, LVeGTrainer.iomask);
 				Inferencer.setRootOutsideScore(chart);
-				cpool.reset();
-				Inferencer.outsideScore(chart, sentence, nword, iosprune, cpool);
+				scheduler.outsideScore(chart, sentence, nword, iosprune, usemask, LVeGTrainer.iomask);
 			} else {
 				Inferencer.insideScore(chart, sentence, goldentag, nword, iosprune, usemask, LVeGTrainer.iomask);
 				Inferencer.setRootOutsideScore(chart);
@@ -196,13 +192,13 @@ public class MaxRuleParser<I, O> extends Parser<I, O> {
 	
 	
 	private static void createPCFGMask(int nword, Chart chart, List<State> sentence) {
+		if (!LVeGTrainer.iomask) { // not use inside/outside score masks
+			PackedPCFGInferencer.createPosteriorMask(nword, chart, sentence, LVeGTrainer.tgProb);
+			return;
+		}
 		PCFGInferencer.insideScore(chart, sentence, nword, LVeGTrainer.iomask, LVeGTrainer.tgBase, LVeGTrainer.tgRatio);
 		PCFGInferencer.setRootOutsideScore(chart);
 		PCFGInferencer.outsideScore(chart, sentence, nword, LVeGTrainer.iomask,  LVeGTrainer.tgBase, LVeGTrainer.tgRatio);
-		if (!LVeGTrainer.iomask) { // not use inside/outside score masks
-			double score = chart.getInsideScoreMask((short) 0, Chart.idx(0, 1));
-			PCFGInferencer.createPosteriorMask(nword, chart, score, LVeGTrainer.tgProb);
-		}
 	}
 	
 }
@@ -13,8 +13,9 @@ import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
 import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture.Component;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.util.SlabPool;
 
-public class MoGFactory implements KeyedPooledObjectFactory<Short, GaussianMixture> {
+public class MoGFactory implements KeyedPooledObjectFactory<Short, GaussianMixture>, SlabPool.Factory<GaussianMixture> {
 	
 	protected short ncomponent;
 	protected double nwratio;
@@ -70,4 +71,19 @@ public class MoGFactory implements KeyedPooledObjectFactory<Short, GaussianMixtu
 		GaussianMixture obj = po.getObject();
 		return obj != null && obj.isValid(key);
 	}
+	
+	/**
+	 * Objects of the slab pool are handed out without any components.
+	 */
+	@Override
+	public GaussianMixture make(short key) {
+		GaussianMixture mog = new DiagonalGaussianMixture((short) 0, false);
+		mog.setKey(key);
+		return mog;
+	}
+	
+	@Override
+	public void clear(GaussianMixture obj) {
+		obj.clear(false);
+	}
 }
@@ -0,0 +1,631 @@
+package edu.shanghaitech.ai.nlp.lveg.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+import edu.shanghaitech.ai.nlp.lveg.model.Inferencer;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.FunUtil;
+
+/**
+ * Inside/outside passes of the scalar grammars dedicated to the posterior masks, see {@link PCFGInferencer#createPosteriorMask(int, Chart, double, double)}.
+ * The rule scores are compiled into flat arrays: the binary rules are grouped by the parent, the rules of the
+ * parent p are [bstart[p], bstart[p + 1]), and the unary rules are grouped by the child for the inside pass and
+ * by the parent for the outside pass. The total score of the tag t in the cell c is kept at c * ntag + t of a
+ * primitive chart, both in logarithmic form and as the probability scaled by the largest score of the cell, so
+ * that the binary rules, which dominate the cost, are applied by multiplications only. The unary chains are
+ * computed per cell in logarithmic form, in the same levels as the chart cells.
+ * <p>
+ * The masks are computed by a coarse-to-fine cascade of scalar grammars, see {@link Level}. Each level prunes the
+ * (span, tag) pairs whose posterior probabilities are below the threshold of the level, and the next level only
+ * scores the surviving pairs; the pairs surviving the last level are the posterior masks of the chart.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class PackedPCFGInferencer extends Inferencer {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -4176301357629738424L;
+	private final static short NLEVEL = LENGTH_UCHAIN + 2; // ROOT is in level 3
+
+	/**
+	 * Levels of the cascade, from the coarsest to the finest.
+	 */
+	public enum Level {
+		XBAR, // treebank grammar of which the binarized and annotated tags are projected to the bare categories
+		PCFG, // treebank grammar
+		LVEG, // 1-component projection of the LVeG, the rule score is the sum of the mixing weights
+	}
+
+	protected static Level[] cascade = { Level.PCFG };
+	protected static double xbthreshold = Math.log(1e-12), lvthreshold = Math.log(1e-8); // in logarithmic form
+	private static AtomicReferenceArray<PackedPCFGInferencer> packed = new AtomicReferenceArray<>(Level.values().length);
+
+	// primitive charts, one per thread
+	protected static final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	protected final Level level;
+	protected final LVeGGrammar source;
+	protected final int version; // see LVeGGrammar.nupdate()
+	protected final short[] project; // tag of the grammar -> tag of the level
+	protected final int ntag;
+	// binary rules grouped by the parent
+	protected final int[] bstart;
+	protected final short[] blchild, brchild;
+	protected final double[] bprob; // NOT in logarithmic form
+	// unary rules grouped by the child
+	protected final int[] ucstart;
+	protected final short[] ucparent;
+	protected final double[] ucprob;
+	protected final boolean[] ucroot; // ROOT->X
+	// unary rules grouped by the parent
+	protected final int[] upstart;
+	protected final short[] upchild;
+	protected final double[] upprob;
+
+
+	/**
+	 * The rules of the grammar are projected onto the tags of the level: a projected rule A->BC scores the
+	 * maximum, over the tags a of A, of the sum of the scores of the rules a->bc, in which b of B and c of C.
+	 * The projection is the identity except for the x-bar level.
+	 */
+	protected PackedPCFGInferencer(LVeGGrammar agrammar, Level level) {
+		this.level = level;
+		this.source = agrammar;
+		this.version = agrammar.nupdate();
+		this.project = new short[agrammar.ntag];
+		this.ntag = projection(agrammar, level, project);
+
+		Map<Long, Double> brules = new HashMap<>(), urules = new HashMap<>(), sums = new HashMap<>();
+		for (int i = 0; i < agrammar.ntag; i++) {
+			sums.clear();
+			if (agrammar.getBRuleWithP(i) != null) {
+				for (GrammarRule arule : agrammar.getBRuleWithP(i)) {
+					BinaryGrammarRule rule = (BinaryGrammarRule) arule;
+					sum(sums, key(project[i], project[rule.lchild], project[rule.rchild], false), score(rule));
+				}
+			}
+			max(brules, sums);
+			sums.clear();
+			if (agrammar.getURuleWithP(i) != null) {
+				for (GrammarRule arule : agrammar.getURuleWithP(i)) {
+					UnaryGrammarRule rule = (UnaryGrammarRule) arule;
+					sum(sums, key(project[i], project[rule.rhs], (short) 0, rule.type == RuleType.RHSPACE), score(rule));
+				}
+			}
+			max(urules, sums);
+		}
+
+		List<Long> keys = sorted(brules, 0);
+		bstart = new int[ntag + 1];
+		blchild = new short[keys.size()];
+		brchild = new short[keys.size()];
+		bprob = new double[keys.size()];
+		for (int r = 0; r < keys.size(); r++) {
+			long key = keys.get(r);
+			bstart[unit(key, 0) + 1]++;
+			blchild[r] = unit(key, 1);
+			brchild[r] = unit(key, 2);
+			bprob[r] = brules.get(key);
+		}
+
+		keys = sorted(urules, 1);
+		ucstart = new int[ntag + 1];
+		ucparent = new short[keys.size()];
+		ucprob = new double[keys.size()];
+		ucroot = new boolean[keys.size()];
+		for (int r = 0; r < keys.size(); r++) {
+			long key = keys.get(r);
+			ucstart[unit(key, 1) + 1]++;
+			ucparent[r] = unit(key, 0);
+			ucroot[r] = unit(key, 3) != 0;
+			ucprob[r] = Math.log(urules.get(key));
+		}
+
+		keys = sorted(urules, 0);
+		upstart = new int[ntag + 1];
+		upchild = new short[keys.size()];
+		upprob = new double[keys.size()];
+		for (int r = 0; r < keys.size(); r++) {
+			long key = keys.get(r);
+			upstart[unit(key, 0) + 1]++;
+			upchild[r] = unit(key, 1);
+			upprob[r] = Math.log(urules.get(key));
+		}
+
+		for (int i = 0; i < ntag; i++) {
+			bstart[i + 1] += bstart[i];
+			ucstart[i + 1] += ucstart[i];
+			upstart[i + 1] += upstart[i];
+		}
+	}
+
+
+	/**
+	 * @return # of the tags of the level
+	 */
+	private static int projection(LVeGGrammar agrammar, Level level, short[] project) {
+		if (level != Level.XBAR) {
+			for (short i = 0; i < project.length; i++) {
+				project[i] = i;
+			}
+			return project.length;
+		}
+		Map<String, Short> categories = new HashMap<>();
+		for (int i = 0; i < project.length; i++) { // ROOT is numbered 0 and is thus projected to 0
+			String tag = String.valueOf(agrammar.numberer.object(i));
+			int end = tag.indexOf('^', 1);
+			tag = tag.substring(tag.length() > 1 && tag.charAt(0) == '@' ? 1 : 0, end > 0 ? end : tag.length());
+			Short itag = categories.get(tag);
+			if (itag == null) {
+				categories.put(tag, itag = (short) categories.size());
+			}
+			project[i] = itag;
+		}
+		return categories.size();
+	}
+
+
+	private double score(GrammarRule rule) {
+		return level == Level.LVEG ? rule.weight.marginalize(true) : rule.weight.getProb();
+	}
+
+
+	/**
+	 * @return the key packing the parent, the left or unary child, the right child, and whether the rule is ROOT->X (1) or not (0)
+	 */
+	private static long key(short p, short lc, short rc, boolean root) {
+		return ((long) p << 48) | ((long) lc << 32) | ((long) rc << 16) | (root ? 1 : 0);
+	}
+
+
+	private static short unit(long key, int i) {
+		return (short) (key >>> (48 - 16 * i));
+	}
+
+
+	private static void sum(Map<Long, Double> sums, long key, double logprob) {
+		Double sum = sums.get(key);
+		sums.put(key, (sum == null ? 0 : sum) + Math.exp(logprob));
+	}
+
+
+	private static void max(Map<Long, Double> rules, Map<Long, Double> sums) {
+		for (Map.Entry<Long, Double> sum : sums.entrySet()) {
+			if (sum.getValue() <= 0) { continue; }
+			Double prob = rules.get(sum.getKey());
+			if (prob == null || prob < sum.getValue()) {
+				rules.put(sum.getKey(), sum.getValue());
+			}
+		}
+	}
+
+
+	/**
+	 * @return the keys sorted by the unit i and then by the whole key
+	 */
+	private static List<Long> sorted(Map<Long, Double> rules, final int i) {
+		List<Long> keys = new ArrayList<>(rules.keySet());
+		Collections.sort(keys, new Comparator<Long>() {
+			@Override
+			public int compare(Long o1, Long o2) {
+				int cmp = Short.compare(unit(o1, i), unit(o2, i));
+				return cmp != 0 ? cmp : Long.compare(o1, o2);
+			}
+		});
+		return keys;
+	}
+
+
+	/**
+	 * @param levels      comma-separated levels of the cascade, e.g., "xbar,pcfg,lveg"
+	 * @param xbthreshold threshold of the posterior probabilities of the x-bar level, in logarithmic form
+	 * @param lvthreshold threshold of the posterior probabilities of the lveg level, in logarithmic form
+	 */
+	public static void config(String levels, double xbthreshold, double lvthreshold) {
+		String[] names = levels.split(",");
+		List<Level> alevels = new ArrayList<>(names.length);
+		for (String name : names) {
+			if ((name = name.trim()).isEmpty()) { continue; }
+			Level alevel = Level.valueOf(name.toUpperCase());
+			if (!alevels.isEmpty() && alevels.get(alevels.size() - 1).compareTo(alevel) >= 0) {
+				throw new IllegalArgumentException("The levels of the cascade must be ordered from the coarsest to the finest: " + levels);
+			}
+			alevels.add(alevel);
+		}
+		if (alevels.isEmpty()) { alevels.add(Level.PCFG); }
+		cascade = alevels.toArray(new Level[alevels.size()]);
+		PackedPCFGInferencer.xbthreshold = xbthreshold;
+		PackedPCFGInferencer.lvthreshold = lvthreshold;
+	}
+
+
+	/**
+	 * @return the rules of the current grammar compiled for the level
+	 */
+	public static PackedPCFGInferencer packed(Level level) {
+		PackedPCFGInferencer engine = packed.get(level.ordinal());
+		if (engine == null || engine.isStale()) {
+			synchronized (PackedPCFGInferencer.class) {
+				if ((engine = packed.get(level.ordinal())) == null || engine.isStale()) {
+					engine = new PackedPCFGInferencer(grammar, level);
+					packed.set(level.ordinal(), engine);
+				}
+			}
+		}
+		return engine;
+	}
+
+
+	/**
+	 * The treebank probabilities are set once, whereas the LVeG rule weights are updated during the training.
+	 */
+	private boolean isStale() {
+		return source != grammar || (level == Level.LVEG && version != grammar.nupdate());
+	}
+
+
+	/**
+	 * Add the tags surviving the cascade to the posterior masks of the chart. The treebank level alone results in
+	 * the same masks as {@link PCFGInferencer#createPosteriorMask(int, Chart, double, double)}.
+	 *
+	 * @param nword     # of words in the sentence
+	 * @param chart     the chart in which the masks are created
+	 * @param sentence  the sentence
+	 * @param threshold of the posterior probabilities of the treebank level, in logarithmic form
+	 * @return          score of the sentence given by the last level
+	 */
+	public static double createPosteriorMask(int nword, Chart chart, List<State> sentence, double threshold) {
+		double scoreS = Double.NEGATIVE_INFINITY;
+		Workspace ws = workspace.get();
+		ws.masked = false;
+		for (int i = 0; i < cascade.length; i++) {
+			PackedPCFGInferencer engine = packed(cascade[i]);
+			ws.reset(nword * (nword + 1) / 2, engine.ntag, engine.project.length);
+			engine.applyMask(ws, nword);
+			engine.insideScore(ws, sentence, nword);
+			engine.outsideScore(ws, nword);
+			scoreS = engine.prune(ws, nword, cascade[i] == Level.PCFG ? threshold : (cascade[i] == Level.XBAR ? xbthreshold : lvthreshold));
+			engine.pushMask(ws, chart, nword, i == cascade.length - 1);
+		}
+		return scoreS;
+	}
+
+
+	/**
+	 * Project the surviving pairs of the coarser levels onto the tags of the level.
+	 */
+	protected void applyMask(Workspace ws, int nword) {
+		if (!ws.masked) { return; }
+		int ncell = nword * (nword + 1) / 2, nfine = project.length, offset;
+		Arrays.fill(ws.lmasks, 0, ncell * ntag, false);
+		for (int idx = 0; idx < ncell; idx++) {
+			offset = idx * nfine;
+			for (int i = 0; i < nfine; i++) {
+				if (ws.masks[offset + i]) { ws.lmasks[idx * ntag + project[i]] = true; }
+			}
+		}
+	}
+
+
+	/**
+	 * Pass the surviving pairs on to the next level, or add them to the posterior masks of the chart if the level is the last one.
+	 * The outside scores of the last level are kept as the outside estimates of the per-cell beam, see {@link Chart#beamInsideScore},
+	 * only if the beam is enabled since nothing else reads them.
+	 */
+	protected void pushMask(Workspace ws, Chart chart, int nword, boolean last) {
+		boolean beamed = last && beamed();
+		int ncell = nword * (nword + 1) / 2, nfine = project.length, offset;
+		for (int idx = 0; idx < ncell; idx++) {
+			offset = idx * nfine;
+			for (short i = 0; i < nfine; i++) {
+				boolean stay = ws.lmasks[idx * ntag + project[i]] && (!ws.masked || ws.masks[offset + i]);
+				if (last) {
+					if (stay) {
+						chart.addPosteriorMask(i, idx);
+						if (beamed) { chart.addOutsideScoreMask(i, idx, ws.ototals[idx * ntag + project[i]], (short) 0); }
+					}
+				} else {
+					ws.masks[offset + i] = stay;
+				}
+			}
+		}
+		ws.masked = true;
+	}
+
+
+	protected void insideScore(Workspace ws, List<State> sentence, int nword) {
+		int c0, c1, c2, o0, o1;
+		double lin, rin, sum, score;
+		double[] iprobs = ws.iprobs, iscales = ws.iscales, scores = ws.levels[0];
+		for (int i = 0; i < nword; i++) {
+			c2 = Chart.idx(i, nword);
+			Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+			List<GrammarRule> rules = lexicon.getRulesWithWord(sentence.get(i));
+			for (GrammarRule rule : rules) {
+				score = score(rule);
+				if (score > scores[project[rule.lhs]]) { scores[project[rule.lhs]] = score; }
+			}
+			insideScoreForUnaryRule(ws, c2);
+		}
+
+		for (int ilayer = 1; ilayer < nword; ilayer++) {
+			for (int left = 0; left < nword - ilayer; left++) {
+				c2 = Chart.idx(left, nword - ilayer);
+				Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+				for (int right = left; right < left + ilayer; right++) {
+					c0 = Chart.idx(left, nword - (right - left));
+					c1 = Chart.idx(right + 1, nword - (left + ilayer - right - 1));
+					if (ws.iempty[c0] || ws.iempty[c1]) { continue; }
+					o0 = c0 * ntag;
+					o1 = c1 * ntag;
+					for (int p = 0; p < ntag; p++) {
+						sum = 0;
+						for (int r = bstart[p]; r < bstart[p + 1]; r++) {
+							if ((lin = iprobs[o0 + blchild[r]]) == 0 || (rin = iprobs[o1 + brchild[r]]) == 0) { continue; }
+							sum += bprob[r] * lin * rin;
+						}
+						if (sum > 0) {
+							scores[p] = FunUtil.logAdd(scores[p], Math.log(sum) + iscales[c0] + iscales[c1]);
+						}
+					}
+				}
+				insideScoreForUnaryRule(ws, c2);
+			}
+		}
+	}
+
+
+	protected void outsideScore(Workspace ws, int nword) {
+		int c0, c1, c2, o0, o1;
+		double pout, sib;
+		double[] iprobs = ws.iprobs, oprobs = ws.oprobs, sums = ws.sums, scores = ws.levels[0];
+		for (int ilayer = nword - 1; ilayer >= 0; ilayer--) {
+			for (int left = 0; left < nword - ilayer; left++) {
+				c2 = Chart.idx(left, nword - ilayer);
+				Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+				// as the left child, the right sibling spans [left + ilayer + 1, right]
+				for (int right = left + ilayer + 1; right < nword; right++) {
+					c0 = Chart.idx(left, nword - (right - left));
+					c1 = Chart.idx(left + ilayer + 1, nword - (right - left - ilayer - 1));
+					if (ws.oempty[c0] || ws.iempty[c1]) { continue; }
+					o0 = c0 * ntag;
+					o1 = c1 * ntag;
+					Arrays.fill(sums, 0);
+					for (int p = 0; p < ntag; p++) {
+						if ((pout = oprobs[o0 + p]) == 0) { continue; }
+						for (int r = bstart[p]; r < bstart[p + 1]; r++) {
+							if ((sib = iprobs[o1 + brchild[r]]) == 0) { continue; }
+							sums[blchild[r]] += bprob[r] * pout * sib;
+						}
+					}
+					accumulate(scores, sums, ws.oscales[c0] + ws.iscales[c1]);
+				}
+				// as the right child, the left sibling spans [right, left - 1]
+				for (int right = 0; right < left; right++) {
+					c0 = Chart.idx(right, nword - (left + ilayer - right));
+					c1 = Chart.idx(right, nword - (left - 1 - right));
+					if (ws.oempty[c0] || ws.iempty[c1]) { continue; }
+					o0 = c0 * ntag;
+					o1 = c1 * ntag;
+					Arrays.fill(sums, 0);
+					for (int p = 0; p < ntag; p++) {
+						if ((pout = oprobs[o0 + p]) == 0) { continue; }
+						for (int r = bstart[p]; r < bstart[p + 1]; r++) {
+							if ((sib = iprobs[o1 + blchild[r]]) == 0) { continue; }
+							sums[brchild[r]] += bprob[r] * pout * sib;
+						}
+					}
+					accumulate(scores, sums, ws.oscales[c0] + ws.iscales[c1]);
+				}
+				outsideScoreForUnaryRule(ws, c2);
+			}
+		}
+	}
+
+
+	private void accumulate(double[] scores, double[] sums, double scale) {
+		for (int i = 0; i < ntag; i++) {
+			if (sums[i] > 0) {
+				scores[i] = FunUtil.logAdd(scores[i], Math.log(sums[i]) + scale);
+			}
+		}
+	}
+
+
+	/**
+	 * Level 0 of the cell has been computed, apply the unary chains and close the cell, see PCFGInferencer.insideScoreForUnaryRule(...).
+	 */
+	private void insideScoreForUnaryRule(Workspace ws, int idx) {
+		double cin;
+		double[][] levels = ws.levels;
+		for (short level = 0; level < LENGTH_UCHAIN; level++) {
+			double[] pins = levels[level + 1];
+			Arrays.fill(pins, Double.NEGATIVE_INFINITY);
+			for (int c = 0; c < ntag; c++) {
+				if ((cin = levels[level][c]) == Double.NEGATIVE_INFINITY) { continue; }
+				for (int r = ucstart[c]; r < ucstart[c + 1]; r++) {
+					if (idx != 0 && ucroot[r]) { continue; } // ROOT is allowed only when it is in cell 0
+					pins[ucparent[r]] = FunUtil.logAdd(pins[ucparent[r]], ucprob[r] + cin);
+				}
+			}
+		}
+		int nlevel = LENGTH_UCHAIN + 1;
+		if (idx == 0) { // ROOT is in cell 0 and is in level 3
+			double[] pins = levels[LENGTH_UCHAIN + 1];
+			Arrays.fill(pins, Double.NEGATIVE_INFINITY);
+			for (int c = 0; c < ntag; c++) {
+				if ((cin = levels[LENGTH_UCHAIN][c]) == Double.NEGATIVE_INFINITY) { continue; }
+				for (int r = ucstart[c]; r < ucstart[c + 1]; r++) {
+					if (!ucroot[r]) { continue; }
+					pins[ucparent[r]] = FunUtil.logAdd(pins[ucparent[r]], ucprob[r] + cin);
+				}
+			}
+			nlevel++;
+		}
+		ws.iempty[idx] = close(ws, levels, nlevel, ws.itotals, ws.iprobs, ws.iscales, idx);
+	}
+
+
+	/**
+	 * Level 0 of the cell has been computed, apply the unary chains and close the cell, see PCFGInferencer.outsideScoreForUnaryRule(...).
+	 */
+	private void outsideScoreForUnaryRule(Workspace ws, int idx) {
+		double pout;
+		double[][] levels = ws.levels;
+		int nlevel = LENGTH_UCHAIN + 1;
+		if (idx == 0) { // since OS(ROOT) = 1
+			double[] couts = levels[0];
+			for (int r = upstart[ROOT]; r < upstart[ROOT + 1]; r++) {
+				couts[upchild[r]] = FunUtil.logAdd(couts[upchild[r]], upprob[r]);
+			}
+			Arrays.fill(levels[LENGTH_UCHAIN + 1], Double.NEGATIVE_INFINITY);
+			levels[LENGTH_UCHAIN + 1][ROOT] = 0;
+			nlevel++;
+		}
+		for (short level = 0; level < LENGTH_UCHAIN; level++) {
+			double[] couts = levels[level + 1];
+			Arrays.fill(couts, Double.NEGATIVE_INFINITY);
+			for (int p = 0; p < ntag; p++) {
+				if ((pout = levels[level][p]) == Double.NEGATIVE_INFINITY) { continue; }
+				for (int r = upstart[p]; r < upstart[p + 1]; r++) {
+					couts[upchild[r]] = FunUtil.logAdd(couts[upchild[r]], upprob[r] + pout);
+				}
+			}
+		}
+		ws.oempty[idx] = close(ws, levels, nlevel, ws.ototals, ws.oprobs, ws.oscales, idx);
+	}
+
+
+	/**
+	 * Sum the levels of the cell up, drop the pairs pruned by the coarser levels, and scale the totals by the largest one.
+	 *
+	 * @return whether the cell is empty (true) or not (false)
+	 */
+	private boolean close(Workspace ws, double[][] levels, int nlevel, double[] totals, double[] probs, double[] scales, int idx) {
+		int offset = idx * ntag;
+		double total, score, scale = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < ntag; i++) {
+			if (ws.masked && !ws.lmasks[offset + i]) {
+				totals[offset + i] = Double.NEGATIVE_INFINITY;
+				continue;
+			}
+			total = levels[0][i];
+			for (int level = 1; level < nlevel; level++) {
+				if ((score = levels[level][i]) == Double.NEGATIVE_INFINITY) { continue; }
+				total = total == Double.NEGATIVE_INFINITY ? score : FunUtil.logAdd(total, score);
+			}
+			totals[offset + i] = total;
+			if (total > scale) { scale = total; }
+		}
+		if (scale == Double.NEGATIVE_INFINITY) {
+			scales[idx] = 0;
+			Arrays.fill(probs, offset, offset + ntag, 0);
+			return true;
+		}
+		scales[idx] = scale;
+		for (int i = 0; i < ntag; i++) {
+			probs[offset + i] = Math.exp(totals[offset + i] - scale);
+		}
+		return false;
+	}
+
+
+	/**
+	 * Keep the pairs of which the posterior probabilities are larger than the threshold, see PCFGInferencer.createPosteriorMask(...).
+	 *
+	 * @return score of the sentence
+	 */
+	protected double prune(Workspace ws, int nword, double threshold) {
+		int idx, cnt, offset;
+		boolean retainall, stay;
+		double oscore, iscore, posterior;
+		double scoreS = ws.itotals[Chart.idx(0, 1) * ntag + ROOT];
+
+		for (int ilayer = nword - 1; ilayer >= 0; ilayer--) {
+			for (int left = 0; left < nword - ilayer; left++) {
+				idx = Chart.idx(left, nword - ilayer);
+				offset = idx * ntag;
+				cnt = 0;
+				retainall = idx == 0;
+				for (short ikey = 0; ikey < ntag; ikey++) {
+					ws.lmasks[offset + ikey] = false;
+					if ((iscore = ws.itotals[offset + ikey]) == Double.NEGATIVE_INFINITY ||
+							(oscore = ws.ototals[offset + ikey]) == Double.NEGATIVE_INFINITY) {
+						continue;
+					}
+					posterior = iscore + oscore - scoreS; // in logarithmic form
+					stay = (retainall && (ikey == ROOT || cnt < 6));
+					if (stay || posterior > threshold) {
+						ws.lmasks[offset + ikey] = true;
+						cnt++;
+					}
+				}
+			}
+		}
+		return scoreS;
+	}
+
+
+	/**
+	 * Primitive charts of a thread, which grow with the sentences and are never shrunk.
+	 */
+	protected static class Workspace {
+		protected double[] itotals, ototals; // [cell * ntag + tag], in logarithmic form
+		protected double[] iprobs, oprobs;   // [cell * ntag + tag], scaled by the largest score of the cell
+		protected double[] iscales, oscales; // [cell]
+		protected boolean[] iempty, oempty;  // [cell]
+		protected double[][] levels;         // [level][tag] of the current cell
+		protected double[] sums;             // [tag]
+		protected boolean[] lmasks;          // [cell * ntag + tag], pairs allowed in, and then surviving, the current level
+		protected boolean[] masks;           // [cell * nfine + tag], pairs surviving the coarser levels, in the tags of the grammar
+		protected boolean masked;            // whether the current level is pruned by the coarser levels
+
+		protected Workspace() {
+			reset(0, 0, 0);
+		}
+
+		protected void reset(int ncell, int ntag, int nfine) {
+			int size = ncell * ntag;
+			if (itotals == null || itotals.length < size) {
+				itotals = new double[size];
+				ototals = new double[size];
+				iprobs = new double[size];
+				oprobs = new double[size];
+				lmasks = new boolean[size];
+			}
+			if (masks == null || masks.length < ncell * nfine) {
+				masks = new boolean[ncell * nfine];
+			}
+			if (iscales == null || iscales.length < ncell) {
+				iscales = new double[ncell];
+				oscales = new double[ncell];
+				iempty = new boolean[ncell];
+				oempty = new boolean[ncell];
+			}
+			if (sums == null || sums.length < ntag) {
+				levels = new double[NLEVEL][ntag];
+				sums = new double[ntag];
+			}
+			Arrays.fill(oempty, 0, ncell, true); // the outside pass reads the larger spans only
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+package edu.shanghaitech.ai.nlp.lveg.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.berkeley.nlp.PCFGLA.TreeAnnotations;
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.lveg.model.Inferencer;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+import edu.shanghaitech.ai.nlp.util.WorkerPool;
+
+/**
+ * Parses a stream of sentences of any length in four stages connected by bounded queues: the reader reads the
+ * sentences, one tokenized sentence per line or the yields of Penn trees; the tokenizer normalizes the words as
+ * the treebank is normalized for training, builds the flat trees and resolves the words or their signatures in
+ * the lexicon; the parse stage feeds the workers of {@link WorkerPool}
+ * and collects the parses in the order of the input; and the writer writes the unannotated parses, one per line.
+ * A stage blocks when the next one falls behind, and the caches of the words out of the vocabulary are bounded, so
+ * the memory is bounded by the capacities whatever the size of the input. An empty line gives an empty line, and a sentence
+ * longer than maxslen, with a word that the lexicon cannot resolve, or that cannot be parsed gives the dummy parse.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class ParsePipeline extends Recorder {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -4017372620373474520L;
+	private final static short ID_ROOT = 0; // id of ROOT, see Inferencer
+	private final static short ID_WORD = -1;
+	private final static Sentence EOS = new Sentence(-1, null); // end of the stream
+	private final static String EMPTY_NODE = "-NONE-"; // the traces, stripped from the treebank by Corpus
+
+	protected int maxslen;
+	protected int nthread;
+	protected int capacity;
+	protected boolean treeInput;
+	protected boolean lowercase;
+	protected LVeGLexicon lexicon;
+	protected MaxRuleParser<?, ?> parser;
+
+
+	/**
+	 * @param parser    the prototype of the parsers
+	 * @param lexicon   the lexicon of the grammar the parser uses
+	 * @param maxslen   max length of the sentences to be parsed, which must not exceed that of the parser
+	 * @param nthread   # of the parsers
+	 * @param capacity  max # of the sentences held by each of the queues
+	 * @param treeInput the input consists of Penn trees (true) or tokenized sentences (false)
+	 * @param lowercase lowercase the words (true) or not (false), as the grammar was trained with -lowercase
+	 */
+	public ParsePipeline(MaxRuleParser<?, ?> parser, LVeGLexicon lexicon, int maxslen, int nthread,
+			int capacity, boolean treeInput, boolean lowercase) {
+		this.parser = parser;
+		this.lexicon = lexicon;
+		this.maxslen = maxslen;
+		this.nthread = nthread;
+		this.capacity = Math.max(capacity, 1);
+		this.treeInput = treeInput;
+		this.lowercase = lowercase;
+	}
+
+
+	protected static class Sentence {
+		protected final int id;
+		protected final Object input; // line or Penn tree
+		protected Tree<State> tree;
+		protected Tree<String> parsed;
+		protected boolean skipped;
+
+		protected Sentence(int id, Object input) {
+			this.id = id;
+			this.input = input;
+		}
+	}
+
+
+	/**
+	 * @param in  the input
+	 * @param out the output, which is flushed but not closed
+	 * @return    # of the sentences
+	 */
+	public int parse(final BufferedReader in, final Writer out) throws IOException, InterruptedException {
+		final BlockingQueue<Sentence> inputs = new ArrayBlockingQueue<>(capacity);
+		final BlockingQueue<Sentence> sentences = new ArrayBlockingQueue<>(capacity);
+		final BlockingQueue<Sentence> parses = new ArrayBlockingQueue<>(capacity);
+		List<Callable<Integer>> stages = new ArrayList<>(4);
+		stages.add(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return read(in, inputs);
+			}
+		});
+		stages.add(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return tokenize(inputs, sentences);
+			}
+		});
+		stages.add(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return parse(sentences, parses);
+			}
+		});
+		stages.add(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return write(parses, out);
+			}
+		});
+
+		ExecutorService pool = Executors.newFixedThreadPool(stages.size());
+		CompletionService<Integer> service = new ExecutorCompletionService<>(pool);
+		for (Callable<Integer> stage : stages) {
+			service.submit(stage);
+		}
+		int nsentence = 0;
+		try {
+			for (int i = 0; i < stages.size(); i++) {
+				nsentence = Math.max(nsentence, service.take().get());
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) { throw (IOException) cause; }
+			throw new IllegalStateException("The parse pipeline failed.", cause);
+		} finally {
+			pool.shutdownNow(); // interrupt the stages blocked by a failed one
+		}
+		return nsentence;
+	}
+
+
+	protected int read(BufferedReader in, BlockingQueue<Sentence> inputs) throws IOException, InterruptedException {
+		int id = 0;
+		if (treeInput) {
+			Iterator<Tree<String>> trees = new Trees.PennTreeReader(in);
+			while (trees.hasNext()) {
+				inputs.put(new Sentence(id++, trees.next()));
+			}
+		} else {
+			String line;
+			while ((line = in.readLine()) != null) {
+				inputs.put(new Sentence(id++, line));
+			}
+		}
+		inputs.put(EOS);
+		return id;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	protected int tokenize(BlockingQueue<Sentence> inputs, BlockingQueue<Sentence> sentences) throws InterruptedException {
+		Sentence sentence;
+		int nsentence = 0;
+		while ((sentence = inputs.take()) != EOS) {
+			List<String> words = treeInput ? words((Tree<String>) sentence.input) : tokens((String) sentence.input);
+			if (words.isEmpty() || words.size() > maxslen) {
+				sentence.skipped = true;
+				sentence.parsed = words.isEmpty() ? null : new Tree<String>(Inferencer.DUMMY_TAG);
+			} else if ((sentence.tree = sentence(words)) == null) {
+				sentence.skipped = true;
+				sentence.parsed = new Tree<String>(Inferencer.DUMMY_TAG);
+			}
+			sentences.put(sentence);
+			nsentence++;
+		}
+		sentences.put(EOS);
+		return nsentence;
+	}
+
+
+	/**
+	 * @param words the words of the sentence
+	 * @return      the flat tree of the sentence, of which the words have been looked up in the lexicon, or null 
+	 *              if a word resolves to nothing, i.e., it is unknown and there is no "UNK" in the lexicon
+	 */
+	protected Tree<State> sentence(List<String> words) {
+		List<Tree<State>> leaves = new ArrayList<>(words.size());
+		for (short i = 0; i < words.size(); i++) {
+			State word = new State(words.get(i), ID_WORD, i, (short) (i + 1));
+			if (lexicon.getWordIdx(word) < 0) { // resolve the index of the word or of its signature
+				logger.warn("Unresolvable word \'" + word.getName() + "\' at " + i + ", the sentence gets the dummy parse.\n");
+				return null;
+			}
+			leaves.add(new Tree<State>(word));
+		}
+		return new Tree<State>(new State(null, ID_ROOT, (short) 0, (short) words.size()), leaves);
+	}
+
+
+	private List<String> tokens(String line) {
+		List<String> words = new ArrayList<>();
+		for (String word : line.trim().split("\\s+")) {
+			if (!word.isEmpty()) { words.add(lowercase ? word.toLowerCase() : word); }
+		}
+		return words;
+	}
+	
+	
+	/**
+	 * @param tree the Penn tree
+	 * @return     the yield of the tree without the empty nodes, i.e., the words the training trees hold
+	 */
+	private List<String> words(Tree<String> tree) {
+		List<String> words = new ArrayList<>();
+		words(tree, words);
+		return words;
+	}
+	
+	
+	private void words(Tree<String> tree, List<String> words) {
+		if (tree.isLeaf()) {
+			words.add(lowercase ? tree.getLabel().toLowerCase() : tree.getLabel());
+		} else if (!EMPTY_NODE.equals(tree.getLabel())) {
+			for (Tree<String> child : tree.getChildren()) {
+				words(child, words);
+			}
+		}
+	}
+
+
+	/**
+	 * The sentences are kept in the order of the input until they are parsed or skipped. The workers deliver the
+	 * parses in the order of submission, so the head of the pending sentences is always the next one to be done.
+	 */
+	protected int parse(BlockingQueue<Sentence> sentences, BlockingQueue<Sentence> parses) throws InterruptedException {
+		WorkerPool workers = new WorkerPool(parser, nthread, capacity, true);
+		ArrayDeque<Sentence> pending = new ArrayDeque<>(capacity * 2);
+		Sentence sentence;
+		int nsentence = 0;
+		try {
+			while ((sentence = sentences.take()) != EOS) {
+				if (!sentence.skipped) {
+					workers.execute(sentence.tree);
+				}
+				pending.add(sentence);
+				nsentence++;
+				deliver(workers, pending, parses, pending.size() >= capacity);
+			}
+			while (!pending.isEmpty()) {
+				deliver(workers, pending, parses, true);
+			}
+		} finally {
+			workers.shutdown();
+		}
+		parses.put(EOS);
+		return nsentence;
+	}
+
+
+	/**
+	 * @param block wait for the head of the pending sentences (true) or only deliver those that are done (false)
+	 */
+	@SuppressWarnings("unchecked")
+	private void deliver(WorkerPool workers, ArrayDeque<Sentence> pending, BlockingQueue<Sentence> parses,
+			boolean block) throws InterruptedException {
+		Sentence head;
+		while ((head = pending.peek()) != null) {
+			if (!head.skipped) {
+				if (workers.hasNext()) {
+					head.parsed = (Tree<String>) workers.getNext();
+				} else if (block) {
+					head.parsed = (Tree<String>) workers.take();
+				} else {
+					break;
+				}
+				head.tree = null;
+			}
+			parses.put(pending.poll());
+			block = false;
+		}
+	}
+
+
+	protected int write(BlockingQueue<Sentence> parses, Writer out) throws IOException, InterruptedException {
+		Sentence sentence;
+		int nsentence = 0;
+		while ((sentence = parses.take()) != EOS) {
+			if (sentence.parsed != null) {
+				out.write(format(sentence.parsed));
+			}
+			out.write('\n');
+			nsentence++;
+		}
+		out.flush();
+		return nsentence;
+	}
+
+
+	/**
+	 * @param parsed the parse of a sentence
+	 * @return       the line of the parse in the output
+	 */
+	protected String format(Tree<String> parsed) {
+		return TreeAnnotations.unAnnotateTree(parsed, false).toString();
+	}
+
+}
@@ -95,6 +95,8 @@ public class SimpleLVeGGrammar extends LVeGGrammar implements Serializable {
 		bRulesWithLC[rule.lchild].add(rule);
 		bRulesWithRC[rule.rchild].add(rule);
 		bRuleMap.put(rule, rule);
+		ruleIndex = null;
+		bRuleIndex = null;
 	}
 	
 	
@@ -103,6 +105,7 @@ public class SimpleLVeGGrammar extends LVeGGrammar implements Serializable {
 		uRulesWithP[rule.lhs].add(rule);
 		uRulesWithC[rule.rhs].add(rule);
 		uRuleMap.put(rule, rule);
+		ruleIndex = null;
 	}
 	
 	
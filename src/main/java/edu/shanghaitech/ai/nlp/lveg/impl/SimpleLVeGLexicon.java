@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.berkeley.nlp.syntax.Tree;
 import edu.shanghaitech.ai.nlp.data.StateTreeList;
@@ -28,15 +29,14 @@ public class SimpleLVeGLexicon extends LVeGLexicon {
 	protected int nword;
 	
 	public Indexer<String> wordIndexer;
+	// (word, position class) -> the resolved word index of the words out of the vocabulary, see getWordIdx(...)
+	protected transient volatile ConcurrentHashMap<String, Integer>[] wordIdxes;
 	
 	
 	public SimpleLVeGLexicon() {
 		this.uRuleTable = new RuleTable<UnaryGrammarRule>(UnaryGrammarRule.class);
 		this.uRuleMap = new HashMap<>();
 		this.wordIndexer = new Indexer<String>();
-		this.lastWord = TOKEN_UNKNOWN;
-		this.lastPosition = -1;
-		this.lastSignature = "";
 		this.unknownLevel = 5; // 5 is English specific
 	}
 	
@@ -66,6 +66,8 @@ public class SimpleLVeGLexicon extends LVeGLexicon {
 	@Override
 	public void postInitialize() {
 		this.nword = wordIndexer.size();
+		this.signatures = null; // the vocabulary is complete, the caches are rebuilt on demand
+		this.wordIdxes = null;
 		this.uRulesWithC = new List[nword];
 		for (int i = 0; i < nword; i++) {
 			uRulesWithC[i] = new ArrayList<>(5);
@@ -91,6 +93,7 @@ public class SimpleLVeGLexicon extends LVeGLexicon {
 		uRulesWithP[rule.lhs].add(rule);
 		uRulesWithC[rule.rhs].add(rule);
 		uRuleMap.put(rule, rule);
+		ruleIndex = null;
 	}
 	
 	
@@ -107,8 +110,7 @@ public class SimpleLVeGLexicon extends LVeGLexicon {
 		for (int i = 0; i < words.size(); i++) {
 			State word = words.get(i);
 			String name = word.getName();
-			wordIndexer.add(name); // generate word index
-			int wordIdx = wordIndexer.indexOf(name);
+			int wordIdx = wordIndexer.index(name); // generate word index
 			word.wordIdx = wordIdx;
 			short tagIdx = tags.get(i).getId();
 			GrammarRule rule = new UnaryGrammarRule(tagIdx, wordIdx, RuleType.LHSPACE);
@@ -121,40 +123,78 @@ public class SimpleLVeGLexicon extends LVeGLexicon {
 	
 	
 	/**
-	 * Find the most possible word index, should not smaller than zero.
+	 * Find the most possible word index, should not smaller than zero. The unlabeled word is looked up in the 
+	 * vocabulary, and the word out of it is resolved through the concurrent cache, which holds up to 
+	 * {@link #MAX_NCACHED} words per position class, the words beyond them are resolved each time.
 	 * 
 	 * @param word the word (name and position in the sentence)
 	 * @return
 	 */
+	@Override
 	public int getWordIdx(State word) {
-		// map the word to its real index
-		int wordIdx = word.wordIdx, idx;
-		String signature = "(UNK)", name = word.getName();
+		int wordIdx = word.wordIdx;
 		if (wordIdx < 0) { // the unlabeled word
-			wordIdx = wordIndexer.indexOf(name);
+			String name = word.getName();
+			if (name == null) {
+				wordIdx = resolve(name, word.from);
+			} else if ((wordIdx = wordIndexer.indexof(name)) == -1) { // the word out of the vocabulary
+				ConcurrentHashMap<String, Integer> shard = wordIdxes()[position(word.from)];
+				Integer idx = shard.get(name);
+				if (idx == null) {
+					idx = resolve(name, word.from);
+					if (shard.size() < MAX_NCACHED) { shard.putIfAbsent(name, idx); }
+				}
+				wordIdx = idx;
+			}
 			word.wordIdx = wordIdx;
 		}
+		return wordIdx;
+	}
+	
+	
+	/**
+	 * Resolve the word that is not in the vocabulary, by backing off its signature.
+	 * 
+	 * @param name name of the word
+	 * @param pos  position of the word in the sentence
+	 * @return     index of the signature or of "UNK"
+	 */
+	protected int resolve(String name, int pos) {
+		int wordIdx = wordIndexer.indexof(name), idx;
 		if (wordIdx == -1) { // the rare word
-			signature = getSignature(name, word.from);
-			wordIdx = wordIndexer.indexOf(signature);
-			word.wordIdx = wordIdx;
-		}
-		while (wordIdx == -1 && (idx = signature.lastIndexOf('-')) > 0) { // the unknown word
-			// stupid special case, such as Hardest UNK-INITC-est with pos = 0
-			logger.warn("\nUnknown word signature checking [word: " + name + ", sig: " + signature + "]\n");
-			signature = signature.substring(0, idx);
+			String signature = getSignature(name, pos);
 			wordIdx = wordIndexer.indexof(signature);
-			word.wordIdx = wordIdx;
+			while (wordIdx == -1 && (idx = signature.lastIndexOf('-')) > 0) { // the unknown word
+				// stupid special case, such as Hardest UNK-INITC-est with pos = 0
+				signature = signature.substring(0, idx);
+				wordIdx = wordIndexer.indexof(signature);
+			}
 		}
 		if (wordIdx == -1) { // CHECK set it to UNK
-			logger.warn("\nUnknown word signature finalizing [word: " + name + ", sig: " + "UNK (DUMY)]\n");
-			wordIdx = wordIndexer.indexof("UNK");
-			word.wordIdx = wordIdx;
+			wordIdx = wordIndexer.indexof(TOKEN_UNKNOWN);
 		}
 		return wordIdx;
 	}
 	
 	
+	@SuppressWarnings("unchecked")
+	private ConcurrentHashMap<String, Integer>[] wordIdxes() {
+		ConcurrentHashMap<String, Integer>[] caches = wordIdxes;
+		if (caches == null) {
+			synchronized (this) {
+				if ((caches = wordIdxes) == null) {
+					caches = new ConcurrentHashMap[NPOSITION];
+					for (int i = 0; i < NPOSITION; i++) {
+						caches[i] = new ConcurrentHashMap<>();
+					}
+					wordIdxes = caches;
+				}
+			}
+		}
+		return caches;
+	}
+	
+	
 	@Override
 	public List<GrammarRule> getRulesWithWord(State word) {
 		int wordIdx = getWordIdx(word);
@@ -185,7 +225,7 @@ public class SimpleLVeGLexicon extends LVeGLexicon {
 	
 	@Override
 	protected boolean isKnown(String word) {
-		return wordIndexer.indexOf(word) != -1;
+		return wordIndexer.indexof(word) != -1;
 	}
 	
 	
@@ -109,8 +109,7 @@ public class Valuator<I, O> extends Parser<I, O> {
 			chart = new Chart(nword, true, false, false);
 		}
 		if (parallel) {
-			cpool.reset();
-			Inferencer.insideScore(chart, sentence, nword, iosprune, cpool);
+			scheduler.insideScore(chart, sentence, null, nword, iosprune, false, false);
 		} else {
 			Inferencer.insideScore(chart, sentence, null, nword, iosprune, false, false);
 		}
@@ -0,0 +1,79 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
+
+/**
+ * Compressed (CSR) index of the binary rules grouped by the left child and then by the right child,
+ * so that the binary step of CYK can be driven by the tags present in the children cells. The rules
+ * of the left child lc and the right child rc are rules[ids[rcstart[g]]], ..., rules[ids[rcstart[g + 1] - 1]],
+ * where g is the group in [lcstart[lc], lcstart[lc + 1]) such that rchild[g] == rc. The rule ids follow
+ * the order of the parents and, for the same parent, that of {@link LVeGGrammar#getBRuleWithP(int)},
+ * and the rules of each group are in the order of their ids.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class BinaryRuleIndex {
+	protected final BinaryGrammarRule[] rules; // rule id -> rule
+	protected final int[] lcstart; // left child -> the first group, of size ntag + 1
+	protected final short[] rchild; // group -> right child
+	protected final int[] rcstart; // group -> the first rule id in ids, of size ngroup + 1
+	protected final int[] ids;
+	protected final int ntag;
+
+
+	public BinaryRuleIndex(LVeGGrammar grammar) {
+		int nrule = 0;
+		this.ntag = grammar.ntag;
+		for (int itag = 0; itag < ntag; itag++) {
+			nrule += grammar.getBRuleWithP(itag).size();
+		}
+		this.rules = new BinaryGrammarRule[nrule];
+		long[] keys = new long[nrule];
+		int id = 0;
+		for (int itag = 0; itag < ntag; itag++) {
+			List<GrammarRule> rulesWithP = grammar.getBRuleWithP(itag);
+			for (GrammarRule rule : rulesWithP) {
+				BinaryGrammarRule brule = (BinaryGrammarRule) rule;
+				rules[id] = brule;
+				keys[id] = ((long) brule.lchild << 48) | ((long) brule.rchild << 32) | id;
+				id++;
+			}
+		}
+		Arrays.sort(keys);
+
+		int ngroup = 0;
+		for (int i = 0; i < nrule; i++) {
+			if (i == 0 || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) { ngroup++; }
+		}
+		this.ids = new int[nrule];
+		this.lcstart = new int[ntag + 1];
+		this.rchild = new short[ngroup];
+		this.rcstart = new int[ngroup + 1];
+		int g = -1, lc = 0;
+		for (int i = 0; i < nrule; i++) {
+			ids[i] = (int) keys[i];
+			if (i == 0 || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+				g++;
+				rchild[g] = (short) (keys[i] >>> 32);
+				rcstart[g] = i;
+				for (int ilc = (int) (keys[i] >>> 48); lc <= ilc; lc++) {
+					lcstart[lc] = g;
+				}
+			}
+		}
+		for (; lc <= ntag; lc++) {
+			lcstart[lc] = ngroup;
+		}
+		rcstart[ngroup] = nrule;
+	}
+
+
+	public int size() {
+		return rules.length;
+	}
+
+}
@@ -0,0 +1,181 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+/**
+ * Parallel inside/outside passes of the CYK algorithm. The cells of the same span length, i.e., a 
+ * diagonal of the chart, only read the cells of the shorter (inside) or longer (outside) spans, so 
+ * they are computed concurrently, one task per cell, on a work-stealing pool; and the diagonals are
+ * processed one after another, bottom-up for the inside pass and top-down for the outside pass, the
+ * return of {@link ForkJoinPool#invoke(java.util.concurrent.ForkJoinTask)} serving as the barrier 
+ * between them. Each cell is written by exactly one task, so the chart needs no shared lock.
+ * <p>
+ * The scores are computed by the same code as the serial version, see {@link Inferencer#insideScore(Chart, List, List, int, boolean, boolean, boolean)}
+ * and {@link Inferencer#outsideScore(Chart, List, int, boolean, boolean, boolean)}, except that they 
+ * are not borrowed from the slabs of the worker threads, which are never reset.
+ * <p>
+ * The schedulers of the same parallelism share one pool, so the copies of a parser made by 
+ * {@link edu.shanghaitech.ai.nlp.util.Executor#newInstance()} do not each start their own threads.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class CYKScheduler extends Recorder {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2937158340286615412L;
+	protected final static int GRAIN = 1; // # of cells per leaf task
+	private final static Map<Integer, ForkJoinPool> pools = new HashMap<>(); // keyed by the parallelism
+
+	protected transient ForkJoinPool pool;
+
+
+	public CYKScheduler(int nthread) {
+		this.pool = pool(nthread < 1 ? 1 : nthread);
+	}
+
+
+	/**
+	 * @param nthread parallelism of the pool
+	 * @return        the pool shared by the schedulers of the given parallelism, its idle workers are reclaimed by itself
+	 */
+	protected static synchronized ForkJoinPool pool(int nthread) {
+		ForkJoinPool pool = pools.get(nthread);
+		if (pool == null) {
+			pool = new ForkJoinPool(nthread);
+			pools.put(nthread, pool);
+		}
+		return pool;
+	}
+
+
+	/**
+	 * Compute the inside score given the sentence and grammar rules, parallel version.
+	 *
+	 * @param chart [in/out]-side score container
+	 * @param tree  in which only the sentence is used
+	 * @param nword # of words in the sentence
+	 */
+	public void insideScore(Chart chart, List<State> sentence, List<State> goldentag, int nword, boolean prune, boolean usemask, boolean iomask) {
+		Inside task = new Inside(chart, sentence, goldentag, nword, prune, usemask, iomask);
+		for (int ilayer = 0; ilayer < nword; ilayer++) {
+			task.ilayer = ilayer;
+			pool.invoke(new Diagonal(task, 0, nword - ilayer));
+		}
+	}
+
+
+	/**
+	 * Compute the outside score given the sentence and grammar rules, parallel version. The outside 
+	 * score of ROOT must have been set, see {@link Inferencer#setRootOutsideScore(Chart)}.
+	 *
+	 * @param chart [in/out]-side score container
+	 * @param tree  in which only the sentence is used
+	 * @param nword # of words in the sentence
+	 */
+	public void outsideScore(Chart chart, List<State> sentence, int nword, boolean prune, boolean usemask, boolean iomask) {
+		Outside task = new Outside(chart, nword, prune, usemask, iomask);
+		for (int ilayer = nword - 1; ilayer >= 0; ilayer--) {
+			task.ilayer = ilayer;
+			pool.invoke(new Diagonal(task, 0, nword - ilayer));
+		}
+	}
+
+
+	/**
+	 * Kernel of a single cell, the cells of a diagonal are indexed by the left boundary of the span.
+	 */
+	protected static abstract class CellTask {
+		protected int ilayer;
+		protected abstract void compute(int left);
+	}
+
+
+	protected static class Inside extends CellTask {
+		private Chart chart;
+		private List<State> sentence;
+		private List<State> goldentag;
+		private int nword;
+		private boolean prune, usemask, iomask;
+
+		protected Inside(Chart chart, List<State> sentence, List<State> goldentag, int nword, boolean prune, boolean usemask, boolean iomask) {
+			this.chart = chart;
+			this.sentence = sentence;
+			this.goldentag = goldentag;
+			this.nword = nword;
+			this.prune = prune;
+			this.usemask = usemask;
+			this.iomask = iomask;
+		}
+
+		@Override
+		protected void compute(int left) {
+			if (ilayer == 0) {
+				Inferencer.insideScoreForWord(chart, sentence, goldentag, left, nword, prune, usemask, iomask, false);
+			} else {
+				Inferencer.insideScoreForCell(chart, left, ilayer, nword, prune, usemask, iomask, false);
+			}
+		}
+	}
+
+
+	protected static class Outside extends CellTask {
+		private Chart chart;
+		private int nword;
+		private boolean prune, usemask, iomask;
+
+		protected Outside(Chart chart, int nword, boolean prune, boolean usemask, boolean iomask) {
+			this.chart = chart;
+			this.nword = nword;
+			this.prune = prune;
+			this.usemask = usemask;
+			this.iomask = iomask;
+		}
+
+		@Override
+		protected void compute(int left) {
+			Inferencer.outsideScoreForCell(chart, left, ilayer, nword, prune, usemask, iomask, false);
+		}
+	}
+
+
+	/**
+	 * Cells [from, to) of a diagonal, split in halves until each leaf holds {@link #GRAIN} cells.
+	 */
+	protected static class Diagonal extends RecursiveAction {
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 6118305467390264862L;
+		private final CellTask task;
+		private final int from, to;
+
+		protected Diagonal(CellTask task, int from, int to) {
+			this.task = task;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= GRAIN) {
+				for (int left = from; left < to; left++) {
+					task.compute(left);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Diagonal(task, from, mid), new Diagonal(task, mid, to));
+			}
+		}
+	}
+
+}
@@ -1,11 +1,14 @@
 package edu.shanghaitech.ai.nlp.lveg.model;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Set;
 
@@ -55,20 +58,15 @@ public class ChartCell {
 			break;
 		}
 		case PCFG: {
-			cell.masks = new HashSet<>();
-			cell.mtags = new HashMap<>(3, 1);
-			cell.mtotals = new HashMap<>();
-			cell.mscores = new HashMap<>(3, 1);
+			cell.initMasks(true);
 			break;
 		}
 		case MASK: {
-			cell.masks = new HashSet<>();
-			cell.mtags = new HashMap<>(3, 1);
+			cell.initMasks(false);
 			break;
 		}
 		case DEFAULT: {
-			cell.totals = new HashMap<>();
-			cell.scores = new HashMap<>(3, 1);
+			cell.initScores();
 			break;
 		}
 		default: {
@@ -203,6 +201,13 @@ public class ChartCell {
 			return inside ? ichart.get(idx).keySet() : ochart.get(idx).keySet();
 		}
 		
+		/**
+		 * @return the smallest key of the cell that is not smaller than from, or -1 if there is none
+		 */
+		public int nextKey(int idx, boolean inside, int from) {
+			return inside ? ichart.get(idx).nextKey(from) : ochart.get(idx).nextKey(from);
+		}
+		
 		public boolean containsKeyMask(short key, int idx, boolean inside, short level) {
 			return inside ? imasks.get(idx).containsKeyMask(key, level) : omasks.get(idx).containsKeyMask(key, level);
 		}
@@ -303,6 +308,20 @@ public class ChartCell {
 			}
 		}
 		
+		/**
+		 * Keep at most k tags in the cell, see {@link Cell#beamScore(int, double, Cell, short)}. The outside scores of 
+		 * the treebank grammar, which are computed for the masks, serve as the outside estimates if there are any.
+		 * 
+		 * @param idx    index of the cell
+		 * @param k      maximum # of the tags kept in the cell
+		 * @param gap    the tags ranked below the best one by more than gap, in logarithmic form, are dropped
+		 * @param pinned the tag that is always kept, e.g., ROOT in cell 0, or -1 if there is none
+		 */
+		public void beamInsideScore(int idx, int k, double gap, short pinned) {
+			Cell estimate = omasks == null ? null : omasks.get(idx);
+			ichart.get(idx).beamScore(k, gap, estimate, pinned);
+		}
+		
 		public boolean isAllowed(short key, int idx, boolean inside) {
 			return inside ? imasks.get(idx).isAllowed(key) : omasks.get(idx).isAllowed(key);
 		}
@@ -323,9 +342,30 @@ public class ChartCell {
 			tmasks.get(idx).addPosteriorMask(key, level);
 		}
 		
+		/**
+		 * Clear the first n * (n + 1) / 2 cells, or all the cells if n &lt;= 0. The mixtures and gaussians borrowed 
+		 * by the calling thread during the last inside/outside passes are released in bulk as well, so a thread 
+		 * must not keep the scores of a chart after it clears another one.
+		 * 
+		 * @param n # of words in the sentence
+		 */
 		public void clear(int n) {
+			clear(n, true);
+		}
+		
+		
+		/**
+		 * @param n       # of words in the sentence
+		 * @param release whether to release the borrowed mixtures and gaussians (true) or not (false), the latter
+		 *                when the scores are still referred to, e.g., by the counts of a minibatch
+		 */
+		public void clear(int n, boolean release) {
 			int cnt, max = n > 0 ? (n * (n + 1) / 2) : ichart.size();
 			if (ichart != null) {
+				if (release) {
+					GaussianMixture.releaseObjects();
+					GaussianDistribution.releaseObjects();
+				}
 				cnt = 0;
 				for (Cell cell : ichart) {
 					if (++cnt > max) { break; }
@@ -382,10 +422,15 @@ public class ChartCell {
 	
 	
 	public static class Cell {
+		private final static short NLEVEL = 4; // LENGTH_UCHAIN + 2, ROOT is in level 3
 		// LVeG parser
 		private boolean status;
-		private Map<Short, GaussianMixture> totals;
-		private Map<Short, Map<Short, GaussianMixture>> scores;
+		private GaussianMixture[] totals;
+		private GaussianMixture[][] scores; // [level][tag]
+		private BitSet tkeys;
+		private BitSet[] lkeys;
+		private TagSet tview;
+		private TagSet[] lviews;
 		// for parsing
 		private Map<Short, Map<Short, Double>> maxRuleCnts;
 		private Map<Short, Map<Short, Integer>> maxRuleSons;
@@ -393,59 +438,107 @@ public class ChartCell {
 		private Map<Short, Short> maxRulePos;
 		private Map<Short, Short> splitPoint;
 		// using masks
-		private Set<Short> masks; 
-		private Map<Short, Double> mtotals;
-		private Map<Short, Set<Short>> mtags;
-		private Map<Short, Map<Short, Double>> mscores;
+		private BitSet masks; 
+		private double[] mtotals;
+		private double[][] mscores; // [level][tag]
+		private BitSet mtkeys;
+		private BitSet[] mlkeys;
+		private BitSet[] mtags;
+		private TagSet mtview;
+		private TagSet[] mlviews;
 		
 		private Cell() {
 			this.status = false;
 		}
 		
+		private void initScores() {
+			totals = new GaussianMixture[0];
+			scores = new GaussianMixture[NLEVEL][];
+			tkeys = new BitSet();
+			lkeys = new BitSet[NLEVEL];
+			tview = new TagSet(tkeys);
+			lviews = new TagSet[NLEVEL];
+		}
+		
+		private void initMasks(boolean scored) {
+			masks = new BitSet();
+			mtags = new BitSet[NLEVEL];
+			if (scored) {
+				mtotals = new double[0];
+				mscores = new double[NLEVEL][];
+				mtkeys = new BitSet();
+				mlkeys = new BitSet[NLEVEL];
+				mtview = new TagSet(mtkeys);
+				mlviews = new TagSet[NLEVEL];
+			}
+		}
+		
+		/**
+		 * @return the array large enough to be indexed by key
+		 */
+		private static GaussianMixture[] fit(GaussianMixture[] array, short key) {
+			if (array == null) { return new GaussianMixture[Math.max(key + 1, 16)]; }
+			return key < array.length ? array : Arrays.copyOf(array, Math.max(key + 1, array.length * 2));
+		}
+		
+		private static double[] fit(double[] array, short key) {
+			if (array == null) { return new double[Math.max(key + 1, 16)]; }
+			return key < array.length ? array : Arrays.copyOf(array, Math.max(key + 1, array.length * 2));
+		}
+		
+		/**
+		 * @return null if there is no key in the level, which is consistent with the map-based chart
+		 */
+		private static TagSet view(BitSet[] keys, TagSet[] views, short level) {
+			if (level < 0 || level >= keys.length || keys[level] == null || keys[level].isEmpty()) { return null; }
+			if (views[level] == null) { views[level] = new TagSet(keys[level]); }
+			return views[level];
+		}
+		
+		private static boolean get(BitSet[] keys, short key, short level) {
+			return level >= 0 && level < keys.length && keys[level] != null && keys[level].get(key);
+		}
+		
 		protected Set<Short> keySetMask() {
-			return mtotals.keySet();
+			return mtview;
 		}
 		
 		protected Set<Short> keySetMask(short level) {
-			return mscores.get(level) == null ? null : mscores.get(level).keySet();
+			return view(mlkeys, mlviews, level);
 		}
 		
 		protected boolean containsKeyMask(short key) {
-			return mtotals.containsKey(key);
+			return mtkeys.get(key);
 		}
 		
 		protected boolean containsKeyMask(short key, short level) {
-			return mscores.get(level) == null ? false : mscores.get(level).containsKey(key);
+			return get(mlkeys, key, level);
 		}
 		
 		protected boolean isAllowed(short key) {
-			return masks.contains(key);
+			return masks.get(key);
 		}
 		
 		protected boolean isAllowed(short key, short level) {
-			Set<Short> keys = mtags.get(level);
-			if (keys != null && keys.contains(key)) {
-				return true;
-			}
-			return false;
+			return get(mtags, key, level);
 		}
 		
 		protected void pruneScoreMask(PriorityQueue<Double> queue, int base, double ratio, boolean retainall) {
-			if (!retainall && mtotals.size() > base) {
-				int k = (int) (base + Math.floor(mtotals.size() * ratio));
+			int size = mtkeys.cardinality();
+			if (!retainall && size > base) {
+				int k = (int) (base + Math.floor(size * ratio));
 				double kval;
 				queue.clear();
-				Collection<Double> scores = mtotals.values();
-				for (Double d : scores) { 
-					queue.offer(d);
+				for (int key = mtkeys.nextSetBit(0); key >= 0; key = mtkeys.nextSetBit(key + 1)) { 
+					queue.offer(mtotals[key]);
 					if (queue.size() > k) { queue.poll(); }
 				}
 				kval = queue.peek(); // k-th largest value
-				for (Map.Entry<Short, Double> score : mtotals.entrySet()) {
-					if (score.getValue() >= kval) { masks.add(score.getKey()); }
+				for (int key = mtkeys.nextSetBit(0); key >= 0; key = mtkeys.nextSetBit(key + 1)) {
+					if (mtotals[key] >= kval) { masks.set(key); }
 				}
 			} else {
-				masks.addAll(mtotals.keySet());
+				masks.or(mtkeys);
 			}
 		}
 		
@@ -454,47 +547,42 @@ public class ChartCell {
 		}
 		
 		protected void addPosteriorMask(short key) {
-			masks.add(key);
+			masks.set(key);
 		}
 		
 		protected void addPosteriorMask(short key, short level) {
-			Set<Short> keys = mtags.get(level);
-			if (keys == null) {
-				keys = new HashSet<>();
-				mtags.put(level, keys);
-			}
-			keys.add(key);
+			if (mtags[level] == null) { mtags[level] = new BitSet(); }
+			mtags[level].set(key);
 		}
 		
 		protected synchronized void addScoreMask(short key, double score, short level) {
-			Map<Short, Double> lscore = mscores.get(level);
-			if (lscore == null) {
-				lscore = new HashMap<>();
-				mscores.put(level, lscore);
-			}
-			Double ascore = lscore.get(key);
-			if (ascore == null) {
-				lscore.put(key, score);
+			if (mlkeys[level] == null) { mlkeys[level] = new BitSet(); }
+			double[] lscore = mscores[level] = fit(mscores[level], key);
+			if (!mlkeys[level].get(key)) {
+				mlkeys[level].set(key);
+				lscore[key] = score;
 			} else {
-				lscore.put(key, FunUtil.logAdd(ascore, score));
+				lscore[key] = FunUtil.logAdd(lscore[key], score);
 			}
 			addScoreMask(key, score);
 		}
 		
 		private synchronized void addScoreMask(short key, double score) {
+			mtotals = fit(mtotals, key);
 			if (containsKeyMask(key)) {
-				mtotals.put(key, FunUtil.logAdd(mtotals.get(key), score));
+				mtotals[key] = FunUtil.logAdd(mtotals[key], score);
 			} else {
-				mtotals.put(key, score);
+				mtkeys.set(key);
+				mtotals[key] = score;
 			}
 		}
 		
 		protected double getScoreMask(short key, short level) {
-			return mscores.get(level) == null ? Double.NEGATIVE_INFINITY : mscores.get(level).get(key);
+			return get(mlkeys, key, level) ? mscores[level][key] : Double.NEGATIVE_INFINITY;
 		}
 		
 		protected double getScoreMask(short key) {
-			return mtotals.get(key);
+			return mtkeys.get(key) ? mtotals[key] : Double.NEGATIVE_INFINITY;
 		}
 		
 		
@@ -512,15 +600,15 @@ public class ChartCell {
 		}
 		
 		protected int size() {
-			return totals.size();
+			return tkeys.cardinality();
 		}
 		
 		protected Set<Short> keySet() {
-			return totals.keySet();
+			return tview;
 		}
 		
 		protected Set<Short> keySet(short level) {
-			return scores.get(level) == null ? null : scores.get(level).keySet();
+			return view(lkeys, lviews, level);
 		}
 		
 		protected Set<Short> keySetMaxRule(short level) {
@@ -528,26 +616,85 @@ public class ChartCell {
 		}
 		
 		protected boolean containsKey(short key) {
-			return totals.containsKey(key);
+			return tkeys.get(key);
+		}
+		
+		protected int nextKey(int from) {
+			return tkeys.nextSetBit(from);
 		}
 		
 		protected boolean containsKey(short key, short level) {
-			return scores.get(level) == null ? false : scores.get(level).containsKey(key);
+			return get(lkeys, key, level);
 		}
 		
 		protected void pruneScore() {
-			Collection<GaussianMixture> scores = totals.values();
-			for (GaussianMixture score : scores) {
-				score.delTrivia();
+			for (int key = tkeys.nextSetBit(0); key >= 0; key = tkeys.nextSetBit(key + 1)) {
+				totals[key].delTrivia();
 			}
 		}
 		
 		protected void pruneScore(short level) {
-			Map<Short, GaussianMixture> lscores = scores.get(level);
-			if (lscores != null) {
-				Collection<GaussianMixture> lscore = lscores.values();
-				for (GaussianMixture score : lscore) {
-					score.delTrivia();
+			BitSet keys = level < lkeys.length ? lkeys[level] : null;
+			if (keys != null) {
+				GaussianMixture[] lscore = scores[level];
+				for (int key = keys.nextSetBit(0); key >= 0; key = keys.nextSetBit(key + 1)) {
+					lscore[key].delTrivia();
+				}
+			}
+		}
+		
+		/**
+		 * Rank the keys by their approximate posteriors, i.e., the totals marginalized to scalars plus the outside 
+		 * estimates in logarithmic form, keep the best k of them, and drop those below the best one by more than gap.
+		 * The pinned key is neither ranked nor dropped.
+		 */
+		protected void beamScore(int k, double gap, Cell estimate, short pinned) {
+			int n = tkeys.cardinality(), i = 0;
+			if (pinned >= 0 && tkeys.get(pinned)) { n--; } // the pinned key is not ranked
+			if (n <= 1 || (n <= k && gap == Double.POSITIVE_INFINITY)) { return; }
+			boolean estimated = estimate != null && estimate.mtkeys != null && !estimate.mtkeys.isEmpty();
+			short[] keys = new short[n];
+			double[] ranks = new double[n];
+			double best = Double.NEGATIVE_INFINITY;
+			for (int key = tkeys.nextSetBit(0); key >= 0; key = tkeys.nextSetBit(key + 1)) {
+				if (key == pinned) { continue; }
+				keys[i] = (short) key;
+				ranks[i] = totals[key].marginalize(true) + (estimated ? estimate.getScoreMask((short) key) : 0);
+				if (ranks[i] > best) { best = ranks[i]; }
+				i++;
+			}
+			double bound = best - gap;
+			if (n > k) {
+				double[] sorted = ranks.clone();
+				Arrays.sort(sorted);
+				bound = Math.max(bound, sorted[n - k]);
+			}
+			int nkept = 0;
+			for (i = 0; i < n; i++) { // ties at the bound are kept in the order of the keys until k keys are kept
+				if (ranks[i] > bound) {
+					nkept++;
+				} else if (ranks[i] < bound) {
+					remove(keys[i]);
+				}
+			}
+			for (i = 0; i < n; i++) {
+				if (ranks[i] == bound) {
+					if (nkept < k) {
+						nkept++;
+					} else {
+						remove(keys[i]);
+					}
+				}
+			}
+		}
+		
+		private void remove(short key) {
+			tkeys.clear(key);
+			totals[key] = null;
+			for (short level = 0; level < lkeys.length; level++) {
+				if (lkeys[level] != null && lkeys[level].get(key)) {
+					lkeys[level].clear(key);
+					scores[level][key] = null;
 				}
 			}
 		}
@@ -602,14 +749,12 @@ public class ChartCell {
 		}
 		
 		protected synchronized void addScore(short key, GaussianMixture gm, short level) {
-			Map<Short, GaussianMixture> lscore = scores.get(level);
-			if (lscore == null) {
-				lscore = new HashMap<>();
-				scores.put(level, lscore);
-			}
-			GaussianMixture agm = lscore.get(key);
-			if (agm == null) {
-				lscore.put(key, gm);
+			if (lkeys[level] == null) { lkeys[level] = new BitSet(); }
+			GaussianMixture[] lscore = scores[level] = fit(scores[level], key);
+			GaussianMixture agm = lscore[key];
+			if (!lkeys[level].get(key)) {
+				lkeys[level].set(key);
+				lscore[key] = gm;
 			} else {
 				agm.add(gm, false);
 			}
@@ -617,6 +762,7 @@ public class ChartCell {
 		}
 		
 		private synchronized void addScore(short key, GaussianMixture gm) {
+			totals = fit(totals, key);
 			if (containsKey(key)) { 
 				// gm is passed into this method by addScore(short, GaussianMixture, short, boolean),
 				// before that it has been added into Cell.scores, and is filtered when 
@@ -625,27 +771,32 @@ public class ChartCell {
 				// cleared through the reference and further modify Cell.scores. The safe practice is
 				// copying gm and adding into Cell.totals, but that results in unnecessary memory
 				// overhead, so I choose not to clear the filtered component in GaussianMixture.add()
-				totals.get(key).add(gm, false);
+				totals[key].add(gm, false);
 				/*totals.get(key).add(gm.copy(true), prune);*/
 			} else {
 				// it should own its own memory space, so that the score in a 
 				// specific level could not be modified through the reference
-				totals.put(key, gm.copy(true));
+				tkeys.set(key);
+				totals[key] = gm.copy(true);
 			}
 		}
 		
 		protected GaussianMixture getScore(short key, short level) {
-			return scores.get(level) == null ? null : scores.get(level).get(key);
+			return get(lkeys, key, level) ? scores[level][key] : null;
 		}
 		
 		protected GaussianMixture getScore(short key) {
-			return totals.get(key);
+			return tkeys.get(key) ? totals[key] : null;
 		}
 		
 		protected void clear() {
 			status = false;
-			if (scores != null) { scores.clear(); }
-			if (totals != null) { totals.clear(); }
+			if (tkeys != null) {
+				clear(totals, tkeys);
+				for (short level = 0; level < lkeys.length; level++) {
+					if (lkeys[level] != null) { clear(scores[level], lkeys[level]); }
+				}
+			}
 			
 			if (maxRuleCnts != null) { maxRuleCnts.clear(); }
 			if (maxRuleSons != null) { maxRuleSons.clear(); }
@@ -653,10 +804,28 @@ public class ChartCell {
 			if (maxRulePos != null) { maxRulePos.clear(); }
 			if (splitPoint != null) { splitPoint.clear(); }
 			
-			if (mscores != null) { mscores.clear(); }
-			if (mtotals != null) { mtotals.clear(); }
+			if (mtkeys != null) {
+				mtkeys.clear();
+				for (BitSet keys : mlkeys) {
+					if (keys != null) { keys.clear(); }
+				}
+			}
 			if (masks != null) { masks.clear(); }
-			if (mtags != null) { mtags.clear(); }
+			if (mtags != null) {
+				for (BitSet keys : mtags) {
+					if (keys != null) { keys.clear(); }
+				}
+			}
+		}
+		
+		/**
+		 * Drop the references to the scores so that they can be collected.
+		 */
+		private static void clear(GaussianMixture[] array, BitSet keys) {
+			for (int key = keys.nextSetBit(0); key >= 0; key = keys.nextSetBit(key + 1)) {
+				array[key] = null;
+			}
+			keys.clear();
 		}
 		
 		public String toString(boolean simple, int nfirst, boolean quantity, Numberer numberer) {
@@ -664,14 +833,14 @@ public class ChartCell {
 				String name;
 				StringBuffer sb = new StringBuffer();
 				if (totals != null) {
-					sb.append("Cell [status=" + status + ", size=" + totals.size());
+					sb.append("Cell [status=" + status + ", size=" + size());
 					
-					for (Map.Entry<Short, GaussianMixture> score : totals.entrySet()) {
-						name = (String) numberer.object(score.getKey());
+					for (Short key : tview) {
+						name = (String) numberer.object(key);
 						if (quantity) {
-							sb.append(", " + name + "(nc)=" + score.getValue().ncomponent);
+							sb.append(", " + name + "(nc)=" + totals[key].ncomponent);
 						} else {
-							sb.append(", " + name + "=" + score.getValue().toString(simple, nfirst));
+							sb.append(", " + name + "=" + totals[key].toString(simple, nfirst));
 						}
 					}
 					
@@ -680,14 +849,16 @@ public class ChartCell {
 				
 				if (scores != null) {
 					sb.append("\n\n--- details in each level---\n");
-					for (Map.Entry<Short, Map<Short, GaussianMixture>> level : scores.entrySet()) {
-						sb.append("\n------>level " + level.getKey() + " ntag = " + level.getValue().size() + "\n");
-						for (Map.Entry<Short, GaussianMixture> detail : level.getValue().entrySet()) {
-							name = (String) numberer.object(detail.getKey());
+					for (short level = 0; level < NLEVEL; level++) {
+						Set<Short> keys = keySet(level);
+						if (keys == null) { continue; }
+						sb.append("\n------>level " + level + " ntag = " + keys.size() + "\n");
+						for (Short key : keys) {
+							name = (String) numberer.object(key);
 							if (quantity) {
-								sb.append("\nid=" + detail.getKey() + ", " + name + "(nc)=" + detail.getValue().ncomponent);
+								sb.append("\nid=" + key + ", " + name + "(nc)=" + scores[level][key].ncomponent);
 							} else {
-								sb.append("\nid=" + detail.getKey() + ", " + name + "=" + detail.getValue().toString(simple, nfirst));
+								sb.append("\nid=" + key + ", " + name + "=" + scores[level][key].toString(simple, nfirst));
 							}
 						}
 						sb.append("\n");
@@ -696,16 +867,16 @@ public class ChartCell {
 				
 				if (masks != null) {
 					sb.append("\n\n--- masks of this cell---\n");
-					sb.append("[size=" + masks.size());
-					for (Short tag : masks) {
+					sb.append("[size=" + masks.cardinality());
+					for (int tag = masks.nextSetBit(0); tag >= 0; tag = masks.nextSetBit(tag + 1)) {
 						sb.append(", " + tag);
 					}
 					sb.append("]");
 					if (mtotals != null) {
-						sb.append("\nScores [size=" + mtotals.size());
-						for (Map.Entry<Short, Double> score : mtotals.entrySet()) {
-							name = (String) numberer.object(score.getKey());
-							sb.append(", id=" + score.getKey() + ", " + name + "=" + score.getValue() );
+						sb.append("\nScores [size=" + mtkeys.cardinality());
+						for (Short key : mtview) {
+							name = (String) numberer.object(key);
+							sb.append(", id=" + key + ", " + name + "=" + mtotals[key]);
 						}
 						sb.append("]\n");
 					}
@@ -717,5 +888,52 @@ public class ChartCell {
 			}
 		}
 	}
+	
+	
+	/**
+	 * A live and read-only view of the tags in a bit set, in ascending order.
+	 */
+	protected static class TagSet extends AbstractSet<Short> {
+		private final BitSet keys;
+		
+		protected TagSet(BitSet keys) {
+			this.keys = keys;
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof Short) && (Short) o >= 0 && keys.get((Short) o);
+		}
+		
+		@Override
+		public int size() {
+			return keys.cardinality();
+		}
+		
+		@Override
+		public boolean isEmpty() {
+			return keys.isEmpty();
+		}
+		
+		@Override
+		public Iterator<Short> iterator() {
+			return new Iterator<Short>() {
+				private int next = keys.nextSetBit(0);
+				
+				@Override
+				public boolean hasNext() {
+					return next >= 0;
+				}
+				
+				@Override
+				public Short next() {
+					if (next < 0) { throw new NoSuchElementException(); }
+					short key = (short) next;
+					next = keys.nextSetBit(next + 1);
+					return key;
+				}
+			};
+		}
+	}
 
 }
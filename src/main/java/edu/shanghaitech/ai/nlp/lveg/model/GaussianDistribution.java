@@ -1,5 +1,9 @@
 package edu.shanghaitech.ai.nlp.lveg.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -7,9 +11,10 @@ import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 import edu.shanghaitech.ai.nlp.lveg.LVeGTrainer;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
 import edu.shanghaitech.ai.nlp.util.FunUtil;
-import edu.shanghaitech.ai.nlp.util.ObjectPool;
 import edu.shanghaitech.ai.nlp.util.Recorder;
+import edu.shanghaitech.ai.nlp.util.SlabPool;
 
 /**
  * Gaussian distribution. We may define diagonal or general Gaussian distribution. Different 
@@ -36,16 +41,30 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	 * form, and the real variances (for the diagonal) should be read 
 	 * as Math.exp(2 * variances), and standard variance is Math.exp(
 	 * variances).
+	 * 
+	 * Both are backed by primitive arrays so that the kernels (eval, integral, 
+	 * derivative, etc.) do not need to unbox the parameters.
+	 */
+	protected DoubleArrayList vars;
+	protected DoubleArrayList mus;
+	/**
+	 * The serialized form is still the one of List&lt;Double&gt; parameters, so that the grammars 
+	 * serialized before the primitive arrays can be read, and vice versa.
 	 */
-	protected List<Double> vars;
-	protected List<Double> mus;
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("id", char.class),
+		new ObjectStreamField("dim", short.class),
+		new ObjectStreamField("key", short.class),
+		new ObjectStreamField("vars", List.class),
+		new ObjectStreamField("mus", List.class),
+	};
 	
 	protected static double defMaxMu;
 	protected static double defMaxVar;
 	protected static double defNegMRatio;
 	protected static double defNegVRatio;
 	protected static short defNdimension;
-	protected static ObjectPool<Short, GaussianDistribution> defObjectPool;
+	protected static SlabPool<GaussianDistribution> defObjectPool;
 	protected static Random defRnd;
 	
 	
@@ -53,8 +72,8 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 		this.id = 0;
 		this.key = -2;
 		this.dim = ndimension;
-		this.mus = new ArrayList<>(dim);
-		this.vars = new ArrayList<>(1);
+		this.mus = new DoubleArrayList(dim);
+		this.vars = new DoubleArrayList(1);
 	}
 	
 	
@@ -69,7 +88,7 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	 * 
 	 */
 	public static void config(double maxmu , double maxvar, short ndimension, double negmratio, 
-			double negvratio, Random rnd, ObjectPool<Short, GaussianDistribution> pool) {
+			double negvratio, Random rnd, SlabPool<GaussianDistribution> pool) {
 		defRnd = rnd;
 		defMaxMu = maxmu;
 		defMaxVar = maxvar;
@@ -80,15 +99,26 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	}
 	
 	
+	/**
+	 * The objects from the pool (key &gt;= -1) are released in bulk by {@link #releaseObjects()}.
+	 */
 	public static void returnObject(GaussianDistribution obj) {
-		if (obj.key >= -1) {
-			defObjectPool.returnObject(obj.key, obj);
-		} else {
+		if (obj.key < -1) {
 			obj.clear();
 		}
 	}
 	
 	
+	/**
+	 * Release all the gaussians borrowed by the calling thread, see {@link SlabPool#reset()}.
+	 */
+	public static void releaseObjects() {
+		if (defObjectPool != null) {
+			defObjectPool.reset();
+		}
+	}
+	
+	
 	/**
 	 * Make a copy of the instance.
 	 * 
@@ -106,9 +136,10 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	public void copy(GaussianDistribution des) {
 		des.id = id;
 		des.dim = dim;
-		des.vars.add(vars.get(0));
+		des.vars.addDouble(vars.getDouble(0));
+		double[] amus = mus.elements();
 		for (int i = 0; i < dim; i++) {
-			des.mus.add(mus.get(i));
+			des.mus.addDouble(amus[i]);
 		}
 	}
 	
@@ -129,23 +160,32 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	 */
 	protected List<Double> normalize(List<Double> sample) {
 		List<Double> list = new ArrayList<>();
-		double var = vars.get(0);
+		double[] amus = mus.elements();
+		double std = Math.exp(vars.getDouble(0));
 		for (int i = 0; i < dim; i++) {
-			list.add((sample.get(i) - mus.get(i)) / Math.exp(var));
+			list.add((sample.get(i) - amus[i]) / std);
 		}
 		return list;
 	}
 	
 	
-	public void derivative(boolean cumulative, double factor, List<Double> grads, List<List<Double>> caches) {}
-	public void derivative(boolean cumulative, List<Double> grads, List<Double> gradst, List<Double> gradss, double scoreT, double scoreS) {}
+	/**
+	 * Gradients are laid out as [mu_0, var_0, ..., mu_{d-1}, var_{d-1}, var], see {@link #update(List)}.
+	 * 
+	 * @param cumulative accumulate the gradients (true) or not (false)
+	 * @param factor     weight of the gradients
+	 * @param grads      gradients container
+	 * @param caches     integrals computed by {@link #integral(GaussianDistribution, List)}
+	 */
+	public void derivative(boolean cumulative, double factor, DoubleArrayList grads, List<DoubleArrayList> caches) {}
+	public void derivative(boolean cumulative, DoubleArrayList grads, DoubleArrayList gradst, DoubleArrayList gradss, double scoreT, double scoreS) {}
 	
 	
 	/**
 	 * @param gd    a gaussian as a multiplier
 	 * @param cache integrals
 	 */
-	public double integral(GaussianDistribution gd, List<List<Double>> cache) { return Double.NEGATIVE_INFINITY; }
+	public double integral(GaussianDistribution gd, List<DoubleArrayList> cache) { return Double.NEGATIVE_INFINITY; }
 	
 	
 	/**
@@ -177,13 +217,14 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	 * @param rnd   random
 	 */
 	protected void sample(List<Double> slice, List<Double> truth, Random rnd) {
-		double real, norm, var = vars.get(0);
+		double real, norm, std = Math.exp(vars.getDouble(0));
+		double[] amus = mus.elements();
 		slice.clear();
 		truth.clear();
 		for (int i = 0; i < dim; i++) {
 			norm = defRnd.nextGaussian();
 //			norm = ThreadLocalRandom.current().nextGaussian();
-			real = norm * Math.exp(var) + mus.get(i);
+			real = norm * std + amus[i];
 			slice.add(norm);
 			truth.add(real);
 		}
@@ -198,11 +239,12 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	 */
 	protected void restoreSample(List<Double> sample, List<Double> truth) {
 		assert(sample.size() == dim);
-		double real, var = vars.get(0);
+		double real, std = Math.exp(vars.getDouble(0));
+		double[] amus = mus.elements();
 		truth.clear();
 		for (int i = 0; i < dim; i++) {
 			// CHECK std = Math.exp(var)
-			real = sample.get(i) * Math.exp(var) + mus.get(i);
+			real = sample.get(i) * std + amus[i];
 			truth.add(real);
 		}
 	}
@@ -218,21 +260,28 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 //			logger.warn("No need to update because no gradients could be applied.");
 			return; 
 		}
-		double mu, var = vars.get(0);
+		double[] amus = mus.elements();
+		if (grads instanceof DoubleArrayList) {
+			double[] agrads = ((DoubleArrayList) grads).elements();
+			for (int i = 0; i < dim; i++) {
+				amus[i] += agrads[i * 2];
+			}
+			vars.increment(0, agrads[dim * 2]); // gradient is stored as the last item
+			return;
+		}
 		for (int i = 0; i < dim; i++) {
-			mu = mus.get(i) + grads.get(i * 2);
-			mus.set(i, mu);
+			amus[i] += grads.get(i * 2);
 		}
-		var = vars.get(0) + grads.get(dim * 2); // gradient is stored as the last item
-		vars.set(0, var);
+		vars.increment(0, grads.get(dim * 2)); // gradient is stored as the last item
 	}
 	
 	
 	protected void disturbParams(double delta) {
+		double[] amus = mus.elements();
 		for (int i = 0; i < dim; i++) {
-			mus.set(i, mus.get(i) + delta);
+			amus[i] += delta;
 		}
-		vars.set(0, vars.get(0) + delta);
+		vars.increment(0, delta);
 	}
 	
 	
@@ -251,8 +300,15 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	}
 
 
+	/**
+	 * @param vars shared if it is primitive-backed, otherwise copied
+	 */
 	public void setVars(List<Double> vars) {
-		this.vars = vars;
+		if (vars == null || vars instanceof DoubleArrayList) {
+			this.vars = (DoubleArrayList) vars;
+		} else {
+			this.vars = new DoubleArrayList(vars);
+		}
 	}
 
 
@@ -261,8 +317,33 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	}
 
 
+	/**
+	 * @param mus shared if it is primitive-backed, otherwise copied
+	 */
 	public void setMus(List<Double> mus) {
-		this.mus = mus;
+		if (mus == null || mus instanceof DoubleArrayList) {
+			this.mus = (DoubleArrayList) mus;
+		} else {
+			this.mus = new DoubleArrayList(mus);
+		}
+	}
+	
+	
+	/**
+	 * The primitive view of the means, only the first {@link #getDim()} values are valid.
+	 * 
+	 * @return the backing array of the means
+	 */
+	public double[] getMuArray() {
+		return mus.elements();
+	}
+	
+	
+	/**
+	 * @return logarithmic standard deviation
+	 */
+	public double getVar() {
+		return vars.getDouble(0);
 	}
 	
 	
@@ -303,6 +384,30 @@ public abstract class GaussianDistribution extends Recorder implements Comparabl
 	}
 	
 	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("id", id);
+		fields.put("dim", dim);
+		fields.put("key", key);
+		fields.put("vars", vars == null ? null : new ArrayList<>(vars));
+		fields.put("mus", mus == null ? null : new ArrayList<>(mus));
+		out.writeFields();
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		id = fields.get("id", (char) 0);
+		dim = fields.get("dim", (short) 0);
+		key = fields.get("key", (short) -2);
+		List<Double> list = (List<Double>) fields.get("vars", null);
+		vars = list == null ? null : new DoubleArrayList(list);
+		list = (List<Double>) fields.get("mus", null);
+		mus = list == null ? null : new DoubleArrayList(list);
+	}
+	
+	
 	@Override
 	public int hashCode() {
 		return dim ^ mus.hashCode() ^ vars.hashCode();
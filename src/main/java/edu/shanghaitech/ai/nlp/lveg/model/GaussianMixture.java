@@ -16,9 +16,10 @@ import java.util.Set;
 import edu.shanghaitech.ai.nlp.lveg.LVeGTrainer;
 import edu.shanghaitech.ai.nlp.lveg.LearnerConfig.Params;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
 import edu.shanghaitech.ai.nlp.util.FunUtil;
-import edu.shanghaitech.ai.nlp.util.ObjectPool;
 import edu.shanghaitech.ai.nlp.util.Recorder;
+import edu.shanghaitech.ai.nlp.util.SlabPool;
 
 /**
  * 
@@ -43,7 +44,7 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	protected static double defNegWRatio;
 	protected static double defRiseRate;
 	protected static boolean defHardCut;
-	protected static ObjectPool<Short, GaussianMixture> defObjectPool;
+	protected static SlabPool<GaussianMixture> defObjectPool;
 	protected static Random defRnd;
 	
 	/**
@@ -75,7 +76,7 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * 
 	 */
 	public static void config(short maxnbig, double expzero, double maxmw, short ncomponent, double negwratio, 
-			double riserate, double retainratio, boolean hardcut, Random rnd, ObjectPool<Short, GaussianMixture> pool) {
+			double riserate, double retainratio, boolean hardcut, Random rnd, SlabPool<GaussianMixture> pool) {
 		EXP_ZERO = Math.log(expzero);
 		defMaxNbig = maxnbig;
 		defRnd = rnd;
@@ -89,38 +90,34 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	}
 	
 	
+	/**
+	 * The objects from the pool (key &gt;= -1) are released in bulk by {@link #releaseObjects()}.
+	 */
 	public static void returnObject(GaussianMixture obj) {
-		if (obj.key >= -1) {
-			defObjectPool.returnObject(obj.key, obj);
-		} else {
+		if (obj.key < -1) {
 			obj.clear();
 		}
 	}
 	
 	
+	/**
+	 * Release all the MoGs borrowed by the calling thread, see {@link SlabPool#reset()}.
+	 */
+	public static void releaseObjects() {
+		if (defObjectPool != null) {
+			defObjectPool.reset();
+		}
+	}
+	
+	
 	/**
 	 * Remove the trivial components.
 	 */
 	public void delTrivia() {
 		if (ncomponent <= 1) { return; }
 		PriorityQueue<Component> sorted = sort();
-		if (defMaxNbig > 0 && (defHardCut || defRetainRatio > 0 || defRiseRate > 0)) {
-			int base = 0;
-			if (defHardCut) {
-				base = defMaxNbig;
-			} else if (defRetainRatio > 0) {
-				base = sorted.size();
-				base = base > defMaxNbig ? (defMaxNbig + (int) (defRetainRatio * base)) : defMaxNbig;
-			} else {
-				base = sorted.size();
-				if (base < defMaxNbig + 1) {
-					base = 0;
-				} else {
-					base = (int) Math.floor(Math.pow(base, LVeGTrainer.squeezeexp));
-				}
-				base = base + defMaxNbig;
-				base = base > 50 ? 50 : base; // hard coding for debugging
-			}
+		int base = nbig(sorted.size());
+		if (base >= 0) {
 			components.clear();
 			if (sorted.size() > base) {
 				while (!sorted.isEmpty()) {
@@ -134,7 +131,7 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 		} else {
 			double maxw = sorted.peek().weight;
 			for (Component comp : components) {
-				if (comp.weight > LOG_ZERO && (comp.weight - maxw) > EXP_ZERO) { 
+				if (!isTrivial(comp.weight, maxw)) { 
 					continue; 
 				}
 				sorted.remove(comp);
@@ -146,6 +143,44 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	}
 	
 	
+	/**
+	 * @param size # of the components before pruning
+	 * @return     # of the components to be retained, or -1 if the components are pruned by their relative weights
+	 */
+	protected static int nbig(int size) {
+		if (defMaxNbig > 0 && (defHardCut || defRetainRatio > 0 || defRiseRate > 0)) {
+			int base = 0;
+			if (defHardCut) {
+				base = defMaxNbig;
+			} else if (defRetainRatio > 0) {
+				base = size;
+				base = base > defMaxNbig ? (defMaxNbig + (int) (defRetainRatio * base)) : defMaxNbig;
+			} else {
+				base = size;
+				if (base < defMaxNbig + 1) {
+					base = 0;
+				} else {
+					base = (int) Math.floor(Math.pow(base, LVeGTrainer.squeezeexp));
+				}
+				base = base + defMaxNbig;
+				base = base > 50 ? 50 : base; // hard coding for debugging
+			}
+			return base;
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * @param weight mixing weight of the component
+	 * @param maxw   the largest mixing weight in the mixture
+	 * @return       whether the component is negligible
+	 */
+	protected static boolean isTrivial(double weight, double maxw) {
+		return !(weight > LOG_ZERO && (weight - maxw) > EXP_ZERO);
+	}
+	
+	
 	/**
 	 * @return the sorted components by the mixing weight in case when you have modified the mixing weights of some components.
 	 */
@@ -472,6 +507,30 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	}
 	
 	
+	/**
+	 * Multiply the specific portion of the component by the given mixture and marginalize the portion. 
+	 * Nothing is created or modified, the caller is responsible for adding the return value to the 
+	 * mixing weight and dropping the portion, see {@link MixtureAccumulator}.
+	 * 
+	 * @param iComponent index of the component
+	 * @param key        which denotes the portion, to be marginalized, of the component
+	 * @param gm         mixture of gaussians that needs to be marginalized
+	 * @return           logarithm of the marginal, or 0 if the component does not have the portion
+	 */
+	public double mulAndMarginalize(int iComponent, RuleUnit key, GaussianMixture gm) {
+		GaussianDistribution gd = components.get(iComponent).squeeze(key);
+		// w(ROOT->X) has no P portion in computing outside score
+		if (gd == null) { return 0; }
+		double logsum = Double.NEGATIVE_INFINITY;
+		for (Component comp1 : gm.components) {
+			GaussianDistribution gd1 = comp1.squeeze(null);
+			double logcomp = comp1.weight + gd.mulAndMarginalize(gd1);
+			logsum = FunUtil.logAdd(logsum, logcomp);
+		}
+		return logsum;
+	}
+	
+	
 	/**
 	 * Multiply this MoG by the given mixtures of gaussians.
 	 * This will create a new instance of MoG.
@@ -791,7 +850,7 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param normal     whether the sample is from N(0, 1) (true) or not (false)
 	 */
 	public void derivative(boolean cumulative, int iComponent, double factor, 
-			EnumMap<RuleUnit, List<Double>> sample, EnumMap<RuleUnit, List<Double>> ggrads, List<Double> wgrads, boolean normal) {
+			EnumMap<RuleUnit, List<Double>> sample, EnumMap<RuleUnit, ? extends List<Double>> ggrads, List<Double> wgrads, boolean normal) {
 		if (!cumulative && iComponent == 0) { // CHECK stupid if...else...
 			wgrads.clear();
 			for (int i = 0; i < ncomponent; i++) {
@@ -819,9 +878,9 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * Derivative w.r.t. mixing weight & mu & sigma.
 	 */
 	public void derivative(boolean cumulative, int iComponent, double scoreT, double scoreS, 
-			EnumMap<RuleUnit, List<Double>> gradst, EnumMap<RuleUnit, List<Double>> gradss, EnumMap<RuleUnit, List<Double>> grads, 
+			EnumMap<RuleUnit, DoubleArrayList> gradst, EnumMap<RuleUnit, DoubleArrayList> gradss, EnumMap<RuleUnit, DoubleArrayList> grads, 
 			List<Double> wgrads, List<EnumMap<RuleUnit, GaussianMixture>> cntsWithT, List<EnumMap<RuleUnit, GaussianMixture>> cntsWithS, 
-			List<EnumMap<RuleUnit, List<List<Double>>>> cachesWithT, List<EnumMap<RuleUnit, List<List<Double>>>> cachesWithS) {
+			List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachesWithT, List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachesWithS) {
 		if (!cumulative && iComponent == 0) { // CHECK stupid if...else..., wgrads is used by all components.
 			wgrads.clear();
 			for (int i = 0; i < ncomponent; i++) {
@@ -862,13 +921,13 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param caches see {@link #computeCaches(Component, List, List)}
 	 * @return
 	 */
-	protected boolean derivative(EnumMap<RuleUnit, List<Double>> ggrads, Component comp, 
-			List<EnumMap<RuleUnit, GaussianMixture>> counts, List<EnumMap<RuleUnit, List<List<Double>>>> caches) {
+	protected boolean derivative(EnumMap<RuleUnit, DoubleArrayList> ggrads, Component comp, 
+			List<EnumMap<RuleUnit, GaussianMixture>> counts, List<EnumMap<RuleUnit, List<DoubleArrayList>>> caches) {
 		if (counts == null) { return false; }
 		for (Entry<RuleUnit, Set<GaussianDistribution>> node : comp.multivnd.entrySet()) { // head variable or tail variable
 			RuleUnit key = node.getKey();
 			for (int i = 0; i < counts.size(); i++) { // every occurrence
-				EnumMap<RuleUnit, List<List<Double>>> cache = caches.get(i); // tail portion is constant if the node is head variable, vice versus 
+				EnumMap<RuleUnit, List<DoubleArrayList>> cache = caches.get(i); // tail portion is constant if the node is head variable, vice versus 
 				double factor = Math.exp(factorButKey(key, cache) + comp.weight); // pay attention to ...
 				for (GaussianDistribution gd : node.getValue()) {
 					boolean cumulative = (i> 0);
@@ -893,12 +952,12 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param grads      which holds gradients of mu & sigma
 	 */
 	protected void derivative(Component comp, boolean cumulative, boolean zeroflagt, boolean zeroflags, double scoreT, double scoreS,
-			EnumMap<RuleUnit, List<Double>> gradst, EnumMap<RuleUnit, List<Double>> gradss, EnumMap<RuleUnit, List<Double>> grads) {
+			EnumMap<RuleUnit, DoubleArrayList> gradst, EnumMap<RuleUnit, DoubleArrayList> gradss, EnumMap<RuleUnit, DoubleArrayList> grads) {
 		if (!(zeroflagt || zeroflags)) { logger.error("There must be something wrong.\n"); }
 		for (Entry<RuleUnit, Set<GaussianDistribution>> node : comp.multivnd.entrySet()) {
-			List<Double> agrads = grads.get(node.getKey());
-			List<Double> agradst = zeroflagt ? gradst.get(node.getKey()) : null;
-			List<Double> agradss = zeroflags ? gradss.get(node.getKey()) : null;
+			DoubleArrayList agrads = grads.get(node.getKey());
+			DoubleArrayList agradst = zeroflagt ? gradst.get(node.getKey()) : null;
+			DoubleArrayList agradss = zeroflags ? gradss.get(node.getKey()) : null;
 			for (GaussianDistribution gd : node.getValue()) {
 				gd.derivative(cumulative, agrads, agradst, agradss, scoreT, scoreS);
 				break;
@@ -915,12 +974,12 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param caches see {@link #computeCaches(Component, List, List)} and {@link #integral(GaussianDistribution, GaussianMixture, List)}
 	 * @return       in logarithmic
 	 */
-	protected double factorButKey(RuleUnit key, EnumMap<RuleUnit, List<List<Double>>> caches) {
+	protected double factorButKey(RuleUnit key, EnumMap<RuleUnit, List<DoubleArrayList>> caches) {
 		double factor = 0;
-		for (Entry<RuleUnit, List<List<Double>>> cache : caches.entrySet()) {
+		for (Entry<RuleUnit, List<DoubleArrayList>> cache : caches.entrySet()) {
 			if (!key.equals(cache.getKey())) {
-				List<Double> values = cache.getValue().get(0);
-				factor += values.get(values.size() - 1); // the last item in the first row is what we need
+				DoubleArrayList values = cache.getValue().get(0);
+				factor += values.lastDouble(); // the last item in the first row is what we need
 			}
 		}
 		return factor; // in logarithmic form
@@ -935,17 +994,17 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param caches integrals holder 
 	 * @return       in logarithmic form
 	 */
-	protected double computeCaches(Component comp, List<EnumMap<RuleUnit, GaussianMixture>> counts, List<EnumMap<RuleUnit, List<List<Double>>>> caches) {
+	protected double computeCaches(Component comp, List<EnumMap<RuleUnit, GaussianMixture>> counts, List<EnumMap<RuleUnit, List<DoubleArrayList>>> caches) {
 		if (counts == null) { return Double.NEGATIVE_INFINITY; }
 		double values = Double.NEGATIVE_INFINITY;
 		for (int i = 0; i < counts.size(); i++) {
 			double value = 0.0, vtmp = 0.0;
 			EnumMap<RuleUnit, GaussianMixture> count = counts.get(i);
-			EnumMap<RuleUnit, List<List<Double>>> cache = caches.get(i);
+			EnumMap<RuleUnit, List<DoubleArrayList>> cache = caches.get(i);
 			for (Entry<RuleUnit, Set<GaussianDistribution>> node : comp.multivnd.entrySet()) {
 				vtmp = 0;
 				GaussianMixture ios = count.get(node.getKey());
-				List<List<Double>> space = cache.get(node.getKey());
+				List<DoubleArrayList> space = cache.get(node.getKey());
 				for (GaussianDistribution gd : node.getValue()) {
 					vtmp = integral(gd, ios, space); // outside score & head variable or inside score & tail variable
 					break; // only loop once, in fact, this break is not necessary
@@ -967,32 +1026,32 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param cache memory space
 	 * @return      integrals in logarithmic form, I will give an example
 	 */
-	protected double integral(GaussianDistribution gd, GaussianMixture gm, List<List<Double>> cache) {
+	protected double integral(GaussianDistribution gd, GaussianMixture gm, List<DoubleArrayList> cache) {
 		double value = Double.NEGATIVE_INFINITY, vtmp;
-		List<Double> weights = cache.get(cache.size() - 1);
+		DoubleArrayList weights = cache.get(cache.size() - 1);
 		for (Component comp : gm.components) {
-			weights.add(comp.weight);
+			weights.addDouble(comp.weight);
 			GaussianDistribution ios = comp.squeeze(null);
 			vtmp = gd.integral(ios, cache);
 			vtmp += comp.weight; // integral contributed by one component
 			value = FunUtil.logAdd(value, vtmp);
 		}
-		List<Double> sumvals = cache.get(0); // the last item in the first row
-		sumvals.add(value); // sum of integrals from the current portion, in logarithmic form
+		DoubleArrayList sumvals = cache.get(0); // the last item in the first row
+		sumvals.addDouble(value); // sum of integrals from the current portion, in logarithmic form
 		return value;
 	}
 	
 	
 	protected void allocateMemory(List<EnumMap<RuleUnit, GaussianMixture>> cntsWithT, List<EnumMap<RuleUnit, GaussianMixture>> cntsWithS, 
-			List<EnumMap<RuleUnit, List<List<Double>>>> cachesWithT, List<EnumMap<RuleUnit, List<List<Double>>>> cachesWithS) {
+			List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachesWithT, List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachesWithS) {
 		int delta = -1;
 		if (cntsWithT != null && (delta = cntsWithT.size() - cachesWithT.size()) > 0) {
-			List<EnumMap<RuleUnit, List<List<Double>>>> wantage = cachelike(0, delta, 50);
+			List<EnumMap<RuleUnit, List<DoubleArrayList>>> wantage = cachelike(0, delta, 50);
 			cachesWithT.addAll(wantage);
 		}
 		delta = -1;
 		if (cntsWithS != null && (delta = cntsWithS.size() - cachesWithS.size()) > 0) {
-			List<EnumMap<RuleUnit, List<List<Double>>>> wantage = cachelike(0, delta, 50);
+			List<EnumMap<RuleUnit, List<DoubleArrayList>>> wantage = cachelike(0, delta, 50);
 			cachesWithS.addAll(wantage);
 		}
 	}
@@ -1006,7 +1065,7 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param wgrads     gradients of the mixing weights of MoG
 	 * @param minexp     minimum exponent representing the exponential mixing weight
 	 */
-	public void update(int iComponent, EnumMap<RuleUnit, List<Double>> ggrads, List<Double> wgrads, double minexp) {
+	public void update(int iComponent, EnumMap<RuleUnit, ? extends List<Double>> ggrads, List<Double> wgrads, double minexp) {
 		Component comp = components.get(iComponent);
 		for (Entry<RuleUnit, Set<GaussianDistribution>> gaussian : comp.multivnd.entrySet()) {
 			List<Double> grads = ggrads.get(gaussian.getKey());
@@ -1025,18 +1084,16 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param pad pad the allocated memory (true) or not (false)
 	 * @return gradients holder
 	 */
-	public List<EnumMap<RuleUnit, List<Double>>> zeroslike(boolean pad) {
-		List<EnumMap<RuleUnit, List<Double>>> grads = new ArrayList<>(ncomponent);
+	public List<EnumMap<RuleUnit, DoubleArrayList>> zeroslike(boolean pad) {
+		List<EnumMap<RuleUnit, DoubleArrayList>> grads = new ArrayList<>(ncomponent);
 		for (Component comp : components) {
-			EnumMap<RuleUnit, List<Double>> gcomp = new EnumMap<>(RuleUnit.class);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = new EnumMap<>(RuleUnit.class);
 			for (Entry<RuleUnit, Set<GaussianDistribution>> gaussian : comp.multivnd.entrySet()) {
 				if (gaussian.getValue().size() > 1) { logger.error("Invalid rule weight.\n"); }
 				for (GaussianDistribution gd : gaussian.getValue()) {
-					List<Double> grad = new ArrayList<>(gd.dim * 2 + 1);
+					DoubleArrayList grad = new DoubleArrayList(gd.dim * 2 + 1);
 					if (pad) {
-						for (int i = 0; i < gd.dim * 2 + 1; i++) {
-							grad.add(0.0); // preallocate memo
-						}
+						grad.zeros(gd.dim * 2 + 1); // preallocate memo
 					}
 					gcomp.put(gaussian.getKey(), grad);
 				}
@@ -1077,16 +1134,16 @@ public abstract class GaussianMixture extends Recorder implements Serializable {
 	 * @param iComponent 0 by default, since all components have the same portions.
 	 * @return caches holder
 	 */
-	public List<EnumMap<RuleUnit, List<List<Double>>>> cachelike(int iComponent, int ncnt, int capacity) {
+	public List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachelike(int iComponent, int ncnt, int capacity) {
 		Component comp = components.get(iComponent);
-		List<EnumMap<RuleUnit, List<List<Double>>>> caches = new ArrayList<>(ncnt);
+		List<EnumMap<RuleUnit, List<DoubleArrayList>>> caches = new ArrayList<>(ncnt);
 		for (int i = 0; i < ncnt; i++) {
-			EnumMap<RuleUnit, List<List<Double>>> cache = new EnumMap<>(RuleUnit.class);
+			EnumMap<RuleUnit, List<DoubleArrayList>> cache = new EnumMap<>(RuleUnit.class);
 			for (Entry<RuleUnit, Set<GaussianDistribution>> gaussian : comp.multivnd.entrySet()) {
 				int size = 3 * comp.squeeze(gaussian.getKey()).dim + 1;
-				List<List<Double>> comps = new ArrayList<>(size); // nn * d, xnn * d, xxnn * d, w
+				List<DoubleArrayList> comps = new ArrayList<>(size); // nn * d, xnn * d, xxnn * d, w
 				for (int j = 0; j < size; j++) {
-					comps.add(new ArrayList<>(capacity));
+					comps.add(new DoubleArrayList(capacity));
 				}
 				cache.put(gaussian.getKey(), comps);
 			}
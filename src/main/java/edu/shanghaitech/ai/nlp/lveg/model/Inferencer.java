@@ -2,24 +2,20 @@ package edu.shanghaitech.ai.nlp.lveg.model;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 import edu.berkeley.nlp.syntax.Tree;
 import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
 import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianMixture;
 import edu.shanghaitech.ai.nlp.lveg.impl.UnaryGrammarRule;
-import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Cell;
 import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
 import edu.shanghaitech.ai.nlp.syntax.State;
-import edu.shanghaitech.ai.nlp.util.Executor;
 import edu.shanghaitech.ai.nlp.util.Recorder;
-import edu.shanghaitech.ai.nlp.util.ThreadPool;
 
 public abstract class Inferencer extends Recorder implements Serializable {
 	/**
@@ -33,6 +29,52 @@ public abstract class Inferencer extends Recorder implements Serializable {
 	public static LVeGLexicon lexicon;
 	public static LVeGGrammar grammar;
 	
+	// budgets of the per-cell beam, -1 means unlimited, see {@link Chart#beamInsideScore(int, int, double, short)}
+	protected static int lexbeam = -1;
+	protected static int phrbeam = -1;
+	protected static double beamgap = Double.POSITIVE_INFINITY;
+	
+	// scratch space of the inside/outside passes, one per thread
+	protected static final ThreadLocal<MixtureAccumulator> accumulator = new ThreadLocal<MixtureAccumulator>() {
+		@Override
+		protected MixtureAccumulator initialValue() {
+			return new MixtureAccumulator();
+		}
+	};
+	protected static final ThreadLocal<Matches> matches = new ThreadLocal<Matches>() {
+		@Override
+		protected Matches initialValue() {
+			return new Matches();
+		}
+	};
+	
+	
+	/**
+	 * @param lexbeam maximum # of the tags kept in a lexical cell, -1 means unlimited
+	 * @param phrbeam maximum # of the tags kept in a phrasal cell, -1 means unlimited
+	 * @param beamgap the tags ranked below the best one of the cell by more than beamgap (in logarithmic form) are dropped
+	 */
+	public static void config(int lexbeam, int phrbeam, double beamgap) {
+		Inferencer.lexbeam = lexbeam;
+		Inferencer.phrbeam = phrbeam;
+		Inferencer.beamgap = beamgap;
+	}
+	
+	
+	/**
+	 * @return whether the per-cell beam is enabled, i.e., whether the outside estimates of the cells are needed
+	 */
+	protected static boolean beamed() {
+		return lexbeam > 0 || phrbeam > 0 || beamgap < Double.POSITIVE_INFINITY;
+	}
+	
+	
+	private static void beam(Chart chart, int idx, int k) {
+		if (k > 0 || beamgap < Double.POSITIVE_INFINITY) {
+			chart.beamInsideScore(idx, k > 0 ? k : Integer.MAX_VALUE, beamgap, idx == 0 ? ROOT : -1);
+		}
+	}
+	
 	
 	/**
 	 * Accumulate gradients.
@@ -47,187 +89,152 @@ public abstract class Inferencer extends Recorder implements Serializable {
 	
 	
 	/**
-	 * Compute the inside score given the sentence and grammar rules, parallel version.
-	 * <p>
-	 * TODO need to update it to be consistent with the serial version
+	 * @return whether the counts, which refer to the scores in the chart, of the calling thread are still held by the optimizers
+	 */
+	public boolean isPending() {
+		return grammar.isPending() || lexicon.isPending();
+	}
+	
+	
+	private static void nonempty(Chart chart, boolean inside, int idx, short level, List<GrammarRule> rules) {
+		if (chart.keySet(idx, inside, level) == null) {
+			if (inside) {
+				for (GrammarRule rule : rules) {
+					chart.addInsideScore(rule.lhs, idx, rule.getWeight().copy(true), level);
+					chart.addPosteriorMask(rule.lhs, idx);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Compute the inside score given the sentence and grammar rules.
 	 * 
 	 * @param chart [in/out]-side score container
 	 * @param tree  in which only the sentence is used
 	 * @param nword # of words in the sentence
 	 */
-	public static void insideScore(Chart chart, List<State> sentence, int nword, boolean prune, ThreadPool cpool) {
-		Map<GrammarRule, GrammarRule> bRuleMap = grammar.getBRuleMap();
+	public static void insideScore(Chart chart, List<State> sentence, List<State> goldentag, int nword, boolean prune, boolean usemask, boolean iomask) {
 		for (int i = 0; i < nword; i++) {
-			int iCell = Chart.idx(i, nword);
-			List<GrammarRule> rules = lexicon.getRulesWithWord(sentence.get(i));
-			// preterminals
-			for (GrammarRule rule : rules) {
-				chart.addInsideScore(rule.lhs, iCell, rule.getWeight().copy(true), (short) 0);
-			}
-			if (prune) { chart.pruneInsideScore(iCell, (short) 0); }
-			insideScoreForUnaryRule(chart, iCell, prune, false, false);
-			if (prune) { chart.pruneInsideScore(iCell, (short) -1); }
+			insideScoreForWord(chart, sentence, goldentag, i, nword, prune, usemask, iomask, true);
 		}		
 		
 		// inside score
 		for (int ilayer = 1; ilayer < nword; ilayer++) {
 			for (int left = 0; left < nword - ilayer; left++) {
-				int c2 = Chart.idx(left, nword - ilayer);
-				Cell cell = chart.get(c2, true); 
-				
-				// binary grammar rules
-				for (Map.Entry<GrammarRule, GrammarRule> rmap : bRuleMap.entrySet()) {
-					InputToSubCYKer input = new InputToSubCYKer(ilayer, left, nword, cell, chart, rmap.getValue(), true);
-					cpool.execute(input);
-					while (cpool.hasNext()) {
-						cpool.getNext();
-					}
-				}
-				while (!cpool.isDone()) {
-					while (cpool.hasNext()) {
-						cpool.getNext();
-					}
-				}
-				if (prune) { chart.pruneInsideScore(c2, (short) 0); }
-				insideScoreForUnaryRule(chart, c2, prune, false, false);
-				if (prune) { chart.pruneInsideScore(c2, (short) -1); }
+				insideScoreForCell(chart, left, ilayer, nword, prune, usemask, iomask, true);
 			}
 		}
 	}
 	
 	
 	/**
-	 * Compute the outside score given the sentence and grammar rules, parallel version.
-	 * <p>
-	 * TODO need to update it to be consistent with the serial version
+	 * Compute the inside score of the cell spanning the i-th word.
 	 * 
-	 * @param chart [in/out]-side score container
-	 * @param tree  in which only the sentence is used.
-	 * @param nword # of words in the sentence
+	 * @param pooled whether the scores can be borrowed from the slabs of the calling thread, see {@link MixtureAccumulator#flush(boolean)}
 	 */
-	public static void outsideScore(Chart chart, List<State> sentence, int nword, boolean prune, ThreadPool cpool) {
-		Map<GrammarRule, GrammarRule> bRuleMap = grammar.getBRuleMap();
-		for (int ilayer = nword - 1; ilayer >= 0; ilayer--) {
-			for (int left = 0; left < nword - ilayer; left++) {
-				int c2 = Chart.idx(left, nword - ilayer);
-				Cell cell = chart.get(c2, false); 
-				
-				// binary grammar rules
-				for (Map.Entry<GrammarRule, GrammarRule> rmap : bRuleMap.entrySet()) {
-					InputToSubCYKer input = new InputToSubCYKer(ilayer, left, nword, cell, chart, rmap.getValue(), false);
-					cpool.execute(input);
-					while (cpool.hasNext()) {
-						cpool.getNext();
-					}
-				}
-				while (!cpool.isDone()) {
-					while (cpool.hasNext()) {
-						cpool.getNext();
-					}
+	protected static void insideScoreForWord(Chart chart, List<State> sentence, List<State> goldentag, int i, int nword, 
+			boolean prune, boolean usemask, boolean iomask, boolean pooled) {
+		int iCell = Chart.idx(i, nword);
+		List<GrammarRule> rules = lexicon.getRulesWithWord(sentence.get(i));
+		if (goldentag == null) {
+			for (GrammarRule rule : rules) {
+				if (usemask && iomask) {
+					if (!chart.isAllowed(rule.lhs, iCell, true)) { continue; } 
+				} else if (usemask) {
+					if (!chart.isPosteriorAllowed(rule.lhs, iCell)) { continue; }
 				}
-				if (prune) { chart.pruneOutsideScore(c2, (short) 0); }
-				outsideScoreForUnaryRule(chart, c2, prune, false, false);
-				if (prune) { chart.pruneOutsideScore(c2, (short) -1); }
+				
+				chart.addInsideScore(rule.lhs, iCell, rule.getWeight().copy(true), (short) 0);
 			}
-		}
-	}
-	
-	
-	private static void nonempty(Chart chart, boolean inside, int idx, short level, List<GrammarRule> rules) {
-		if (chart.keySet(idx, inside, level) == null) {
-			if (inside) {
-				for (GrammarRule rule : rules) {
-					chart.addInsideScore(rule.lhs, idx, rule.getWeight().copy(true), level);
-					chart.addPosteriorMask(rule.lhs, idx);
+		} else { // to use golden tags
+			short tag = goldentag.get(i).getId();
+			for (GrammarRule rule : rules) {
+				if (rule.lhs == tag) {
+					chart.addInsideScore(rule.lhs, iCell, rule.getWeight().copy(true), (short) 0);
+					break;
 				}
 			}
 		}
+		
+		nonempty(chart, true, iCell, (short) 0, rules); // ensure of a parse
+		
+		if (prune) { chart.pruneInsideScore(iCell, (short) 0); }
+		insideScoreForUnaryRule(chart, iCell, prune, usemask, iomask, pooled);
+		if (prune) { chart.pruneInsideScore(iCell, (short) -1); }
+		if (goldentag == null) { beam(chart, iCell, lexbeam); }
 	}
 	
 	
 	/**
-	 * Compute the inside score given the sentence and grammar rules.
+	 * Compute the inside score of the cell spanning [left, left + ilayer]. It only reads the cells of 
+	 * the shorter spans and only writes this cell, so the cells of the same span length are independent.
 	 * 
-	 * @param chart [in/out]-side score container
-	 * @param tree  in which only the sentence is used
-	 * @param nword # of words in the sentence
+	 * @param pooled whether the scores can be borrowed from the slabs of the calling thread, see {@link MixtureAccumulator#flush(boolean)}
 	 */
-	public static void insideScore(Chart chart, List<State> sentence, List<State> goldentag, int nword, boolean prune, boolean usemask, boolean iomask) {
-		List<GrammarRule> rules;
-		int x0, y0, x1, y1, c0, c1, c2;
-		GaussianMixture pinScore, linScore, rinScore, ruleScore;
+	protected static void insideScoreForCell(Chart chart, int left, int ilayer, int nword, 
+			boolean prune, boolean usemask, boolean iomask, boolean pooled) {
+		int x0, y0, x1, y1, c0, c1, c2, id;
+		GaussianMixture pinScore, linScore, rinScore;
+		MixtureAccumulator acc = accumulator.get();
+		BinaryRuleIndex index = grammar.getBRuleIndex();
+		Matches match = matches.get();
 		
-		for (int i = 0; i < nword; i++) {
-			int iCell = Chart.idx(i, nword);
-			rules = lexicon.getRulesWithWord(sentence.get(i));
-			if (goldentag == null) {
-				for (GrammarRule rule : rules) {
-					if (usemask && iomask) {
-						if (!chart.isAllowed(rule.lhs, iCell, true)) { continue; } 
-					} else if (usemask) {
-						if (!chart.isPosteriorAllowed(rule.lhs, iCell)) { continue; }
-					}
-					
-					chart.addInsideScore(rule.lhs, iCell, rule.getWeight().copy(true), (short) 0);
-				}
-			} else { // to use golden tags
-				short tag = goldentag.get(i).getId();
-				for (GrammarRule rule : rules) {
-					if (rule.lhs == tag) {
-						chart.addInsideScore(rule.lhs, iCell, rule.getWeight().copy(true), (short) 0);
-						break;
-					}
-				}
+		x0 = left;
+		y1 = left + ilayer;
+		c2 = Chart.idx(left, nword - ilayer);
+		boolean[] allowed = match.reset(grammar.ntag);
+		for (short itag = 0; itag < grammar.ntag; itag++) {
+			if (usemask && iomask) {
+				allowed[itag] = chart.isAllowed(itag, c2, true);
+			} else if (usemask) {
+				allowed[itag] = chart.isPosteriorAllowed(itag, c2);
+			} else {
+				allowed[itag] = true;
 			}
-			
-			nonempty(chart, true, iCell, (short) 0, rules); // ensure of a parse
-			
-			if (prune) { chart.pruneInsideScore(iCell, (short) 0); }
-			insideScoreForUnaryRule(chart, iCell, prune, usemask, iomask);
-			if (prune) { chart.pruneInsideScore(iCell, (short) -1); }
-		}		
-		
-		// inside score
-		for (int ilayer = 1; ilayer < nword; ilayer++) {
-			for (int left = 0; left < nword - ilayer; left++) {
-				x0 = left;
-				y1 = left + ilayer;
-				c2 = Chart.idx(left, nword - ilayer);
-				// binary grammar rules
-				for (short itag = 0; itag < grammar.ntag; itag++) {
-					if (usemask && iomask) {
-						if (!chart.isAllowed(itag, c2, true)) { continue; } 
-					} else if (usemask) {
-						if (!chart.isPosteriorAllowed(itag, c2)) { continue; }
-					}
-					
-					rules = grammar.getBRuleWithP(itag);
-					for (GrammarRule arule : rules) {
-						BinaryGrammarRule rule = (BinaryGrammarRule) arule;
-						for (int right = left; right < left + ilayer; right++) {
-							y0 = right;
-							x1 = right + 1;
-							c0 = Chart.idx(x0, nword - (y0 - x0));
-							c1 = Chart.idx(x1, nword - (y1 - x1));
-						
-							if (chart.containsKey(rule.lchild, c0, true) && chart.containsKey(rule.rchild, c1, true)) {
-								ruleScore = rule.getWeight();
-								linScore = chart.getInsideScore(rule.lchild, c0);
-								rinScore = chart.getInsideScore(rule.rchild, c1);
-								
-								pinScore = ruleScore.mulAndMarginalize(linScore, null, RuleUnit.LC, true);
-								pinScore = pinScore.mulAndMarginalize(rinScore, null, RuleUnit.RC, false);
-								chart.addInsideScore(rule.lhs, c2, pinScore, (short) 0);
-							}
-						}
+		}
+		// binary grammar rules, driven by the tags present in the left and then in the right cells
+		for (int right = left; right < left + ilayer; right++) {
+			y0 = right;
+			x1 = right + 1;
+			c0 = Chart.idx(x0, nword - (y0 - x0));
+			c1 = Chart.idx(x1, nword - (y1 - x1));
+			for (int lc = chart.nextKey(c0, true, 0); lc >= 0 && lc < index.ntag; lc = chart.nextKey(c0, true, lc + 1)) {
+				for (int g = index.lcstart[lc]; g < index.lcstart[lc + 1]; g++) {
+					if (!chart.containsKey(index.rchild[g], c1, true)) { continue; }
+					for (int r = index.rcstart[g]; r < index.rcstart[g + 1]; r++) {
+						id = index.ids[r];
+						if (allowed[index.rules[id].lhs]) { match.add(id, right); }
 					}
 				}
-				
-				if (prune) { chart.pruneInsideScore(c2, (short) 0); }
-				insideScoreForUnaryRule(chart, c2, prune, usemask, iomask);
-				if (prune) { chart.pruneInsideScore(c2, (short) -1); }
 			}
 		}
+		// in the order of the rules and then of the split points, as if the rules were enumerated by the parents
+		match.sort();
+		for (int i = 0; i < match.size; ) {
+			id = match.id(i);
+			BinaryGrammarRule rule = index.rules[id];
+			acc.reset(rule.getWeight());
+			for (; i < match.size && match.id(i) == id; i++) {
+				y0 = match.split(i);
+				x1 = y0 + 1;
+				c0 = Chart.idx(x0, nword - (y0 - x0));
+				c1 = Chart.idx(x1, nword - (y1 - x1));
+				linScore = chart.getInsideScore(rule.lchild, c0);
+				rinScore = chart.getInsideScore(rule.rchild, c1);
+				acc.mulAndMarginalize(linScore, RuleUnit.LC, rinScore, RuleUnit.RC);
+			}
+			// summed over the split points, the P portion is shared by all of them
+			if ((pinScore = acc.flush(pooled)) != null) {
+				chart.addInsideScore(rule.lhs, c2, pinScore, (short) 0);
+			}
+		}
+		
+		if (prune) { chart.pruneInsideScore(c2, (short) 0); }
+		insideScoreForUnaryRule(chart, c2, prune, usemask, iomask, pooled);
+		if (prune) { chart.pruneInsideScore(c2, (short) -1); }
+		beam(chart, c2, phrbeam);
 	}
 	
 	
@@ -239,91 +246,106 @@ public abstract class Inferencer extends Recorder implements Serializable {
 	 * @param nword # of words in the sentence
 	 */
 	public static void outsideScore(Chart chart, List<State> sentence, int nword, boolean prune, boolean usemask, boolean iomask) {
+		for (int ilayer = nword - 1; ilayer >= 0; ilayer--) {
+			for (int left = 0; left < nword - ilayer; left++) {
+				outsideScoreForCell(chart, left, ilayer, nword, prune, usemask, iomask, true);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Compute the outside score of the cell spanning [left, left + ilayer]. It only reads the outside scores 
+	 * of the longer spans and the inside scores, and only writes this cell, so the cells of the same span 
+	 * length are independent.
+	 * 
+	 * @param pooled whether the scores can be borrowed from the slabs of the calling thread, see {@link MixtureAccumulator#flush(boolean)}
+	 */
+	protected static void outsideScoreForCell(Chart chart, int left, int ilayer, int nword, 
+			boolean prune, boolean usemask, boolean iomask, boolean pooled) {
 		List<GrammarRule> rules;
 		int x0, y0, x1, y1, c0, c1, c2;
-		GaussianMixture poutScore, linScore, rinScore, loutScore, routScore, ruleScore;
+		GaussianMixture poutScore, linScore, rinScore, loutScore, routScore;
+		MixtureAccumulator acc = accumulator.get();
 		
-		for (int ilayer = nword - 1; ilayer >= 0; ilayer--) {
-			for (int left = 0; left < nword - ilayer; left++) {
-				x0 = left;
-				x1 = left + ilayer + 1; 
-				c2 = Chart.idx(left, nword - ilayer);
-				// binary grammar rules
-				for (short itag = 0; itag < grammar.ntag; itag++) {
-					if (usemask && iomask) {
-						if (!chart.isAllowed(itag, c2, false)) { continue; } 
-					} else if (usemask) {
-						if (!chart.isPosteriorAllowed(itag, c2)) { continue; }
-					}
-					
-					rules = grammar.getBRuleWithLC(itag);
-					for (GrammarRule arule : rules) {
-						BinaryGrammarRule rule = (BinaryGrammarRule) arule;
-						for (int right = left + ilayer + 1; right < nword; right++) {
-							y0 = right;
-							y1 = right;
-							c0 = Chart.idx(x0, nword - (y0 - x0));
-							c1 = Chart.idx(x1, nword - (y1 - x1));
-						
-							if (chart.containsKey(rule.lhs, c0, false) && chart.containsKey(rule.rchild, c1, true)) {
-								ruleScore = rule.getWeight();
-								poutScore = chart.getOutsideScore(rule.lhs, c0);
-								rinScore = chart.getInsideScore(rule.rchild, c1);
-								
-								loutScore = ruleScore.mulAndMarginalize(poutScore, null, RuleUnit.P, true);
-								loutScore = loutScore.mulAndMarginalize(rinScore, null, RuleUnit.RC, false);
-								chart.addOutsideScore(rule.lchild, c2, loutScore, (short) 0);
-							}
-						}
+		x0 = left;
+		x1 = left + ilayer + 1; 
+		c2 = Chart.idx(left, nword - ilayer);
+		// binary grammar rules
+		for (short itag = 0; itag < grammar.ntag; itag++) {
+			if (usemask && iomask) {
+				if (!chart.isAllowed(itag, c2, false)) { continue; } 
+			} else if (usemask) {
+				if (!chart.isPosteriorAllowed(itag, c2)) { continue; }
+			}
+			
+			rules = grammar.getBRuleWithLC(itag);
+			for (GrammarRule arule : rules) {
+				BinaryGrammarRule rule = (BinaryGrammarRule) arule;
+				acc.reset(rule.getWeight());
+				for (int right = left + ilayer + 1; right < nword; right++) {
+					y0 = right;
+					y1 = right;
+					c0 = Chart.idx(x0, nword - (y0 - x0));
+					c1 = Chart.idx(x1, nword - (y1 - x1));
+				
+					if (chart.containsKey(rule.lhs, c0, false) && chart.containsKey(rule.rchild, c1, true)) {
+						poutScore = chart.getOutsideScore(rule.lhs, c0);
+						rinScore = chart.getInsideScore(rule.rchild, c1);
+						acc.mulAndMarginalize(poutScore, RuleUnit.P, rinScore, RuleUnit.RC);
 					}
 				}
+				if ((loutScore = acc.flush(pooled)) != null) {
+					chart.addOutsideScore(rule.lchild, c2, loutScore, (short) 0);
+				}
+			}
+		}
+		
+		y0 = left + ilayer;
+		y1 = left - 1;
+		// binary grammar rules
+		for (short itag = 0; itag < grammar.ntag; itag++) {
+			if (usemask && iomask) {
+				if (!chart.isAllowed(itag, c2, false)) { continue; } 
+			} else if (usemask) {
+				if (!chart.isPosteriorAllowed(itag, c2)) { continue; }
+			}				
+			
+			rules = grammar.getBRuleWithRC(itag);
+			for (GrammarRule arule : rules) {
+				BinaryGrammarRule rule = (BinaryGrammarRule) arule;
+				acc.reset(rule.getWeight());
+				for (int right = 0; right < left; right++) {
+					x0 = right; 
+					x1 = right;
+					c0 = Chart.idx(x0, nword - (y0 - x0));
+					c1 = Chart.idx(x1, nword - (y1 - x1));
 				
-				y0 = left + ilayer;
-				y1 = left - 1;
-				// binary grammar rules
-				for (short itag = 0; itag < grammar.ntag; itag++) {
-					if (usemask && iomask) {
-						if (!chart.isAllowed(itag, c2, false)) { continue; } 
-					} else if (usemask) {
-						if (!chart.isPosteriorAllowed(itag, c2)) { continue; }
-					}				
-					
-					rules = grammar.getBRuleWithRC(itag);
-					for (GrammarRule arule : rules) {
-						BinaryGrammarRule rule = (BinaryGrammarRule) arule;
-						for (int right = 0; right < left; right++) {
-							x0 = right; 
-							x1 = right;
-							c0 = Chart.idx(x0, nword - (y0 - x0));
-							c1 = Chart.idx(x1, nword - (y1 - x1));
-						
-							if (chart.containsKey(rule.lhs, c0, false) && chart.containsKey(rule.lchild, c1, true)) {
-								ruleScore = rule.getWeight();
-								poutScore = chart.getOutsideScore(rule.lhs, c0);
-								linScore = chart.getInsideScore(rule.lchild, c1);
-								
-								routScore = ruleScore.mulAndMarginalize(poutScore, null, RuleUnit.P, true);
-								routScore = routScore.mulAndMarginalize(linScore, null, RuleUnit.LC, false);
-								chart.addOutsideScore(rule.rchild, c2, routScore, (short) 0);
-							}
-						}
+					if (chart.containsKey(rule.lhs, c0, false) && chart.containsKey(rule.lchild, c1, true)) {
+						poutScore = chart.getOutsideScore(rule.lhs, c0);
+						linScore = chart.getInsideScore(rule.lchild, c1);
+						acc.mulAndMarginalize(poutScore, RuleUnit.P, linScore, RuleUnit.LC);
 					}
 				}
-				
-				if (prune) { chart.pruneOutsideScore(c2, (short) 0); }
-				outsideScoreForUnaryRule(chart, c2, prune, usemask, iomask);
-				if (prune) { chart.pruneOutsideScore(c2, (short) -1); }
+				if ((routScore = acc.flush(pooled)) != null) {
+					chart.addOutsideScore(rule.rchild, c2, routScore, (short) 0);
+				}
 			}
 		}
+		
+		if (prune) { chart.pruneOutsideScore(c2, (short) 0); }
+		outsideScoreForUnaryRule(chart, c2, prune, usemask, iomask, pooled);
+		if (prune) { chart.pruneOutsideScore(c2, (short) -1); }
 	}
 	
 	
-	private static void outsideScoreForUnaryRule(Chart chart, int idx, boolean prune, boolean usemask, boolean iomask) {
+	private static void outsideScoreForUnaryRule(Chart chart, int idx, boolean prune, boolean usemask, boolean iomask, boolean pooled) {
 		Set<Short> set;
 		short level = 0;
 		List<GrammarRule> rules;
 		RuleUnit rmKey = RuleUnit.P;
 		GaussianMixture poutScore, coutScore;
+		MixtureAccumulator acc = accumulator.get();
 		// have to process ROOT node specifically
 		if (idx == 0 && (set = chart.keySet(idx, false, (short) (LENGTH_UCHAIN + 1))) != null) {
 			for (Short idTag : set) { // can only contain ROOT
@@ -358,7 +380,9 @@ public abstract class Inferencer extends Recorder implements Serializable {
 						if (!chart.isPosteriorAllowed((short) rule.rhs, idx)) { continue; }
 					}
 					
-					coutScore = rule.weight.mulAndMarginalize(poutScore, null, rmKey, true);
+					acc.reset(rule.weight);
+					acc.mulAndMarginalize(poutScore, rmKey);
+					coutScore = acc.flush(pooled);
 					chart.addOutsideScore((short) rule.rhs, idx, coutScore, (short) (level + 1));
 				}
 			}
@@ -368,12 +392,13 @@ public abstract class Inferencer extends Recorder implements Serializable {
 	}
 	
 	
-	private static void insideScoreForUnaryRule(Chart chart, int idx, boolean prune, boolean usemask, boolean iomask) {
+	private static void insideScoreForUnaryRule(Chart chart, int idx, boolean prune, boolean usemask, boolean iomask, boolean pooled) {
 		RuleUnit rmKey;
 		Set<Short> set;
 		short level = 0;
 		List<GrammarRule> rules;
 		GaussianMixture pinScore, cinScore;
+		MixtureAccumulator acc = accumulator.get();
 		while (level < LENGTH_UCHAIN && (set = chart.keySet(idx, true, level)) != null) {
 			for (Short idTag : set) {
 				rules = grammar.getURuleWithC(idTag); // ROOT is excluded, and is not considered in level 0
@@ -389,7 +414,9 @@ public abstract class Inferencer extends Recorder implements Serializable {
 					
 					if (idx != 0 && rule.type == RuleType.RHSPACE) { continue; } // ROOT is allowed only when it is in cell 0 and is in level 1 or 2
 					rmKey = rule.type == RuleType.RHSPACE ? RuleUnit.C : RuleUnit.UC;
-					pinScore = rule.weight.mulAndMarginalize(cinScore, null, rmKey, true);
+					acc.reset(rule.weight);
+					acc.mulAndMarginalize(cinScore, rmKey);
+					pinScore = acc.flush(pooled);
 					chart.addInsideScore(rule.lhs, idx, pinScore, (short) (level + 1));
 				}
 			}
@@ -405,7 +432,9 @@ public abstract class Inferencer extends Recorder implements Serializable {
 				while (iterator.hasNext()) {
 					UnaryGrammarRule rule = (UnaryGrammarRule) iterator.next();
 					if (rule.type != RuleType.RHSPACE) { continue; } // only consider ROOT in level 3
-					pinScore = rule.weight.mulAndMarginalize(cinScore, null, RuleUnit.C, true);
+					acc.reset(rule.weight);
+					acc.mulAndMarginalize(cinScore, RuleUnit.C);
+					pinScore = acc.flush(pooled);
 					chart.addInsideScore(rule.lhs, idx, pinScore, (short) (LENGTH_UCHAIN + 1));
 				}
 			}
@@ -426,135 +455,6 @@ public abstract class Inferencer extends Recorder implements Serializable {
 	}
 	
 	
-	public static class InputToSubCYKer {
-		protected int ilayer;
-		protected int nword;
-		protected int left;
-		protected Chart chart;
-		protected Cell cell;
-		protected boolean inside;
-		protected GrammarRule rule;
-		public InputToSubCYKer(int ilayer, int left, int nword,
-				Cell cell, Chart chart, GrammarRule rule, boolean inside) {
-			this.inside = inside;
-			this.ilayer = ilayer;
-			this.nword = nword;
-			this.chart = chart;
-			this.left = left;
-			this.cell = cell;
-			this.rule = rule;
-		}
-	}
-	
-	public static class SubCYKer<I, O> implements Executor<I, O> {
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = 3714235072505026471L;
-		protected int idx;
-		
-		protected I task;
-		protected int itask;
-		protected PriorityQueue<Meta<O>> caches;
-		
-		public SubCYKer() {}
-		private SubCYKer(SubCYKer<?, ?> subCYKer) {}
-
-		@Override
-		public synchronized Object call() throws Exception {
-			if (task == null) { return null; }
-			InputToSubCYKer input = (InputToSubCYKer) task;
-			int x0, x1, y0, y1, c0, c1;
-			int left = input.left, ilayer = input.ilayer, nword = input.nword;
-			if (input.inside) { // inside scores with binary rules
-				x0 = left;
-				y1 = left + ilayer;
-				GaussianMixture pinScore, linScore, rinScore, ruleScore;
-				BinaryGrammarRule rule = (BinaryGrammarRule) (input.rule);
-				for (int right = left; right < left + ilayer; right++) {
-					y0 = right;
-					x1 = right + 1;
-					c0 = Chart.idx(x0, nword - (y0 - x0));
-					c1 = Chart.idx(x1, nword - (y1 - x1));
-				
-					if (input.chart.containsKey(rule.lchild, c0, true) && input.chart.containsKey(rule.rchild, c1, true)) {
-						ruleScore = rule.getWeight();
-						linScore = input.chart.getInsideScore(rule.lchild, c0);
-						rinScore = input.chart.getInsideScore(rule.rchild, c1);
-						
-						pinScore = ruleScore.mulAndMarginalize(linScore, null, RuleUnit.LC, true);
-						pinScore = pinScore.mulAndMarginalize(rinScore, null, RuleUnit.RC, false);
-						input.cell.addScore(rule.lhs, pinScore, (short) 0);
-					}
-				}
-			} else { // outside scores with binary rules
-				x0 = left;
-				x1 = left + ilayer + 1; 
-				GaussianMixture poutScore, linScore, rinScore, loutScore, routScore, ruleScore;
-				BinaryGrammarRule rule = (BinaryGrammarRule) (input.rule);
-				for (int right = left + ilayer + 1; right < nword; right++) {
-					y0 = right;
-					y1 = right;
-					c0 = Chart.idx(x0, nword - (y0 - x0));
-					c1 = Chart.idx(x1, nword - (y1 - x1));
-				
-					if (input.chart.containsKey(rule.lhs, c0, false) && input.chart.containsKey(rule.rchild, c1, true)) {
-						ruleScore = rule.getWeight();
-						poutScore = input.chart.getOutsideScore(rule.lhs, c0);
-						rinScore = input.chart.getInsideScore(rule.rchild, c1);
-						
-						loutScore = ruleScore.mulAndMarginalize(poutScore, null, RuleUnit.P, true);
-						loutScore = loutScore.mulAndMarginalize(rinScore, null, RuleUnit.RC, false);
-						input.cell.addScore(rule.lchild, loutScore, (short) 0);
-					}
-				}
-				y0 = left + ilayer;
-				y1 = left - 1;
-				for (int right = 0; right < left; right++) {
-					x0 = right; 
-					x1 = right;
-					c0 = Chart.idx(x0, nword - (y0 - x0));
-					c1 = Chart.idx(x1, nword - (y1 - x1));
-					
-					if (input.chart.containsKey(rule.lhs, c0, false) && input.chart.containsKey(rule.lchild, c1, true)) {
-						ruleScore = rule.getWeight();
-						poutScore = input.chart.getOutsideScore(rule.lhs, c0);
-						linScore = input.chart.getInsideScore(rule.lchild, c1);
-						
-						routScore = ruleScore.mulAndMarginalize(poutScore, null, RuleUnit.P, true);
-						routScore = routScore.mulAndMarginalize(linScore, null, RuleUnit.LC, false);
-						input.cell.addScore(rule.rchild, routScore, (short) 0); 
-					}
-				}
-			}
-			Meta<O> cache = new Meta(itask, true); // currently nothing returns, may add try...catch.. clause
-			synchronized (caches) {
-				caches.add(cache);
-				caches.notifyAll();
-			}
-			task = null;
-			return itask;
-		}
-
-		@Override
-		public Executor<?, ?> newInstance() {
-			return new SubCYKer<I, O>(this);
-		}
-
-		@Override
-		public void setNextTask(int itask, I task) {
-			this.task = task;
-			this.itask = itask;
-		}
-
-		@Override
-		public void setIdx(int idx, PriorityQueue<edu.shanghaitech.ai.nlp.util.Executor.Meta<O>> caches) {
-			this.idx = idx;
-			this.caches = caches;
-		}
-	}
-	
-	
 	public static Tree<String> extractBestMaxRuleParse(Chart chart, List<String> sentence) {
 		return extractBestMaxRuleParse(chart, 0, sentence.size() - 1, sentence.size(), (short) 0, sentence);
 	}
@@ -639,4 +539,38 @@ public abstract class Inferencer extends Recorder implements Serializable {
 		return new Tree<String>(pname, children);
 	}
 	
+	
+	/**
+	 * (rule id, split point) pairs of the binary rules whose children are present in the children cells, 
+	 * packed into longs so that they can be sorted in place. It is not thread safe, use one per thread.
+	 */
+	protected static class Matches {
+		private long[] pairs = new long[64];
+		private boolean[] allowed = new boolean[0];
+		private int size;
+		
+		protected boolean[] reset(int ntag) {
+			size = 0;
+			if (allowed.length < ntag) { allowed = new boolean[ntag]; }
+			return allowed;
+		}
+		
+		protected void add(int id, int split) {
+			if (size == pairs.length) { pairs = Arrays.copyOf(pairs, size * 2); }
+			pairs[size++] = ((long) id << 32) | split;
+		}
+		
+		protected void sort() {
+			Arrays.sort(pairs, 0, size);
+		}
+		
+		protected int id(int i) {
+			return (int) (pairs[i] >>> 32);
+		}
+		
+		protected int split(int i) {
+			return (int) pairs[i];
+		}
+	}
+	
 }
@@ -34,6 +34,7 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 	protected List<GrammarRule>[] bRulesWithRC;
 	
 	protected Optimizer optimizer;
+	protected transient volatile int nupdate; // # of the updates of the rule weights
 	public Numberer numberer;
 	public int ntag;
 	
@@ -44,6 +45,12 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 	 */
 	protected Map<GrammarRule, GrammarRule> uRuleMap;
 	protected Map<GrammarRule, GrammarRule> bRuleMap;
+	/**
+	 * Packed keys of the rules in uRuleMap and bRuleMap to the rules, built on demand and 
+	 * dropped whenever a rule is added to the maps, see {@link #index()}.
+	 */
+	protected transient volatile RuleIndex ruleIndex;
+	protected transient volatile BinaryRuleIndex bRuleIndex; // built on demand and dropped as ruleIndex is
 	
 	/**
 	 * For any nonterminals A \neq B \neq C, p(A->B) is computed as 
@@ -78,14 +85,23 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 	 * @return
 	 */
 	public GaussianMixture getBRuleWeight(short idParent, short idlChild, short idrChild, boolean context) {
-		GrammarRule rule = getBRule(idParent, idlChild, idrChild);
+		return getBRuleWeight(RuleIndex.key(idParent, idlChild, idrChild), context);
+	}
+	
+	/**
+	 * @param key     packed key of the binary rule, see {@link RuleIndex#key(short, short, short)}
+	 * @param context null can be returned (true) or not (false)
+	 * @return
+	 */
+	public GaussianMixture getBRuleWeight(long key, boolean context) {
+		GrammarRule rule = index().get(key);
 		if (rule != null) {
 			return rule.getWeight();
 		} 
 		if (!context) { 
 			// when calculating inside and outside scores, we do not want the rule weight to be null, so just set it to zero
 			// if the given query rule is not valid (never appears in the training set).
-			logger.warn("\nBinary Rule NOT Found: [P: " + idParent + ", LC: " + idlChild + ", RC: " + idrChild + "]\n");
+			logger.warn("\nBinary Rule NOT Found: [P: " + RuleIndex.parent(key) + ", LC: " + RuleIndex.lchild(key) + ", RC: " + RuleIndex.rchild(key) + "]\n");
 			GaussianMixture weight = GrammarRule.rndRuleWeight(RuleType.LRBRULE, (short) -1, (short) -1);
 			/*weight.setWeights(Double.NEGATIVE_INFINITY);*/
 			weight.setWeights(LVeGTrainer.minmw);
@@ -96,12 +112,22 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 	}
 	
 	public GaussianMixture getURuleWeight(short idParent, short idChild, RuleType type, boolean context) {
-		GrammarRule rule = getURule(idParent, idChild, type);
+		return getURuleWeight(RuleIndex.key(idParent, idChild, type), context);
+	}
+	
+	/**
+	 * @param key     packed key of the unary rule, see {@link RuleIndex#key(short, int, RuleType)}
+	 * @param context null can be returned (true) or not (false)
+	 * @return
+	 */
+	public GaussianMixture getURuleWeight(long key, boolean context) {
+		GrammarRule rule = index().get(key);
 		if (rule != null) {
 			return rule.getWeight();
 		} 
 		if (!context) {
-			logger.warn("\nUnary Rule NOT Found: [P: " + idParent + ", UC: " + idChild + ", TYPE: " + type + "]\n");
+			RuleType type = RuleIndex.type(key);
+			logger.warn("\nUnary Rule NOT Found: [P: " + RuleIndex.parent(key) + ", UC: " + RuleIndex.child(key) + ", TYPE: " + type + "]\n");
 			GaussianMixture weight = GrammarRule.rndRuleWeight(type, (short) -1, (short) -1);
 			/*weight.setWeights(Double.NEGATIVE_INFINITY);*/
 			weight.setWeights(LVeGTrainer.minmw);
@@ -112,13 +138,50 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 	}
 
 	public GrammarRule getBRule(short idParent, short idlChild, short idrChild) {
-		GrammarRule rule = new BinaryGrammarRule(idParent, idlChild, idrChild);
-		return bRuleMap.get(rule);
+		return index().get(RuleIndex.key(idParent, idlChild, idrChild));
 	}
 	
 	public GrammarRule getURule(short idParent, int idChild, RuleType type) {
-		GrammarRule rule = new UnaryGrammarRule(idParent, idChild, type);
-		return uRuleMap.get(rule);
+		return index().get(RuleIndex.key(idParent, idChild, type));
+	}
+	
+	/**
+	 * @return the index of the rules in uRuleMap and bRuleMap, which is rebuilt if any rule has been added since
+	 */
+	protected RuleIndex index() {
+		RuleIndex index = ruleIndex;
+		if (index == null) {
+			synchronized (this) {
+				if ((index = ruleIndex) == null) {
+					index = new RuleIndex(uRuleMap.size() + (bRuleMap == null ? 0 : bRuleMap.size()));
+					for (GrammarRule rule : uRuleMap.values()) {
+						index.put(RuleIndex.key(rule), rule);
+					}
+					if (bRuleMap != null) {
+						for (GrammarRule rule : bRuleMap.values()) {
+							index.put(RuleIndex.key(rule), rule);
+						}
+					}
+					ruleIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * @return the binary rules grouped by the left child and then by the right child, see {@link BinaryRuleIndex}
+	 */
+	public BinaryRuleIndex getBRuleIndex() {
+		BinaryRuleIndex index = bRuleIndex;
+		if (index == null) {
+			synchronized (this) {
+				if ((index = bRuleIndex) == null) {
+					bRuleIndex = index = new BinaryRuleIndex(this);
+				}
+			}
+		}
+		return index;
 	}
 	
 	public Map<GrammarRule, GrammarRule> getBRuleMap() {
@@ -178,12 +241,14 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 	}
 	
 	public void addCount(short idParent, int idChild, EnumMap<RuleUnit, GaussianMixture> count, RuleType type, short isample, boolean withTree) {
-		GrammarRule rule = new UnaryGrammarRule(idParent, idChild, type);
+		GrammarRule rule = getURule(idParent, idChild, type);
+		if (rule == null) { rule = new UnaryGrammarRule(idParent, idChild, type); }
 		addCount(rule, count, isample, withTree);
 	}
 	
 	public Map<Short, List<EnumMap<RuleUnit, GaussianMixture>>> getCount(short idParent, int idChild, boolean withTree, RuleType type) {
-		GrammarRule rule = new UnaryGrammarRule(idParent, idChild, type);
+		GrammarRule rule = getURule(idParent, idChild, type);
+		if (rule == null) { rule = new UnaryGrammarRule(idParent, idChild, type); }
 		return getCount(rule, withTree);
 	}
 	
@@ -207,11 +272,26 @@ public abstract class LVeGGrammar extends Recorder implements Serializable {
 		optimizer.evalGradients(scoreOfST);
 	}
 	
+	/**
+	 * Whether the optimizer holds the counts of the calling thread that have not been consumed.
+	 */
+	public boolean isPending() {
+		return optimizer != null && optimizer.isPending();
+	}
+	
 	/**
 	 * Apply stochastic gradient descent.
 	 */
 	public void applyGradientDescent(List<Double> scoreOfST) {
 		optimizer.applyGradientDescent(scoreOfST);
+		nupdate++;
+	}
+	
+	/**
+	 * @return # of the updates of the rule weights, which tells whether a copy of the rule weights is stale
+	 */
+	public int nupdate() {
+		return nupdate;
 	}
 	
 	/**
@@ -2,6 +2,7 @@ package edu.shanghaitech.ai.nlp.lveg.model;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.berkeley.nlp.syntax.Tree;
 import edu.shanghaitech.ai.nlp.data.StateTreeList;
@@ -18,9 +19,17 @@ public abstract class LVeGLexicon extends LVeGGrammar implements Serializable {
 	 */
 	private static final long serialVersionUID = 255983044651602165L;
 	public static final String TOKEN_UNKNOWN = "UNK";
-	protected transient String lastSignature;
-	protected transient String lastWord;
-	protected transient int lastPosition;
+	/**
+	 * The signatures only tell the first word of the sentence from the others, so are the 
+	 * caches of the words, which are sharded by the position classes, see {@link #position(int)}.
+	 */
+	protected static final int NPOSITION = 2;
+	/**
+	 * Max # of the words cached per position class, the words beyond it are signed and resolved 
+	 * each time, so that a stream of unseen words does not grow the caches without bound.
+	 */
+	public static final int MAX_NCACHED = 1 << 16;
+	protected transient volatile ConcurrentHashMap<String, String>[] signatures;
 	/**
 	 * Different modes for unknown words. See {@link #SimpleLVeGLexicon()}.
 	 */
@@ -41,6 +50,12 @@ public abstract class LVeGLexicon extends LVeGGrammar implements Serializable {
 	 */
 	public abstract List<GrammarRule> getRulesWithWord(State word);
 	
+	/**
+	 * @param word the word (name and position in the sentence)
+	 * @return     index of the word, of its signature, or of "UNK", -1 if none of them is known
+	 */
+	public abstract int getWordIdx(State word);
+	
 	/**
 	 * @param state a leaf representing the word
 	 * @param idTag the id of the tag
@@ -66,35 +81,58 @@ public abstract class LVeGLexicon extends LVeGGrammar implements Serializable {
 		for (Tree<State> tree : trees) {
 			List<State> words = tree.getYield();
 			for (State word : words) {
-				word.wordIdx = wordIndexer.indexOf(word.getName());
+				word.wordIdx = wordIndexer.indexof(word.getName());
 				word.signIdx = -1;
 			}
 		}
 	}
 	
 	/**
-	 * Sort of different from the Berkeley's implementation. It returns the 
-	 * last word (initially initialized to "UNK") if the first word is null 
-	 * , and always returns "UNK" if the word is of length 0. In Berkeley's 
-	 * implementation, the first null word produces empty string, which can 
-	 * be divided into "UNK" since the empty string is of length 0.
+	 * @param pos the position of the word in the sentence
+	 * @return    the position class of the word, i.e., the shard of the caches
+	 */
+	protected static int position(int pos) {
+		return pos == 0 ? 0 : 1;
+	}
+	
+	/**
+	 * Sort of different from the Berkeley's implementation. It returns "UNK" 
+	 * if the word is null or of length 0. In Berkeley's implementation, the 
+	 * first null word produces empty string, which can be divided into "UNK" 
+	 * since the empty string is of length 0. The signatures are cached per 
+	 * position class, up to {@link #MAX_NCACHED} words each, and can be shared 
+	 * by the threads.
 	 * 
 	 * @param word the word
 	 * @param pos  the position of the word in the sentence
 	 * @return
 	 */
 	public String getCachedSignature(String word, int pos) {
-		// TODO determine the frequency of the usage of "if" branch
-		if (word == null) { return lastWord; }
-		if (word.equals(lastWord) && pos == lastPosition) {
-			return lastSignature;
-		} else {
-			String signature = getSignature(word, pos);
-			lastWord = word;
-			lastPosition = pos;
-			lastSignature = signature;
-			return signature;
+		if (word == null) { return TOKEN_UNKNOWN; }
+		ConcurrentHashMap<String, String> shard = signatures()[position(pos)];
+		String signature = shard.get(word);
+		if (signature == null) {
+			signature = getSignature(word, pos);
+			if (shard.size() < MAX_NCACHED) { shard.putIfAbsent(word, signature); }
+		}
+		return signature;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private ConcurrentHashMap<String, String>[] signatures() {
+		ConcurrentHashMap<String, String>[] caches = signatures;
+		if (caches == null) {
+			synchronized (this) {
+				if ((caches = signatures) == null) {
+					caches = new ConcurrentHashMap[NPOSITION];
+					for (int i = 0; i < NPOSITION; i++) {
+						caches[i] = new ConcurrentHashMap<>();
+					}
+					signatures = caches;
+				}
+			}
 		}
+		return caches;
 	}
 	
 	/**
@@ -0,0 +1,136 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture.Component;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.util.FunUtil;
+
+/**
+ * Reusable accumulator of the mixing weights of a rule weight multiplied by the inside/outside
+ * scores and then marginalized, e.g., the inside score of the parent contributed by the binary
+ * rule summed over all the split points. Since only the mixing weights depend on the multipliers,
+ * the components are not copied until {@link #flush()}, where the un-marginalized portions of
+ * the rule weight are copied once and for all. It is not thread safe, use one per thread.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class MixtureAccumulator {
+	private GaussianMixture base;
+	private EnumSet<RuleUnit> keys;
+	private double[] weights;
+	private int ncomponent;
+	private boolean empty;
+
+
+	public MixtureAccumulator() {
+		this.weights = new double[8];
+		this.keys = EnumSet.noneOf(RuleUnit.class);
+	}
+
+
+	/**
+	 * Start accumulating for the given rule weight.
+	 *
+	 * @param gm the rule weight
+	 */
+	public void reset(GaussianMixture gm) {
+		base = gm;
+		empty = true;
+		keys.clear();
+		ncomponent = gm.components.size();
+		if (weights.length < ncomponent) {
+			weights = new double[Math.max(ncomponent, weights.length * 2)];
+		}
+		Arrays.fill(weights, 0, ncomponent, Double.NEGATIVE_INFINITY);
+	}
+
+
+	/**
+	 * Accumulate base * gm marginalized over the portion key.
+	 *
+	 * @param gm  mixture of gaussians that needs to be marginalized
+	 * @param key which denotes the portion, to be marginalized, of the rule weight
+	 */
+	public void mulAndMarginalize(GaussianMixture gm, RuleUnit key) {
+		keys.add(key);
+		for (int k = 0; k < ncomponent; k++) {
+			double logcomp = base.components.get(k).weight + base.mulAndMarginalize(k, key, gm);
+			weights[k] = FunUtil.logAdd(weights[k], logcomp);
+		}
+		empty = false;
+	}
+
+
+	/**
+	 * Accumulate base * gm0 * gm1 marginalized over the portions key0 and key1.
+	 *
+	 * @param gm0  mixture of gaussians that needs to be marginalized
+	 * @param key0 which denotes the portion, to be marginalized, of the rule weight
+	 * @param gm1  mixture of gaussians that needs to be marginalized
+	 * @param key1 which denotes the portion, to be marginalized, of the rule weight
+	 */
+	public void mulAndMarginalize(GaussianMixture gm0, RuleUnit key0, GaussianMixture gm1, RuleUnit key1) {
+		keys.add(key0);
+		keys.add(key1);
+		for (int k = 0; k < ncomponent; k++) {
+			double logcomp = base.components.get(k).weight +
+					base.mulAndMarginalize(k, key0, gm0) + base.mulAndMarginalize(k, key1, gm1);
+			weights[k] = FunUtil.logAdd(weights[k], logcomp);
+		}
+		empty = false;
+	}
+
+
+	public boolean isEmpty() {
+		return empty;
+	}
+
+
+	/**
+	 * Create the accumulated mixture of gaussians.
+	 *
+	 * @param pooled whether to borrow the objects from the slabs of the calling thread (true) or not (false), 
+	 *               the former is only valid until the thread clears the chart, see {@link ChartCell.Chart#clear(int)}
+	 * @return       the accumulated MoG, or null if nothing has been accumulated
+	 */
+	public GaussianMixture flush(boolean pooled) {
+		if (empty) { return null; }
+		GaussianMixture gm = pooled ? DiagonalGaussianMixture.borrowObject((short) ncomponent) : base.instance((short) 0, false);
+		for (int k = 0; k < ncomponent; k++) {
+			Component comp = base.components.get(k);
+			EnumMap<RuleUnit, Set<GaussianDistribution>> multivnd = new EnumMap<>(RuleUnit.class);
+			for (Entry<RuleUnit, Set<GaussianDistribution>> gaussian : comp.multivnd.entrySet()) {
+				if (keys.contains(gaussian.getKey())) { continue; }
+				multivnd.put(gaussian.getKey(), pooled ? copy(gaussian.getValue()) : GaussianMixture.copy(gaussian.getValue()));
+			}
+			gm.add(weights[k], multivnd);
+		}
+		empty = true;
+		return gm;
+	}
+	
+	
+	/**
+	 * @param gausses a set of gaussian distributions
+	 * @return        a copy of which the gaussians are borrowed from the slab of the calling thread
+	 */
+	private static Set<GaussianDistribution> copy(Set<GaussianDistribution> gausses) {
+		Set<GaussianDistribution> replica = new HashSet<>(2, 1);
+		for (GaussianDistribution gd : gausses) {
+			GaussianDistribution agd = DiagonalGaussianDistribution.borrowObject(gd.dim);
+			gd.copy(agd);
+			replica.add(agd);
+		}
+		return replica;
+	}
+
+}
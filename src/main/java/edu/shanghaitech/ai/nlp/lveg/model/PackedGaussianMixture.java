@@ -0,0 +1,603 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture.Component;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
+import edu.shanghaitech.ai.nlp.util.FunUtil;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+/**
+ * Mixture of diagonal (spherical) gaussians stored as struct of arrays. Mixing weights of all the components
+ * live in one array, means and log standard deviations of each portion ({@code RuleUnit}) live in the arrays
+ * indexed by the ordinal of the portion, i.e., mus[slot][k * dim + d] and vars[slot][k]. Every component has
+ * the same portions, each of which has exactly one gaussian, which is always the case for the rule weights and
+ * the inside/outside scores. See {@link #pack(GaussianMixture, PackedGaussianMixture)} and
+ * {@link #unpack(GaussianMixture)} for the conversion between this and {@code GaussianMixture}.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class PackedGaussianMixture extends Recorder implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -4127470283659810924L;
+	protected static final RuleUnit[] UNITS = RuleUnit.values();
+	protected static final int NSLOT = UNITS.length;
+
+	protected int ncomponent;
+	protected int capacity;
+	protected int slots; // bit i is set iff the portion of ordinal i exists
+	protected short[] dims;
+	protected double[] weights;
+	protected double[][] mus;
+	protected double[][] vars;
+
+
+	public PackedGaussianMixture() {
+		this(4);
+	}
+
+
+	public PackedGaussianMixture(int capacity) {
+		this.slots = 0;
+		this.ncomponent = 0;
+		this.capacity = capacity > 0 ? capacity : 1;
+		this.dims = new short[NSLOT];
+		this.mus = new double[NSLOT][];
+		this.vars = new double[NSLOT][];
+		this.weights = new double[this.capacity];
+	}
+
+
+	/**
+	 * Pack the mixture of gaussians.
+	 *
+	 * @param gm  mixture of gaussians, every component of which has the same portions
+	 * @param des a placeholder, a new instance is created if it is null
+	 * @return    the packed mixture, or null if gm cannot be packed
+	 */
+	public static PackedGaussianMixture pack(GaussianMixture gm, PackedGaussianMixture des) {
+		if (des == null) { des = new PackedGaussianMixture(gm.ncomponent); }
+		des.clear();
+		if (gm.components.isEmpty()) { return des; }
+		for (Entry<RuleUnit, Set<GaussianDistribution>> gaussian : gm.components.get(0).multivnd.entrySet()) {
+			GaussianDistribution gd = first(gaussian.getValue());
+			if (gd == null) { continue; }
+			des.addSlot(gaussian.getKey().ordinal(), gd.dim);
+		}
+		des.ensureCapacity(gm.components.size());
+		for (Component comp : gm.components) {
+			int k = des.ncomponent++;
+			des.weights[k] = comp.weight;
+			int nslot = 0;
+			for (Entry<RuleUnit, Set<GaussianDistribution>> gaussian : comp.multivnd.entrySet()) {
+				GaussianDistribution gd = first(gaussian.getValue());
+				if (gd == null) { continue; }
+				int islot = gaussian.getKey().ordinal(), dim = des.dims[islot];
+				if (!des.has(islot) || gd.dim != dim || gaussian.getValue().size() > 1) {
+					logger.error("Inconsistent portions of the MoG: " + gm + "\n");
+					return null;
+				}
+				System.arraycopy(gd.getMuArray(), 0, des.mus[islot], k * dim, dim);
+				des.vars[islot][k] = gd.getVar();
+				nslot++;
+			}
+			if (nslot != Integer.bitCount(des.slots)) {
+				logger.error("Inconsistent portions of the MoG: " + gm + "\n");
+				return null;
+			}
+		}
+		return des;
+	}
+
+
+	/**
+	 * Unpack this mixture into the object graph. The gaussians are newly created.
+	 *
+	 * @param des a placeholder, a new instance is created if it is null
+	 * @return    mixture of gaussians
+	 */
+	public GaussianMixture unpack(GaussianMixture des) {
+		if (des == null) {
+			des = new DiagonalGaussianMixture();
+		} else {
+			des.clear(false);
+		}
+		for (int k = 0; k < ncomponent; k++) {
+			EnumMap<RuleUnit, Set<GaussianDistribution>> multivnd = new EnumMap<>(RuleUnit.class);
+			for (int islot = 0; islot < NSLOT; islot++) {
+				if (!has(islot)) { continue; }
+				Set<GaussianDistribution> gausses = new HashSet<>(2, 1);
+				gausses.add(gaussian(islot, k));
+				multivnd.put(UNITS[islot], gausses);
+			}
+			des.add(weights[k], multivnd);
+		}
+		return des;
+	}
+
+
+	/**
+	 * @param islot ordinal of the portion
+	 * @param k     index of the component
+	 * @return      a new gaussian of the specific portion of the k-th component
+	 */
+	protected GaussianDistribution gaussian(int islot, int k) {
+		short dim = dims[islot];
+		DoubleArrayList amus = new DoubleArrayList(dim);
+		DoubleArrayList avar = new DoubleArrayList(1);
+		double[] src = mus[islot];
+		for (int d = k * dim, end = d + dim; d < end; d++) {
+			amus.addDouble(src[d]);
+		}
+		avar.addDouble(vars[islot][k]);
+		GaussianDistribution gd = new DiagonalGaussianDistribution(dim, false);
+		gd.setMus(amus);
+		gd.setVars(avar);
+		return gd;
+	}
+
+
+	private static GaussianDistribution first(Set<GaussianDistribution> gausses) {
+		if (gausses != null) {
+			for (GaussianDistribution gd : gausses) {
+				return gd;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Add a new portion to this mixture, the parameters of which are left uninitialized.
+	 *
+	 * @param islot ordinal of the portion
+	 * @param dim   dimension of the gaussians
+	 */
+	protected void addSlot(int islot, short dim) {
+		slots |= 1 << islot;
+		dims[islot] = dim;
+		if (mus[islot] == null || mus[islot].length < capacity * dim) {
+			mus[islot] = new double[capacity * dim];
+		}
+		if (vars[islot] == null || vars[islot].length < capacity) {
+			vars[islot] = new double[capacity];
+		}
+	}
+
+
+	/**
+	 * Make sure that n components can be held without reallocation.
+	 *
+	 * @param n # of the components
+	 */
+	public void ensureCapacity(int n) {
+		if (n <= capacity) { return; }
+		int size = Math.max(n, capacity + (capacity >> 1));
+		weights = Arrays.copyOf(weights, size);
+		for (int islot = 0; islot < NSLOT; islot++) {
+			if (mus[islot] != null) {
+				mus[islot] = Arrays.copyOf(mus[islot], size * dims[islot]);
+			}
+			if (vars[islot] != null) {
+				vars[islot] = Arrays.copyOf(vars[islot], size);
+			}
+		}
+		capacity = size;
+	}
+
+
+	/**
+	 * Make a copy of this MoG.
+	 *
+	 * @param des a placeholder, a new instance is created if it is null
+	 * @return
+	 */
+	public PackedGaussianMixture copy(PackedGaussianMixture des) {
+		if (des == null) { des = new PackedGaussianMixture(ncomponent); }
+		if (des == this) { return des; }
+		des.clear();
+		des.ensureCapacity(ncomponent);
+		for (int islot = 0; islot < NSLOT; islot++) {
+			if (!has(islot)) { continue; }
+			des.addSlot(islot, dims[islot]);
+			System.arraycopy(mus[islot], 0, des.mus[islot], 0, ncomponent * dims[islot]);
+			System.arraycopy(vars[islot], 0, des.vars[islot], 0, ncomponent);
+		}
+		System.arraycopy(weights, 0, des.weights, 0, ncomponent);
+		des.ncomponent = ncomponent;
+		return des;
+	}
+
+
+	/**
+	 * Integral of the product of two spherical gaussians, in logarithm. It is the same as
+	 * {@link DiagonalGaussianDistribution#mulAndMarginalize(GaussianDistribution)}.
+	 *
+	 * @param mus0 means of the gaussian
+	 * @param off0 offset of the means
+	 * @param var0 log standard deviation of the gaussian
+	 * @param mus1 means of the other gaussian
+	 * @param off1 offset of the means
+	 * @param var1 log standard deviation of the other gaussian
+	 * @param dim  dimension of the gaussians
+	 * @return
+	 */
+	public static double integral(double[] mus0, int off0, double var0, double[] mus1, int off1, double var1, int dim) {
+		double value = 0, diff;
+		double vtmp = 2 * (Math.exp(var0 * 2) + Math.exp(var1 * 2));
+		for (int d = 0; d < dim; d++) {
+			diff = mus0[off0 + d] - mus1[off1 + d];
+			value -= diff * diff;
+		}
+		return value / vtmp - 0.5 * dim * Math.log(vtmp * Math.PI);
+	}
+
+
+	/**
+	 * Multiply the specific portion of the k-th component by the given mixture and marginalize
+	 * the portion. The first portion of the given mixture is used.
+	 *
+	 * @param k   index of the component
+	 * @param key which denotes the portion, to be marginalized, of the component
+	 * @param gm  mixture of gaussians, e.g., the inside score of the child
+	 * @return    logarithm of the marginal, to be added to the mixing weight of the component
+	 */
+	public double mulAndMarginalize(int k, RuleUnit key, PackedGaussianMixture gm) {
+		int islot = key.ordinal(), jslot = gm.first();
+		if (jslot < 0 || gm.dims[jslot] != dims[islot]) {
+			logger.error("Invalid multipliers. input: " + gm + ", this: " + this + "\n");
+			return Double.NEGATIVE_INFINITY;
+		}
+		int dim = dims[islot];
+		double logsum = Double.NEGATIVE_INFINITY;
+		double var = vars[islot][k];
+		double[] amus = mus[islot], amus1 = gm.mus[jslot], avars1 = gm.vars[jslot];
+		for (int j = 0; j < gm.ncomponent; j++) {
+			double logcomp = gm.weights[j] + integral(amus, k * dim, var, amus1, j * dim, avars1[j], dim);
+			logsum = FunUtil.logAdd(logsum, logcomp);
+		}
+		return logsum;
+	}
+
+
+	/**
+	 * Multiply this MoG by the given mixture and marginalize the specific portion of the result.
+	 * The counterpart of {@link GaussianMixture#mulAndMarginalize(GaussianMixture, GaussianMixture, RuleUnit, boolean)}.
+	 *
+	 * @param gm  mixture of gaussians that needs to be marginalized
+	 * @param des a placeholder, which could be this MoG itself, a new instance is created if it is null
+	 * @param key which denotes the portion, to be marginalized, of the component
+	 * @return
+	 */
+	public PackedGaussianMixture mulAndMarginalize(PackedGaussianMixture gm, PackedGaussianMixture des, RuleUnit key) {
+		des = copy(des);
+		// w(ROOT->X) has no P portion in computing outside score
+		if (!des.has(key.ordinal())) { return des; }
+		for (int k = 0; k < des.ncomponent; k++) {
+			des.weights[k] += des.mulAndMarginalize(k, key, gm);
+		}
+		des.slots &= ~(1 << key.ordinal());
+		return des;
+	}
+
+
+	/**
+	 * Multiply this MoG by the given mixture of gaussians. The portions of the two mixtures must be disjoint.
+	 *
+	 * @param multiplier the other mixture of gaussians
+	 * @return
+	 */
+	public PackedGaussianMixture multiply(PackedGaussianMixture multiplier) {
+		if ((slots & multiplier.slots) != 0) {
+			logger.error("Overlapped portions of the multipliers. input: " + multiplier + ", this: " + this + "\n");
+			return null;
+		}
+		int n0 = ncomponent, n1 = multiplier.ncomponent;
+		PackedGaussianMixture des = new PackedGaussianMixture(n0 * n1);
+		for (int islot = 0; islot < NSLOT; islot++) {
+			if (has(islot)) {
+				des.addSlot(islot, dims[islot]);
+			} else if (multiplier.has(islot)) {
+				des.addSlot(islot, multiplier.dims[islot]);
+			}
+		}
+		for (int i = 0; i < n0; i++) {
+			for (int j = 0; j < n1; j++) {
+				int k = des.ncomponent++;
+				// CHECK Math.log(Math.exp(a) * Math.exp(b))
+				des.weights[k] = weights[i] + multiplier.weights[j];
+				for (int islot = 0; islot < NSLOT; islot++) {
+					PackedGaussianMixture src = has(islot) ? this : (multiplier.has(islot) ? multiplier : null);
+					if (src == null) { continue; }
+					int dim = src.dims[islot], c = src == this ? i : j;
+					System.arraycopy(src.mus[islot], c * dim, des.mus[islot], k * dim, dim);
+					des.vars[islot][k] = src.vars[islot][c];
+				}
+			}
+		}
+		return des;
+	}
+
+
+	/**
+	 * Marginalize the mixture of gaussians.
+	 *
+	 * @param logarithm whether the return value is the logarithm form or not
+	 * @return
+	 */
+	public double marginalize(boolean logarithm) {
+		if (logarithm) {
+			double logval = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < ncomponent; k++) {
+				logval = FunUtil.logAdd(logval, weights[k]);
+			}
+			return logval;
+		} else {
+			double value = 0;
+			for (int k = 0; k < ncomponent; k++) {
+				value += Math.exp(weights[k]);
+			}
+			return value;
+		}
+	}
+
+
+	/**
+	 * Marginalize the specific portions of the mixture of gaussians.
+	 *
+	 * @param keys which map to the portions, to be marginalized, of the mixture of gaussians
+	 */
+	public void marginalize(EnumSet<RuleUnit> keys) {
+		for (RuleUnit key : keys) {
+			slots &= ~(1 << key.ordinal());
+		}
+	}
+
+
+	/**
+	 * Remove the trivial components. The same pruning rules as {@link GaussianMixture#delTrivia()}.
+	 * The retained components are ordered by the mixing weight in descending order.
+	 */
+	public void delTrivia() {
+		if (ncomponent <= 1) { return; }
+		int[] order = sort();
+		int base = GaussianMixture.nbig(ncomponent);
+		int n = 0;
+		if (base >= 0) {
+			n = Math.min(base, ncomponent);
+		} else {
+			double maxw = weights[order[0]];
+			for (int i = 0; i < ncomponent; i++) {
+				if (GaussianMixture.isTrivial(weights[order[i]], maxw)) { break; }
+				n++;
+			}
+		}
+		retain(order, n);
+	}
+
+
+	/**
+	 * @return indexes of the components sorted by the mixing weight in descending order
+	 */
+	public int[] sort() {
+		int[] order = new int[ncomponent];
+		for (int i = 0; i < ncomponent; i++) {
+			order[i] = i;
+		}
+		// heap sort, the root holds the smallest weight
+		for (int i = ncomponent / 2 - 1; i >= 0; i--) {
+			siftDown(order, i, ncomponent);
+		}
+		for (int end = ncomponent - 1; end > 0; end--) {
+			int tmp = order[0];
+			order[0] = order[end];
+			order[end] = tmp;
+			siftDown(order, 0, end);
+		}
+		return order;
+	}
+
+
+	private void siftDown(int[] order, int i, int n) {
+		int item = order[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) { break; }
+			if (child + 1 < n && weights[order[child + 1]] < weights[order[child]]) { child++; }
+			if (weights[order[child]] >= weights[item]) { break; }
+			order[i] = order[child];
+			i = child;
+		}
+		order[i] = item;
+	}
+
+
+	/**
+	 * Keep the first n components given by the order.
+	 *
+	 * @param order indexes of the components
+	 * @param n     # of the components to be retained
+	 */
+	protected void retain(int[] order, int n) {
+		double[] aweights = new double[capacity];
+		for (int i = 0; i < n; i++) {
+			aweights[i] = weights[order[i]];
+		}
+		weights = aweights;
+		for (int islot = 0; islot < NSLOT; islot++) {
+			if (!has(islot)) { continue; }
+			int dim = dims[islot];
+			double[] amus = new double[capacity * dim], avars = new double[capacity];
+			for (int i = 0; i < n; i++) {
+				System.arraycopy(mus[islot], order[i] * dim, amus, i * dim, dim);
+				avars[i] = vars[islot][order[i]];
+			}
+			mus[islot] = amus;
+			vars[islot] = avars;
+		}
+		ncomponent = n;
+	}
+
+
+	/**
+	 * Merge the same components, which could be resulted in by the marginalization,
+	 * of the mixture of gaussians.
+	 *
+	 * @param gm mixture of gaussians
+	 * @return
+	 */
+	public static PackedGaussianMixture merge(PackedGaussianMixture gm) {
+		PackedGaussianMixture amixture = new PackedGaussianMixture(gm.ncomponent);
+		for (int islot = 0; islot < NSLOT; islot++) {
+			if (gm.has(islot)) { amixture.addSlot(islot, gm.dims[islot]); }
+		}
+		for (int k = 0; k < gm.ncomponent; k++) {
+			int idx = amixture.contains(gm, k);
+			if (idx < 0) {
+				int i = amixture.ncomponent++;
+				amixture.weights[i] = gm.weights[k];
+				for (int islot = 0; islot < NSLOT; islot++) {
+					if (!gm.has(islot)) { continue; }
+					int dim = gm.dims[islot];
+					System.arraycopy(gm.mus[islot], k * dim, amixture.mus[islot], i * dim, dim);
+					amixture.vars[islot][i] = gm.vars[islot][k];
+				}
+			} else {
+				// CHECK Math.log(Math.exp(a) + Math.exp(b))
+				amixture.weights[idx] = FunUtil.logAdd(amixture.weights[idx], gm.weights[k]);
+			}
+		}
+		return amixture;
+	}
+
+
+	/**
+	 * @param gm mixture of gaussians that has the same portions as this one
+	 * @param k  index of the component of gm
+	 * @return   index of the identical component in this mixture, or -1 if not found
+	 */
+	public int contains(PackedGaussianMixture gm, int k) {
+		for (int i = 0; i < ncomponent; i++) {
+			boolean found = true;
+			for (int islot = 0; islot < NSLOT && found; islot++) {
+				if (!has(islot)) { continue; }
+				int dim = dims[islot];
+				if (Double.doubleToLongBits(vars[islot][i]) != Double.doubleToLongBits(gm.vars[islot][k])) {
+					found = false;
+					break;
+				}
+				for (int d = 0; d < dim; d++) {
+					if (Double.doubleToLongBits(mus[islot][i * dim + d]) != Double.doubleToLongBits(gm.mus[islot][k * dim + d])) {
+						found = false;
+						break;
+					}
+				}
+			}
+			if (found) { return i; }
+		}
+		return -1;
+	}
+
+
+	/**
+	 * @return ordinal of the first portion, or -1 if there is no portion
+	 */
+	public int first() {
+		return slots == 0 ? -1 : Integer.numberOfTrailingZeros(slots);
+	}
+
+
+	public boolean has(int islot) {
+		return (slots & (1 << islot)) != 0;
+	}
+
+
+	public boolean has(RuleUnit key) {
+		return has(key.ordinal());
+	}
+
+
+	public int ncomponent() {
+		return ncomponent;
+	}
+
+
+	public short dim(RuleUnit key) {
+		return has(key) ? dims[key.ordinal()] : -1;
+	}
+
+
+	public double getWeight(int iComponent) {
+		return weights[iComponent];
+	}
+
+
+	public void setWeight(int iComponent, double weight) {
+		weights[iComponent] = weight;
+	}
+
+
+	/**
+	 * The primitive view of the mixing weights, only the first {@link #ncomponent()} values are valid.
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+
+	/**
+	 * The primitive view of the means of the specific portion, mus[k * dim + d] is the d-th mean of the k-th component.
+	 */
+	public double[] getMus(RuleUnit key) {
+		return mus[key.ordinal()];
+	}
+
+
+	/**
+	 * The primitive view of the log standard deviations of the specific portion, one per component.
+	 */
+	public double[] getVars(RuleUnit key) {
+		return vars[key.ordinal()];
+	}
+
+
+	/**
+	 * Memory is retained for reuse.
+	 */
+	public void clear() {
+		slots = 0;
+		ncomponent = 0;
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("PGM [ncomponent=" + ncomponent + ", weights=[");
+		for (int k = 0; k < ncomponent; k++) {
+			if (k > 0) { sb.append(", "); }
+			sb.append(weights[k]);
+		}
+		sb.append("], portions=[");
+		for (int islot = 0, cnt = 0; islot < NSLOT; islot++) {
+			if (!has(islot)) { continue; }
+			if (cnt++ > 0) { sb.append(", "); }
+			sb.append(UNITS[islot] + ":" + dims[islot]);
+		}
+		sb.append("]]");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,482 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.impl.UnaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+import edu.shanghaitech.ai.nlp.util.BinaryFile;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+
+/**
+ * Packed copy of the parameters of the grammar and the lexicon, which is written to and read from a versioned
+ * binary file. The file is little-endian and laid out as
+ * <pre>
+ * magic "LVGB", version, tag strings, unknown level, word strings, grammar rules, lexicon rules
+ * </pre>
+ * where the strings are stored as the byte length followed by the UTF-8 bytes, and the rules of each part are
+ * stored as flat arrays: the keys ({@link RuleIndex#key(GrammarRule)}), the biases, the probabilities, the # of
+ * components and the portions (bit mask of the {@code RuleUnit} ordinals) of the rule weights, the dimensions
+ * of the portions, and the mixing weights, means and log standard deviations in the order of the rules and, for
+ * a rule, in that of {@link PackedGaussianMixture}. Every array is preceded by its length and aligned to 8 bytes.
+ * Reading maps the file and copies the arrays into the packed mixtures in bulk. The optimizer is not saved.
+ * <p>
+ * The parameters updated after the file was written can be appended to the delta file (the file name plus
+ * {@link #DELTA_SUFFIX}) as segments of
+ * <pre>
+ * magic "LVGD", version, # of bytes of the rules, grammar rules, lexicon rules
+ * </pre>
+ * each of which only holds the rules that changed since the previous segment. {@link #loadWithDeltas(String)}
+ * replaces the rules of the file by those of the segments in order, and ignores a trailing segment that was not
+ * completely written.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class PackedGrammar {
+	public static final int MAGIC = 0x4247564c; // "LVGB" in little-endian
+	public static final int VERSION = 1;
+	public static final int DELTA_MAGIC = 0x4447564c; // "LVGD" in little-endian
+	public static final String DELTA_SUFFIX = ".delta";
+
+	protected String[] tags;
+	protected String[] words;
+	protected int unknownLevel;
+	protected Rules grammar;
+	protected Rules lexicon;
+
+
+	protected PackedGrammar() {}
+
+
+	/**
+	 * @param grammar the grammar
+	 * @param lexicon the lexicon
+	 * @return        the packed copy of the parameters, which does not change with the grammar afterwards
+	 */
+	public static PackedGrammar pack(LVeGGrammar grammar, LVeGLexicon lexicon) {
+		if (!(lexicon instanceof SimpleLVeGLexicon)) {
+			throw new IllegalArgumentException("Only SimpleLVeGLexicon can be packed.");
+		}
+		PackedGrammar packed = new PackedGrammar();
+		Numberer numberer = grammar.numberer;
+		packed.tags = new String[grammar.ntag];
+		for (int i = 0; i < grammar.ntag; i++) {
+			packed.tags[i] = String.valueOf(numberer.object(i));
+		}
+		SimpleLVeGLexicon slexicon = (SimpleLVeGLexicon) lexicon;
+		packed.words = slexicon.wordIndexer.getObjects().toArray(new String[0]);
+		packed.unknownLevel = lexicon.unknownLevel;
+
+		int nrule = grammar.bRuleMap.size() + grammar.uRuleMap.size();
+		packed.grammar = new Rules(nrule);
+		packed.grammar.add(grammar.bRuleMap.values());
+		packed.grammar.add(grammar.uRuleMap.values());
+		packed.lexicon = new Rules(lexicon.uRuleMap.size());
+		packed.lexicon.add(lexicon.uRuleMap.values());
+		return packed;
+	}
+
+
+	/**
+	 * @param grammar  the grammar
+	 * @param lexicon  the lexicon
+	 * @param grules   the rules of the grammar to be packed
+	 * @param lrules   the rules of the lexicon to be packed
+	 * @return         the packed copy of the given rules, which can only be appended as a delta segment
+	 */
+	public static PackedGrammar pack(LVeGGrammar grammar, LVeGLexicon lexicon, 
+			Collection<GrammarRule> grules, Collection<GrammarRule> lrules) {
+		PackedGrammar packed = new PackedGrammar();
+		packed.grammar = new Rules(grules.size());
+		packed.grammar.add(grules);
+		packed.lexicon = new Rules(lrules.size());
+		packed.lexicon.add(lrules);
+		return packed;
+	}
+	
+	
+	public int nrule() {
+		return grammar.size + lexicon.size;
+	}
+
+
+	/**
+	 * @param rule the rule of the grammar or of the lexicon
+	 * @return     whether the rule is packed
+	 */
+	public boolean contains(GrammarRule rule) {
+		long key = RuleIndex.key(rule);
+		return grammar.indexOf(key) >= 0 || lexicon.indexOf(key) >= 0;
+	}
+
+
+	/**
+	 * Replace the rules with those of the delta segment, and add the rules that are not yet packed.
+	 * 
+	 * @param delta the rules updated since the parameters were packed
+	 */
+	public void merge(PackedGrammar delta) {
+		grammar.merge(delta.grammar);
+		lexicon.merge(delta.lexicon);
+	}
+
+
+	/**
+	 * @return the grammar and the lexicon built from the packed parameters, without the optimizers
+	 */
+	public GrammarFile unpack() {
+		Numberer numberer = new Numberer(true);
+		for (String tag : tags) {
+			numberer.number(tag);
+		}
+		SimpleLVeGGrammar agrammar = new SimpleLVeGGrammar(numberer, -1);
+		SimpleLVeGLexicon alexicon = new SimpleLVeGLexicon(numberer, -1);
+		alexicon.unknownLevel = unknownLevel;
+		for (String word : words) {
+			alexicon.wordIndexer.add(word);
+		}
+		grammar.unpack(agrammar);
+		lexicon.unpack(alexicon);
+		agrammar.postInitialize();
+		alexicon.postInitialize();
+		return new GrammarFile(agrammar, alexicon);
+	}
+
+
+	public static boolean isPacked(String filename) {
+		return BinaryFile.startsWith(filename, MAGIC);
+	}
+
+
+	public void save(String filename) throws IOException {
+		Path path = Paths.get(filename);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			BinaryFile.write(channel, header);
+			BinaryFile.writeStrings(channel, tags);
+			ByteBuffer level = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			level.putInt(unknownLevel).putInt(0);
+			level.flip();
+			BinaryFile.write(channel, level);
+			BinaryFile.writeStrings(channel, words);
+			grammar.write(channel);
+			lexicon.write(channel);
+		}
+	}
+
+
+	/**
+	 * Append the rules as a segment of the delta file of the given file, and force it to the disk. If the append
+	 * fails, the delta file is truncated back to its previous length, so that the segments appended afterwards
+	 * never follow a partially written one.
+	 * 
+	 * @param filename the packed grammar file the delta file belongs to
+	 */
+	public void appendDelta(String filename) throws IOException {
+		ByteBuffer grules = grammar.encode(), lrules = lexicon.encode();
+		Path path = Paths.get(filename + DELTA_SUFFIX);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long length = channel.size();
+			try {
+				channel.position(length);
+				ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(DELTA_MAGIC).putInt(VERSION).putLong(grules.remaining() + lrules.remaining());
+				header.flip();
+				BinaryFile.write(channel, header);
+				BinaryFile.write(channel, grules);
+				BinaryFile.write(channel, lrules);
+				channel.force(false);
+			} catch (IOException | RuntimeException e) {
+				try {
+					channel.truncate(length);
+					channel.force(false);
+				} catch (IOException te) {
+					e.addSuppressed(te);
+				}
+				throw e;
+			}
+		}
+	}
+
+
+	/**
+	 * @param filename the packed grammar file
+	 * @return         the parameters of the file updated by the segments of its delta file if there is one
+	 */
+	public static PackedGrammar loadWithDeltas(String filename) throws IOException {
+		PackedGrammar packed = load(filename);
+		for (PackedGrammar delta : loadDeltas(filename)) {
+			packed.merge(delta);
+		}
+		return packed;
+	}
+
+
+	/**
+	 * @param filename the packed grammar file
+	 * @return         the segments of its delta file in order, of which only the rules are set
+	 */
+	public static List<PackedGrammar> loadDeltas(String filename) throws IOException {
+		List<PackedGrammar> deltas = new ArrayList<>();
+		Path path = Paths.get(filename + DELTA_SUFFIX);
+		if (!Files.exists(path)) { return deltas; }
+		MappedByteBuffer buffer = BinaryFile.map(path.toString());
+		while (buffer.remaining() >= 16) {
+			int magic = buffer.getInt(), version = buffer.getInt();
+			long nbyte = buffer.getLong();
+			if (magic != DELTA_MAGIC || version != VERSION || nbyte > buffer.remaining()) { 
+				break; // the segment was being written when the writer stopped
+			}
+			PackedGrammar delta = new PackedGrammar();
+			delta.grammar = Rules.read(buffer);
+			delta.lexicon = Rules.read(buffer);
+			deltas.add(delta);
+		}
+		return deltas;
+	}
+
+
+	public static PackedGrammar load(String filename) throws IOException {
+		MappedByteBuffer buffer = BinaryFile.map(filename);
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Not a packed grammar file: " + filename);
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version " + version + " of the packed grammar file: " + filename);
+		}
+		PackedGrammar packed = new PackedGrammar();
+		packed.tags = BinaryFile.readStrings(buffer);
+		packed.unknownLevel = buffer.getInt();
+		buffer.getInt(); // padding
+		packed.words = BinaryFile.readStrings(buffer);
+		packed.grammar = Rules.read(buffer);
+		packed.lexicon = Rules.read(buffer);
+		return packed;
+	}
+
+
+	/**
+	 * Packed rules of the grammar or of the lexicon.
+	 */
+	protected static class Rules {
+		protected int size;
+		protected long[] keys;
+		protected double[] biases;
+		protected double[] probs;
+		protected PackedGaussianMixture[] weights;
+
+		protected Rules(int capacity) {
+			this.size = 0;
+			this.keys = new long[capacity];
+			this.biases = new double[capacity];
+			this.probs = new double[capacity];
+			this.weights = new PackedGaussianMixture[capacity];
+		}
+
+		protected void add(Collection<GrammarRule> rules) {
+			for (GrammarRule rule : rules) {
+				PackedGaussianMixture weight = PackedGaussianMixture.pack(rule.weight, null);
+				if (weight == null) {
+					throw new IllegalArgumentException("The weight of the rule " + rule + " cannot be packed.");
+				}
+				keys[size] = RuleIndex.key(rule);
+				biases[size] = rule.weight.getBias();
+				probs[size] = rule.weight.getProb();
+				weights[size] = weight;
+				size++;
+			}
+		}
+
+		protected void unpack(LVeGGrammar des) {
+			for (int i = 0; i < size; i++) {
+				long key = keys[i];
+				GaussianMixture weight = weights[i].unpack(null);
+				weight.setBias(biases[i]);
+				weight.setProb(probs[i]);
+				GrammarRule rule;
+				RuleType type = RuleIndex.type(key);
+				if (type == RuleType.LRBRULE) {
+					rule = new BinaryGrammarRule(RuleIndex.parent(key), RuleIndex.lchild(key), RuleIndex.rchild(key), weight);
+					des.bRuleTable.addCount(rule, biases[i]); // postInitialize() adds the rules of the tables
+				} else {
+					rule = new UnaryGrammarRule(RuleIndex.parent(key), RuleIndex.child(key), type, weight);
+					des.uRuleTable.addCount(rule, biases[i]);
+				}
+			}
+		}
+
+		protected int indexOf(long key) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i] == key) { return i; }
+			}
+			return -1;
+		}
+
+		/**
+		 * Replace the rules with the same keys as the given ones, and add the others.
+		 */
+		protected void merge(Rules delta) {
+			Map<Long, Integer> index = new HashMap<>(size * 2);
+			for (int i = 0; i < size; i++) {
+				index.put(keys[i], i);
+			}
+			for (int j = 0; j < delta.size; j++) {
+				Integer i = index.get(delta.keys[j]);
+				if (i == null) {
+					if (size == keys.length) {
+						int capacity = Math.max(size * 2, 8);
+						keys = Arrays.copyOf(keys, capacity);
+						biases = Arrays.copyOf(biases, capacity);
+						probs = Arrays.copyOf(probs, capacity);
+						weights = Arrays.copyOf(weights, capacity);
+					}
+					i = size++;
+					keys[i] = delta.keys[j];
+					index.put(keys[i], i);
+				}
+				biases[i] = delta.biases[j];
+				probs[i] = delta.probs[j];
+				weights[i] = delta.weights[j];
+			}
+		}
+
+		protected void write(FileChannel channel) throws IOException {
+			BinaryFile.write(channel, encode());
+		}
+
+		/**
+		 * @return the buffer of the rules, ready to be written
+		 */
+		protected ByteBuffer encode() {
+			int nslot = 0, ncomp = 0, nmu = 0, nvar = 0;
+			for (int i = 0; i < size; i++) {
+				PackedGaussianMixture weight = weights[i];
+				ncomp += weight.ncomponent;
+				for (int islot = 0; islot < PackedGaussianMixture.NSLOT; islot++) {
+					if (!weight.has(islot)) { continue; }
+					nslot++;
+					nvar += weight.ncomponent;
+					nmu += weight.ncomponent * weight.dims[islot];
+				}
+			}
+			int nbyte = 8 + size * (8 * 3 + 4 * 2) + 8 + BinaryFile.align(nslot * 2) + 8 * 3 + (ncomp + nmu + nvar) * 8;
+			ByteBuffer buffer = ByteBuffer.allocate(nbyte).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(size).putInt(0);
+			for (int i = 0; i < size; i++) { buffer.putLong(keys[i]); }
+			for (int i = 0; i < size; i++) { buffer.putDouble(biases[i]); }
+			for (int i = 0; i < size; i++) { buffer.putDouble(probs[i]); }
+			for (int i = 0; i < size; i++) { buffer.putInt(weights[i].ncomponent); }
+			for (int i = 0; i < size; i++) { buffer.putInt(weights[i].slots); }
+
+			buffer.putInt(nslot).putInt(0);
+			for (int i = 0; i < size; i++) {
+				PackedGaussianMixture weight = weights[i];
+				for (int islot = 0; islot < PackedGaussianMixture.NSLOT; islot++) {
+					if (weight.has(islot)) { buffer.putShort(weight.dims[islot]); }
+				}
+			}
+			BinaryFile.skipPadding(buffer);
+
+			buffer.putLong(ncomp);
+			for (int i = 0; i < size; i++) {
+				PackedGaussianMixture weight = weights[i];
+				for (int k = 0; k < weight.ncomponent; k++) { buffer.putDouble(weight.weights[k]); }
+			}
+			buffer.putLong(nmu);
+			for (int i = 0; i < size; i++) {
+				PackedGaussianMixture weight = weights[i];
+				for (int islot = 0; islot < PackedGaussianMixture.NSLOT; islot++) {
+					if (!weight.has(islot)) { continue; }
+					int n = weight.ncomponent * weight.dims[islot];
+					for (int j = 0; j < n; j++) { buffer.putDouble(weight.mus[islot][j]); }
+				}
+			}
+			buffer.putLong(nvar);
+			for (int i = 0; i < size; i++) {
+				PackedGaussianMixture weight = weights[i];
+				for (int islot = 0; islot < PackedGaussianMixture.NSLOT; islot++) {
+					if (!weight.has(islot)) { continue; }
+					for (int k = 0; k < weight.ncomponent; k++) { buffer.putDouble(weight.vars[islot][k]); }
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		protected static Rules read(ByteBuffer buffer) throws IOException {
+			int size = buffer.getInt();
+			buffer.getInt();
+			Rules rules = new Rules(size);
+			rules.size = size;
+			buffer.asLongBuffer().get(rules.keys);
+			buffer.position(buffer.position() + size * 8);
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			doubles.get(rules.biases).get(rules.probs);
+			buffer.position(buffer.position() + size * 16);
+			int[] ncomps = new int[size], slots = new int[size];
+			buffer.asIntBuffer().get(ncomps).get(slots);
+			buffer.position(buffer.position() + size * 8);
+
+			int nslot = buffer.getInt();
+			buffer.getInt();
+			short[] dims = new short[nslot];
+			buffer.asShortBuffer().get(dims);
+			buffer.position(buffer.position() + nslot * 2);
+			BinaryFile.skipPadding(buffer);
+
+			DoubleBuffer weights = section(buffer);
+			DoubleBuffer mus = section(buffer);
+			DoubleBuffer vars = section(buffer);
+			for (int i = 0, idim = 0; i < size; i++) {
+				int ncomp = ncomps[i];
+				PackedGaussianMixture weight = new PackedGaussianMixture(ncomp);
+				for (int islot = 0; islot < PackedGaussianMixture.NSLOT; islot++) {
+					if ((slots[i] & (1 << islot)) == 0) { continue; }
+					if (idim >= nslot) {
+						throw new IOException("Inconsistent portions of the packed grammar file.");
+					}
+					short dim = dims[idim++];
+					weight.addSlot(islot, dim);
+					mus.get(weight.mus[islot], 0, ncomp * dim);
+					vars.get(weight.vars[islot], 0, ncomp);
+				}
+				weights.get(weight.weights, 0, ncomp);
+				weight.ncomponent = ncomp;
+				rules.weights[i] = weight;
+			}
+			return rules;
+		}
+
+		/**
+		 * @return the view of the array of doubles at the current position, which is then skipped
+		 */
+		private static DoubleBuffer section(ByteBuffer buffer) {
+			int n = (int) buffer.getLong();
+			return BinaryFile.slice(buffer, n * 8).asDoubleBuffer();
+		}
+	}
+
+}
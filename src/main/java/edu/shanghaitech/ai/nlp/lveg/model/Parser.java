@@ -4,11 +4,8 @@ import java.util.PriorityQueue;
 import java.util.Set;
 
 import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
-import edu.shanghaitech.ai.nlp.lveg.model.Inferencer.InputToSubCYKer;
-import edu.shanghaitech.ai.nlp.lveg.model.Inferencer.SubCYKer;
 import edu.shanghaitech.ai.nlp.util.Executor;
 import edu.shanghaitech.ai.nlp.util.Recorder;
-import edu.shanghaitech.ai.nlp.util.ThreadPool;
 
 public abstract class Parser<I, O> extends Recorder implements Executor<I, O> {
 	/**
@@ -30,7 +27,7 @@ public abstract class Parser<I, O> extends Recorder implements Executor<I, O> {
 	protected PriorityQueue<Meta<O>> caches;
 	protected Set<String>[][][] masks;
 	
-	protected transient ThreadPool cpool;
+	protected transient CYKScheduler scheduler;
 	
 	protected Parser(short maxslen, short nthread, boolean parallel, boolean iosprune, boolean usemask) {
 		this.maxslen = maxslen;
@@ -40,8 +37,7 @@ public abstract class Parser<I, O> extends Recorder implements Executor<I, O> {
 		this.parallel = parallel;
 		this.nthread = nthread < 0 ? 1 : nthread;
 		if (parallel) {
-			SubCYKer<?, ?> subCYKer = new SubCYKer<InputToSubCYKer, Boolean>();
-			this.cpool = new ThreadPool(subCYKer, nthread);
+			this.scheduler = new CYKScheduler(nthread);
 		}
 	}
 	
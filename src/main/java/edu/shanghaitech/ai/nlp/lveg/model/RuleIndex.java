@@ -0,0 +1,135 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.util.Arrays;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.impl.UnaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+
+/**
+ * Open-addressing index from the packed keys of the rules to the rules, so that looking up a rule costs
+ * a few array probes instead of allocating a query rule. A key packs the rule type into bits 48-51, the
+ * parent into bits 32-47, and the child (unary rules) or the left and right children (binary rules, 16
+ * bits each) into the lower 32 bits. The index is filled once and is read-only afterwards, so it can be
+ * shared by the threads.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class RuleIndex {
+	private static final long EMPTY = -1; // never a valid key since bits 52-63 are zero
+	private static final RuleType[] TYPES = RuleType.values();
+	private long[] keys;
+	private GrammarRule[] rules;
+	private int size;
+	private int mask;
+
+
+	public RuleIndex(int capacity) {
+		int n = 16;
+		while (n < capacity * 2) { n <<= 1; } // load factor <= 0.5
+		this.keys = new long[n];
+		this.rules = new GrammarRule[n];
+		this.mask = n - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+
+
+	public static long key(short idParent, short idlChild, short idrChild) {
+		return ((long) RuleType.LRBRULE.ordinal() << 48) | ((long) (idParent & 0xffff) << 32) |
+				((long) (idlChild & 0xffff) << 16) | (idrChild & 0xffff);
+	}
+
+
+	public static long key(short idParent, int idChild, RuleType type) {
+		return ((long) type.ordinal() << 48) | ((long) (idParent & 0xffff) << 32) | (idChild & 0xffffffffL);
+	}
+
+
+	public static long key(GrammarRule rule) {
+		if (rule.isUnary()) {
+			UnaryGrammarRule urule = (UnaryGrammarRule) rule;
+			return key(urule.lhs, urule.rhs, urule.type);
+		} else {
+			BinaryGrammarRule brule = (BinaryGrammarRule) rule;
+			return key(brule.lhs, brule.lchild, brule.rchild);
+		}
+	}
+
+
+	public static RuleType type(long key) {
+		return TYPES[(int) (key >>> 48)];
+	}
+
+
+	public static short parent(long key) {
+		return (short) (key >>> 32);
+	}
+
+
+	/**
+	 * @return the child of the unary rule
+	 */
+	public static int child(long key) {
+		return (int) key;
+	}
+
+
+	public static short lchild(long key) {
+		return (short) (key >>> 16);
+	}
+
+
+	public static short rchild(long key) {
+		return (short) key;
+	}
+
+
+	public GrammarRule get(long key) {
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			if (keys[i] == key) { return rules[i]; }
+			if (keys[i] == EMPTY) { return null; }
+		}
+	}
+
+
+	public void put(long key, GrammarRule rule) {
+		if ((size + 1) * 2 > keys.length) { resize(); }
+		int i = slot(key);
+		for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				rules[i] = rule;
+				return;
+			}
+		}
+		keys[i] = key;
+		rules[i] = rule;
+		size++;
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L; // fibonacci hashing
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+
+	private void resize() {
+		long[] okeys = keys;
+		GrammarRule[] orules = rules;
+		keys = new long[okeys.length * 2];
+		rules = new GrammarRule[okeys.length * 2];
+		mask = keys.length - 1;
+		size = 0;
+		Arrays.fill(keys, EMPTY);
+		for (int i = 0; i < okeys.length; i++) {
+			if (okeys[i] != EMPTY) { put(okeys[i], orules[i]); }
+		}
+	}
+
+}
@@ -1,7 +1,8 @@
 package edu.shanghaitech.ai.nlp.optimization;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
@@ -14,6 +15,7 @@ import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
 import edu.shanghaitech.ai.nlp.optimization.Optimizer.OptChoice;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
 import edu.shanghaitech.ai.nlp.util.Recorder;
 
 /**
@@ -27,29 +29,29 @@ public class Gradient extends Recorder implements Serializable {
 	private static final long serialVersionUID = 2620919219751675203L;
 	public static class Grads {
 		public List<Double> wgrads;
-		public List<EnumMap<RuleUnit, List<Double>>> ggrads;
-		public Grads(List<Double> wgrads, List<EnumMap<RuleUnit, List<Double>>> ggrads) {
+		public List<EnumMap<RuleUnit, DoubleArrayList>> ggrads;
+		public Grads(List<Double> wgrads, List<EnumMap<RuleUnit, DoubleArrayList>> ggrads) {
 			this.wgrads = wgrads;
 			this.ggrads = ggrads;
 		}
 	}
 	/*
-	 * It always holds the counts calculated from only one sample, 
-	 * which is equally saying that the batch size is always 1.
+	 * Max # of sentences of which the counts are held by a batch, the gradients 
+	 * of them are evaluated in one pass over the components of the rule weight.
 	 */
-	protected static final short MAX_BATCH_SIZE = 1;
+	protected static short maxbatch = 1;
 	protected boolean updated;
 	protected boolean cumulative;
 	protected double cntUpdate;
 	protected double partition;
-	protected List<Double> wgrads, wgrads1, wgrads2;
-	protected List<EnumMap<RuleUnit, List<Double>>> ggrads, ggrads1, ggrads2, ggradst, ggradss;
+	protected DoubleArrayList wgrads, wgrads1, wgrads2;
+	protected List<EnumMap<RuleUnit, DoubleArrayList>> ggrads, ggrads1, ggrads2, ggradst, ggradss;
 	
 	protected EnumMap<RuleUnit, List<Double>> truths;
 	protected EnumMap<RuleUnit, List<Double>> sample;
 	
-	protected List<EnumMap<RuleUnit, List<List<Double>>>> cachesWithT;
-	protected List<EnumMap<RuleUnit, List<List<Double>>>> cachesWithS;
+	protected List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachesWithT;
+	protected List<EnumMap<RuleUnit, List<DoubleArrayList>>> cachesWithS;
 	
 	public Gradient(GrammarRule rule, Random random, int msample, short bsize) {
 		GaussianMixture ruleW = rule.getWeight();
@@ -57,22 +59,40 @@ public class Gradient extends Recorder implements Serializable {
 		this.cntUpdate = 0;
 		this.partition = Optimizer.batchsize * Optimizer.maxsample;
 		// TODO use lazy initialization?
-		this.wgrads1 = new ArrayList<>(ruleW.ncomponent());
-		this.wgrads2 = new ArrayList<>(ruleW.ncomponent());
+		this.wgrads1 = DoubleArrayList.fill(ruleW.ncomponent(), 0.0);
+		this.wgrads2 = DoubleArrayList.fill(ruleW.ncomponent(), 0.0);
 		this.ggrads1 = ruleW.zeroslike(true);
 		this.ggrads2 = ruleW.zeroslike(true);
 		this.ggradst = ruleW.zeroslike(false);
 		this.ggradss = ruleW.zeroslike(false);
-		for (int i = 0; i < ruleW.ncomponent(); i++) {
-			wgrads1.add(0.0);
-			wgrads2.add(0.0);
-		}
+	}
+	
+	
+	/**
+	 * Gradients accumulated by a single thread, which are merged into the gradients of the
+	 * rule by {@link #merge(Gradient)}. It does not hold the states of the optimizer.
+	 *
+	 * @param rule the grammar rule
+	 */
+	protected Gradient(GrammarRule rule) {
+		GaussianMixture ruleW = rule.getWeight();
+		initialize(ruleW);
+		this.ggradst = ruleW.zeroslike(false);
+		this.ggradss = ruleW.zeroslike(false);
+	}
+
+
+	/**
+	 * @param maxbsize max # of sentences of which the gradients are evaluated together
+	 */
+	public static void config(short maxbsize) {
+		maxbatch = maxbsize < 1 ? 1 : maxbsize;
 	}
 	
 	
 	private void initialize(GaussianMixture ruleW) {
 		this.ggrads = ruleW.zeroslike(false);
-		this.wgrads = new ArrayList<>(ruleW.ncomponent());
+		this.wgrads = new DoubleArrayList(ruleW.ncomponent());
 		List<EnumMap<RuleUnit, List<Double>>> holder = ruleW.zeroslike(0); 
 		this.sample = holder.get(0);
 		this.truths = holder.get(1);
@@ -98,8 +118,8 @@ public class Gradient extends Recorder implements Serializable {
 	
 	protected void reset() {
 		wgrads.clear();
-		for (Map<RuleUnit, List<Double>> ggrad : ggrads) {
-			for (Entry<RuleUnit, List<Double>> part : ggrad.entrySet()) {
+		for (Map<RuleUnit, DoubleArrayList> ggrad : ggrads) {
+			for (Entry<RuleUnit, DoubleArrayList> part : ggrad.entrySet()) {
 				part.getValue().clear();
 			}
 		}
@@ -108,17 +128,49 @@ public class Gradient extends Recorder implements Serializable {
 	}
 	
 	
+	/**
+	 * Accumulate the gradients of the shard, which is reset afterwards.
+	 *
+	 * @param shard gradients of the same rule accumulated by another thread
+	 */
+	protected void merge(Gradient shard) {
+		if (!shard.updated) { return; }
+		merge(wgrads, shard.wgrads, cumulative);
+		for (int k = 0; k < ggrads.size(); k++) {
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = shard.ggrads.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> part : ggrads.get(k).entrySet()) {
+				merge(part.getValue(), gcomp.get(part.getKey()), cumulative);
+			}
+		}
+		cumulative = true;
+		updated = true;
+		shard.reset();
+	}
+
+
+	private static void merge(DoubleArrayList des, DoubleArrayList src, boolean cumulative) {
+		if (!cumulative || des.size() == 0) {
+			des.setAll(src.elements(), src.size());
+			return;
+		}
+		double[] elements = src.elements();
+		for (int i = 0; i < src.size(); i++) {
+			des.increment(i, elements[i]);
+		}
+	}
+
+
 	protected void clearCaches() {
-		for (Map<RuleUnit, List<List<Double>>> caches : cachesWithT) {
-			for (Entry<RuleUnit, List<List<Double>>> part : caches.entrySet()) {
-				for (List<Double> cache : part.getValue()) {
+		for (Map<RuleUnit, List<DoubleArrayList>> caches : cachesWithT) {
+			for (Entry<RuleUnit, List<DoubleArrayList>> part : caches.entrySet()) {
+				for (DoubleArrayList cache : part.getValue()) {
 					cache.clear();
 				}
 			}
 		}
-		for (Map<RuleUnit, List<List<Double>>> caches : cachesWithS) {
-			for (Entry<RuleUnit, List<List<Double>>> part : caches.entrySet()) {
-				for (List<Double> cache : part.getValue()) {
+		for (Map<RuleUnit, List<DoubleArrayList>> caches : cachesWithS) {
+			for (Entry<RuleUnit, List<DoubleArrayList>> part : caches.entrySet()) {
+				for (DoubleArrayList cache : part.getValue()) {
 					cache.clear();
 				}
 			}
@@ -162,16 +214,17 @@ public class Gradient extends Recorder implements Serializable {
 	protected boolean evalintegral(GrammarRule rule, Batch ioScoreWithT, Batch ioScoreWithS, List<Double> scoreSandT) {
 		List<EnumMap<RuleUnit, GaussianMixture>> iosWithT, iosWithS;
 		boolean removed = false, allocated, iallocated;
-		EnumMap<RuleUnit, List<Double>> grads, gradst, gradss;
+		EnumMap<RuleUnit, DoubleArrayList> grads, gradst, gradss;
 		double scoreT, scoreS;
 		
 		GaussianMixture ruleW = rule.getWeight();
+		int nsample = scoreSandT.size() / 2;
 		for (int icomponent = 0; icomponent < ruleW.ncomponent(); icomponent++) {
 			iallocated = false; // ggrad below is assumed to have not been allocated
 			grads = ggrads.get(icomponent);
 			gradst = ggradst.get(icomponent);
 			gradss = ggradss.get(icomponent);
-			for (short i = 0; i < MAX_BATCH_SIZE; i++) {
+			for (short i = 0; i < nsample; i++) { // sentences of the batch share the caches
 				iosWithT = ioScoreWithT.get(i);
 				iosWithS = ioScoreWithS.get(i);
 				if (iosWithT == null && iosWithS == null) { continue; } // zero counts
@@ -199,9 +252,9 @@ public class Gradient extends Recorder implements Serializable {
 				ruleW.derivative(allocated, icomponent, scoreT, scoreS, gradst, gradss, grads, wgrads, iosWithT, iosWithS, cachesWithT, cachesWithS);
 				iallocated = true; // ggrad must have been allocated after derivative() is invoked
 				updated = true; // we can apply gradient descent with the gradients
+				clearCaches(); // the caches hold the integrals of a single sentence
 			}
 			removed = true; // avoid useless checking and removing
-			clearCaches(); // clear caches of this component
 		}
 		cumulative = true; // accumulate gradients in a batch
 		return updated;
@@ -219,10 +272,11 @@ public class Gradient extends Recorder implements Serializable {
 	protected boolean evalsampling(GrammarRule rule, Batch ioScoreWithT, Batch ioScoreWithS, List<Double> scoreSandT) {
 		List<EnumMap<RuleUnit, GaussianMixture>> iosWithT, iosWithS;
 		GaussianMixture ruleW = rule.getWeight();
-		EnumMap<RuleUnit, List<Double>> ggrad;
+		EnumMap<RuleUnit, DoubleArrayList> ggrad;
 		boolean removed = false, allocated, iallocated;
 		double scoreT, scoreS, dRuleW;
 		
+		int nsample = scoreSandT.size() / 2;
 		for (int icomponent = 0; icomponent < ruleW.ncomponent(); icomponent++) {
 			ggrad = ggrads.get(icomponent);
 			iallocated = false; // assume ggrad has not been allocated
@@ -231,7 +285,7 @@ public class Gradient extends Recorder implements Serializable {
 				
 //				logger.trace("\n" + rule + ", icomp" + icomponent + ", isample: " + isample + "\nsample: " + sample + "\ntruths: " + truths + "\n"); // DEBUG
 				
-				for (short i = 0; i < MAX_BATCH_SIZE; i++) {
+				for (short i = 0; i < nsample; i++) {
 					iosWithT = ioScoreWithT.get(i);
 					iosWithS = ioScoreWithS.get(i);
 					if (iosWithT == null && iosWithS == null) { continue; } // zero counts
@@ -359,18 +413,18 @@ public class Gradient extends Recorder implements Serializable {
 	private void normalize() {
 		double grad;
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = -Params.lr * Math.signum(grads0.get(d)) / partition;
+					grad = -Params.lr * Math.signum(grads0.getDouble(d)) / partition;
 					grad = clip(grad);
-					grads0.set(d, grad);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = -Params.lr * Math.signum(wgrads.get(k)) / partition;
+			grad = -Params.lr * Math.signum(wgrads.getDouble(k)) / partition;
 			grad = clip(grad);
-			wgrads.set(k, grad);
+			wgrads.setDouble(k, grad);
 		}
 	}
 	
@@ -378,26 +432,26 @@ public class Gradient extends Recorder implements Serializable {
 	private void sgd() {
 		double g1st, grad;
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp1 = ggrads1.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
-				List<Double> grads1 = gcomp1.get(grads.getKey());
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp1 = ggrads1.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
+				DoubleArrayList grads1 = gcomp1.get(grads.getKey());
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = grads0.get(d) / partition;
+					grad = grads0.getDouble(d) / partition;
 					g1st = -Params.lr * grad;
-					grads1.set(d, g1st);
+					grads1.setDouble(d, g1st);
 					grad = g1st;
 					grad = clip(grad);
-					grads0.set(d, grad);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = wgrads.get(k) / partition;
+			grad = wgrads.getDouble(k) / partition;
 			g1st = -Params.lr * grad;
-			wgrads1.set(k, g1st);
+			wgrads1.setDouble(k, g1st);
 			grad = g1st;
 			grad = clip(grad);
-			wgrads.set(k, grad);
+			wgrads.setDouble(k, grad);
 		}
 	}
 	
@@ -405,26 +459,26 @@ public class Gradient extends Recorder implements Serializable {
 	private void momentum() {
 		double g1st, grad;
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp1 = ggrads1.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
-				List<Double> grads1 = gcomp1.get(grads.getKey());
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp1 = ggrads1.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
+				DoubleArrayList grads1 = gcomp1.get(grads.getKey());
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = grads0.get(d) / partition;
-					g1st = Params.lambda * grads1.get(d) - Params.lr * grad;
-					grads1.set(d, g1st);
+					grad = grads0.getDouble(d) / partition;
+					g1st = Params.lambda * grads1.getDouble(d) - Params.lr * grad;
+					grads1.setDouble(d, g1st);
 					grad = g1st;
 					grad = clip(grad);
-					grads0.set(d, grad);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = wgrads.get(k) / partition;
-			g1st = Params.lambda * wgrads1.get(k) - Params.lr * grad;
-			wgrads1.set(k, g1st);
+			grad = wgrads.getDouble(k) / partition;
+			g1st = Params.lambda * wgrads1.getDouble(k) - Params.lr * grad;
+			wgrads1.setDouble(k, g1st);
 			grad = g1st;
 			grad = clip(grad);
-			wgrads.set(k, grad);
+			wgrads.setDouble(k, grad);
 		}
 	}
 	
@@ -432,26 +486,26 @@ public class Gradient extends Recorder implements Serializable {
 	private void adagrad() {
 		double g2nd, grad;
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp2 = ggrads2.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
-				List<Double> grads2 = gcomp2.get(grads.getKey());
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp2 = ggrads2.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
+				DoubleArrayList grads2 = gcomp2.get(grads.getKey());
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = grads0.get(d) / partition;
-					g2nd = grads2.get(d) + grad * grad;
-					grads2.set(d, g2nd);
+					grad = grads0.getDouble(d) / partition;
+					g2nd = grads2.getDouble(d) + grad * grad;
+					grads2.setDouble(d, g2nd);
 					grad = -Params.lr * grad / Math.sqrt(g2nd+ Params.epsilon);
 					grad = clip(grad);
-					grads0.set(d, grad);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = wgrads.get(k) / partition;
-			g2nd = wgrads2.get(k) + grad * grad;
-			wgrads2.set(k, g2nd);
+			grad = wgrads.getDouble(k) / partition;
+			g2nd = wgrads2.getDouble(k) + grad * grad;
+			wgrads2.setDouble(k, g2nd);
 			grad = -Params.lr * grad / Math.sqrt(g2nd + Params.epsilon);
 			grad = clip(grad);
-			wgrads.set(k, grad);
+			wgrads.setDouble(k, grad);
 		}
 	}
 	
@@ -459,26 +513,26 @@ public class Gradient extends Recorder implements Serializable {
 	private void rmsprop() {
 		double g2nd, grad;
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp2 = ggrads2.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
-				List<Double> grads2 = gcomp2.get(grads.getKey());
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp2 = ggrads2.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
+				DoubleArrayList grads2 = gcomp2.get(grads.getKey());
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = grads0.get(d) / partition;
-					g2nd = Params.lambda * grads2.get(d) + (1 - Params.lambda) * grad * grad;
-					grads2.set(d, g2nd);
+					grad = grads0.getDouble(d) / partition;
+					g2nd = Params.lambda * grads2.getDouble(d) + (1 - Params.lambda) * grad * grad;
+					grads2.setDouble(d, g2nd);
 					grad = -Params.lr * grad / Math.sqrt(g2nd + Params.epsilon);
 					grad = clip(grad);
-					grads0.set(d, grad);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = wgrads.get(k) / partition;
-			g2nd = Params.lambda * wgrads2.get(k) + (1 - Params.lambda) * grad * grad;
-			wgrads2.set(k, g2nd);
+			grad = wgrads.getDouble(k) / partition;
+			g2nd = Params.lambda * wgrads2.getDouble(k) + (1 - Params.lambda) * grad * grad;
+			wgrads2.setDouble(k, g2nd);
 			grad = -Params.lr * grad / (Math.sqrt(g2nd) + Params.epsilon);
 			grad = clip(grad);
-			wgrads.set(k, grad);
+			wgrads.setDouble(k, grad);
 		}
 	}
 	
@@ -486,34 +540,34 @@ public class Gradient extends Recorder implements Serializable {
 	private void adadelta() {
 		double v2nd, g2nd, grad;
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp1 = ggrads1.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp2 = ggrads2.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
-				List<Double> grads1 = gcomp1.get(grads.getKey());
-				List<Double> grads2 = gcomp2.get(grads.getKey());
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp1 = ggrads1.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp2 = ggrads2.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
+				DoubleArrayList grads1 = gcomp1.get(grads.getKey());
+				DoubleArrayList grads2 = gcomp2.get(grads.getKey());
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = grads0.get(d) / partition;
-					v2nd = grads1.get(d);
-					g2nd = Params.lambda * grads2.get(d) + (1 - Params.lambda) * grad * grad;
+					grad = grads0.getDouble(d) / partition;
+					v2nd = grads1.getDouble(d);
+					g2nd = Params.lambda * grads2.getDouble(d) + (1 - Params.lambda) * grad * grad;
 					grad = - Math.sqrt(v2nd + Params.epsilon) * grad / Math.sqrt(g2nd + Params.epsilon);
 					grad = clip(grad);
 					v2nd = Params.lambda * v2nd + (1 - Params.lambda) * grad * grad;
-					grads1.set(d, v2nd);
-					grads2.set(d, g2nd);
-					grads0.set(d, grad);
+					grads1.setDouble(d, v2nd);
+					grads2.setDouble(d, g2nd);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = wgrads.get(k) / partition;
-			v2nd = wgrads1.get(k);
-			g2nd = Params.lambda * wgrads2.get(k) + (1 - Params.lambda) * grad * grad;
+			grad = wgrads.getDouble(k) / partition;
+			v2nd = wgrads1.getDouble(k);
+			g2nd = Params.lambda * wgrads2.getDouble(k) + (1 - Params.lambda) * grad * grad;
 			grad = - Math.sqrt(v2nd + Params.epsilon) * grad / Math.sqrt(g2nd + Params.epsilon);
 			grad = clip(grad);
 			v2nd = Params.lambda * v2nd + (1 - Params.lambda) * grad * grad;
-			wgrads1.set(k, v2nd);
-			wgrads2.set(k, g2nd);
-			wgrads.set(k, grad);
+			wgrads1.setDouble(k, v2nd);
+			wgrads2.setDouble(k, g2nd);
+			wgrads.setDouble(k, grad);
 		}
 	}
 	
@@ -523,37 +577,97 @@ public class Gradient extends Recorder implements Serializable {
 		double ldecay1 = 1 - Math.pow(Params.lambda1, cntUpdate);
 		double ldecay2 = 1 - Math.pow(Params.lambda2, cntUpdate);
 		for (int k = 0; k < wgrads.size(); k++) { // component k
-			EnumMap<RuleUnit, List<Double>> gcomp = ggrads.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp1 = ggrads1.get(k);
-			EnumMap<RuleUnit, List<Double>> gcomp2 = ggrads2.get(k);
-			for (Entry<RuleUnit, List<Double>> grads : gcomp.entrySet()) {
-				List<Double> grads0 = grads.getValue();
-				List<Double> grads1 = gcomp1.get(grads.getKey());
-				List<Double> grads2 = gcomp2.get(grads.getKey());
+			EnumMap<RuleUnit, DoubleArrayList> gcomp = ggrads.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp1 = ggrads1.get(k);
+			EnumMap<RuleUnit, DoubleArrayList> gcomp2 = ggrads2.get(k);
+			for (Entry<RuleUnit, DoubleArrayList> grads : gcomp.entrySet()) {
+				DoubleArrayList grads0 = grads.getValue();
+				DoubleArrayList grads1 = gcomp1.get(grads.getKey());
+				DoubleArrayList grads2 = gcomp2.get(grads.getKey());
 				for (int d = 0; d < grads0.size(); d++) { // dimension d
-					grad = grads0.get(d) / partition;
-					g1st = Params.lambda1 * grads1.get(d) + (1 - Params.lambda1) * grad;
-					g2nd = Params.lambda2 * grads2.get(d) + (1 - Params.lambda2) * grad * grad;
-					grads1.set(d, g1st);
-					grads2.set(d, g2nd);
+					grad = grads0.getDouble(d) / partition;
+					g1st = Params.lambda1 * grads1.getDouble(d) + (1 - Params.lambda1) * grad;
+					g2nd = Params.lambda2 * grads2.getDouble(d) + (1 - Params.lambda2) * grad * grad;
+					grads1.setDouble(d, g1st);
+					grads2.setDouble(d, g2nd);
 					g1st /= ldecay1;
 					g2nd /= ldecay2;
 					grad = -Params.lr * g1st / (Math.sqrt(g2nd) + Params.epsilon);
 					grad = clip(grad);
-					grads0.set(d, grad);
+					grads0.setDouble(d, grad);
 				}
 			}
-			grad = wgrads.get(k) / partition;
-			g1st = Params.lambda1 * wgrads1.get(k) + (1 - Params.lambda1) * grad;
-			g2nd = Params.lambda2 * wgrads2.get(k) + (1 - Params.lambda2) * grad * grad;
-			wgrads1.set(k, g1st);
-			wgrads2.set(k, g2nd);
+			grad = wgrads.getDouble(k) / partition;
+			g1st = Params.lambda1 * wgrads1.getDouble(k) + (1 - Params.lambda1) * grad;
+			g2nd = Params.lambda2 * wgrads2.getDouble(k) + (1 - Params.lambda2) * grad * grad;
+			wgrads1.setDouble(k, g1st);
+			wgrads2.setDouble(k, g2nd);
 			g1st /= ldecay1;
 			g2nd /= ldecay2;
 			grad = -Params.lr * g1st / (Math.sqrt(g2nd) + Params.epsilon);
 			grad = clip(grad);
-			wgrads.set(k, grad);
+			wgrads.setDouble(k, grad);
+		}
+	}
+	
+	
+	/**
+	 * The gradients serialized before they were backed by primitive arrays hold List&lt;Double&gt;, which are 
+	 * converted here, the optimizer states of the grammars trained then are thus kept.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		updated = fields.get("updated", false);
+		cumulative = fields.get("cumulative", false);
+		cntUpdate = fields.get("cntUpdate", 0.0);
+		partition = fields.get("partition", 0.0);
+		wgrads = primitive(fields.get("wgrads", null));
+		wgrads1 = primitive(fields.get("wgrads1", null));
+		wgrads2 = primitive(fields.get("wgrads2", null));
+		ggrads = primitives((List<Object>) fields.get("ggrads", null));
+		ggrads1 = primitives((List<Object>) fields.get("ggrads1", null));
+		ggrads2 = primitives((List<Object>) fields.get("ggrads2", null));
+		ggradst = primitives((List<Object>) fields.get("ggradst", null));
+		ggradss = primitives((List<Object>) fields.get("ggradss", null));
+		truths = (EnumMap<RuleUnit, List<Double>>) fields.get("truths", null);
+		sample = (EnumMap<RuleUnit, List<Double>>) fields.get("sample", null);
+		cachesWithT = caches((List<Object>) fields.get("cachesWithT", null));
+		cachesWithS = caches((List<Object>) fields.get("cachesWithS", null));
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static DoubleArrayList primitive(Object list) {
+		if (list == null || list instanceof DoubleArrayList) { return (DoubleArrayList) list; }
+		return new DoubleArrayList((List<Double>) list);
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static List<EnumMap<RuleUnit, DoubleArrayList>> primitives(List<Object> grads) {
+		if (grads == null) { return null; }
+		for (Object grad : grads) {
+			for (Entry<RuleUnit, Object> part : ((EnumMap<RuleUnit, Object>) grad).entrySet()) {
+				part.setValue(primitive(part.getValue()));
+			}
+		}
+		return (List<EnumMap<RuleUnit, DoubleArrayList>>) (Object) grads;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static List<EnumMap<RuleUnit, List<DoubleArrayList>>> caches(List<Object> caches) {
+		if (caches == null) { return null; }
+		for (Object cache : caches) {
+			for (Object part : ((EnumMap<RuleUnit, Object>) cache).values()) {
+				List<Object> lists = (List<Object>) part;
+				for (int i = 0; i < lists.size(); i++) {
+					lists.set(i, primitive(lists.get(i)));
+				}
+			}
 		}
+		return (List<EnumMap<RuleUnit, List<DoubleArrayList>>>) (Object) caches;
 	}
 	
 	
@@ -2,6 +2,7 @@ package edu.shanghaitech.ai.nlp.optimization;
 
 import java.io.Serializable;
 import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -25,7 +26,9 @@ public abstract class Optimizer extends Recorder implements Serializable {
 		NORMALIZED, SGD, MOMENTUM, ADAGRAD, RMSPROP, ADADELTA, ADAM
 	}
 	/**
-	 * Pseudo counts of grammar rules given the parse tree (countWithT) or the sentence (countWithS).
+	 * Pseudo counts of grammar rules given the parse tree (countWithT) or the sentence (countWithS). The maps
+	 * are filled by {@link #addRule(GrammarRule)} and then only read, and the batch of each rule serves as the 
+	 * lock of the rule, so the sentence workers can add the counts concurrently.
 	 */
 	protected Map<GrammarRule, Batch> cntsWithT;
 	protected Map<GrammarRule, Batch> cntsWithS;
@@ -35,6 +38,11 @@ public abstract class Optimizer extends Recorder implements Serializable {
 	 * used to quickly index the rules.
 	 */
 	protected Set<GrammarRule> ruleSet;
+	/**
+	 * Rules of which the weights have been updated since the last {@link #drainUpdated()}, null until the
+	 * first call so that nothing is tracked unless asked for.
+	 */
+	protected transient Set<GrammarRule> updatedSet;
 	protected static Random rnd;
 	protected static int maxsample = 1;
 	protected static short batchsize = 1;
@@ -62,6 +70,7 @@ public abstract class Optimizer extends Recorder implements Serializable {
 	protected abstract void reset();
 	
 	public Object debug(GrammarRule rule, boolean debug) { return null; }
+	public boolean isPending() { return false; }
 	public void shutdown() { /* NULL */ }
 	
 	/**
@@ -76,7 +85,9 @@ public abstract class Optimizer extends Recorder implements Serializable {
 		Batch batch = null;
 		Map<GrammarRule, Batch> cnts = withT ? cntsWithT : cntsWithS;
 		if (rule != null && (batch = cnts.get(rule)) != null) {
-			batch.add(idx, cnt);
+			synchronized (batch) { // per-rule lock
+				batch.add(idx, cnt);
+			}
 		} else {
 			logger.info("Not a valid grammar rule or the rule was not found. Rule: " + rule + "\n");
 		}
@@ -120,6 +131,25 @@ public abstract class Optimizer extends Recorder implements Serializable {
 	}
 	
 	
+	protected synchronized void markUpdated(GrammarRule rule) {
+		if (updatedSet != null) {
+			updatedSet.add(rule);
+		}
+	}
+	
+	
+	/**
+	 * Start or restart tracking the updated rules.
+	 * 
+	 * @return the rules updated since the last call, or null on the first call, i.e., the updates are unknown
+	 */
+	public synchronized Set<GrammarRule> drainUpdated() {
+		Set<GrammarRule> updated = updatedSet;
+		updatedSet = new HashSet<>();
+		return updated;
+	}
+	
+	
 	/**
 	 * Get set of the rules.
 	 * 
@@ -2,12 +2,14 @@ package edu.shanghaitech.ai.nlp.optimization;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -18,11 +20,20 @@ import java.util.concurrent.Future;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
 import edu.shanghaitech.ai.nlp.util.Executor;
 import edu.shanghaitech.ai.nlp.util.ThreadPool;
 
 /**
+ * Each thread accumulates the pseudo counts and the gradients into its own {@link Shard}, so that 
+ * {@link #addCount(GrammarRule, EnumMap, short, boolean)} and {@link #evalGradients(List)} can be 
+ * called concurrently without locking. The gradients of the shards are summed up by a pairwise tree
+ * reduction before the gradient descent is applied, see {@link #applyGradientDescent(List)}, which 
+ * must not run concurrently with the accumulation. Which sentences a shard holds depends on the 
+ * scheduling of the threads, so the floating-point sums may differ slightly from run to run.
+ * 
  * @author Yanpeng Zhao
  *
  */
@@ -41,18 +52,15 @@ public class ParallelOptimizer extends Optimizer {
 	private final Map<GrammarRule, Gradient> gradients; // gradients
 	
 	private transient ThreadPool mpool;
-	private transient GrammarRule[] ruleArray;
 	private transient ExecutorService pool;
-	private transient List<Callable<Boolean>> tasks;
+	private transient volatile ThreadLocal<Shard> shard;
+	protected transient List<Shard> shards;
 	
 	
 	private ParallelOptimizer() {
-		this.cntsWithS = new HashMap<>();
-		this.cntsWithT = new HashMap<>();
 		this.ruleSet = new HashSet<>();
 		this.gradients = new HashMap<>();
 		this.mode = ParallelMode.THREAD_POOL;
-		this.tasks = null;
 	}
 	
 	
@@ -73,50 +81,46 @@ public class ParallelOptimizer extends Optimizer {
 	}
 	
 	
-	private void composeTasks(final List<Double> scoreSandT) {
-		if (tasks == null) {
-			tasks = new ArrayList<>(ruleSet.size()); 
+	/**
+	 * @return the shard of the calling thread, created on the first call
+	 */
+	protected Shard shard() {
+		ThreadLocal<Shard> local = shard;
+		if (local == null) {
+			synchronized (this) {
+				if (shard == null) {
+					shards = new ArrayList<>();
+					shard = new ThreadLocal<Shard>();
+				}
+				local = shard;
+			}
 		}
-		for (final GrammarRule rule : ruleSet) {
-			boolean updated = false;
-			final Batch cntWithT = cntsWithT.get(rule);
-			final Batch cntWithS = cntsWithS.get(rule);
-			for (short i = 0; i < Gradient.MAX_BATCH_SIZE; i++) {
-				if (cntWithT.get(i) != null || cntWithS.get(i) != null) { 
-					updated = true; 
-					break; 
-				} 
+		Shard ashard = local.get();
+		if (ashard == null) {
+			synchronized (this) {
+				ashard = new Shard(shards.size(), ruleSet);
+				shards.add(ashard);
 			}
-			if (!updated) { continue; }
-			tasks.add(new Callable<Boolean>() {
-				@Override
-				public Boolean call() throws Exception {
-					Gradient gradient = gradients.get(rule);
-					boolean ichanged = gradient.eval(rule, cntWithT, cntWithS, scoreSandT);
-					// clear
-					cntWithT.clear();
-					cntWithS.clear();
-					return ichanged;
-				}
-			});
+			local.set(ashard);
 		}
+		return ashard;
 	}
 	
 	
-	private void evalGradientsParallel(List<Double> scoreSandT) {
+	private void evalGradientsParallel(List<Slot> slots, List<Double> scoreSandT) {
 		switch (mode) {
 		case THREAD_POOL: {
-			useThreadPool(scoreSandT);
+			synchronized (this) { // the thread pool is shared by all the shards
+				useThreadPool(slots, scoreSandT);
+			}
 			break;
 		}
 		case INVOKE_ALL: {
-			composeTasks(scoreSandT);
-			useInvokeAll();
-			tasks.clear();
+			useInvokeAll(composeTasks(slots, scoreSandT));
 			break;
 		}
 		case FORK_JOIN: {
-			useForkJoin(scoreSandT);
+			useForkJoin(slots, scoreSandT);
 			break;
 		}
 		default: {
@@ -126,12 +130,28 @@ public class ParallelOptimizer extends Optimizer {
 	}
 	
 	
-	private void useInvokeAll() {
+	private List<Callable<Boolean>> composeTasks(List<Slot> slots, final List<Double> scoreSandT) {
+		List<Callable<Boolean>> tasks = new ArrayList<>(slots.size());
+		for (final Slot slot : slots) {
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return slot.eval(scoreSandT);
+				}
+			});
+		}
+		return tasks;
+	}
+	
+	
+	private void useInvokeAll(List<Callable<Boolean>> tasks) {
 		boolean exit = true;
 		int nchanged = 0;
 		try {
-			if (pool == null) { 
-				pool = Executors.newFixedThreadPool(nthread); 
+			synchronized (this) {
+				if (pool == null) { 
+					pool = Executors.newFixedThreadPool(nthread); 
+				}
 			}
 			List<Future<Boolean>> futures = pool.invokeAll(tasks);
 			for (Future<Boolean> future : futures) {
@@ -149,27 +169,16 @@ public class ParallelOptimizer extends Optimizer {
 	}
 	
 	
-	private void useThreadPool(List<Double> scoreSandT) {
+	private void useThreadPool(List<Slot> slots, List<Double> scoreSandT) {
 		if (mpool == null) {
 			SubOptimizer<?, ?> subOptimizer = new SubOptimizer<Resource, Boolean>();
 			mpool = new ThreadPool(subOptimizer, nthread);
 		} else {
 			mpool.reset();
 		}
-		int nchanged = 0, nskipped = 0, nfailed = 0;
-		for (GrammarRule rule : ruleSet) {
-			boolean updated = false;
-			Batch cntWithT = cntsWithT.get(rule);
-			Batch cntWithS = cntsWithS.get(rule);
-			for (short i = 0; i < Gradient.MAX_BATCH_SIZE; i++) {
-				if (cntWithT.get(i) != null || cntWithS.get(i) != null) { 
-					updated = true; 
-					break; 
-				} 
-			}
-			if (!updated) { nskipped++; continue; }
-			Gradient gradient = gradients.get(rule);
-			Resource rsc = new Resource(rule, gradient, cntWithT, cntWithS, scoreSandT);
+		int nchanged = 0, nfailed = 0;
+		for (Slot slot : slots) {
+			Resource rsc = new Resource(slot, scoreSandT);
 			mpool.execute(rsc);
 			while (mpool.hasNext()) {
 				if ((Boolean) mpool.getNext()) {
@@ -189,7 +198,7 @@ public class ParallelOptimizer extends Optimizer {
 			}
 		}
 		if (verbose) {
-			logger.trace("nchanged=" + nchanged + "(" + nfailed + ") of " + ruleSet.size() + "(" + nskipped + ")" + "...");
+			logger.trace("nchanged=" + nchanged + "(" + nfailed + ") of " + ruleSet.size() + "(" + (ruleSet.size() - slots.size()) + ")" + "...");
 		}
 	}
 	
@@ -198,17 +207,17 @@ public class ParallelOptimizer extends Optimizer {
 	 * Need to tune the size of the chunk that a thread eats, but it is somewhat memory friendly? 
 	 * TODO Need more trials.
 	 * 
+	 * @param slots
 	 * @param scoreSandT
 	 */
-	private void useForkJoin(List<Double> scoreSandT) {
-		if (watch == null) { watch = new Watch(); }
-		if (ruleArray == null) { ruleArray = ruleSet.toArray(new GrammarRule[0]); }
-		watch.clear();
+	private void useForkJoin(List<Slot> slots, List<Double> scoreSandT) {
+		Watch watch = new Watch();
 		ForkJoinPool pool = new ForkJoinPool(nthread);
-		ParallelForLoop loop = new ParallelForLoop(0, ruleArray.length, scoreSandT);
+		ParallelForLoop loop = new ParallelForLoop(slots, 0, slots.size(), Math.max(1, slots.size() / nthread), scoreSandT, watch);
 		pool.invoke(loop);
+		pool.shutdown();
 		if (verbose) {
-			logger.trace("nchanged: " + watch.nchanged + " of " + ruleArray.length + "(" + watch.nskipped + ")" + "...");
+			logger.trace("nchanged: " + watch.nchanged + " of " + ruleSet.size() + "(" + (ruleSet.size() - slots.size()) + ")" + "...");
 		}
 	}
 	
@@ -230,11 +239,13 @@ public class ParallelOptimizer extends Optimizer {
 	
 	@Override
 	public void applyGradientDescent(List<Double> scoresST) {
+		merge();
 		Gradient gradient;
 		int nupdated = 0;
 		for (GrammarRule rule : ruleSet) {
 			gradient = gradients.get(rule);
 			if (gradient.apply(rule)) {
+				markUpdated(rule);
 				nupdated++;
 			}
 		}
@@ -245,37 +256,132 @@ public class ParallelOptimizer extends Optimizer {
 	}
 	
 	
+	/**
+	 * Sum up the gradients of the shards and accumulate the sum into the gradients of the rules. For each rule, 
+	 * shard i + s is merged into shard i for s = 1, 2, 4, ..., the pairwise sums keep the rounding errors lower 
+	 * than adding the shards one by one.
+	 */
+	protected void merge() {
+		List<Shard> ashards;
+		synchronized (this) {
+			if (shards == null || shards.isEmpty()) { return; }
+			ashards = new ArrayList<>(shards);
+		}
+		int nshard = ashards.size();
+		for (Shard ashard : ashards) {
+			flush(ashard); // the remaining sentences of the last, incomplete batch
+		}
+		Gradient[] partials = new Gradient[nshard];
+		for (GrammarRule rule : ruleSet) {
+			boolean found = false;
+			for (int i = 0; i < nshard; i++) {
+				Slot slot = ashards.get(i).slots.get(rule);
+				partials[i] = slot == null ? null : slot.gradient;
+				found |= partials[i] != null;
+			}
+			if (!found) { continue; }
+			for (int step = 1; step < nshard; step <<= 1) {
+				for (int i = 0; i + step < nshard; i += step << 1) {
+					if (partials[i + step] == null) { continue; }
+					if (partials[i] == null) {
+						partials[i] = partials[i + step];
+					} else {
+						partials[i].merge(partials[i + step]);
+					}
+				}
+			}
+			gradients.get(rule).merge(partials[0]);
+		}
+	}
+	
+	
+	/**
+	 * The counts of the current sentence are held by the shard of the calling thread until there are 
+	 * {@link Gradient#maxbatch} sentences, then the gradients of all of them are evaluated together.
+	 * The scores the counts refer to must be kept until then, see {@link #isPending()}.
+	 */
 	@Override
 	public void evalGradients(List<Double> scoreSandT) {
 		if (scoreSandT.size() == 0) { return; }
-		if (parallel) { 
-			evalGradientsParallel(scoreSandT); 
+		Shard ashard = shard();
+		if (ashard.pending.isEmpty()) { return; }
+		ashard.scores.add(scoreSandT.get(0));
+		ashard.scores.add(scoreSandT.get(1));
+		if (++ashard.nsample >= Gradient.maxbatch) {
+			flush(ashard);
+		}
+	}
+	
+	
+	/**
+	 * Evaluate the gradients of the sentences held by the shard.
+	 * 
+	 * @param ashard the shard
+	 */
+	private void flush(Shard ashard) {
+		List<Slot> slots = ashard.pending;
+		if (slots.isEmpty()) { 
+			ashard.clear();
+			return; 
+		}
+		if (parallel && nshard() == 1) { // the sentence workers have kept the other threads busy otherwise
+			evalGradientsParallel(slots, ashard.scores);
+			ashard.clear();
 			return;
 		}
-
-		Batch cntWithT, cntWithS;
-		int nchanged = 0, nskipped = 0;
-		for (GrammarRule rule : ruleSet) {
-			boolean updated = false;
-			cntWithT = cntsWithT.get(rule);
-			cntWithS = cntsWithS.get(rule);
-			for (short i = 0; i < Gradient.MAX_BATCH_SIZE; i++) {
-				if (cntWithT.get(i) != null || cntWithS.get(i) != null) { 
-					updated = true; 
-					break; 
-				} 
-			}
-			if (!updated) { nskipped++; continue; }
-			Gradient gradient = gradients.get(rule);
-			if (gradient.eval(rule, cntWithT, cntWithS, scoreSandT)) {
+		
+		int nchanged = 0;
+		for (Slot slot : slots) {
+			if (slot.eval(ashard.scores)) {
 				nchanged++;
 			}
-			// clear
-			cntWithT.clear();
-			cntWithS.clear();
 		}
 		if (verbose) {
-			logger.trace("nchanged=" + nchanged + " of " + ruleSet.size() + "(" + nskipped + ")" + "...");
+			logger.trace("nchanged=" + nchanged + " of " + ruleSet.size() + "(" + (ruleSet.size() - slots.size()) + ")" + "...");
+		}
+		ashard.clear();
+	}
+	
+	
+	private synchronized int nshard() {
+		return shards == null ? 0 : shards.size();
+	}
+	
+	
+	/**
+	 * @return whether the shard of the calling thread holds the counts of which the gradients have not been evaluated
+	 */
+	@Override
+	public boolean isPending() {
+		ThreadLocal<Shard> local = shard;
+		Shard ashard = local == null ? null : local.get(); // a thread that only asks does not get a shard
+		return ashard != null && !ashard.pending.isEmpty();
+	}
+	
+	
+	@Override
+	public void addCount(GrammarRule rule, EnumMap<RuleUnit, GaussianMixture> cnt, short idx, boolean withT) {
+		Slot slot = null;
+		Shard ashard = shard();
+		if (rule != null && (slot = ashard.slots.get(rule)) != null) {
+			ashard.add(slot, cnt, (short) (ashard.nsample + idx), withT);
+		} else {
+			logger.info("Not a valid grammar rule or the rule was not found. Rule: " + rule + "\n");
+		}
+	}
+	
+	
+	/**
+	 * The method for debugging, it returns the counts accumulated by the calling thread.
+	 */
+	@Override
+	public Map<Short, List<EnumMap<RuleUnit, GaussianMixture>>> getCount(GrammarRule rule, boolean withT) {
+		Slot slot = null;
+		if (rule != null && (slot = shard().slots.get(rule)) != null) {
+			return withT ? slot.cntWithT.batch : slot.cntWithS.batch;
+		} else {
+			logger.info("Not a valid grammar rule or the rule was not found. Rule: " + rule + "\n");
+			return null;
 		}
 	}
 	
@@ -283,21 +389,23 @@ public class ParallelOptimizer extends Optimizer {
 	@Override
 	public void addRule(GrammarRule rule) {
 		ruleSet.add(rule);
-		Batch batchWithT = new Batch(Gradient.MAX_BATCH_SIZE);
-		Batch batchWithS = new Batch(Gradient.MAX_BATCH_SIZE);
-		cntsWithT.put(rule, batchWithT);
-		cntsWithS.put(rule, batchWithS);
 		Gradient gradient = new Gradient(rule, rnd, maxsample, batchsize);
 		gradients.put(rule, gradient);
+		synchronized (this) {
+			if (shards != null) {
+				for (Shard ashard : shards) {
+					ashard.slots.put(rule, new Slot(rule));
+				}
+			}
+		}
 	}
 	
 	
 	@Override
-	protected void reset() { 
-		Batch cntWithT, cntWithS;
-		for (GrammarRule rule : ruleSet) {
-			if ((cntWithT = cntsWithT.get(rule)) != null) { cntWithT.clear(); }
-			if ((cntWithS = cntsWithS.get(rule)) != null) { cntWithS.clear(); }
+	protected synchronized void reset() { 
+		if (shards == null) { return; }
+		for (Shard ashard : shards) {
+			ashard.reset();
 		}
 	}
 	
@@ -318,21 +426,98 @@ public class ParallelOptimizer extends Optimizer {
 	}
 	
 	
+	/**
+	 * Pseudo counts and gradients of a single rule accumulated by a single thread.
+	 */
+	protected static class Slot {
+		protected final GrammarRule rule;
+		protected final Batch cntWithT;
+		protected final Batch cntWithS;
+		protected Gradient gradient; // allocated on the first evaluation
+		protected boolean pending;
+		
+		protected Slot(GrammarRule rule) {
+			this.rule = rule;
+			this.cntWithT = new Batch(Gradient.maxbatch);
+			this.cntWithS = new Batch(Gradient.maxbatch);
+		}
+		
+		protected void add(EnumMap<RuleUnit, GaussianMixture> cnt, short idx, boolean withT) {
+			(withT ? cntWithT : cntWithS).add(idx, cnt);
+		}
+		
+		protected boolean eval(List<Double> scoreSandT) {
+			if (gradient == null) { gradient = new Gradient(rule); }
+			boolean ichanged = gradient.eval(rule, cntWithT, cntWithS, scoreSandT);
+			// clear
+			cntWithT.clear();
+			cntWithS.clear();
+			pending = false;
+			return ichanged;
+		}
+		
+		protected void reset() {
+			cntWithT.clear();
+			cntWithS.clear();
+			pending = false;
+			if (gradient != null) { gradient.reset(); }
+		}
+	}
+	
+	
+	/**
+	 * Pseudo counts and gradients of all the rules accumulated by a single thread.
+	 */
+	protected static class Shard {
+		protected final int idx; // order of creation
+		protected final Map<GrammarRule, Slot> slots;
+		protected final List<Slot> pending; // slots with counts that have not been evaluated
+		protected final List<Double> scores; // scores of the parse tree and the sentence of the held sentences
+		protected short nsample; // # of the held sentences
+		
+		protected Shard(int idx, Set<GrammarRule> ruleSet) {
+			this.idx = idx;
+			this.nsample = 0;
+			this.scores = new ArrayList<>(Gradient.maxbatch * 2);
+			this.pending = new ArrayList<>();
+			this.slots = new HashMap<>(ruleSet.size() * 2);
+			for (GrammarRule rule : ruleSet) {
+				slots.put(rule, new Slot(rule));
+			}
+		}
+		
+		protected void add(Slot slot, EnumMap<RuleUnit, GaussianMixture> cnt, short idx, boolean withT) {
+			if (!slot.pending) {
+				slot.pending = true;
+				pending.add(slot);
+			}
+			slot.add(cnt, idx, withT);
+		}
+		
+		protected void clear() {
+			pending.clear();
+			scores.clear();
+			nsample = 0;
+		}
+		
+		protected void reset() {
+			for (Slot slot : slots.values()) {
+				slot.reset();
+			}
+			clear();
+		}
+	}
+	
+	
 	/**
 	 * Type declaration of the input to the SubOptimizer.
 	 *
 	 */
 	class Resource {
-		protected GrammarRule rule;
-		protected Gradient gradient;
+		protected Slot slot;
 		protected List<Double> scores;
-		protected Batch iosWithT;
-		protected Batch iosWithS;
-		public Resource(GrammarRule rule, Gradient gradient, Batch iosWithT, Batch iosWithS, List<Double> scores) {
-			this.rule = rule;
-			this.gradient = gradient;
-			this.iosWithT = iosWithT;
-			this.iosWithS = iosWithS;
+		public Resource(Slot slot, List<Double> scores) {
+			this.slot = slot;
 			this.scores = scores;
 		}
 	}
@@ -360,9 +545,7 @@ public class ParallelOptimizer extends Optimizer {
 		@Override
 		public synchronized Object call() throws Exception {
 			Resource rsc = (Resource) task;
-			boolean status = rsc.gradient.eval(rsc.rule, rsc.iosWithT, rsc.iosWithS, rsc.scores);
-			rsc.iosWithS.clear();
-			rsc.iosWithT.clear();
+			boolean status = rsc.slot.eval(rsc.scores);
 			Meta<O> cache = new Meta(itask, status);
 			synchronized (caches) {
 				caches.add(cache);
@@ -395,27 +578,28 @@ public class ParallelOptimizer extends Optimizer {
 	 * @author Yanpeng Zhao
 	 *
 	 */
-	protected Watch watch = new Watch();
-	class Watch implements Serializable { 
+	static class Watch implements Serializable { 
 		/**
 		 * 
 		 */
 		private static final long serialVersionUID = 4040589141969741180L;
 		int nchanged, nskipped; void clear() { nchanged = 0; nskipped = 0; } 
 	}
-	class ParallelForLoop extends RecursiveAction {
+	static class ParallelForLoop extends RecursiveAction {
 		/* */
 		private static final long serialVersionUID = 1L;
-		private int step = ruleArray.length / nthread;
-		
+		private List<Slot> slots;
 		private List<Double> score;
-		private int from, to;
+		private Watch watch;
+		private int from, to, step;
 		
-		public ParallelForLoop(int from, int to, List<Double> score) {
+		public ParallelForLoop(List<Slot> slots, int from, int to, int step, List<Double> score, Watch watch) {
+			this.slots = slots;
 			this.from = from;
 			this.to = to;
+			this.step = step;
 			this.score = score;
-			
+			this.watch = watch;
 		}
 		
 		@Override
@@ -425,8 +609,8 @@ public class ParallelOptimizer extends Optimizer {
 				run(from, to);
 			} else {
 				int mid = (from + to) >>> 1;
-				ForkJoinTask<Void> lhs = new ParallelForLoop(from, mid, score).fork();
-				ForkJoinTask<Void> rhs = new ParallelForLoop(mid, to, score).fork();
+				ForkJoinTask<Void> lhs = new ParallelForLoop(slots, from, mid, step, score, watch).fork();
+				ForkJoinTask<Void> rhs = new ParallelForLoop(slots, mid, to, step, score, watch).fork();
 				lhs.join();
 				rhs.join();
 			}
@@ -434,33 +618,13 @@ public class ParallelOptimizer extends Optimizer {
 		
 		protected void run(int from, int to) {
 			for (int idx = from; idx < to; idx++) {
-				GrammarRule rule = ruleArray[idx];
-				boolean updated = false;
-				Batch cntWithT = cntsWithT.get(rule);
-				Batch cntWithS = cntsWithS.get(rule);
-				for (short i = 0; i < Gradient.MAX_BATCH_SIZE; i++) {
-					if (cntWithT.get(i) != null || cntWithS.get(i) != null) { 
-						updated = true; 
-						break; 
-					} 
-				}
-				synchronized (watch) {
-					if (!updated) { 
-						watch.nskipped++; 
-						continue; 
-					}
-				}
-				Gradient gradient = gradients.get(rule);
-				boolean ichanged = gradient.eval(rule, cntWithT, cntWithS, score);
+				boolean ichanged = slots.get(idx).eval(score);
 				synchronized (watch) {
 					if (ichanged) { watch.nchanged++; }
 				}
-				// clear
-				cntWithT.clear();
-				cntWithS.clear();
 			}
 		}
 		
 	}
 	
-}
\ No newline at end of file
+}
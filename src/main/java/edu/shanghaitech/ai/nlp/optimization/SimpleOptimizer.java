@@ -1,9 +1,9 @@
 package edu.shanghaitech.ai.nlp.optimization;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
 
@@ -19,8 +19,8 @@ public class SimpleOptimizer extends Optimizer {
 	private SimpleMinimizer minimizer;
 	
 	private SimpleOptimizer() {
-		this.cntsWithS = new HashMap<>();
-		this.cntsWithT = new HashMap<>();
+		this.cntsWithS = new ConcurrentHashMap<>();
+		this.cntsWithT = new ConcurrentHashMap<>();
 		this.ruleSet = new HashSet<>();
 	}
 	
@@ -50,6 +50,7 @@ public class SimpleOptimizer extends Optimizer {
 			cntWithS = cntsWithS.get(rule);
 			if (cntWithT.size() == 0 && cntWithS.size() == 0) { continue; }
 			minimizer.optimize(rule, cntWithT, cntWithS, scoresST);
+			markUpdated(rule);
 		}
 		reset();
 	}
@@ -0,0 +1,112 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helpers shared by the little-endian binary files, in which every array is aligned to 8 bytes.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class BinaryFile {
+
+	/**
+	 * @param filename the file
+	 * @param magic    the magic number the file starts with
+	 * @return         whether the file starts with the magic number
+	 */
+	public static boolean startsWith(String filename, int magic) {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			return channel.read(buffer, 0) == 4 && buffer.getInt(0) == magic;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * @param filename the file
+	 * @return         the read-only little-endian mapping of the whole file, which outlives the channel
+	 */
+	public static MappedByteBuffer map(String filename) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("The file is too large to be mapped: " + filename + " of " + channel.size() + " bytes.");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		}
+	}
+
+
+	public static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+
+	public static int align(int nbyte) {
+		return (nbyte + 7) & ~7;
+	}
+
+
+	public static void skipPadding(ByteBuffer buffer) {
+		buffer.position(align(buffer.position()));
+	}
+
+
+	/**
+	 * @return the buffer at the current position, which is then skipped by nbyte bytes and the padding
+	 */
+	public static ByteBuffer slice(ByteBuffer buffer, int nbyte) {
+		ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		slice.limit(nbyte);
+		buffer.position(buffer.position() + nbyte);
+		skipPadding(buffer);
+		return slice;
+	}
+
+
+	/**
+	 * Write the # of the strings, and the byte length and the UTF-8 bytes of each string.
+	 */
+	public static void writeStrings(FileChannel channel, String[] strs) throws IOException {
+		byte[][] bytes = new byte[strs.length][];
+		int nbyte = 4;
+		for (int i = 0; i < strs.length; i++) {
+			bytes[i] = strs[i].getBytes(StandardCharsets.UTF_8);
+			nbyte += 4 + bytes[i].length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(align(nbyte)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(strs.length);
+		for (byte[] str : bytes) {
+			buffer.putInt(str.length).put(str);
+		}
+		buffer.position(0);
+		write(channel, buffer);
+	}
+
+
+	public static String[] readStrings(ByteBuffer buffer) {
+		String[] strs = new String[buffer.getInt()];
+		for (int i = 0; i < strs.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			strs[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		skipPadding(buffer);
+		return strs;
+	}
+
+}
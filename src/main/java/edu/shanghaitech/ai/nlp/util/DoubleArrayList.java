@@ -0,0 +1,227 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A growable list of primitive doubles. It is a {@link java.util.List} so that
+ * the callers relying on {@code List<Double>} keep working, while the numeric
+ * kernels read and write the backing array directly without (un)boxing.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class DoubleArrayList extends AbstractList<Double> implements RandomAccess, Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3317446418302466270L;
+	private static final double[] EMPTY = new double[0];
+	private double[] elements;
+	private int size;
+
+
+	public DoubleArrayList() {
+		this.elements = EMPTY;
+		this.size = 0;
+	}
+
+
+	public DoubleArrayList(int capacity) {
+		this.elements = capacity > 0 ? new double[capacity] : EMPTY;
+		this.size = 0;
+	}
+
+
+	public DoubleArrayList(Collection<? extends Double> c) {
+		this(c.size());
+		addAll(c);
+	}
+
+
+	/**
+	 * @param n     size of the list
+	 * @param value initial value of each element
+	 * @return      a list of n elements with the same value
+	 */
+	public static DoubleArrayList fill(int n, double value) {
+		DoubleArrayList list = new DoubleArrayList(n);
+		list.size = n;
+		if (value != 0) { Arrays.fill(list.elements, 0, n, value); }
+		return list;
+	}
+
+
+	/**
+	 * The backing array, only the first {@link #size()} elements are valid.
+	 * The reference may change whenever the list grows.
+	 *
+	 * @return the backing array
+	 */
+	public double[] elements() {
+		return elements;
+	}
+
+
+	public double getDouble(int index) {
+		if (index >= size) { throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size); }
+		return elements[index];
+	}
+
+
+	public double setDouble(int index, double value) {
+		if (index >= size) { throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size); }
+		double old = elements[index];
+		elements[index] = value;
+		return old;
+	}
+
+
+	/**
+	 * elements[index] += delta
+	 */
+	public void increment(int index, double delta) {
+		if (index >= size) { throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size); }
+		elements[index] += delta;
+	}
+
+
+	public void addDouble(double value) {
+		if (size == elements.length) { grow(size + 1); }
+		elements[size++] = value;
+		modCount++;
+	}
+
+
+	public double lastDouble() {
+		if (size == 0) { throw new IndexOutOfBoundsException("Empty list"); }
+		return elements[size - 1];
+	}
+
+
+	/**
+	 * Resize the list to n elements and set all of them to 0.
+	 *
+	 * @param n the new size
+	 */
+	public void zeros(int n) {
+		if (n > elements.length) {
+			elements = new double[n];
+		} else {
+			Arrays.fill(elements, 0, n, 0.0);
+		}
+		size = n;
+		modCount++;
+	}
+
+
+	/**
+	 * Copy the first n values from the source array.
+	 *
+	 * @param src the source array
+	 * @param n   # of values to be copied
+	 */
+	public void setAll(double[] src, int n) {
+		if (n > elements.length) { elements = new double[n]; }
+		System.arraycopy(src, 0, elements, 0, n);
+		size = n;
+		modCount++;
+	}
+
+
+	public double[] toDoubleArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+
+	private void grow(int minCapacity) {
+		int capacity = elements.length + (elements.length >> 1);
+		if (capacity < minCapacity) { capacity = Math.max(minCapacity, 4); }
+		elements = Arrays.copyOf(elements, capacity);
+	}
+
+
+	@Override
+	public Double get(int index) {
+		return getDouble(index);
+	}
+
+
+	@Override
+	public Double set(int index, Double value) {
+		return setDouble(index, value);
+	}
+
+
+	@Override
+	public boolean add(Double value) {
+		addDouble(value);
+		return true;
+	}
+
+
+	@Override
+	public void add(int index, Double value) {
+		if (index > size || index < 0) { throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size); }
+		if (size == elements.length) { grow(size + 1); }
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		elements[index] = value;
+		size++;
+		modCount++;
+	}
+
+
+	@Override
+	public Double remove(int index) {
+		if (index >= size) { throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size); }
+		double old = elements[index];
+		int nmove = size - index - 1;
+		if (nmove > 0) { System.arraycopy(elements, index + 1, elements, index, nmove); }
+		size--;
+		modCount++;
+		return old;
+	}
+
+
+	@Override
+	public void clear() {
+		size = 0;
+		modCount++;
+	}
+
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+
+	@Override
+	public int hashCode() {
+		int hash = 1;
+		for (int i = 0; i < size; i++) {
+			long bits = Double.doubleToLongBits(elements[i]);
+			hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+		}
+		return hash;
+	}
+
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) { return true; }
+		if (o instanceof DoubleArrayList) {
+			DoubleArrayList list = (DoubleArrayList) o;
+			if (size != list.size) { return false; }
+			for (int i = 0; i < size; i++) {
+				if (Double.doubleToLongBits(elements[i]) != Double.doubleToLongBits(list.elements[i])) { return false; }
+			}
+			return true;
+		}
+		return super.equals(o);
+	}
+
+}
@@ -107,9 +107,9 @@ public class GradientChecker extends Recorder {
 				wgrads.add(dw / maxsample);
 			}
 			List<EnumMap<RuleUnit, List<Double>>> ggrads = new ArrayList<>(grads.ggrads.size());
-			for (Map<RuleUnit, List<Double>> comp : grads.ggrads) {
+			for (Map<RuleUnit, DoubleArrayList> comp : grads.ggrads) {
 				EnumMap<RuleUnit, List<Double>> gauss = new EnumMap<>(RuleUnit.class);
-				for (Entry<RuleUnit, List<Double>> gaussian : comp.entrySet()) {
+				for (Entry<RuleUnit, DoubleArrayList> gaussian : comp.entrySet()) {
 					List<Double> params = new ArrayList<>(gaussian.getValue().size());
 					for (Double dg : gaussian.getValue()) {
 						params.add(dg / maxsample);
@@ -0,0 +1,151 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A keyed object pool in which each thread owns its own slab, so borrowing never locks. Objects are not returned
+ * one by one, instead {@link #reset()} releases all the objects borrowed by the calling thread at once, e.g., at
+ * the end of each sentence, after which the objects are handed out again, cleared by {@link Factory#clear(Object)}.
+ * The borrowed objects must therefore not outlive the next reset of the same thread.
+ * <p>
+ * Keys are the number of components or the dimension, which are small non-negative numbers, or -1 for the default.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class SlabPool<T> {
+
+	public interface Factory<T> {
+		/**
+		 * @param key the key, -1 for the default
+		 * @return a new object for the key
+		 */
+		public T make(short key);
+
+		/**
+		 * Clear the object before it is handed out again.
+		 *
+		 * @param obj the object to be reused
+		 */
+		public void clear(T obj);
+	}
+
+	private final Factory<T> factory;
+	private final ThreadLocal<Slab<T>> slabs;
+
+
+	public SlabPool(Factory<T> factory) {
+		this.factory = factory;
+		this.slabs = new ThreadLocal<Slab<T>>() {
+			@Override
+			protected Slab<T> initialValue() {
+				return new Slab<>();
+			}
+		};
+	}
+
+
+	/**
+	 * @param key the key, -1 for the default
+	 * @return an object owned by the slab of the calling thread
+	 */
+	public T borrowObject(short key) {
+		return slabs.get().borrow(key, factory);
+	}
+
+
+	/**
+	 * Release all the objects borrowed by the calling thread. It only rewinds the cursors of the keys in use.
+	 */
+	public void reset() {
+		slabs.get().reset();
+	}
+
+
+	/**
+	 * @return # of the objects borrowed by the calling thread since the last reset
+	 */
+	public int nborrowed() {
+		return slabs.get().nborrowed();
+	}
+
+
+	/**
+	 * @return # of the objects allocated in the slab of the calling thread
+	 */
+	public int capacity() {
+		return slabs.get().capacity();
+	}
+
+
+	private static class Slab<T> {
+		private List<T>[] buckets; // indexed by key + 1
+		private int[] cursors;
+		private short[] keys; // keys borrowed since the last reset
+		private int nkey;
+
+		@SuppressWarnings("unchecked")
+		private Slab() {
+			this.buckets = new List[4];
+			this.cursors = new int[4];
+			this.keys = new short[4];
+			this.nkey = 0;
+		}
+
+		private T borrow(short key, Factory<T> factory) {
+			int ikey = key + 1;
+			if (ikey < 0) { throw new IllegalArgumentException("Invalid key: " + key); }
+			if (ikey >= buckets.length) {
+				int size = Math.max(ikey + 1, buckets.length * 2);
+				buckets = Arrays.copyOf(buckets, size);
+				cursors = Arrays.copyOf(cursors, size);
+			}
+			List<T> bucket = buckets[ikey];
+			if (bucket == null) {
+				bucket = new ArrayList<>();
+				buckets[ikey] = bucket;
+			}
+			int cursor = cursors[ikey];
+			if (cursor == 0) { // first borrow with this key since the last reset
+				if (nkey == keys.length) { keys = Arrays.copyOf(keys, nkey * 2); }
+				keys[nkey++] = key;
+			}
+			T obj;
+			if (cursor < bucket.size()) {
+				obj = bucket.get(cursor);
+				factory.clear(obj);
+			} else {
+				obj = factory.make(key);
+				bucket.add(obj);
+			}
+			cursors[ikey] = cursor + 1;
+			return obj;
+		}
+
+		private void reset() {
+			for (int i = 0; i < nkey; i++) {
+				cursors[keys[i] + 1] = 0;
+			}
+			nkey = 0;
+		}
+
+		private int nborrowed() {
+			int cnt = 0;
+			for (int i = 0; i < nkey; i++) {
+				cnt += cursors[keys[i] + 1];
+			}
+			return cnt;
+		}
+
+		private int capacity() {
+			int cnt = 0;
+			for (List<T> bucket : buckets) {
+				if (bucket != null) { cnt += bucket.size(); }
+			}
+			return cnt;
+		}
+	}
+
+}
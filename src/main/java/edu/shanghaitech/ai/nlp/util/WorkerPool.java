@@ -0,0 +1,250 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import java.io.Serializable;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.shanghaitech.ai.nlp.util.Executor.Meta;
+
+/**
+ * Replacement of {@link ThreadPool}. Each of the nthread clones of the executor owns its result queue,
+ * idle clones wait in a blocking queue, and the finished tasks are delivered through a completion service,
+ * so neither submitting nor retrieving busy-scans the workers. The results can be consumed in the order of
+ * submission (the default) or in the order of completion. For backpressure, {@link #execute(Object)} blocks
+ * while all the workers are busy, or while capacity results have not been consumed and none of them can be.
+ *
+ * Tasks must be submitted and results retrieved from a single thread.
+ *
+ * @author Yanpeng Zhao
+ *
+ */
+public class WorkerPool extends Recorder implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 6270245591743573284L;
+	protected int lastReturn;
+	protected int lastSubmission;
+	protected int noutstanding; // # of the submitted tasks not yet taken from the service
+
+	protected int nthread;
+	protected int capacity;
+	protected boolean ordered;
+	protected Worker<?, ?>[] workers;
+	protected ExecutorService pool;
+	protected BlockingQueue<Worker<?, ?>> idle;
+	protected CompletionService<Meta<?>> service;
+	protected PriorityQueue<Meta<?>> finished; // retrieved from the service but not yet consumed
+
+
+	public WorkerPool(Executor<?, ?> executor, int nthread) {
+		this(executor, nthread, nthread * 4, true);
+	}
+
+
+	/**
+	 * @param executor the prototype of the workers
+	 * @param nthread  # of the workers
+	 * @param capacity max # of the submitted but not consumed tasks, at least nthread
+	 * @param ordered  whether to deliver the results in the order of submission
+	 */
+	public WorkerPool(Executor<?, ?> executor, int nthread, int capacity, boolean ordered) {
+		this.nthread = nthread;
+		this.ordered = ordered;
+		this.capacity = Math.max(capacity, nthread);
+		this.workers = new Worker<?, ?>[nthread];
+		this.idle = new ArrayBlockingQueue<Worker<?, ?>>(nthread);
+		this.pool = Executors.newFixedThreadPool(nthread);
+		this.service = new ExecutorCompletionService<Meta<?>>(pool);
+		this.finished = new PriorityQueue<Meta<?>>(ThreadPool.idcomparator);
+		this.lastReturn = -1;
+		this.lastSubmission = 0;
+		this.noutstanding = 0;
+		for (int i = 0; i < nthread; i++) {
+			workers[i] = newWorker(executor.newInstance(), i);
+			idle.add(workers[i]);
+		}
+	}
+
+
+	/**
+	 * @param task the task to be executed
+	 * @return     id of the task, i.e., # of the tasks submitted before it
+	 */
+	public int execute(Object task) {
+		try {
+			while (lastSubmission - lastReturn - 1 >= capacity && !hasNext()) {
+				collect(true);
+			}
+			Worker<?, ?> worker = idle.take();
+			worker.setNextTask(lastSubmission, task);
+			service.submit(worker);
+			noutstanding++;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while submitting the task " + lastSubmission + ".", e);
+		}
+		return lastSubmission++;
+	}
+
+
+	/**
+	 * @return whether a result can be consumed without blocking
+	 */
+	public boolean hasNext() {
+		collect(false);
+		if (finished.isEmpty()) { return false; }
+		return !ordered || finished.peek().id == lastReturn + 1;
+	}
+
+
+	public Object getNext() {
+		if (!hasNext()) {
+			throw new IllegalStateException("OOPS_BUG: Can only be invoked when there are available results to retrieve.");
+		}
+		return poll().value();
+	}
+
+
+	/**
+	 * Blocks until the next result is available.
+	 *
+	 * @return the next result
+	 */
+	public Object take() {
+		return takeMeta().value();
+	}
+
+
+	/**
+	 * Blocks until the next result is available.
+	 *
+	 * @return the next result together with the id of its task
+	 */
+	public Meta<?> takeMeta() {
+		if (isDone()) {
+			throw new IllegalStateException("OOPS_BUG: No submitted task is waiting for retrieval.");
+		}
+		while (!hasNext()) {
+			collect(true);
+		}
+		return poll();
+	}
+
+
+	public boolean isDone() {
+		return (lastSubmission - 1) == lastReturn;
+	}
+
+
+	public void shutdown() {
+		reset();
+		if (pool != null) {
+			try {
+				pool.shutdown();
+				pool.awaitTermination(10, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Drops the unconsumed results, and waits for the running tasks. A worker becomes idle before its result
+	 * reaches the service, so it is the # of the outstanding tasks rather than the idle workers that tells
+	 * whether any result is still to come.
+	 */
+	public void reset() {
+		while (noutstanding > 0) {
+			collect(true);
+		}
+		lastReturn = -1;
+		lastSubmission = 0;
+		finished.clear();
+	}
+
+
+	private Meta<?> poll() {
+		lastReturn++;
+		return finished.poll();
+	}
+
+
+	/**
+	 * Moves the finished tasks from the completion service into the buffer.
+	 *
+	 * @param block whether to wait for a task if none has finished
+	 */
+	private void collect(boolean block) {
+		try {
+			Future<Meta<?>> future = block ? service.take() : service.poll();
+			while (future != null) {
+				noutstanding--;
+				finished.add(future.get());
+				future = service.poll();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the results.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("OOPS_BUG: The task failed.", e.getCause());
+		}
+	}
+
+
+	private <I, O> Worker<I, O> newWorker(Executor<I, O> executor, int idx) {
+		return new Worker<I, O>(executor, idx);
+	}
+
+
+	/**
+	 * A clone of the executor together with the queue into which it delivers its results.
+	 */
+	protected class Worker<I, O> implements Callable<Meta<?>>, Serializable {
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = -2335406497712306126L;
+		protected Executor<I, O> executor;
+		protected PriorityQueue<Meta<O>> caches;
+
+		public Worker(Executor<I, O> executor, int idx) {
+			this.executor = executor;
+			this.caches = new PriorityQueue<Meta<O>>(ThreadPool.idcomparator);
+			executor.setIdx(idx, caches);
+		}
+
+		@SuppressWarnings("unchecked") // the pool takes the tasks as objects, as ThreadPool does, so the caller types them
+		protected void setNextTask(int itask, Object task) {
+			executor.setNextTask(itask, (I) task);
+		}
+
+		@Override
+		public Meta<?> call() throws Exception {
+			try {
+				executor.call();
+				Meta<O> meta;
+				synchronized (caches) {
+					meta = caches.poll();
+				}
+				if (meta == null) {
+					throw new IllegalStateException("OOPS_BUG: The executor " + executor + " did not deliver its result.");
+				}
+				return meta;
+			} finally {
+				idle.add(this);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,255 @@
+package edu.shanghaitech.ai.nlp.data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig;
+import edu.shanghaitech.ai.nlp.lveg.impl.LVeGParser;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.model.PackedGaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.PackedGrammar;
+import edu.shanghaitech.ai.nlp.lveg.model.PackedGrammarTest;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+public class CheckpointWriterTest extends Recorder {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -5308729151043384736L;
+
+
+	@BeforeClass
+	public static void setUp() {
+		logger = logUtil.getConsoleLogger();
+		LearnerConfig.Params.config(new LearnerConfig.Options()); // the learning rate and so on
+	}
+
+
+	/**
+	 * @return the parameters of the rules of the grammar and the lexicon, as strings
+	 */
+	static Map<GrammarRule, String> weights(GrammarFile gfile) {
+		Map<GrammarRule, String> weights = new HashMap<>();
+		List<GrammarRule> rules = new ArrayList<>(gfile.getGrammar().getBRuleMap().values());
+		rules.addAll(gfile.getGrammar().getURuleMap().values());
+		rules.addAll(gfile.getLexicon().getURuleMap().values());
+		for (GrammarRule rule : rules) {
+			PackedGaussianMixture weight = PackedGaussianMixture.pack(rule.weight, null);
+			int ncomp = weight.ncomponent();
+			StringBuilder sb = new StringBuilder();
+			sb.append(rule.weight.getBias()).append(' ').append(rule.weight.getProb()).append(' ');
+			sb.append(Arrays.toString(Arrays.copyOf(weight.getWeights(), ncomp)));
+			for (RuleUnit key : RuleUnit.values()) {
+				if (!weight.has(key)) { continue; }
+				sb.append(key).append(Arrays.toString(Arrays.copyOf(weight.getMus(key), ncomp * weight.dim(key))));
+				sb.append(Arrays.toString(Arrays.copyOf(weight.getVars(key), ncomp)));
+			}
+			weights.put(rule, sb.toString());
+		}
+		return weights;
+	}
+
+
+	/**
+	 * @return the rules of which the parameters differ
+	 */
+	private static Set<GrammarRule> changed(Map<GrammarRule, String> before, Map<GrammarRule, String> after) {
+		Set<GrammarRule> rules = new HashSet<>();
+		for (Map.Entry<GrammarRule, String> entry : after.entrySet()) {
+			if (!entry.getValue().equals(before.get(entry.getKey()))) {
+				rules.add(entry.getKey());
+			}
+		}
+		return rules;
+	}
+
+
+	private static void check(boolean binary) throws Exception {
+		GrammarFile gfile = PackedGrammarTest.treebank();
+		File dir = Files.createTempDirectory("lveg").toFile();
+		List<String> filenames = new ArrayList<>();
+		filenames.add(new File(dir, "best.gr").getPath());
+		filenames.add(new File(dir, "periodic.gr").getPath());
+		CheckpointWriter writer = new CheckpointWriter(binary);
+		assertTrue(writer.save(gfile, filenames));
+		assertTrue(writer.save(gfile, filenames.get(0))); // overwrites the existing file
+		Map<GrammarRule, String> expected = weights(gfile);
+		for (GrammarRule rule : gfile.getGrammar().getBRuleMap().values()) {
+			rule.weight.setProb(rule.weight.getProb() - 1); // the snapshots are not affected
+			rule.weight.setWeight(0, rule.weight.getWeight(0) + 1);
+		}
+		writer.shutdown();
+		assertEquals(0, writer.nfailed());
+		for (String filename : filenames) {
+			assertEquals(binary, PackedGrammar.isPacked(filename));
+			GrammarFile loaded = GrammarFile.read(filename);
+			assertNotNull(loaded);
+			assertEquals(expected, weights(loaded));
+			new File(filename).delete();
+		}
+		assertEquals(0, dir.list().length); // no temporary file is left
+		dir.delete();
+	}
+
+
+	/**
+	 * @return the grammar of which the optimizers are initialized, in which "w_0 w_1 w_2" has two parses
+	 */
+	static GrammarFile trainable() {
+		GrammarFile gfile = PackedGrammarTest.treebank(PackedGrammarTest.TREEBANK[0], PackedGrammarTest.TREEBANK[1], 
+				PackedGrammarTest.TREEBANK[2], "(ROOT (S (X (A w_0) (B w_1)) (C w_2)))");
+		gfile.getGrammar().initializeOptimizer();
+		gfile.getLexicon().initializeOptimizer();
+		return gfile;
+	}
+
+
+	/**
+	 * @return the tree of "w_0 w_1 w_2", labeled by the lexicon of the grammar
+	 */
+	static Tree<State> sentence(GrammarFile gfile) {
+		List<Tree<String>> strTrees = new ArrayList<>();
+		strTrees.add((new Trees.PennTreeReader(new StringReader(PackedGrammarTest.TREEBANK[0]))).next());
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		StateTreeList trees = new StateTreeList(strTrees, numberer);
+		gfile.getLexicon().labelTrees(trees);
+		return trees.get(0);
+	}
+
+
+	/**
+	 * Apply a gradient step with the counts of the sentence, which only updates the rules that it can use.
+	 */
+	static void step(GrammarFile gfile, Tree<State> tree) {
+		LVeGGrammar grammar = gfile.getGrammar();
+		LVeGLexicon lexicon = gfile.getLexicon();
+		LVeGParser<?, ?> parser = new LVeGParser<Tree<State>, List<Double>>(
+				grammar, lexicon, (short) 10, (short) 1, false, false, false, null);
+		List<Double> scores = parser.evalRuleCounts(tree, (short) 0);
+		grammar.evalGradients(scores);
+		lexicon.evalGradients(scores);
+		grammar.applyGradientDescent(scores);
+		lexicon.applyGradientDescent(scores);
+	}
+
+
+	@Test
+	public void testDelta() throws Exception {
+		GrammarFile gfile = trainable();
+		Tree<State> sentence = sentence(gfile);
+
+		File file = File.createTempFile("lveg", ".gr");
+		File delta = new File(file.getPath() + PackedGrammar.DELTA_SUFFIX);
+		CheckpointWriter writer = new CheckpointWriter(false);
+		int ncompact = 2, nrule = weights(gfile).size();
+		assertTrue(writer.saveDelta(gfile, file.getPath(), ncompact)); // the first one is a new base
+		writer.flush();
+		assertFalse(delta.exists());
+		for (int i = 0; i < 2 * (ncompact + 1); i++) {
+			Map<GrammarRule, String> before = weights(gfile);
+			step(gfile, sentence);
+			Map<GrammarRule, String> after = weights(gfile);
+			Set<GrammarRule> updated = changed(before, after);
+			assertFalse(updated.isEmpty());
+			assertTrue(updated.size() < nrule);
+
+			assertTrue(writer.saveDelta(gfile, file.getPath(), ncompact));
+			writer.flush();
+			assertTrue(PackedGrammar.isPacked(file.getPath()));
+			List<PackedGrammar> segments = PackedGrammar.loadDeltas(file.getPath());
+			assertEquals((i + 1) % (ncompact + 1), segments.size()); // a new base drops the delta file
+			if (!segments.isEmpty()) {
+				PackedGrammar segment = segments.get(segments.size() - 1);
+				assertEquals(updated.size(), segment.nrule()); // exactly the updated rules
+				for (GrammarRule rule : updated) {
+					assertTrue(segment.contains(rule));
+				}
+			}
+			assertEquals(after, weights(GrammarFile.read(file.getPath())));
+		}
+		writer.shutdown();
+		assertEquals(0, writer.nfailed());
+		file.delete();
+		delta.delete();
+	}
+
+
+	@Test
+	public void testFailedDelta() throws Exception {
+		GrammarFile gfile = trainable();
+		Tree<State> sentence = sentence(gfile);
+
+		File file = File.createTempFile("lveg", ".gr");
+		File delta = new File(file.getPath() + PackedGrammar.DELTA_SUFFIX);
+		final Semaphore gate = new Semaphore(1);
+		CheckpointWriter writer = new CheckpointWriter(true) {
+			/**
+			 * 
+			 */
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void roll(PackedGrammar packed, boolean whole, String filename, int ncompact) {
+				gate.acquireUninterruptibly(); // hold the writer until the test lets it go
+				super.roll(packed, whole, filename, ncompact);
+			}
+		};
+		assertTrue(writer.saveDelta(gfile, file.getPath(), 10));
+		writer.flush();
+		assertTrue(delta.mkdir()); // the delta segments cannot be appended
+		step(gfile, sentence);
+		assertTrue(writer.saveDelta(gfile, file.getPath(), 10));
+		step(gfile, sentence);
+		assertTrue(writer.saveDelta(gfile, file.getPath(), 10)); // queued before the failure
+		gate.release(2);
+		writer.flush();
+		assertEquals(1, writer.nfailed());
+		assertFalse(delta.exists()); // the new base drops the delta file
+		assertEquals(weights(gfile), weights(GrammarFile.read(file.getPath())));
+
+		step(gfile, sentence);
+		assertTrue(writer.saveDelta(gfile, file.getPath(), 10));
+		gate.release();
+		writer.shutdown();
+		assertEquals(1, PackedGrammar.loadDeltas(file.getPath()).size());
+		assertEquals(weights(gfile), weights(GrammarFile.read(file.getPath())));
+		assertEquals(1, writer.nfailed());
+		file.delete();
+		delta.delete();
+	}
+
+
+	@Test
+	public void testBinary() throws Exception {
+		check(true);
+	}
+
+
+	@Test
+	public void testObjectFile() throws Exception {
+		check(false);
+	}
+
+}
@@ -0,0 +1,56 @@
+package edu.shanghaitech.ai.nlp.data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+public class ObjectFileManagerTest extends Recorder {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2071645468251839170L;
+
+
+	@BeforeClass
+	public static void setUp() {
+		logger = logUtil.getConsoleLogger();
+		LearnerConfig.Params.config(new LearnerConfig.Options());
+	}
+
+
+	/**
+	 * The grammar of {@link CheckpointWriterTest#trainable()}, of which the optimizers are initialized, serialized 
+	 * by the code before the gaussians and the gradients were backed by primitive arrays.
+	 */
+	@Test
+	public void testLegacyGrammar() throws Exception {
+		GrammarFile expected = CheckpointWriterTest.trainable();
+		GrammarFile loaded = GrammarFile.read(new File(getClass().getResource("baseline.gr").toURI()).getPath());
+		assertNotNull(loaded);
+		assertNotNull(loaded.getGrammar().getOptimizer()); // the optimizer states are kept
+		Map<GrammarRule, String> weights = CheckpointWriterTest.weights(expected);
+		assertEquals(weights, CheckpointWriterTest.weights(loaded));
+
+		for (int i = 0; i < 2; i++) { // the gradients and the moments of the loaded optimizer work as the new ones
+			CheckpointWriterTest.step(expected, CheckpointWriterTest.sentence(expected));
+			CheckpointWriterTest.step(loaded, CheckpointWriterTest.sentence(loaded));
+		}
+		assertNotEquals(weights, CheckpointWriterTest.weights(loaded));
+		assertEquals(CheckpointWriterTest.weights(expected), CheckpointWriterTest.weights(loaded));
+
+		File file = File.createTempFile("lveg", ".gr");
+		assertTrue(loaded.save(file.getPath())); // and it is saved in the same form
+		assertEquals(CheckpointWriterTest.weights(loaded), CheckpointWriterTest.weights(GrammarFile.read(file.getPath())));
+		file.delete();
+	}
+
+}
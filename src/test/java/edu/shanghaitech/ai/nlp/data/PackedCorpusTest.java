@@ -0,0 +1,82 @@
+package edu.shanghaitech.ai.nlp.data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.CorpusFile;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+
+public class PackedCorpusTest {
+
+	private static StateTreeList trees(Numberer numberer, String... strs) {
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (String str : strs) {
+			strTrees.add((new Trees.PennTreeReader(new StringReader(str))).next());
+		}
+		return new StateTreeList(strTrees, numberer);
+	}
+
+
+	private static void assertTreeEquals(Tree<State> expected, Tree<State> actual) {
+		State sexpected = expected.getLabel(), sactual = actual.getLabel();
+		assertEquals(sexpected.getId(), sactual.getId());
+		assertEquals(sexpected.getName(), sactual.getName());
+		assertEquals(sexpected.from, sactual.from);
+		assertEquals(sexpected.to, sactual.to);
+		assertEquals(expected.getChildren().size(), actual.getChildren().size());
+		for (int i = 0; i < expected.getChildren().size(); i++) {
+			assertTreeEquals(expected.getChildren().get(i), actual.getChildren().get(i));
+		}
+	}
+
+
+	private static void assertTreesEquals(StateTreeList expected, StateTreeList actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertTreeEquals(expected.get(i), actual.get(i));
+		}
+	}
+
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		Numberer numberer = new Numberer(true);
+		StateTreeList train = trees(numberer,
+				"(ROOT (S (A w_0) (E (B w_1) (C w_2))))",
+				"(ROOT (S (A w_0) (F (B w_1) (E (B w_1) (C w_2)))))");
+		StateTreeList test = trees(numberer, "(ROOT (L (A w_0) (M (B w_3) (S (A w_2) (C w_0)))))");
+		StateTreeList dev = trees(numberer);
+		File file = File.createTempFile("lveg", ".corpus");
+		file.deleteOnExit();
+		assertTrue(new CorpusFile(train, test, dev, numberer).saveBinary(file.getPath()));
+		assertTrue(PackedCorpus.isPacked(file.getPath()));
+
+		CorpusFile corpus = CorpusFile.read(file.getPath());
+		assertEquals(numberer.size(), corpus.getNumberer().size());
+		for (int i = 0; i < numberer.size(); i++) {
+			assertEquals(numberer.object(i), corpus.getNumberer().object(i));
+		}
+		assertTreesEquals(test, corpus.getTest()); // in any order
+		assertTreesEquals(train, corpus.getTrain());
+		assertTreesEquals(dev, corpus.getDev());
+		assertSame(corpus.getTrain().get(1), corpus.getTrain().get(1)); // materialized once
+
+		File legacy = File.createTempFile("lveg", ".corpus");
+		legacy.deleteOnExit();
+		assertTrue(corpus.save(legacy.getPath()));
+		assertFalse(PackedCorpus.isPacked(legacy.getPath()));
+		CorpusFile loaded = CorpusFile.read(legacy.getPath());
+		assertTreesEquals(train, loaded.getTrain());
+		assertTreesEquals(test, loaded.getTest());
+	}
+
+}
@@ -0,0 +1,145 @@
+package edu.shanghaitech.ai.nlp.lveg;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.StateTreeList;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+public class LearnerConfigTest extends Recorder {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 6420981543109233871L;
+
+
+	@BeforeClass
+	public static void setUp() {
+		logger = logUtil.getConsoleLogger();
+	}
+
+
+	@Test
+	public void testLongestFirst() {
+		String[] strs = {
+			"(ROOT (A w_0))",
+			"(ROOT (S (A w_0) (B w_1) (C w_2)))",
+			"(ROOT (S (A w_0) (B w_1)))",
+			"(ROOT (S (A w_0) (B w_1) (C w_2)))",
+			"(ROOT (B w_1))",
+		};
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (String str : strs) {
+			strTrees.add((new Trees.PennTreeReader(new StringReader(str))).next());
+		}
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		List<Tree<State>> trees = new ArrayList<>();
+		for (Tree<State> tree : new StateTreeList(strTrees, numberer)) {
+			trees.add(tree);
+		}
+		assertArrayEquals(new int[] {1, 3, 2, 0, 4}, LearnerConfig.longestFirst(trees));
+		assertEquals(0, LearnerConfig.longestFirst(new ArrayList<Tree<State>>()).length);
+	}
+
+
+	/**
+	 * @return the trees of random lengths, from 1 to 40
+	 */
+	private static List<Tree<State>> randomTrees(int ntree, Random rnd) {
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (int i = 0; i < ntree; i++) {
+			StringBuilder sb = new StringBuilder("(ROOT (S");
+			for (int j = rnd.nextInt(40); j >= 0; j--) {
+				sb.append(" (A w_0)");
+			}
+			strTrees.add((new Trees.PennTreeReader(new StringReader(sb.append("))").toString()))).next());
+		}
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		List<Tree<State>> trees = new ArrayList<>();
+		for (Tree<State> tree : new StateTreeList(strTrees, numberer)) {
+			trees.add(tree);
+		}
+		return trees;
+	}
+
+
+	/**
+	 * @return # of the bucket boundaries the batch crosses
+	 */
+	private static int straddle(List<Tree<State>> batch, int width) {
+		int minlen = Integer.MAX_VALUE, maxlen = 0;
+		for (Tree<State> tree : batch) {
+			minlen = Math.min(minlen, tree.getYield().size());
+			maxlen = Math.max(maxlen, tree.getYield().size());
+		}
+		return maxlen / width - minlen / width;
+	}
+
+
+	@Test
+	public void testBucketShuffle() {
+		Random rnd = new Random(0);
+		List<Tree<State>> trees = randomTrees(50, rnd);
+		Set<Tree<State>> expected = new HashSet<>(trees);
+		int bsize = 8, width = 5;
+		LearnerConfig.bucketShuffle(trees, bsize, width, rnd);
+		assertEquals(expected.size(), trees.size());
+		assertEquals(expected, new HashSet<>(trees));
+		int nstraddle = 0, maxbucket = 40 / width;
+		for (int ibegin = 0; ibegin < trees.size(); ibegin += bsize) {
+			nstraddle += straddle(trees.subList(ibegin, Math.min(ibegin + bsize, trees.size())), width);
+		}
+		assertTrue(nstraddle <= maxbucket); // each bucket boundary is crossed by at most one batch
+	}
+
+
+	@Test
+	public void testBucketBatches() {
+		List<Tree<State>> trees = randomTrees(50, new Random(0));
+		Set<Tree<State>> expected = new HashSet<>(trees);
+		LVeGTrainerImp.opts = new LearnerConfig.Options();
+		LVeGTrainerImp.opts.bsize = 8;
+		LVeGTrainerImp.opts.lenbucket = 5;
+		LVeGTrainerImp.ftrainTrees = trees;
+		LVeGTrainerImp.sorter = new PriorityQueue<>(LVeGTrainerImp.opts.bsize + 5, LearnerConfig.wcomparator);
+		List<Tree<State>> batch = new ArrayList<>();
+		int iprebeg, ibegin = 0, maxbucket = 40 / LVeGTrainerImp.opts.lenbucket;
+		boolean shuffle = true;
+		for (int iepoch = 0; iepoch < 4; iepoch++) { // as LVeGTrainerImp.parallelInBatch(...) walks the epochs
+			Set<Tree<State>> seen = new HashSet<>();
+			int nbatch = 0, nstraddle = 0;
+			while (true) {
+				iprebeg = ibegin;
+				ibegin = LVeGTrainerImp.getBatch(ibegin, shuffle, batch);
+				nbatch++;
+				nstraddle += straddle(batch, LVeGTrainerImp.opts.lenbucket);
+				for (Tree<State> tree : batch) {
+					assertTrue(seen.add(tree)); // once per epoch
+				}
+				if (ibegin <= iprebeg) {
+					shuffle = true;
+					break;
+				}
+				shuffle = false;
+			}
+			assertEquals(expected, seen);
+			assertEquals(7, nbatch); // 6 full batches and the incomplete one
+			assertTrue(nstraddle <= maxbucket); // the batches line up with the buckets after the reshuffle as well
+		}
+	}
+
+}
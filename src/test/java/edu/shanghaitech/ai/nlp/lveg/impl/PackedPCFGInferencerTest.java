@@ -0,0 +1,168 @@
+package edu.shanghaitech.ai.nlp.lveg.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.StateTreeList;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig;
+import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.Inferencer;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
+import edu.shanghaitech.ai.nlp.optimization.ParallelOptimizer;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+
+public class PackedPCFGInferencerTest {
+
+	/**
+	 * @return the trees from which the treebank grammar, with random rule probabilities, is built
+	 */
+	private static StateTreeList treebank() {
+		String[] strs = {
+			"(ROOT (S (A w_0) (E (B w_1) (C w_2))))",
+			"(ROOT (S (A w_0) (F (B w_1) (E (B w_1) (C w_2)))))",
+			"(ROOT (L (A w_0) (M (B w_1) (S (A w_2) (C w_0)))))",
+			"(ROOT (S (E (B w_1) (C w_2)) (F (M (A w_0)) (C w_0))))",
+			"(ROOT (S^g (@S^g (A w_0) (E^g (B w_1) (C w_2))) (C w_0)))",
+		};
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, (short) 2, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, (short) 2, 0.5, 0.8, rnd, null);
+
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (String str : strs) {
+			strTrees.add((new Trees.PennTreeReader(new StringReader(str))).next());
+		}
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		StateTreeList trees = new StateTreeList(strTrees, numberer);
+		LVeGGrammar grammar = new SimpleLVeGGrammar(numberer, -1);
+		LVeGLexicon lexicon = new SimpleLVeGLexicon(numberer, -1);
+		grammar.setOptimizer(new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false));
+		lexicon.setOptimizer(new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false));
+		for (Tree<State> tree : trees) {
+			lexicon.tallyStateTree(tree);
+			grammar.tallyStateTree(tree);
+		}
+		grammar.postInitialize();
+		lexicon.postInitialize();
+		lexicon.labelTrees(trees);
+		for (GrammarRule rule : grammar.getBRuleMap().values()) {
+			rule.weight.setProb(Math.log(0.1 + rnd.nextDouble()));
+		}
+		for (GrammarRule rule : grammar.getURuleMap().values()) {
+			rule.weight.setProb(Math.log(0.1 + rnd.nextDouble()));
+		}
+		for (Tree<State> tree : trees) {
+			for (State word : tree.getYield()) {
+				for (GrammarRule rule : lexicon.getRulesWithWord(word)) {
+					rule.weight.setProb(Math.log(0.1 + rnd.nextDouble()));
+				}
+			}
+		}
+		new PCFGInferencer(grammar, lexicon);
+		return trees;
+	}
+
+
+	@Test
+	public void testPosteriorMask() {
+		StateTreeList trees = treebank();
+		LVeGGrammar grammar = Inferencer.grammar;
+		PackedPCFGInferencer.config("pcfg", Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		double threshold = Math.log(0.3);
+		for (Tree<State> tree : trees) {
+			List<State> sentence = tree.getYield();
+			int nword = sentence.size();
+			Chart expected = new Chart(nword, false, false, true);
+			PCFGInferencer.insideScore(expected, sentence, nword, false, -1, -1);
+			PCFGInferencer.setRootOutsideScore(expected);
+			PCFGInferencer.outsideScore(expected, sentence, nword, false, -1, -1);
+			double scoreS = expected.getInsideScoreMask((short) 0, Chart.idx(0, 1));
+			PCFGInferencer.createPosteriorMask(nword, expected, scoreS, threshold);
+
+			Chart chart = new Chart(nword, false, false, true);
+			assertEquals(scoreS, PackedPCFGInferencer.createPosteriorMask(nword, chart, sentence, threshold), 1e-9);
+			Chart beamed = new Chart(nword, false, false, true);
+			Inferencer.config(-1, -1, 10); // the outside estimates are kept only for the beam
+			PackedPCFGInferencer.createPosteriorMask(nword, beamed, sentence, threshold);
+			Inferencer.config(-1, -1, Double.POSITIVE_INFINITY);
+
+			int ntag = grammar.ntag, nmask = 0;
+			PackedPCFGInferencer.Workspace ws = PackedPCFGInferencer.workspace.get();
+			for (int idx = 0; idx < nword * (nword + 1) / 2; idx++) {
+				for (short itag = 0; itag < ntag; itag++) {
+					assertEquals(expected.getInsideScoreMask(itag, idx), ws.itotals[idx * ntag + itag], 1e-9);
+					assertEquals(expected.getOutsideScoreMask(itag, idx), ws.ototals[idx * ntag + itag], 1e-9);
+					assertEquals(expected.isPosteriorAllowed(itag, idx), chart.isPosteriorAllowed(itag, idx));
+					assertEquals(Double.NEGATIVE_INFINITY, chart.getOutsideScoreMask(itag, idx), 0);
+					if (chart.isPosteriorAllowed(itag, idx)) {
+						assertEquals(ws.ototals[idx * ntag + itag], beamed.getOutsideScoreMask(itag, idx), 1e-9);
+						nmask++;
+					}
+				}
+			}
+			assertTrue(nmask > 0);
+		}
+	}
+	
+	
+	@Test
+	public void testCascade() {
+		StateTreeList trees = treebank();
+		PackedPCFGInferencer xbar = PackedPCFGInferencer.packed(PackedPCFGInferencer.Level.XBAR);
+		Numberer numberer = Inferencer.grammar.numberer;
+		assertEquals(xbar.project[numberer.number("S")], xbar.project[numberer.number("@S^g")]);
+		assertEquals(xbar.project[numberer.number("S")], xbar.project[numberer.number("S^g")]);
+		assertNotEquals(xbar.project[numberer.number("S")], xbar.project[numberer.number("E^g")]);
+		assertEquals(0, xbar.project[0]);
+		assertTrue(xbar.ntag < Inferencer.grammar.ntag);
+		
+		int ntotal = 0; // # of the pairs pruned by the x-bar level
+		double threshold = Math.log(0.3);
+		for (Tree<State> tree : trees) {
+			List<State> sentence = tree.getYield();
+			int nword = sentence.size();
+			PackedPCFGInferencer.config("pcfg", Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+			Chart expected = new Chart(nword, false, false, true);
+			PackedPCFGInferencer.createPosteriorMask(nword, expected, sentence, threshold);
+			Chart all = new Chart(nword, false, false, true);
+			PackedPCFGInferencer.createPosteriorMask(nword, all, sentence, Double.NEGATIVE_INFINITY);
+			// the coarse and the finer levels keep every reachable pair, and thus do not change the masks
+			PackedPCFGInferencer.config("xbar,pcfg,lveg", Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+			Chart chart = new Chart(nword, false, false, true);
+			PackedPCFGInferencer.createPosteriorMask(nword, chart, sentence, threshold);
+			// the strict x-bar level prunes the pairs before the treebank level
+			PackedPCFGInferencer.config("xbar,pcfg", Math.log(0.5), Double.NEGATIVE_INFINITY);
+			Chart pruned = new Chart(nword, false, false, true);
+			PackedPCFGInferencer.createPosteriorMask(nword, pruned, sentence, Double.NEGATIVE_INFINITY);
+			
+			int nmask = 0, npruned = 0, nall = 0;
+			for (int idx = 0; idx < nword * (nword + 1) / 2; idx++) {
+				for (short itag = 0; itag < Inferencer.grammar.ntag; itag++) {
+					assertEquals(expected.isPosteriorAllowed(itag, idx), chart.isPosteriorAllowed(itag, idx));
+					if (chart.isPosteriorAllowed(itag, idx)) { nmask++; }
+					if (pruned.isPosteriorAllowed(itag, idx)) { npruned++; }
+					if (all.isPosteriorAllowed(itag, idx)) { nall++; }
+					assertTrue(!pruned.isPosteriorAllowed(itag, idx) || all.isPosteriorAllowed(itag, idx));
+				}
+			}
+			assertTrue(nmask > 0 && npruned > 0);
+			ntotal += nall - npruned;
+		}
+		assertTrue(ntotal > 0);
+		PackedPCFGInferencer.config("pcfg", Math.log(1e-12), Math.log(1e-8));
+	}
+
+}
@@ -0,0 +1,115 @@
+package edu.shanghaitech.ai.nlp.lveg.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.lveg.model.Inferencer;
+import edu.shanghaitech.ai.nlp.lveg.model.PackedGrammarTest;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Recorder;
+
+public class ParsePipelineTest extends Recorder {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 2815366502735169124L;
+
+
+	@BeforeClass
+	public static void setUp() {
+		logger = logUtil.getConsoleLogger();
+	}
+
+
+	/**
+	 * @return the pipeline that writes the label of the root and the yield of each parse
+	 */
+	private static ParsePipeline pipeline(GrammarFile gfile, short maxslen, boolean treeInput, boolean lowercase) {
+		MaxRuleParser<Tree<State>, Tree<String>> parser = new MaxRuleParser<Tree<State>, Tree<String>>(
+				gfile.getGrammar(), gfile.getLexicon(), maxslen, (short) 1, false, false, false, false, null);
+		return new ParsePipeline(parser, gfile.getLexicon(), maxslen, 2, 2, treeInput, lowercase) {
+			/**
+			 * 
+			 */
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected String format(Tree<String> parsed) { // label of the root and the yield
+				StringBuilder sb = new StringBuilder(parsed.getLabel());
+				for (String word : parsed.getYield()) {
+					sb.append(' ').append(word);
+				}
+				return sb.toString();
+			}
+		};
+	}
+
+
+	@Test
+	public void testParse() throws Exception {
+		GrammarFile gfile = PackedGrammarTest.treebank();
+		short maxslen = 4;
+		String[] sentences = {
+			"w_0 w_1 w_2", "", "w_0  w_1", "w_0 w_1 w_2 w_0 w_1", "w_2 w_0", "w_1", "w_0 w_1 w_1 w_2", "w_9 w_0",
+		};
+		boolean[] derivable = {true, false, false, false, true, false, true, false}; // by the grammar
+		StringBuilder sb = new StringBuilder();
+		for (String sentence : sentences) {
+			sb.append(sentence).append('\n');
+		}
+		StringWriter out = new StringWriter();
+		ParsePipeline pipeline = pipeline(gfile, maxslen, false, false);
+		assertEquals(sentences.length, pipeline.parse(new BufferedReader(new StringReader(sb.toString())), out));
+
+		String[] parses = out.toString().split("\n", -1);
+		assertEquals(sentences.length + 1, parses.length);
+		assertEquals("", parses[sentences.length]);
+		for (int i = 0; i < sentences.length; i++) {
+			String[] words = sentences[i].trim().split("\\s+");
+			if (sentences[i].isEmpty()) {
+				assertEquals("", parses[i]);
+			} else if (!derivable[i]) { // too long, not derivable, or w_9 that is unknown and there is no UNK
+				assertTrue(parses[i].contains(Inferencer.DUMMY_TAG));
+			} else {
+				String[] parsed = parses[i].split(" ");
+				assertNotEquals(Inferencer.DUMMY_TAG, parsed[0]);
+				assertEquals(Arrays.asList(words), Arrays.asList(parsed).subList(1, parsed.length)); // in the order of the input
+			}
+		}
+		SimpleLVeGLexicon lexicon = (SimpleLVeGLexicon) gfile.getLexicon();
+		assertEquals(Integer.valueOf(-1), lexicon.wordIdxes[0].get("w_9")); // unresolvable, as there is no UNK
+		for (ConcurrentHashMap<String, Integer> shard : lexicon.wordIdxes) {
+			for (String word : shard.keySet()) {
+				assertEquals(-1, lexicon.wordIndexer.indexof(word)); // only the words out of the vocabulary are cached
+			}
+		}
+	}
+
+
+	@Test
+	public void testNormalize() throws Exception {
+		GrammarFile gfile = PackedGrammarTest.treebank();
+		String trees = "(ROOT (S (A W_0) (-NONE- *T*-1) (E (B w_1) (C W_2))))\n(ROOT (S (A w_0) (E (B w_1) (C w_2))))\n";
+		for (boolean lowercase : new boolean[] {true, false}) {
+			StringWriter out = new StringWriter();
+			ParsePipeline pipeline = pipeline(gfile, (short) 4, true, lowercase);
+			assertEquals(2, pipeline.parse(new BufferedReader(new StringReader(trees)), out));
+			String[] parses = out.toString().split("\n");
+			assertEquals(2, parses.length);
+			assertEquals(lowercase, parses[0].endsWith(" w_0 w_1 w_2")); // the trace is not a word
+			assertEquals(!lowercase, parses[0].contains(Inferencer.DUMMY_TAG)); // W_0 is unknown and there is no UNK
+			assertTrue(parses[1].endsWith(" w_0 w_1 w_2"));
+		}
+	}
+
+}
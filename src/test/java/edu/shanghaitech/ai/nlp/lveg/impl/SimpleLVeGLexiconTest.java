@@ -0,0 +1,94 @@
+package edu.shanghaitech.ai.nlp.lveg.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.syntax.State;
+
+public class SimpleLVeGLexiconTest {
+
+	private static SimpleLVeGLexicon lexicon() {
+		SimpleLVeGLexicon lexicon = new SimpleLVeGLexicon();
+		for (String word : new String[] {"the", "UNK", "UNK-LC", "UNK-INITC"}) {
+			lexicon.wordIndexer.add(word);
+		}
+		lexicon.postInitialize();
+		return lexicon;
+	}
+
+
+	private static int wordIdx(SimpleLVeGLexicon lexicon, String name, int pos) {
+		return lexicon.getWordIdx(new State(name, (short) -1, (short) pos, (short) (pos + 1)));
+	}
+
+
+	@Test
+	public void testWordIdx() {
+		SimpleLVeGLexicon lexicon = lexicon();
+		assertEquals(lexicon.wordIndexer.indexof("the"), wordIdx(lexicon, "the", 3));
+		assertEquals(lexicon.wordIndexer.indexof("UNK-LC"), wordIdx(lexicon, "walked", 3)); // UNK-LC-ed
+		assertEquals(lexicon.wordIndexer.indexof("UNK-INITC"), wordIdx(lexicon, "Hardest", 0)); // UNK-INITC-est
+		assertEquals(lexicon.wordIndexer.indexof("UNK"), wordIdx(lexicon, "Hardest", 4)); // UNK-CAPS-est
+		assertEquals(lexicon.wordIndexer.indexof("UNK"), wordIdx(lexicon, null, 4));
+		assertEquals("UNK-INITC-est", lexicon.getCachedSignature("Hardest", 0));
+		assertEquals("UNK-CAPS-est", lexicon.getCachedSignature("Hardest", 4));
+		assertEquals("UNK", lexicon.getCachedSignature(null, 4));
+	}
+
+
+	@Test
+	public void testCachedWordIdx() {
+		SimpleLVeGLexicon lexicon = lexicon();
+		assertEquals(lexicon.wordIndexer.indexof("UNK-LC"), wordIdx(lexicon, "walked", 3));
+		assertEquals(lexicon.wordIndexer.indexof("the"), wordIdx(lexicon, "the", 3));
+		assertEquals(Integer.valueOf(lexicon.wordIndexer.indexof("UNK-LC")), lexicon.wordIdxes[1].get("walked"));
+		assertFalse(lexicon.wordIdxes[1].containsKey("the")); // the vocabulary is looked up directly
+		assertTrue(lexicon.wordIdxes[0].isEmpty());
+		for (int i = 0; i < SimpleLVeGLexicon.MAX_NCACHED + 10; i++) {
+			assertTrue(wordIdx(lexicon, "w" + i, 3) >= 0);
+		}
+		assertEquals(SimpleLVeGLexicon.MAX_NCACHED, lexicon.wordIdxes[1].size()); // bounded
+		assertEquals(lexicon.wordIndexer.indexof("UNK-LC"), wordIdx(lexicon, "jumped", 3)); // resolved all the same
+	}
+
+
+	@Test
+	public void testConcurrentWordIdx() throws Exception {
+		final SimpleLVeGLexicon lexicon = lexicon();
+		final String[] names = {"the", "walked", "Hardest", "running", "Gone", "12-34", "the", "walked"};
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<int[]>> futures = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			futures.add(pool.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					int[] idxes = new int[names.length * 2];
+					for (int j = 0; j < names.length; j++) {
+						idxes[j * 2] = wordIdx(lexicon, names[j], 0);
+						idxes[j * 2 + 1] = wordIdx(lexicon, names[j], j + 1);
+					}
+					return idxes;
+				}
+			}));
+		}
+		SimpleLVeGLexicon expected = lexicon();
+		for (Future<int[]> future : futures) {
+			int[] idxes = future.get();
+			for (int j = 0; j < names.length; j++) {
+				assertEquals(expected.resolve(names[j], 0), idxes[j * 2]);
+				assertEquals(expected.resolve(names[j], j + 1), idxes[j * 2 + 1]);
+				assertTrue(idxes[j * 2] >= 0);
+			}
+		}
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,201 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.StateTreeList;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig;
+import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.impl.LVeGInferencer;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.FunUtil;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+
+public class CYKSchedulerTest {
+
+	private static StateTreeList trees;
+	private static CYKScheduler scheduler = new CYKScheduler(4);
+
+	private final static String[] strs = {
+		"(ROOT (S (A w_0) (E (B w_1) (C w_2))))",
+		"(ROOT (S (A w_0) (F (B w_1) (E (B w_1) (C w_2)))))",
+		"(ROOT (S (S (A w_0) (G (E (B w_1) (C w_2)))) (F (B w_1) (C w_2))))",
+		"(ROOT (L (A w_0) (M (B w_1) (S (A w_2) (C w_0)))))",
+		"(ROOT (S (A w_0) (E (B w_1) (S (E (A w_2) (C w_0)) (M (B w_1) (C w_2))))))",
+	};
+
+
+	@BeforeClass
+	public static void setUp() {
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, (short) 2, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, (short) 2, 0.5, 0.8, rnd, null);
+
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (String str : strs) {
+			strTrees.add((new Trees.PennTreeReader(new StringReader(str))).next());
+		}
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		trees = new StateTreeList(strTrees, numberer);
+		LVeGGrammar grammar = new SimpleLVeGGrammar(numberer, -1);
+		LVeGLexicon lexicon = new SimpleLVeGLexicon(numberer, -1);
+		for (Tree<State> tree : trees) {
+			lexicon.tallyStateTree(tree);
+			grammar.tallyStateTree(tree);
+		}
+		grammar.postInitialize();
+		lexicon.postInitialize();
+		lexicon.labelTrees(trees);
+		new LVeGInferencer(grammar, lexicon);
+	}
+
+
+	@Test
+	public void testSharedPool() {
+		assertSame(scheduler.pool, new CYKScheduler(4).pool);
+		assertNotSame(scheduler.pool, new CYKScheduler(2).pool);
+	}
+
+
+	@Test
+	public void testInsideScore() {
+		for (Tree<State> tree : trees) {
+			List<State> sentence = tree.getYield();
+			int nword = sentence.size();
+			Chart serial = new Chart(nword, true, false, false);
+			Chart parallel = new Chart(nword, true, false, false);
+			Inferencer.insideScore(serial, sentence, null, nword, true, false, false);
+			scheduler.insideScore(parallel, sentence, null, nword, true, false, false);
+			assertNotNull(serial.getInsideScore((short) 0, Chart.idx(0, 1)));
+			assertSameChart(serial, parallel, true, nword);
+		}
+	}
+
+
+	@Test
+	public void testOutsideScore() {
+		for (Tree<State> tree : trees) {
+			List<State> sentence = tree.getYield();
+			int nword = sentence.size();
+			Chart serial = new Chart(nword, true, false, false);
+			Chart parallel = new Chart(nword, true, false, false);
+			Inferencer.insideScore(serial, sentence, null, nword, true, false, false);
+			Inferencer.setRootOutsideScore(serial);
+			Inferencer.outsideScore(serial, sentence, nword, true, false, false);
+			scheduler.insideScore(parallel, sentence, null, nword, true, false, false);
+			Inferencer.setRootOutsideScore(parallel);
+			scheduler.outsideScore(parallel, sentence, nword, true, false, false);
+			assertFalse(serial.keySet(Chart.idx(0, nword), false).isEmpty());
+			assertSameChart(serial, parallel, true, nword);
+			assertSameChart(serial, parallel, false, nword);
+		}
+	}
+
+
+	@Test
+	public void testWithMasks() {
+		Random rnd = new Random(1);
+		for (Tree<State> tree : trees) {
+			List<State> sentence = tree.getYield();
+			int nword = sentence.size();
+			Chart serial = new Chart(nword, true, false, true);
+			Chart parallel = new Chart(nword, true, false, true);
+			for (int idx = 0; idx < nword * (nword + 1) / 2; idx++) {
+				for (short itag = 0; itag < Inferencer.grammar.ntag; itag++) {
+					if (itag == 0 || rnd.nextDouble() < 0.7) {
+						serial.addPosteriorMask(itag, idx);
+						parallel.addPosteriorMask(itag, idx);
+					}
+				}
+			}
+			Inferencer.insideScore(serial, sentence, null, nword, false, true, false);
+			Inferencer.setRootOutsideScore(serial);
+			Inferencer.outsideScore(serial, sentence, nword, false, true, false);
+			scheduler.insideScore(parallel, sentence, null, nword, false, true, false);
+			Inferencer.setRootOutsideScore(parallel);
+			scheduler.outsideScore(parallel, sentence, nword, false, true, false);
+			assertSameChart(serial, parallel, true, nword);
+			assertSameChart(serial, parallel, false, nword);
+		}
+	}
+
+
+	@Test
+	public void testBinaryRuleIndex() {
+		LVeGGrammar grammar = Inferencer.grammar;
+		BinaryRuleIndex index = grammar.getBRuleIndex();
+		assertEquals(grammar.getBRuleMap().size(), index.size());
+		for (short lc = 0; lc < grammar.ntag; lc++) {
+			for (int g = index.lcstart[lc]; g < index.lcstart[lc + 1]; g++) {
+				for (int r = index.rcstart[g]; r < index.rcstart[g + 1]; r++) {
+					assertEquals(lc, index.rules[index.ids[r]].lchild);
+					assertEquals(index.rchild[g], index.rules[index.ids[r]].rchild);
+					if (r > index.rcstart[g]) { assertTrue(index.ids[r - 1] < index.ids[r]); }
+				}
+			}
+		}
+		// the binary step driven by the children agrees with the one enumerating the rules by the parents
+		for (Tree<State> tree : trees) {
+			List<State> sentence = tree.getYield();
+			int nword = sentence.size();
+			Chart chart = new Chart(nword, true, false, false);
+			Inferencer.insideScore(chart, sentence, null, nword, false, false, false);
+			for (int ilayer = 1; ilayer < nword; ilayer++) {
+				for (int left = 0; left < nword - ilayer; left++) {
+					int c2 = Chart.idx(left, nword - ilayer), nkey = 0;
+					for (short itag = 0; itag < grammar.ntag; itag++) {
+						double expected = Double.NEGATIVE_INFINITY;
+						for (GrammarRule arule : grammar.getBRuleWithP(itag)) {
+							BinaryGrammarRule rule = (BinaryGrammarRule) arule;
+							for (int right = left; right < left + ilayer; right++) {
+								int c0 = Chart.idx(left, nword - (right - left));
+								int c1 = Chart.idx(right + 1, nword - (left + ilayer - right - 1));
+								if (chart.containsKey(rule.lchild, c0, true) && chart.containsKey(rule.rchild, c1, true)) {
+									GaussianMixture gm = rule.getWeight().mulAndMarginalize(chart.getInsideScore(rule.lchild, c0), null, RuleUnit.LC, true);
+									gm = gm.mulAndMarginalize(chart.getInsideScore(rule.rchild, c1), gm, RuleUnit.RC, false);
+									expected = FunUtil.logAdd(expected, gm.marginalize(true));
+								}
+							}
+						}
+						if (expected == Double.NEGATIVE_INFINITY) {
+							assertFalse(chart.containsKey(itag, c2, true, (short) 0));
+						} else {
+							assertEquals(expected, chart.getInsideScore(itag, c2, (short) 0).marginalize(true), 1e-9);
+							nkey++;
+						}
+					}
+					assertEquals(nkey, chart.keySet(c2, true, (short) 0) == null ? 0 : chart.keySet(c2, true, (short) 0).size());
+				}
+			}
+		}
+	}
+
+
+	protected static void assertSameChart(Chart expected, Chart actual, boolean inside, int nword) {
+		for (int idx = 0; idx < nword * (nword + 1) / 2; idx++) {
+			Set<Short> keys = expected.keySet(idx, inside);
+			assertEquals(keys, actual.keySet(idx, inside));
+			for (short key : keys) {
+				GaussianMixture gm0 = inside ? expected.getInsideScore(key, idx) : expected.getOutsideScore(key, idx);
+				GaussianMixture gm1 = inside ? actual.getInsideScore(key, idx) : actual.getOutsideScore(key, idx);
+				assertEquals(gm0.ncomponent(), gm1.ncomponent());
+				assertEquals(gm0.marginalize(true), gm1.marginalize(true), 1e-9);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.ChartCell.Chart;
+
+public class ChartCellTest {
+
+	static {
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, (short) 2, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, (short) 2, 0.5, 0.8, rnd, null);
+	}
+
+
+	@Test
+	public void testScores() {
+		Chart chart = new Chart(3, true, false, false);
+		int idx = Chart.idx(1, 3);
+		assertNull(chart.keySet(idx, true, (short) 0));
+		assertTrue(chart.keySet(idx, true).isEmpty());
+
+		chart.addInsideScore((short) 40, idx, new DiagonalGaussianMixture((short) 1), (short) 0);
+		chart.addInsideScore((short) 3, idx, new DiagonalGaussianMixture((short) 1), (short) 0);
+		chart.addInsideScore((short) 3, idx, new DiagonalGaussianMixture((short) 1), (short) 1);
+		assertEquals(new HashSet<>(Arrays.asList((short) 3, (short) 40)), chart.keySet(idx, true, (short) 0));
+		assertEquals(Arrays.asList((short) 3), Arrays.asList(chart.keySet(idx, true, (short) 1).toArray()));
+		assertTrue(chart.containsKey((short) 3, idx, true, (short) 1));
+		assertFalse(chart.containsKey((short) 40, idx, true, (short) 1));
+		assertNull(chart.keySet(idx, true, (short) 2));
+		assertEquals(2, chart.size(idx, true));
+		assertEquals(2, chart.getInsideScore((short) 3, idx).ncomponent());
+		assertEquals(1, chart.getInsideScore((short) 3, idx, (short) 1).ncomponent());
+		assertNull(chart.getInsideScore((short) 4, idx));
+
+		chart.clear(3);
+		assertEquals(0, chart.size(idx, true));
+		assertNull(chart.keySet(idx, true, (short) 0));
+		assertNull(chart.getInsideScore((short) 3, idx));
+	}
+
+
+	@Test
+	public void testMasks() {
+		Chart chart = new Chart(2, false, false, true);
+		int idx = Chart.idx(0, 2);
+		chart.addInsideScoreMask((short) 5, idx, -1.0, (short) 0);
+		chart.addInsideScoreMask((short) 5, idx, -1.0, (short) 1);
+		chart.addInsideScoreMask((short) 7, idx, -3.0, (short) 1);
+		assertEquals(-1.0 + Math.log(2), chart.getInsideScoreMask((short) 5, idx), 1e-12);
+		assertEquals(-3.0, chart.getInsideScoreMask((short) 7, idx, (short) 1), 1e-12);
+		assertEquals(Double.NEGATIVE_INFINITY, chart.getInsideScoreMask((short) 7, idx, (short) 0), 0);
+		assertEquals(2, chart.keySetMask(idx, true).size());
+
+		chart.pruneInsideScoreMask(idx, (short) -1, 1, 0, false);
+		assertTrue(chart.isAllowed((short) 5, idx, true));
+		assertFalse(chart.isAllowed((short) 7, idx, true));
+	}
+	
+	
+	private static GaussianMixture mixture(double weight) {
+		GaussianMixture mixture = new DiagonalGaussianMixture((short) 1);
+		mixture.setWeight(0, weight);
+		return mixture;
+	}
+	
+	
+	@Test
+	public void testBeam() {
+		Chart chart = new Chart(3, true, false, true);
+		int idx = Chart.idx(1, 3);
+		for (short key = 1; key <= 5; key++) {
+			chart.addInsideScore(key, idx, mixture(-key), (short) 0);
+		}
+		chart.addInsideScore((short) 3, idx, mixture(-3), (short) 1);
+		chart.beamInsideScore(idx, 2, Double.POSITIVE_INFINITY, (short) -1);
+		assertEquals(new HashSet<>(Arrays.asList((short) 1, (short) 2)), chart.keySet(idx, true));
+		assertNull(chart.getInsideScore((short) 3, idx));
+		assertFalse(chart.containsKey((short) 3, idx, true, (short) 1));
+		
+		idx = Chart.idx(0, 2); // the tags ranked below the best one by more than the gap are dropped
+		chart.addInsideScore((short) 1, idx, mixture(-1.0), (short) 0);
+		chart.addInsideScore((short) 2, idx, mixture(-1.5), (short) 0);
+		chart.addInsideScore((short) 3, idx, mixture(-10.0), (short) 0);
+		chart.beamInsideScore(idx, Integer.MAX_VALUE, 2, (short) -1);
+		assertEquals(new HashSet<>(Arrays.asList((short) 1, (short) 2)), chart.keySet(idx, true));
+		
+		idx = Chart.idx(0, 1); // ROOT is neither ranked nor dropped
+		chart.addInsideScore((short) 0, idx, mixture(-9.0), (short) 0);
+		chart.addInsideScore((short) 1, idx, mixture(-1.0), (short) 0);
+		chart.addInsideScore((short) 2, idx, mixture(-2.0), (short) 0);
+		chart.beamInsideScore(idx, 1, Double.POSITIVE_INFINITY, (short) 0);
+		assertEquals(new HashSet<>(Arrays.asList((short) 0, (short) 1)), chart.keySet(idx, true));
+		
+		idx = Chart.idx(2, 3); // ranked by the inside scores times the outside estimates
+		chart.addInsideScore((short) 1, idx, mixture(-1.0), (short) 0);
+		chart.addInsideScore((short) 2, idx, mixture(-2.0), (short) 0);
+		chart.addOutsideScoreMask((short) 1, idx, -5.0, (short) 0);
+		chart.addOutsideScoreMask((short) 2, idx, 0.0, (short) 0);
+		chart.beamInsideScore(idx, 1, Double.POSITIVE_INFINITY, (short) -1);
+		assertEquals(new HashSet<>(Arrays.asList((short) 2)), chart.keySet(idx, true));
+	}
+
+}
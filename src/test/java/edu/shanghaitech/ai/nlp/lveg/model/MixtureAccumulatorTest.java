@@ -0,0 +1,70 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import static org.junit.Assert.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.util.FunUtil;
+
+public class MixtureAccumulatorTest {
+
+	private final static short ncomp = MixtureFixture.NCOMP;
+
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		MixtureFixture.config();
+	}
+
+
+	private static GaussianMixture mixture(int ncomponent, RuleUnit... keys) {
+		return MixtureFixture.mixture(-0.3, ncomponent, keys);
+	}
+
+
+	@Test
+	public void testBinaryRule() {
+		GaussianMixture rule = mixture(ncomp, RuleUnit.P, RuleUnit.LC, RuleUnit.RC);
+		GaussianMixture[] lins = { mixture(2, RuleUnit.P), mixture(3, RuleUnit.P) };
+		GaussianMixture[] rins = { mixture(4, RuleUnit.P), mixture(1, RuleUnit.P) };
+
+		MixtureAccumulator acc = new MixtureAccumulator();
+		acc.reset(rule);
+		assertTrue(acc.isEmpty());
+		double expected = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < lins.length; i++) {
+			GaussianMixture pinScore = rule.mulAndMarginalize(lins[i], null, RuleUnit.LC, true);
+			pinScore = pinScore.mulAndMarginalize(rins[i], null, RuleUnit.RC, false);
+			expected = FunUtil.logAdd(expected, pinScore.marginalize(true));
+			acc.mulAndMarginalize(lins[i], RuleUnit.LC, rins[i], RuleUnit.RC);
+		}
+		GaussianMixture pinScore = acc.flush(false);
+		assertTrue(acc.isEmpty());
+		assertNull(acc.flush(false));
+
+		assertEquals(ncomp, pinScore.ncomponent());
+		assertEquals(expected, pinScore.marginalize(true), 1e-12);
+		for (int k = 0; k < ncomp; k++) {
+			assertEquals(1, pinScore.size(k));
+			assertEquals(rule.getComponent((short) k).squeeze(RuleUnit.P), pinScore.getComponent((short) k).squeeze(RuleUnit.P));
+		}
+		// the rule weight is untouched
+		assertEquals(3, rule.size(0));
+	}
+
+
+	@Test
+	public void testUnaryRule() {
+		GaussianMixture rule = mixture(ncomp, RuleUnit.P, RuleUnit.UC);
+		GaussianMixture cinScore = mixture(2, RuleUnit.P);
+		GaussianMixture expected = rule.mulAndMarginalize(cinScore, null, RuleUnit.UC, true);
+
+		MixtureAccumulator acc = new MixtureAccumulator();
+		acc.reset(rule);
+		acc.mulAndMarginalize(cinScore, RuleUnit.UC);
+		assertEquals(expected.toString(), acc.flush(false).toString());
+	}
+
+}
@@ -0,0 +1,53 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+
+/**
+ * Random diagonal mixtures shared by the tests of the mixture arithmetic.
+ * 
+ * @author Yanpeng Zhao
+ *
+ */
+public class MixtureFixture {
+
+	public final static short NCOMP = 3, NDIM = 2;
+
+
+	/**
+	 * Configure the mixtures and the gaussians with a fixed seed, call it before building any mixture.
+	 */
+	public static void config() {
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, NCOMP, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, NDIM, 0.5, 0.8, rnd, null);
+	}
+
+
+	/**
+	 * @param step       the weight of the i-th component is step * i
+	 * @param ncomponent # of the components
+	 * @param keys       portions of each component, each a single random gaussian
+	 * @return           the mixture
+	 */
+	public static GaussianMixture mixture(double step, int ncomponent, RuleUnit... keys) {
+		GaussianMixture gm = new DiagonalGaussianMixture((short) 0, false);
+		for (int i = 0; i < ncomponent; i++) {
+			EnumMap<RuleUnit, Set<GaussianDistribution>> map = new EnumMap<>(RuleUnit.class);
+			for (RuleUnit key : keys) {
+				Set<GaussianDistribution> gausses = new HashSet<>();
+				gausses.add(new DiagonalGaussianDistribution(NDIM));
+				map.put(key, gausses);
+			}
+			gm.add(step * i, map);
+		}
+		return gm;
+	}
+
+}
@@ -0,0 +1,91 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+
+public class PackedGaussianMixtureTest {
+
+	private final static short ncomp = MixtureFixture.NCOMP;
+
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		MixtureFixture.config();
+	}
+
+
+	private static GaussianMixture mixture(int ncomponent, RuleUnit... keys) {
+		return MixtureFixture.mixture(-0.5, ncomponent, keys);
+	}
+
+
+	@Test
+	public void testPackAndUnpack() {
+		GaussianMixture gm = mixture(ncomp, RuleUnit.P, RuleUnit.LC, RuleUnit.RC);
+		PackedGaussianMixture pgm = PackedGaussianMixture.pack(gm, null);
+		assertEquals(ncomp, pgm.ncomponent());
+		assertTrue(pgm.has(RuleUnit.LC) && !pgm.has(RuleUnit.UC));
+		assertEquals(gm.toString(), pgm.unpack(null).toString());
+	}
+
+
+	@Test
+	public void testMulAndMarginalize() {
+		GaussianMixture rule = mixture(ncomp, RuleUnit.P, RuleUnit.LC, RuleUnit.RC);
+		GaussianMixture lin = mixture(2, RuleUnit.P);
+		GaussianMixture rin = mixture(4, RuleUnit.P);
+
+		GaussianMixture expected = rule.mulAndMarginalize(lin, null, RuleUnit.LC, true);
+		expected = expected.mulAndMarginalize(rin, null, RuleUnit.RC, false);
+
+		PackedGaussianMixture prule = PackedGaussianMixture.pack(rule, null);
+		PackedGaussianMixture score = prule.mulAndMarginalize(PackedGaussianMixture.pack(lin, null), null, RuleUnit.LC);
+		score = score.mulAndMarginalize(PackedGaussianMixture.pack(rin, null), score, RuleUnit.RC);
+
+		assertTrue(prule.has(RuleUnit.LC) && prule.has(RuleUnit.RC));
+		assertTrue(score.has(RuleUnit.P) && !score.has(RuleUnit.LC) && !score.has(RuleUnit.RC));
+		for (int k = 0; k < ncomp; k++) {
+			assertEquals(expected.getWeight(k), score.getWeight(k), 1e-12);
+		}
+		assertEquals(expected.marginalize(true), score.marginalize(true), 1e-12);
+		assertEquals(expected.marginalize(false), score.marginalize(false), 1e-12);
+	}
+
+
+	@Test
+	public void testMultiplyAndMerge() {
+		GaussianMixture gm0 = mixture(2, RuleUnit.P);
+		GaussianMixture gm1 = mixture(3, RuleUnit.UC);
+		PackedGaussianMixture pgm = PackedGaussianMixture.pack(gm0, null).multiply(PackedGaussianMixture.pack(gm1, null));
+		assertEquals(6, pgm.ncomponent());
+		assertEquals(gm0.marginalize(true) + gm1.marginalize(true), pgm.marginalize(true), 1e-12);
+
+		pgm.marginalize(EnumSet.of(RuleUnit.UC));
+		PackedGaussianMixture merged = PackedGaussianMixture.merge(pgm);
+		assertEquals(2, merged.ncomponent());
+		assertEquals(pgm.marginalize(true), merged.marginalize(true), 1e-12);
+	}
+
+
+	@Test
+	public void testDelTrivia() {
+		GaussianMixture gm = mixture(5, RuleUnit.P);
+		gm.setWeight(3, -100);
+		PackedGaussianMixture pgm = PackedGaussianMixture.pack(gm, null);
+		gm.delTrivia();
+		pgm.delTrivia();
+		assertEquals(gm.ncomponent(), pgm.ncomponent());
+		assertEquals(4, pgm.ncomponent());
+		for (int k = 1; k < pgm.ncomponent(); k++) {
+			assertTrue(pgm.getWeight(k - 1) >= pgm.getWeight(k));
+		}
+		assertEquals(gm.marginalize(true), pgm.marginalize(true), 1e-12);
+	}
+
+}
@@ -0,0 +1,184 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.CheckpointWriter;
+import edu.shanghaitech.ai.nlp.data.ObjectFileManager.GrammarFile;
+import edu.shanghaitech.ai.nlp.data.StateTreeList;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.optimization.ParallelOptimizer;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.Numberer;
+
+public class PackedGrammarTest {
+
+	public static final String[] TREEBANK = {
+		"(ROOT (S (A w_0) (E (B w_1) (C w_2))))",
+		"(ROOT (S (A w_0) (F (B w_1) (E (B w_1) (C w_2)))))",
+		"(ROOT (L (A w_0) (M (B w_1) (S (A w_2) (C w_0)))))",
+	};
+
+
+	public static GrammarFile treebank() {
+		return treebank(TREEBANK);
+	}
+
+
+	public static GrammarFile treebank(String... strs) {
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, (short) 2, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, (short) 2, 0.5, 0.8, rnd, null);
+
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (String str : strs) {
+			strTrees.add((new Trees.PennTreeReader(new StringReader(str))).next());
+		}
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		StateTreeList trees = new StateTreeList(strTrees, numberer);
+		LVeGGrammar grammar = new SimpleLVeGGrammar(numberer, -1);
+		LVeGLexicon lexicon = new SimpleLVeGLexicon(numberer, -1);
+		grammar.setOptimizer(new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false));
+		lexicon.setOptimizer(new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false));
+		for (Tree<State> tree : trees) {
+			lexicon.tallyStateTree(tree);
+			grammar.tallyStateTree(tree);
+		}
+		grammar.postInitialize();
+		lexicon.postInitialize();
+		for (GrammarRule rule : grammar.getBRuleMap().values()) {
+			rule.weight.setProb(Math.log(0.1 + rnd.nextDouble()));
+		}
+		return new GrammarFile(grammar, lexicon);
+	}
+
+
+	private static void assertRuleEquals(GrammarRule expected, GrammarRule actual) {
+		assertNotNull(actual);
+		assertEquals(expected.weight.getBias(), actual.weight.getBias(), 0);
+		assertEquals(expected.weight.getProb(), actual.weight.getProb(), 0);
+		PackedGaussianMixture pexpected = PackedGaussianMixture.pack(expected.weight, null);
+		PackedGaussianMixture pactual = PackedGaussianMixture.pack(actual.weight, null);
+		int ncomp = pexpected.ncomponent();
+		assertEquals(ncomp, pactual.ncomponent());
+		assertArrayEquals(Arrays.copyOf(pexpected.getWeights(), ncomp), Arrays.copyOf(pactual.getWeights(), ncomp), 0);
+		for (RuleUnit key : RuleUnit.values()) {
+			assertEquals(pexpected.has(key), pactual.has(key));
+			if (!pexpected.has(key)) { continue; }
+			int dim = pexpected.dim(key);
+			assertArrayEquals(Arrays.copyOf(pexpected.getMus(key), ncomp * dim), Arrays.copyOf(pactual.getMus(key), ncomp * dim), 0);
+			assertArrayEquals(Arrays.copyOf(pexpected.getVars(key), ncomp), Arrays.copyOf(pactual.getVars(key), ncomp), 0);
+		}
+	}
+
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		GrammarFile gfile = treebank();
+		LVeGGrammar grammar = gfile.getGrammar();
+		SimpleLVeGLexicon lexicon = (SimpleLVeGLexicon) gfile.getLexicon();
+		File file = File.createTempFile("lveg", ".gr");
+		file.deleteOnExit();
+		assertTrue(gfile.saveBinary(file.getPath()));
+		assertTrue(PackedGrammar.isPacked(file.getPath()));
+
+		GrammarFile loaded = GrammarFile.read(file.getPath());
+		LVeGGrammar agrammar = loaded.getGrammar();
+		SimpleLVeGLexicon alexicon = (SimpleLVeGLexicon) loaded.getLexicon();
+		assertEquals(grammar.ntag, agrammar.ntag);
+		for (int i = 0; i < grammar.ntag; i++) {
+			assertEquals(grammar.numberer.object(i), agrammar.numberer.object(i));
+		}
+		assertEquals(lexicon.wordIndexer.getObjects(), alexicon.wordIndexer.getObjects());
+		assertEquals(grammar.getBRuleMap().size(), agrammar.getBRuleMap().size());
+		assertEquals(grammar.getURuleMap().size(), agrammar.getURuleMap().size());
+		assertEquals(lexicon.getURuleMap().size(), alexicon.getURuleMap().size());
+		for (GrammarRule rule : grammar.getBRuleMap().values()) {
+			assertRuleEquals(rule, agrammar.getBRuleMap().get(rule));
+		}
+		for (GrammarRule rule : grammar.getURuleMap().values()) {
+			assertRuleEquals(rule, agrammar.getURuleMap().get(rule));
+		}
+		for (GrammarRule rule : lexicon.getURuleMap().values()) {
+			assertRuleEquals(rule, alexicon.getURuleMap().get(rule));
+		}
+		for (int itag = 0; itag < grammar.ntag; itag++) {
+			assertEquals(grammar.getBRuleWithP(itag).size(), agrammar.getBRuleWithP(itag).size());
+			assertEquals(grammar.getURuleWithC(itag).size(), agrammar.getURuleWithC(itag).size());
+		}
+	}
+
+
+	private static void assertGrammarEquals(GrammarFile expected, GrammarFile actual) {
+		for (GrammarRule rule : expected.getGrammar().getBRuleMap().values()) {
+			assertRuleEquals(rule, actual.getGrammar().getBRuleMap().get(rule));
+		}
+		for (GrammarRule rule : expected.getGrammar().getURuleMap().values()) {
+			assertRuleEquals(rule, actual.getGrammar().getURuleMap().get(rule));
+		}
+		for (GrammarRule rule : expected.getLexicon().getURuleMap().values()) {
+			assertRuleEquals(rule, actual.getLexicon().getURuleMap().get(rule));
+		}
+	}
+
+
+	@Test
+	public void testDeltas() throws Exception {
+		GrammarFile gfile = treebank();
+		LVeGGrammar grammar = gfile.getGrammar();
+		LVeGLexicon lexicon = gfile.getLexicon();
+		File file = File.createTempFile("lveg", ".gr");
+		File delta = new File(file.getPath() + PackedGrammar.DELTA_SUFFIX);
+		file.deleteOnExit();
+		delta.deleteOnExit();
+		PackedGrammar.pack(grammar, lexicon).save(file.getPath());
+
+		Random rnd = new Random(1);
+		List<GrammarRule> grules = new ArrayList<>(grammar.getBRuleMap().values());
+		List<GrammarRule> lrules = new ArrayList<>(lexicon.getURuleMap().values());
+		for (int i = 0; i < 3; i++) { // overlapping updates, the later segments win
+			List<GrammarRule> gupdated = grules.subList(0, grules.size() - i);
+			List<GrammarRule> lupdated = i == 1 ? Collections.<GrammarRule>emptyList() : lrules.subList(i, lrules.size());
+			for (GrammarRule rule : gupdated) { rule.weight.setProb(Math.log(0.1 + rnd.nextDouble())); }
+			for (GrammarRule rule : lupdated) { rule.weight.setProb(Math.log(0.1 + rnd.nextDouble())); }
+			PackedGrammar.pack(grammar, lexicon, gupdated, lupdated).appendDelta(file.getPath());
+		}
+		try (FileOutputStream fos = new FileOutputStream(delta, true)) { // a torn segment
+			fos.write(new byte[] {0x4c, 0x56, 0x47, 0x44, 1, 0, 0, 0, 127});
+		}
+		assertGrammarEquals(gfile, GrammarFile.read(file.getPath()));
+
+		CheckpointWriter.compact(file.getPath());
+		assertFalse(delta.exists());
+		assertGrammarEquals(gfile, GrammarFile.read(file.getPath()));
+	}
+
+
+	@Test
+	public void testLegacyFile() throws Exception {
+		GrammarFile gfile = treebank();
+		File file = File.createTempFile("lveg", ".gr");
+		file.deleteOnExit();
+		assertTrue(gfile.save(file.getPath()));
+		assertFalse(PackedGrammar.isPacked(file.getPath()));
+		GrammarFile loaded = GrammarFile.read(file.getPath());
+		assertEquals(gfile.getGrammar().getBRuleMap().size(), loaded.getGrammar().getBRuleMap().size());
+		assertNotNull(loaded.getGrammar().getOptimizer());
+	}
+
+}
@@ -0,0 +1,59 @@
+package edu.shanghaitech.ai.nlp.lveg.model;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.lveg.impl.BinaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.impl.UnaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+
+public class RuleIndexTest {
+
+	@Test
+	public void testKey() {
+		long key = RuleIndex.key((short) 40000, (short) 33000, (short) 7);
+		assertEquals(RuleType.LRBRULE, RuleIndex.type(key));
+		assertEquals((short) 40000, RuleIndex.parent(key));
+		assertEquals((short) 33000, RuleIndex.lchild(key));
+		assertEquals((short) 7, RuleIndex.rchild(key));
+
+		key = RuleIndex.key((short) 3, 123456789, RuleType.LHSPACE);
+		assertEquals(RuleType.LHSPACE, RuleIndex.type(key));
+		assertEquals((short) 3, RuleIndex.parent(key));
+		assertEquals(123456789, RuleIndex.child(key));
+
+		assertNotEquals(RuleIndex.key((short) 3, 5, RuleType.LRURULE), RuleIndex.key((short) 3, 5, RuleType.RHSPACE));
+		assertEquals(RuleIndex.key((short) 3, (short) 5, (short) 6), RuleIndex.key(new BinaryGrammarRule((short) 3, (short) 5, (short) 6)));
+		assertEquals(RuleIndex.key((short) 3, 5, RuleType.RHSPACE), RuleIndex.key(new UnaryGrammarRule((short) 3, 5, RuleType.RHSPACE)));
+	}
+
+
+	@Test
+	public void testGet() {
+		Random rnd = new Random(0);
+		RuleIndex index = new RuleIndex(4);
+		Map<Long, GrammarRule> expected = new HashMap<>();
+		for (int i = 0; i < 5000; i++) { // several resizes
+			GrammarRule rule;
+			if (rnd.nextBoolean()) {
+				rule = new BinaryGrammarRule((short) rnd.nextInt(100), (short) rnd.nextInt(100), (short) rnd.nextInt(100));
+			} else {
+				rule = new UnaryGrammarRule((short) rnd.nextInt(100), rnd.nextInt(10000), RuleType.values()[rnd.nextInt(3)]);
+			}
+			index.put(RuleIndex.key(rule), rule);
+			expected.put(RuleIndex.key(rule), rule);
+		}
+		assertEquals(expected.size(), index.size());
+		for (Map.Entry<Long, GrammarRule> entry : expected.entrySet()) {
+			assertSame(entry.getValue(), index.get(entry.getKey()));
+		}
+		assertNull(index.get(RuleIndex.key((short) 100, (short) 0, (short) 0)));
+		assertNull(index.get(RuleIndex.key((short) 0, 10000, RuleType.LRURULE)));
+	}
+
+}
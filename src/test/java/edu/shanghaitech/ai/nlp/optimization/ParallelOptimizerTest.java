@@ -1,7 +1,15 @@
 package edu.shanghaitech.ai.nlp.optimization;
 
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -9,7 +17,27 @@ import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import edu.berkeley.nlp.syntax.Tree;
+import edu.berkeley.nlp.syntax.Trees;
+import edu.shanghaitech.ai.nlp.data.StateTreeList;
+import edu.shanghaitech.ai.nlp.lveg.LearnerConfig;
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.impl.DiagonalGaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.impl.LVeGParser;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.impl.SimpleLVeGLexicon;
+import edu.shanghaitech.ai.nlp.lveg.impl.UnaryGrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianDistribution;
+import edu.shanghaitech.ai.nlp.lveg.model.GaussianMixture;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleType;
+import edu.shanghaitech.ai.nlp.lveg.model.GrammarRule.RuleUnit;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGGrammar;
+import edu.shanghaitech.ai.nlp.lveg.model.LVeGLexicon;
 import edu.shanghaitech.ai.nlp.lveg.model.Parser;
+import edu.shanghaitech.ai.nlp.syntax.State;
+import edu.shanghaitech.ai.nlp.util.DoubleArrayList;
+import edu.shanghaitech.ai.nlp.util.Numberer;
 import edu.shanghaitech.ai.nlp.util.ThreadPool;
 
 public class ParallelOptimizerTest {
@@ -187,4 +215,187 @@ public class ParallelOptimizerTest {
 		*/
 	}
 
+	
+	@Test
+	public void testShardMerge() throws InterruptedException {
+		final short ncomp = 2, ndim = 2, nshard = 5;
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, ncomp, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, ndim, 0.5, 0.8, rnd, null);
+		GaussianMixture weight = new DiagonalGaussianMixture((short) 0, false);
+		for (int i = 0; i < ncomp; i++) {
+			EnumMap<RuleUnit, Set<GaussianDistribution>> map = new EnumMap<>(RuleUnit.class);
+			for (RuleUnit key : new RuleUnit[] { RuleUnit.P, RuleUnit.UC }) {
+				Set<GaussianDistribution> gausses = new HashSet<>();
+				gausses.add(new DiagonalGaussianDistribution(ndim));
+				map.put(key, gausses);
+			}
+			weight.add(0.0, map);
+		}
+		final GrammarRule rule = new UnaryGrammarRule((short) 1, 2, RuleType.LRURULE, weight);
+		final ParallelOptimizer optimizer = new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false);
+		optimizer.addRule(rule);
+		
+		// shard i holds the gradients i + 1 except for shard 2, which does not touch the rule
+		for (int i = 0; i < nshard; i++) {
+			final double value = i + 1;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					ParallelOptimizer.Slot slot = optimizer.shard().slots.get(rule);
+					if (value == 3) { return; }
+					slot.gradient = new Gradient(rule);
+					fill(slot.gradient, value, ndim * 2);
+				}
+			};
+			thread.start();
+			thread.join();
+		}
+		assertEquals(nshard, optimizer.shards.size());
+		assertFalse(optimizer.isPending());
+		assertEquals(nshard, optimizer.shards.size()); // asking does not create the shard of the main thread
+		
+		optimizer.merge();
+		double expected = nshard * (nshard + 1) / 2 - 3;
+		Gradient.Grads grads = (Gradient.Grads) optimizer.debug(rule, false);
+		assertEquals(ncomp, grads.wgrads.size());
+		for (int k = 0; k < ncomp; k++) {
+			assertEquals(expected, grads.wgrads.get(k), 1e-12);
+			for (Map.Entry<RuleUnit, DoubleArrayList> part : grads.ggrads.get(k).entrySet()) {
+				assertEquals(ndim * 2, part.getValue().size());
+				for (int d = 0; d < part.getValue().size(); d++) {
+					assertEquals(expected, part.getValue().getDouble(d), 1e-12);
+				}
+			}
+		}
+		for (ParallelOptimizer.Shard shard : optimizer.shards) {
+			Gradient partial = shard.slots.get(rule).gradient;
+			assertTrue(partial == null || !partial.updated);
+		}
+	}
+	
+	
+	private static void fill(Gradient gradient, double value, int size) {
+		for (int k = 0; k < gradient.ggrads.size(); k++) {
+			gradient.wgrads.addDouble(value);
+			for (DoubleArrayList part : gradient.ggrads.get(k).values()) {
+				part.clear();
+				for (int d = 0; d < size; d++) {
+					part.addDouble(value);
+				}
+			}
+		}
+		gradient.updated = true;
+		gradient.cumulative = true;
+	}
+
+	
+	@Test
+	public void testConcurrentCounts() throws Exception {
+		final int nthread = 4, ncount = 1000;
+		final GrammarRule rule = new UnaryGrammarRule((short) 1, 2, RuleType.LRURULE, true);
+		final Optimizer optimizer = new SimpleOptimizer(new Random(0));
+		optimizer.addRule(rule);
+		ExecutorService pool = Executors.newFixedThreadPool(nthread);
+		List<Callable<Boolean>> tasks = new ArrayList<>();
+		for (int i = 0; i < nthread; i++) {
+			final short isample = (short) i;
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					for (int k = 0; k < ncount; k++) {
+						optimizer.addCount(rule, new EnumMap<RuleUnit, GaussianMixture>(RuleUnit.class), (short) (k % 2), k % 2 == 0);
+						optimizer.addCount(rule, new EnumMap<RuleUnit, GaussianMixture>(RuleUnit.class), isample, false);
+					}
+					return true;
+				}
+			});
+		}
+		pool.invokeAll(tasks);
+		pool.shutdown();
+		assertEquals(nthread * ncount / 2, optimizer.getCount(rule, true).get((short) 0).size());
+		int total = 0;
+		for (List<EnumMap<RuleUnit, GaussianMixture>> cnts : optimizer.getCount(rule, false).values()) {
+			total += cnts.size();
+		}
+		assertEquals(nthread * ncount * 3 / 2, total);
+	}
+	
+	
+	@Test
+	public void testMinibatch() {
+		String[] strs = {
+			"(ROOT (S (A w_0) (E (B w_1) (C w_2))))",
+			"(ROOT (S (A w_0) (F (B w_1) (E (B w_1) (C w_2)))))",
+			"(ROOT (L (A w_0) (M (B w_1) (S (A w_2) (C w_0)))))",
+		};
+		ParallelOptimizer[] single = minibatch(strs, (short) 1);
+		ParallelOptimizer[] batched = minibatch(strs, (short) strs.length);
+		int nupdated = 0;
+		for (int i = 0; i < single.length; i++) {
+			assertFalse(single[i].getRuleSet().isEmpty());
+			for (GrammarRule rule : single[i].getRuleSet()) {
+				Gradient.Grads expected = (Gradient.Grads) single[i].debug(rule, false);
+				Gradient.Grads grads = (Gradient.Grads) batched[i].debug(rule, false);
+				assertEquals(expected.wgrads.size(), grads.wgrads.size());
+				if (grads.wgrads.size() > 0) { nupdated++; }
+				for (int k = 0; k < expected.wgrads.size(); k++) {
+					assertEquals(expected.wgrads.get(k), grads.wgrads.get(k), 1e-9);
+					for (Map.Entry<RuleUnit, DoubleArrayList> part : expected.ggrads.get(k).entrySet()) {
+						DoubleArrayList values = grads.ggrads.get(k).get(part.getKey());
+						assertEquals(part.getValue().size(), values.size());
+						for (int d = 0; d < values.size(); d++) {
+							assertEquals(part.getValue().getDouble(d), values.getDouble(d), 1e-9);
+						}
+					}
+				}
+			}
+		}
+		assertTrue(nupdated > 0);
+		Gradient.config((short) 1);
+	}
+	
+	
+	/**
+	 * @return the optimizers of the grammar and the lexicon in which the gradients of the trees have been accumulated
+	 */
+	private static ParallelOptimizer[] minibatch(String[] strs, short gbsize) {
+		Random rnd = new Random(0);
+		GaussianMixture.config((short) -1, 1e-6, 4, (short) 2, 0.5, -1.0, -1.0, true, rnd, null);
+		GaussianDistribution.config(1, 5, (short) 2, 0.5, 0.8, rnd, null);
+		Gradient.config(gbsize);
+		
+		List<Tree<String>> strTrees = new ArrayList<>();
+		for (String str : strs) {
+			strTrees.add((new Trees.PennTreeReader(new StringReader(str))).next());
+		}
+		Numberer numberer = new Numberer().getGlobalNumberer(LearnerConfig.KEY_TAG_SET);
+		StateTreeList trees = new StateTreeList(strTrees, numberer);
+		ParallelOptimizer goptimizer = new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false);
+		ParallelOptimizer loptimizer = new ParallelOptimizer((short) 1, false, ParallelOptimizer.ParallelMode.THREAD_POOL, false);
+		LVeGGrammar grammar = new SimpleLVeGGrammar(numberer, -1);
+		LVeGLexicon lexicon = new SimpleLVeGLexicon(numberer, -1);
+		grammar.setOptimizer(goptimizer);
+		lexicon.setOptimizer(loptimizer);
+		for (Tree<State> tree : trees) {
+			lexicon.tallyStateTree(tree);
+			grammar.tallyStateTree(tree);
+		}
+		grammar.postInitialize();
+		lexicon.postInitialize();
+		grammar.initializeOptimizer();
+		lexicon.initializeOptimizer();
+		lexicon.labelTrees(trees);
+		
+		LVeGParser<?, ?> parser = new LVeGParser<Tree<State>, List<Double>>(grammar, lexicon, (short) 10, (short) 1, false, false, false, null);
+		for (Tree<State> tree : trees) {
+			List<Double> scores = parser.evalRuleCounts(tree, (short) 0);
+			grammar.evalGradients(scores);
+			lexicon.evalGradients(scores);
+		}
+		goptimizer.merge();
+		loptimizer.merge();
+		return new ParallelOptimizer[] { goptimizer, loptimizer };
+	}
+
 }
@@ -0,0 +1,63 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DoubleArrayListTest {
+
+	@Test
+	public void testListSemantics() {
+		DoubleArrayList xx = new DoubleArrayList();
+		List<Double> yy = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			xx.add(i * 0.5);
+			yy.add(i * 0.5);
+		}
+		assertTrue(xx.equals(yy));
+		assertTrue(yy.equals(xx));
+		assertEquals(yy.hashCode(), xx.hashCode());
+
+		xx.remove(3);
+		yy.remove(3);
+		xx.add(0, -1.0);
+		yy.add(0, -1.0);
+		assertTrue(xx.equals(yy));
+
+		xx.clear();
+		assertTrue(xx.isEmpty());
+		xx.addAll(yy);
+		assertTrue(xx.equals(new DoubleArrayList(yy)));
+	}
+
+
+	@Test
+	public void testPrimitiveAccess() {
+		DoubleArrayList xx = DoubleArrayList.fill(3, 2.0);
+		xx.increment(1, 1.5);
+		assertEquals(3.5, xx.getDouble(1), 0);
+		assertEquals(2.0, xx.lastDouble(), 0);
+
+		xx.zeros(5);
+		assertEquals(5, xx.size());
+		for (double x : xx.toDoubleArray()) {
+			assertEquals(0, x, 0);
+		}
+
+		xx.setAll(new double[] { 1, 2, 3, 4 }, 2);
+		assertEquals(2, xx.size());
+		assertEquals(2.0, xx.get(1), 0);
+	}
+
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds() {
+		DoubleArrayList xx = new DoubleArrayList(8);
+		xx.addDouble(1.0);
+		xx.getDouble(1);
+	}
+
+}
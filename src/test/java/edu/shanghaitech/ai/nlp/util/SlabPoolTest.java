@@ -0,0 +1,64 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SlabPoolTest {
+
+	private static SlabPool<List<Short>> pool = new SlabPool<>(new SlabPool.Factory<List<Short>>() {
+		@Override
+		public List<Short> make(short key) {
+			return new ArrayList<>();
+		}
+
+		@Override
+		public void clear(List<Short> obj) {
+			obj.clear();
+		}
+	});
+
+
+	@Test
+	public void testReuseAfterReset() {
+		pool.reset();
+		List<Short> a = pool.borrowObject((short) -1);
+		List<Short> b = pool.borrowObject((short) -1);
+		List<Short> c = pool.borrowObject((short) 5);
+		assertNotSame(a, b);
+		a.add((short) 1);
+		c.add((short) 5);
+		assertEquals(3, pool.nborrowed());
+
+		int capacity = pool.capacity();
+		pool.reset();
+		assertEquals(0, pool.nborrowed());
+		assertSame(a, pool.borrowObject((short) -1));
+		assertSame(c, pool.borrowObject((short) 5));
+		assertTrue(a.isEmpty() && c.isEmpty());
+		assertEquals(capacity, pool.capacity());
+	}
+
+
+	@Test
+	public void testThreadConfinement() throws InterruptedException {
+		pool.reset();
+		final List<Short> mine = pool.borrowObject((short) 2);
+		final List<List<Short>> theirs = new ArrayList<>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				pool.reset();
+				theirs.add(pool.borrowObject((short) 2));
+			}
+		};
+		thread.start();
+		thread.join();
+		assertNotSame(mine, theirs.get(0));
+		assertEquals(1, pool.nborrowed());
+	}
+
+}
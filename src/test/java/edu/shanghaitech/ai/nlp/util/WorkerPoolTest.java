@@ -0,0 +1,129 @@
+package edu.shanghaitech.ai.nlp.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.shanghaitech.ai.nlp.util.Executor.Meta;
+
+public class WorkerPoolTest {
+
+	/**
+	 * Squares the task after sleeping for it milliseconds, so that later tasks may finish earlier.
+	 */
+	static class Squarer implements Executor<Integer, Integer> {
+		private static final long serialVersionUID = 1L;
+		protected static AtomicInteger running = new AtomicInteger(0);
+		protected static AtomicInteger maxrunning = new AtomicInteger(0);
+		protected int itask;
+		protected Integer task;
+		protected PriorityQueue<Meta<Integer>> caches;
+
+		@Override
+		public synchronized Object call() throws Exception {
+			int nrunning = running.incrementAndGet();
+			while (true) {
+				int max = maxrunning.get();
+				if (nrunning <= max || maxrunning.compareAndSet(max, nrunning)) { break; }
+			}
+			Thread.sleep(task);
+			running.decrementAndGet();
+			synchronized (caches) {
+				caches.add(new Meta<Integer>(itask, task * task));
+				caches.notify();
+			}
+			return itask;
+		}
+
+		@Override
+		public Executor<?, ?> newInstance() {
+			return new Squarer();
+		}
+
+		@Override
+		public void setNextTask(int itask, Integer task) {
+			this.itask = itask;
+			this.task = task;
+		}
+
+		@Override
+		public void setIdx(int idx, PriorityQueue<Meta<Integer>> caches) {
+			this.caches = caches;
+		}
+	}
+
+
+	private static final int[] TASKS = {20, 1, 15, 2, 9, 0, 12, 3, 7, 5, 11, 4};
+
+
+	@Test
+	public void testOrdered() {
+		WorkerPool pool = new WorkerPool(new Squarer(), 3, 3, true);
+		int iret = 0;
+		for (int i = 0; i < TASKS.length; i++) {
+			assertEquals(i, pool.execute(TASKS[i]));
+			while (pool.hasNext()) {
+				assertEquals(TASKS[iret] * TASKS[iret], pool.getNext());
+				iret++;
+			}
+		}
+		while (!pool.isDone()) {
+			assertEquals(TASKS[iret] * TASKS[iret], pool.take());
+			iret++;
+		}
+		assertEquals(TASKS.length, iret);
+		assertTrue(Squarer.maxrunning.get() <= 3);
+		pool.reset();
+		assertTrue(pool.isDone());
+		assertEquals(0, pool.execute(4)); // reusable after the reset
+		assertEquals(16, pool.take());
+		pool.shutdown();
+	}
+
+
+	@Test
+	public void testUnordered() {
+		WorkerPool pool = new WorkerPool(new Squarer(), 2, 4, false);
+		Set<Integer> ids = new HashSet<>();
+		for (int i = 0; i < TASKS.length; i++) {
+			pool.execute(TASKS[i]);
+		}
+		while (!pool.isDone()) {
+			Meta<?> meta = pool.takeMeta();
+			assertEquals(TASKS[meta.id] * TASKS[meta.id], meta.value());
+			assertTrue(ids.add(meta.id));
+		}
+		assertEquals(TASKS.length, ids.size());
+		pool.shutdown();
+	}
+
+
+	@Test
+	public void testReset() throws InterruptedException {
+		WorkerPool pool = new WorkerPool(new Squarer(), 2, 4, true);
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 4; i++) {
+				pool.execute(i % 2); // none of the results is consumed
+			}
+			if (round % 2 == 0) {
+				Thread.sleep(20); // all the workers are idle but the results are still in the service
+			}
+			pool.reset();
+			assertTrue(pool.isDone());
+			assertFalse(pool.hasNext());
+			assertEquals(0, pool.execute(6));
+			Meta<?> meta = pool.takeMeta();
+			assertEquals(0, meta.id);
+			assertEquals(36, meta.value()); // not a result of the previous round
+			assertTrue(pool.isDone());
+			pool.reset();
+		}
+		pool.shutdown();
+	}
+
+}